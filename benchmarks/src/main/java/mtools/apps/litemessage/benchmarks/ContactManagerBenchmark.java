@@ -0,0 +1,153 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.Settings;
+
+/**
+ * Adding and looking up contacts in lists of different sizes.  A new contact is removed again
+ * after it is added, so the list stays the same size.  Adding one that is already known is
+ * what happens at the start of every chat.  The contacts are kept in a temporary directory.
+ * @author Noah
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactManagerBenchmark {
+	
+	@Param({"10", "1000", "100000"})
+	public int contacts;
+	
+	private File dir;
+	private ContactManager cMan;
+	private Contact newContact;
+	private Contact knownContact;
+	private String[] names;
+	private int next;
+	
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("litemessage-benchmark").toFile();
+		File file = new File(dir, "contacts.cfg");
+		
+		//Written the way ContactManager saves them.
+		try(BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			for(int i = 0; i < contacts; i++) {
+				out.write(String.format("user%07d,%016x,10.%d.%d.%d\n", i, i * 0x9E3779B97F4A7C15L, (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF));
+			}
+		}
+		
+		cMan = new ContactManager(new Settings(), file.getPath(), new File(dir, "contacts.journal").getPath());
+		cMan.loadContacts();
+		
+		newContact = new Contact();
+		newContact.setName("benchmark");
+		newContact.setUID("benchmark-uid");
+		newContact.setIPAddress(InetAddress.getLoopbackAddress());
+		
+		Contact existing = cMan.getContacts().get(contacts / 2);
+		knownContact = new Contact();
+		knownContact.setName(existing.getName());
+		knownContact.setUID(existing.getUID());
+		knownContact.setIPAddress(existing.getIPAddress());
+		
+		//Names that aren't all the same case, since the lookup ignores case.
+		names = new String[Math.min(contacts, 1024)];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = cMan.getContacts().get(i * (contacts / names.length)).getName().toUpperCase();
+		}
+	}
+	
+	@Benchmark
+	public int addRemoveContact() {
+		cMan.addContact(newContact);
+		cMan.removeContact(newContact.getName());
+		return cMan.getNumContacts();
+	}
+	
+	@Benchmark
+	public int addKnownContact() {
+		cMan.addContact(knownContact);
+		return cMan.getNumContacts();
+	}
+	
+	@Benchmark
+	public Contact getContactByName() {
+		next = (next + 1) % names.length;
+		return cMan.getContactByName(names[next]);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		cMan.close();
+		
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		
+		dir.delete();
+	}
+}
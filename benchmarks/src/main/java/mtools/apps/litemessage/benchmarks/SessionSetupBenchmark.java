@@ -0,0 +1,141 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Setting up a session with a peer over loopback through {@link ConnectionManager}, and
+ * swapping handshakes, either on the control port or handed off to a dynamic port.
+ * @author Noah
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionSetupBenchmark {
+	
+	@Param({"true", "false"})
+	public boolean singlePort;
+	
+	private ConnectionManager client;
+	private ConnectionManager server;
+	private volatile boolean running;
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		int port;
+		try(ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		
+		server = new ConnectionManager();
+		server.setControlPort(port);
+		server.setSinglePortMode(singlePort);
+		server.setPersistentListener(true);
+		server.getPool().setEnabled(false);
+		
+		client = new ConnectionManager();
+		client.setControlPort(port);
+		client.setSinglePortMode(singlePort);
+		client.getPool().setEnabled(false);
+		
+		running = true;
+		Thread acceptor = new Thread(() -> {
+			while(running) {
+				try {
+					StreamBundle b = server.waitForSessionNegotiation();
+					
+					if(b == null) {
+						continue;
+					}
+					
+					b.readFrame();
+					b.writeFrame(Frame.handshake("server,2"), true);
+					server.closeSocket(b.getSocket());
+				} catch(IOException e) {
+					if(running) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "SessionSetupBenchmark acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		while(!server.isListening()) {
+			Thread.sleep(10);
+		}
+	}
+	
+	@Benchmark
+	public Frame sessionSetup() throws IOException {
+		StreamBundle b = client.initSessionNegotiation(InetAddress.getLoopbackAddress());
+		b.writeFrame(Frame.handshake("client,1"), true);
+		Frame handshake = b.readFrame();
+		client.closeSocket(b.getSocket());
+		return handshake;
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		running = false;
+		server.closeServerSocket();
+	}
+}
@@ -0,0 +1,116 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * A frame sent over a loopback {@link StreamBundle} and echoed straight back by another
+ * thread on the other end.
+ * @author Noah
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBundleBenchmark {
+	
+	@Param({"16", "1024"})
+	public int size;
+	
+	private Socket client;
+	private Socket server;
+	private StreamBundle bundle;
+	private Frame frame;
+	
+	@Setup
+	public void setup() throws IOException {
+		ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		server = listener.accept();
+		listener.close();
+		
+		bundle = new StreamBundle(client, true);
+		StreamBundle echo = new StreamBundle(server, true);
+		frame = new Frame(FrameType.TEXT, 0, new byte[size]);
+		
+		Thread t = new Thread(() -> {
+			try {
+				while(true) {
+					echo.writeFrame(echo.readFrame(), true);
+				}
+			} catch(IOException e) {}
+		}, "StreamBundleBenchmark echo");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	@Benchmark
+	public Frame roundTrip() throws IOException {
+		bundle.writeFrame(frame, true);
+		return bundle.readFrame();
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+}
@@ -35,17 +35,25 @@
  */
 
 package mtools.apps.litemessage;
+import java.io.File;
+
 import javax.swing.JOptionPane;
 
 import mtools.apps.litemessage.console.ConsoleReceiveMessageHandler;
 import mtools.apps.litemessage.console.ConsoleTextDisplay;
 import mtools.apps.litemessage.console.ConsoleTextInput;
+import mtools.apps.litemessage.console.HubModule;
 import mtools.apps.litemessage.console.MenuModule;
 import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.MessageSpool;
 import mtools.apps.litemessage.control.logic.MessagingControlModule;
 import mtools.apps.litemessage.control.logic.SettingsModule;
 import mtools.apps.litemessage.core.MessagingState;
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.ThreadMode;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.HeartbeatMonitor;
 import mtools.io.*;
 import mtools.logging.MLog;
 
@@ -85,12 +93,30 @@ public class LiteMessage {
 		}
 		
 		connectionMan.setOutgoingPortEnforcement(true);
+		connectionMan.setSinglePortMode(sMod.getSettings().singlePortSessions);
+		connectionMan.setEncryption(sMod.getSettings().encryption);
+		connectionMan.getPool().setEnabled(sMod.getSettings().connectionPooling);
+		
+		if(sMod.getSettings().virtualThreads) {
+			SessionExecutor.setDefault(new SessionExecutor(ThreadMode.VIRTUAL));
+		}
 		
 		cMan = new ContactManager(sMod.getSettings());
 		cMan.loadContacts();
+		MessageSpool.setDefault(new MessageSpool(new File(MessageSpool.DEFAULT_DIRECTORY), connectionMan, cMan));
+		Metrics.getDefault().registerMBean();
+		HeartbeatMonitor.getDefault().setIdleTimeout(sMod.getSettings().idleTimeout * 1000L);
+		MessagingControlModule.preconnectAll(connectionMan, cMan, sMod.getSettings().favorites);
 		
 		ctd = new ConsoleTextDisplay();
 		
+		//Hub mode holds many chats at once, so it has its own control loop.
+		if(sMod.getSettings().hubMode) {
+			connectionMan.setPersistentListener(true);
+			new HubModule(display, ctd, console, connectionMan, cMan, sMod).run();
+			return;
+		}
+		
 		//this is called specifically at this time to prevent a null MessagingControlModule
 		initializeRxComms();
 		
@@ -37,6 +37,7 @@
 package mtools.apps.litemessage.console;
 
 import mtools.apps.litemessage.control.logic.MessagingControlModule;
+import mtools.apps.litemessage.core.SessionExecutor;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
 import mtools.logging.MLog;
 
@@ -45,7 +46,7 @@ import mtools.logging.MLog;
  * @author Noah
  *
  */
-public class ConsoleReceiveMessageHandler extends Thread {
+public class ConsoleReceiveMessageHandler implements Runnable {
 	
 	MessagingControlModule cMan;
 	ConnectionManager connectionMan;
@@ -54,12 +55,19 @@ public class ConsoleReceiveMessageHandler extends Thread {
 		cMan = mcm;
 		connectionMan = conMan;
 		
-		if(!connectionMan.isLocalPortUsable(connectionMan.getControlPort())) {
+		if(!connectionMan.isControlPortAvailable()) {
 			System.err.println("***The configured control port (" + connectionMan.getControlPort() + ") is not available.  You cannot be contacted until otherwise!***");
 			MLog.fileLog.log("Port " + connectionMan.getControlPort() + " is unavailable for use as the control port.");
 		}
 	}
 	
+	/**
+	 * Starts waiting for an incoming connection on the default {@link SessionExecutor}.
+	 */
+	public void start() {
+		SessionExecutor.getDefault().execute(this);
+	}
+	
 	//Just sits and waits for an incoming connection
 	@Override
 	public void run() {
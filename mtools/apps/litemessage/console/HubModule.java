@@ -0,0 +1,251 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.console;
+
+import java.util.ArrayList;
+
+import mtools.apps.litemessage.control.logic.CommandParseModule;
+import mtools.apps.litemessage.control.logic.CommandType;
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.HubAcceptor;
+import mtools.apps.litemessage.control.logic.MessagingControlModule;
+import mtools.apps.litemessage.control.logic.SessionRegistry;
+import mtools.apps.litemessage.control.logic.SettingsModule;
+import mtools.apps.litemessage.core.EventLog;
+import mtools.apps.litemessage.core.MessagingState;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.io.MDisplay;
+import mtools.logging.MLog;
+
+/**
+ * Runs the console version in hub mode.  Many chats can go on at once, and new ones are
+ * accepted while others are going.  Messages from every chat are shown as they come in,
+ * and whatever is typed goes to the chat that is switched to.  Lines starting with "cmd-"
+ * get around between chats (see {@link #displayHelp()}).
+ * @author Noah
+ *
+ */
+public class HubModule {
+	
+	private MDisplay display;
+	private ConsoleTextDisplay ctd;
+	private ConsoleTextInput console;
+	private ConnectionManager connectionMan;
+	private ContactManager cMan;
+	private SettingsModule sMod;
+	private CommandParseModule cpm;
+	private SessionRegistry registry;
+	private HubAcceptor acceptor;
+	private volatile MessagingControlModule focused;
+	private EventLog log;
+	
+	public HubModule(MDisplay dis, ConsoleTextDisplay tdo, ConsoleTextInput con, ConnectionManager conMan, ContactManager cm, SettingsModule sm) {
+		display = dis;
+		ctd = tdo;
+		console = con;
+		connectionMan = conMan;
+		cMan = cm;
+		sMod = sm;
+		cpm = new CommandParseModule();
+		registry = new SessionRegistry();
+		acceptor = new HubAcceptor(connectionMan, this::createSession, this::sessionAccepted);
+		log = EventLog.getDefault();
+	}
+	
+	/**
+	 * Starts accepting chats, and then reads from the console until the user quits.
+	 */
+	public void run() {
+		if(!connectionMan.isControlPortAvailable()) {
+			System.err.println("***The configured control port (" + connectionMan.getControlPort() + ") is not available.  You cannot be contacted until otherwise!***");
+			MLog.fileLog.log("Port " + connectionMan.getControlPort() + " is unavailable for use as the control port.");
+		}
+		
+		acceptor.start();
+		displayHelp();
+		
+		while(true) {
+			System.out.print("> ");
+			String input = console.getInputString();
+			CommandType command = cpm.evaluateText(input);
+			
+			switch(command) {
+			case NEW:
+				startChat();
+				break;
+				
+			case LIST:
+				listChats();
+				break;
+				
+			case SWITCH:
+				switchTo(cpm.getArgument(input));
+				break;
+				
+			case SETTINGS:
+				sMod.configSettingsFromConsole(cMan);
+				break;
+				
+			case HELP:
+				displayHelp();
+				break;
+				
+			case QUIT:
+				acceptor.stop();
+				registry.closeAll();
+				System.exit(0);
+				return;
+				
+			default:
+				MessagingControlModule current = getFocused();
+				
+				if(current == null) {
+					System.out.println("You aren't in a chat.  Type cmd-list to see them, or cmd-help for help.");
+					break;
+				}
+				
+				current.sendData(input);
+				
+				if(command == CommandType.EXIT) {
+					registry.unregister(current);
+					focused = null;
+					System.out.println("You left the chat with " + current.getConnectedContact().getName() + ".");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the chats going on right now.
+	 * @return
+	 */
+	public SessionRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Prints the hub commands.
+	 */
+	public void displayHelp() {
+		display.clear();
+		display.setBanner("LiteMessage hub.  Accepting chats on port " + connectionMan.getControlPort() + ".");
+		display.addLine("cmd-new           Message somebody");
+		display.addLine("cmd-list          List the chats going on");
+		display.addLine("cmd-switch <chat> Switch to a chat, by number or name");
+		display.addLine("cmd-exit          Leave the chat you are in");
+		display.addLine("cmd-settings      Change settings");
+		display.addLine("cmd-quit          Leave every chat and exit");
+		display.display();
+	}
+	
+	private MessagingControlModule createSession() {
+		return new MessagingControlModule(display, ctd, console, connectionMan, cMan);
+	}
+	
+	//Called on the executor for each chat the acceptor starts.
+	private void sessionAccepted(MessagingControlModule session) {
+		registry.register(session);
+		String name = session.getConnectedContact().getName();
+		
+		//Nobody is being typed to, so this chat gets what is typed next.
+		if(getFocused() == null) {
+			focused = session;
+			ctd.println(name + " has connected.  You are now chatting with " + name + ".");
+		} else {
+			ctd.println(name + " has connected.  Type cmd-switch " + name + " to chat with them.");
+		}
+		
+		//Checking for possibly fishy contact info.
+		if(session.getConnectedContact().getUIDProblem()) {
+			ctd.println("This person may not be " + '"' + name + '"' + ".  Different identifier detected!");
+			log.warn("UID mismatch with name \"{}\"", name);
+		}
+	}
+	
+	//Starts a chat that we initiate, and switches to it.
+	private void startChat() {
+		MessagingControlModule session = createSession();
+		session.startInitiateMessageLogic();
+		
+		if(session.getMessagingState() != MessagingState.CURRENTLY_MESSAGING) {
+			return;
+		}
+		
+		registry.register(session);
+		focused = session;
+	}
+	
+	private void listChats() {
+		ArrayList<MessagingControlModule> sessions = registry.getSessions();
+		
+		if(sessions.isEmpty()) {
+			System.out.println("No chats are going on.");
+			return;
+		}
+		
+		MessagingControlModule current = getFocused();
+		
+		for(int i = 0; i < sessions.size(); i++) {
+			MessagingControlModule session = sessions.get(i);
+			System.out.println(i + ". " + session.getConnectedContact().getName() + (session == current ? " (current)" : ""));
+		}
+	}
+	
+	private void switchTo(String selection) {
+		MessagingControlModule session = registry.find(selection);
+		
+		if(session == null) {
+			System.out.println("There is no chat with " + '"' + selection + '"' + ".  Type cmd-list to see them.");
+			return;
+		}
+		
+		focused = session;
+		System.out.println("You are now chatting with " + session.getConnectedContact().getName() + ".");
+	}
+	
+	//The chat being typed to, or null if there isn't one or it has ended.
+	private MessagingControlModule getFocused() {
+		MessagingControlModule current = focused;
+		
+		if(current != null && current.getMessagingState() != MessagingState.CURRENTLY_MESSAGING) {
+			focused = null;
+			return null;
+		}
+		
+		return current;
+	}
+}
@@ -36,8 +36,13 @@
 
 package mtools.apps.litemessage.control.logic;
 
+import mtools.apps.litemessage.core.networking.ControlCommand;
+import mtools.apps.litemessage.core.networking.Frame;
+
 /**
  * A simple class that looks for special commands while in a messaging session.
+ * Commands typed by the user are found with {@link #evaluateText(String)}.  Commands
+ * received from a peer arrive as control frames, and are found with {@link #evaluateFrame(Frame)}.
  * @author Noah
  *
  */
@@ -53,12 +58,71 @@ public class CommandParseModule {
 	 * @return
 	 */
 	public CommandType evaluateText(String text) {
+		//The only command that takes an argument.
+		if(text.startsWith("cmd-switch ")) {
+			return CommandType.SWITCH;
+		}
+		
 		switch(text) {
 		
 		case "cmd-exit":
-			return CommandType.EXIT;	
+			return CommandType.EXIT;
+		case "cmd-new":
+			return CommandType.NEW;
+		case "cmd-list":
+			return CommandType.LIST;
+		case "cmd-settings":
+			return CommandType.SETTINGS;
+		case "cmd-help":
+			return CommandType.HELP;
+		case "cmd-quit":
+			return CommandType.QUIT;
 		}
 			
 		return CommandType.DO_NOTHING;
 	}
+	
+	/**
+	 * Returns what was typed after a command, such as the chat to switch to, or an empty
+	 * string if there is nothing.
+	 * @param text
+	 * @return
+	 */
+	public String getArgument(String text) {
+		int space = text.indexOf(' ');
+		
+		if(space < 0) {
+			return "";
+		}
+		
+		return text.substring(space + 1).trim();
+	}
+	
+	/**
+	 * Determines if a received frame was a special command or not.  Only control frames
+	 * carry commands, so chat text is never mistaken for one.
+	 * @param frame
+	 * @return
+	 */
+	public CommandType evaluateFrame(Frame frame) {
+		if(frame.getControlCommand() == ControlCommand.EXIT) {
+			return CommandType.EXIT;
+		}
+		
+		return CommandType.DO_NOTHING;
+	}
+	
+	/**
+	 * Creates the frame that tells the peer about a command.  Returns null if the
+	 * command isn't something the peer needs to know about.
+	 * @param command
+	 * @return
+	 */
+	public Frame createCommandFrame(CommandType command) {
+		if(command == CommandType.EXIT) {
+			return Frame.control(ControlCommand.EXIT);
+		}
+		
+		return null;
+	}
 }
@@ -38,10 +38,11 @@ package mtools.apps.litemessage.control.logic;
 
 /**
  * The different types of commands that will be determined
- * by the {@link CommandParseModule}
+ * by the {@link CommandParseModule}.  Everything but EXIT
+ * is only used by hub mode to get around between chats.
  * @author Noah
  *
  */
 public enum CommandType {
-	DO_NOTHING, EXIT;
+	DO_NOTHING, EXIT, NEW, LIST, SWITCH, SETTINGS, HELP, QUIT;
 }
@@ -36,243 +36,329 @@
 
 package mtools.apps.litemessage.control.logic;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.EventLog;
 import mtools.apps.litemessage.core.Settings;
-import mtools.logging.MLog;
+import mtools.apps.litemessage.core.networking.AddressLiterals;
+import mtools.apps.litemessage.core.networking.AddressResolver;
 
 /**
  * Manages the contact system.  Creates, sorts, and deletes contacts.
+ * Contacts are indexed by UID, by lower-cased display name, and by IP address,
+ * so lookups are constant time.  {@link #getContacts()} hands out a sorted snapshot for
+ * display.  Each change copies it once and puts the contact in its place by binary search,
+ * so it is never sorted again.
+ * Lookups are safe from any thread; changes are serialized on this object.
+ * Changes are persisted write-behind through a {@link ContactStore}.
  * @author Noah
  *
  */
 public class ContactManager {
-	private ArrayList<Contact> contacts;
+	private static final Comparator<Contact> ALPHABETICAL = new Comparator<Contact>() {
+		@Override
+		public int compare(Contact a, Contact b) {
+			return a.getName().compareToIgnoreCase(b.getName());
+		}
+	};
+	
+	private final ConcurrentHashMap<String, Contact> byUID;
+	private final ConcurrentHashMap<String, Contact> byName;
+	private final ConcurrentHashMap<InetAddress, Contact> byIP;
+	private volatile ArrayList<Contact> sorted;
 	private Settings settings;
+	private ContactStore store;
+	private AddressResolver resolver;
+	private EventLog log;
 	
 	public ContactManager(Settings s) {
-		contacts = new ArrayList<Contact>();
+		this(s, "contacts.cfg", "contacts.journal");
+	}
+	
+	/**
+	 * Keeps the contacts in the given files instead of the usual contacts.cfg and contacts.journal.
+	 * @param s
+	 * @param contactsFile
+	 * @param journalFile
+	 */
+	public ContactManager(Settings s, String contactsFile, String journalFile) {
+		byUID = new ConcurrentHashMap<String, Contact>();
+		byName = new ConcurrentHashMap<String, Contact>();
+		byIP = new ConcurrentHashMap<InetAddress, Contact>();
+		sorted = new ArrayList<Contact>();
 		settings = s;
+		store = new ContactStore(contactsFile, journalFile, this::getRecords);
+		resolver = AddressResolver.getDefault();
+		log = EventLog.getDefault();
+	}
+	
+	//Adds the contact to every index it has a key for.
+	private void index(Contact c) {
+		if(c.getUID() != null)
+			byUID.put(c.getUID(), c);
+		if(c.getName() != null)
+			byName.put(c.getName().toLowerCase(Locale.ROOT), c);
+		if(c.getIPAddress() != null)
+			byIP.put(c.getIPAddress(), c);
+	}
+	
+	//Removes the contact from every index that still points at it.
+	private void unindex(Contact c) {
+		if(c.getUID() != null)
+			byUID.remove(c.getUID(), c);
+		if(c.getName() != null)
+			byName.remove(c.getName().toLowerCase(Locale.ROOT), c);
+		if(c.getIPAddress() != null)
+			byIP.remove(c.getIPAddress(), c);
+	}
+	
+	private static String ipOf(Contact c) {
+		return c.getIPAddress() == null ? "" : c.getIPAddress().getHostAddress();
+	}
+	
+	//Every contact in stored form, for compacting the journal.
+	private List<String> getRecords() {
+		ArrayList<Contact> contacts = sorted;
+		ArrayList<String> records = new ArrayList<String>(contacts.size());
+		for(Contact c : contacts)
+			records.add(c.getName() + "," + c.getUID() + "," + ipOf(c));
+		return records;
+	}
+	
+	//Journals the contact's current data.
+	private void persist(Contact c) {
+		store.put(c.getName(), c.getUID(), ipOf(c));
+	}
+	
+	//Replaces the snapshot handed out for display with a copy that has the contact in its place.
+	private void insertSorted(Contact c) {
+		ArrayList<Contact> list = new ArrayList<Contact>(sorted.size() + 1);
+		list.addAll(sorted);
+		int i = Collections.binarySearch(list, c, ALPHABETICAL);
+		list.add(i < 0 ? -i - 1 : i, c);
+		sorted = list;
+	}
+	
+	//Replaces the snapshot handed out for display with a copy that doesn't have the contact.
+	//The contact must still have the name it was sorted under.
+	private void removeSorted(Contact c) {
+		ArrayList<Contact> list = sorted;
+		int i = Collections.binarySearch(list, c, ALPHABETICAL);
+		if(i < 0) {
+			return;
+		}
+		
+		//Names that only differ in case sort together, so find this exact one.
+		while(i > 0 && ALPHABETICAL.compare(list.get(i - 1), c) == 0) {
+			i--;
+		}
+		while(i < list.size() && list.get(i) != c) {
+			if(ALPHABETICAL.compare(list.get(i), c) != 0) {
+				return;
+			}
+			i++;
+		}
+		
+		if(i < list.size()) {
+			removeSortedAt(i);
+		}
 	}
 	
-	//Parses the string and then returns a new Contact object
+	private void removeSortedAt(int index) {
+		ArrayList<Contact> list = new ArrayList<Contact>(sorted);
+		list.remove(index);
+		sorted = list;
+	}
+	
+	//Parses a "name,uid,ip" line in one pass and returns a new Contact object.
 	private Contact createContactFromString(String data) {
-		int count = 0;
 		String username = null;
 		String uid = null;
 		String ipAddress = null;
 		
-		
-		if(!data.matches("")) {
-			
-			//Grab the display name.
-			while(true) {
-				if(data.charAt(count) != ',') {
-					if(username == null)
-						username = String.valueOf(data.charAt(count));
-					else
-						username = username + String.valueOf(data.charAt(count));
-				} else {
-					break;
-				}
-				count++;
-			
-			}
-		
-			//Advance the counter past the comma.
-			count++;
-		
-			///Grab the UID
-			while(true) {
-				//We'll read to the next comma
-				if(data.charAt(count) != ',') {
-					if(uid == null)
-						uid = String.valueOf(data.charAt(count));
-					else
-						uid = uid + String.valueOf(data.charAt(count));
-				
-				} else {
-					break;
-				}
-				count++;
-			
-			}
-			
-			//advance past the comma
-			count++;
-			
-			//Grab the IP address
-			while(true) {
-				//We'll read to the end of the line
-				if(count < (data.length())) {
-					if(ipAddress == null)
-						ipAddress = String.valueOf(data.charAt(count));
-					else
-						ipAddress = ipAddress + String.valueOf(data.charAt(count));
-				
-				} else {
-					break;
-				}
-				count++;
-			
-			}
+		int nameEnd = data.indexOf(',');
+		if(nameEnd < 0) {
+			nameEnd = data.length();
+		}
+		int uidEnd = nameEnd < data.length() ? data.indexOf(',', nameEnd + 1) : -1;
+		if(uidEnd < 0) {
+			uidEnd = data.length();
 		}
 		
+		if(nameEnd > 0)
+			username = data.substring(0, nameEnd);
+		if(uidEnd > nameEnd + 1)
+			uid = data.substring(nameEnd + 1, uidEnd);
+		if(data.length() > uidEnd + 1)
+			ipAddress = data.substring(uidEnd + 1);
+		
 		//Create and configure the Contact object we need to return.
 		Contact c = new Contact();
 		c.setName(username);
 		c.setUID(uid);
 		
-		try {
-			c.setIPAddress(InetAddress.getByName(ipAddress));
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+		//Addresses are saved as literals, so this never has to wait on DNS.
+		InetAddress address = AddressLiterals.parse(ipAddress);
+		c.setIPAddress(address);
+		
+		//Hand-edited files might have a host name in them, which is looked up in the background.
+		if(address == null && ipAddress != null) {
+			resolveLater(c, ipAddress);
 		}
 		
 		return c;
 	}
 	
+	//Fills in the contact's address once the host name resolves.
+	private void resolveLater(Contact c, String host) {
+		resolver.resolve(host).whenComplete((address, ex) -> {
+			if(ex != null) {
+				System.err.println("Could not resolve " + host + " for contact " + c.getName());
+				log.warn("Could not resolve {} for contact {}", host, c.getName());
+				return;
+			}
+			
+			synchronized(this) {
+				//The contact may have been removed or updated in the meantime.
+				if(c.getIPAddress() != null || byName.get(c.getName().toLowerCase(Locale.ROOT)) != c)
+					return;
+				
+				c.setIPAddress(address);
+				byIP.put(address, c);
+				persist(c);
+			}
+		});
+	}
+	
+	/**
+	 * Changes the {@link AddressResolver} host names in the contacts file are looked up with.
+	 * By default the program-wide one is used.
+	 * @param r
+	 */
+	public void setResolver(AddressResolver r) {
+		resolver = r;
+	}
+	
 	/**
-	 * Reads contacts from file.
+	 * Reads contacts from file, replaying any changes journaled since the last compaction.
 	 */
-	public void loadContacts() {
+	public synchronized void loadContacts() {
+		ArrayList<Contact> list = new ArrayList<Contact>();
+		
 		try {
-			FileReader fReader = new FileReader("contacts.cfg");
-			BufferedReader bReader = new BufferedReader(fReader);
-			
-			String data;
-			
-			while(true) {
-				data = bReader.readLine();
-				
-				//Check if we are at the EOF
-				if(data != null) {
-					contacts.add(createContactFromString(data));
-				} else {
-					break;
+			for(String data : store.load()) {
+				Contact c = createContactFromString(data);
+				if(c.getName() != null) {
+					index(c);
+					list.add(c);
 				}
 			}
-			
-			bReader.close();
-			fReader.close();
-				
-		} catch (Exception e) {
+		} catch (IOException e) {
 			System.err.println("Can not access contacts.cfg");
 			//e.printStackTrace();
 		}
+		
+		//The file is saved in order, so this is a single pass unless it was edited by hand.
+		list.sort(ALPHABETICAL);
+		sorted = list;
 	}
 	
+	/**
+	 * Writes every contact to contacts.cfg right away and empties the journal.
+	 * Normal changes don't need this; they are journaled in the background.
+	 */
 	public void saveContacts() {
 		try {
-			FileWriter fWriter = new FileWriter("contacts.cfg");
-			BufferedWriter bWriter = new BufferedWriter(fWriter);
-			
-			for(int i = 0; i < contacts.size(); i++) {
-				String name = contacts.get(i).getName();
-				String uid = contacts.get(i).getUID();
-				String ipStr = contacts.get(i).getIPAddress().getHostAddress();
-				
-				bWriter.write(name + "," + uid + "," + ipStr + "\n");
-				bWriter.flush();
-			}
-			
-			bWriter.close();
-			fWriter.close();
-		} catch(Exception e) {
+			store.compact();
+		} catch(IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Writes any changes that are still waiting and stops the background writer.
+	 * This also happens on its own when the JVM shuts down.
+	 */
+	public void close() {
+		store.close();
+	}
+	
 	/**
 	 * Returns the number of contacts.
 	 * @return
 	 */
 	public int getNumContacts() {
-		return contacts.size();
+		return sorted.size();
 	}
 	
+	/**
+	 * Returns the contacts in alphabetical order.  This is a snapshot that is
+	 * replaced, not modified, when the contacts change, so it is safe to iterate
+	 * and index into.  It should be treated as read only.
+	 * @return
+	 */
 	public ArrayList<Contact> getContacts() {
-		return contacts;
+		return sorted;
 	}
 	
 	/**
-	 * Adds a {@link Contact} to {@link ArrayList} in alphabetical order, and
-	 * then writes that list to file.
+	 * Adds a {@link Contact} in alphabetical order, and then journals the change.
+	 * A contact with the same name (ignoring case) is updated if dynamicUIDUpdates is set,
+	 * otherwise a UID mismatch is flagged on c.  A contact with the same UID is updated.
 	 * @param c
 	 */
-	public void addContact(Contact c) {
-		
-		for(int i = 0; i < contacts.size(); i++) {
-			//If the display name matches one of current contacts, we will update depending on
-			//if dynamicUIDUpdates is set to true.  If not, we won't do anything
-			if(contacts.get(i).getName().matches(c.getName())) {
-				if(settings.dynamicUIDUpdates) {
-					contacts.get(i).setUID(c.getUID());
-					contacts.get(i).setIPAddress(c.getIPAddress());
-					//Write them to file now so we don't have to worry about it later.
-					saveContacts();
-					MLog.fileLog.log("Updated contact " + c.getName() + ", with IP address " + c.getIPAddress() + ", and a UID of " + c.getUID());
-					return;
-				} else {
-					if(!contacts.get(i).getUID().matches(c.getUID())) {
-						c.setUIDProblem(true);
-						return;
-					//If name and UID match, do nothing.  We already have it.
-					} else {
-						return;
-					}
-				}
-				
-				//If one of the UIDs matches, we'll update that contact
-			} else if(contacts.get(i).getUID().matches(c.getUID())) {
-				contacts.get(i).setName(c.getName());
-				contacts.get(i).setIPAddress(c.getIPAddress());
-				//We'll write the contacts to file now so we don't have to worry about it later
-				saveContacts();
-				MLog.fileLog.log("Updated contact " + c.getName() + ", with IP address " + c.getIPAddress() + ", and a UID of " + c.getUID());
-				return;
+	public synchronized void addContact(Contact c) {
+		//If the display name matches one of current contacts, we will update depending on
+		//if dynamicUIDUpdates is set to true.  If not, we won't do anything
+		Contact existing = byName.get(c.getName().toLowerCase(Locale.ROOT));
+		if(existing != null) {
+			if(settings.dynamicUIDUpdates) {
+				unindex(existing);
+				existing.setUID(c.getUID());
+				existing.setIPAddress(c.getIPAddress());
+				index(existing);
+				//Journal the change; it is written in the background.
+				persist(existing);
+				log.info("Updated contact {}, with IP address {}, and a UID of {}", c.getName(), c.getIPAddress(), c.getUID());
+			} else if(!existing.getUID().equals(c.getUID())) {
+				c.setUIDProblem(true);
 			}
+			//If name and UID match, do nothing.  We already have it.
+			return;
 		}
 		
-		//If we can't find a matching UID or name, we'll just add it alphabetically.
-		if(contacts.size() < 1) {
-			contacts.add(c);
-			MLog.fileLog.log("Added contact " + c.getName() + ", with IP address " + c.getIPAddress() + ", and a UID of " + c.getUID());
-		} else {
-			int count = 0;
-			
-			while(true) {
-				if(count < contacts.size()) {
-					if(contacts.get(count).getName().compareToIgnoreCase(c.getName()) < 0) {
-						//If c's name is alphabetically later, we will keep searching
-						count++;
-					
-					} else if(contacts.get(count).getName().compareToIgnoreCase(c.getName()) > 0) {
-						//If c's name is alphabetically earlier, insert in it's place
-						contacts.add(count, c);
-						break;
-					}
-				} else {
-					//We've reached the end of the list, so we will
-					//just add it to the end because we have determined
-					//it is alphabetically last at this point.
-					contacts.add(c);
-					break;
-				}
-			}
-			
-			MLog.fileLog.log("Added contact " + c.getName() + ", with IP address " + c.getIPAddress() + ", and a UID of " + c.getUID());
+		//If the UID matches, we'll update that contact
+		existing = byUID.get(c.getUID());
+		if(existing != null) {
+			String oldName = existing.getName();
+			unindex(existing);
+			removeSorted(existing);
+			existing.setName(c.getName());
+			existing.setIPAddress(c.getIPAddress());
+			index(existing);
+			insertSorted(existing);
+			//Journal the change; it is written in the background.
+			store.remove(oldName);
+			persist(existing);
+			log.info("Updated contact {}, with IP address {}, and a UID of {}", c.getName(), c.getIPAddress(), c.getUID());
+			return;
 		}
 		
-		//We'll write the contacts to file now so we don't have to worry about it later
-		saveContacts();
+		//If we can't find a matching UID or name, we'll just add it.
+		index(c);
+		insertSorted(c);
+		log.info("Added contact {}, with IP address {}, and a UID of {}", c.getName(), c.getIPAddress(), c.getUID());
+		
+		//Journal the change; it is written in the background.
+		persist(c);
 	}
 	
 	/**
@@ -280,30 +366,28 @@ public class ContactManager {
 	 * This is case sensitive.  If the name is not found, it does nothing.
 	 * @param name
 	 */
-	public void removeContact(String name) {
-		
-		int count = 0;
-		while(!name.contentEquals(contacts.get(count).getName())) {
-			count++;
-			if(count >= contacts.size()) {
-				return;
-			}
+	public synchronized void removeContact(String name) {
+		Contact c = byName.get(name.toLowerCase(Locale.ROOT));
+		if(c == null || !name.contentEquals(c.getName())) {
+			return;
 		}
 		
-		//We've iterated integer 'count' to the correct location, so now we will remove it.
-		contacts.remove(count);
+		unindex(c);
+		removeSorted(c);
 		
-		//Since we deleted a contact, we need to save it.
-		saveContacts();
+		//Since we deleted a contact, we need to journal it.
+		store.remove(c.getName());
 	}
 	
 	/**
 	 * Removes a contact by referencing it with it's index/position.
 	 * @param index
 	 */
-	public void removeContact(int index) {
-		contacts.remove(index);
-		saveContacts();
+	public synchronized void removeContact(int index) {
+		Contact c = sorted.get(index);
+		unindex(c);
+		removeSortedAt(index);
+		store.remove(c.getName());
 	}
 	
 	/**
@@ -313,12 +397,25 @@ public class ContactManager {
 	 * @return
 	 */
 	public Contact getContactByName(String name) {
-		for(int i = 0; i < contacts.size(); i++) {
-			if(contacts.get(i).getName().compareToIgnoreCase(name) == 0) {
-				return contacts.get(i);
-			}
-		}
-		return null;
+		return byName.get(name.toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * Returns the {@link Contact} with the given unique ID, or null if there isn't one.
+	 * @param uid
+	 * @return
+	 */
+	public Contact getContactByUID(String uid) {
+		return byUID.get(uid);
+	}
+	
+	/**
+	 * Returns the {@link Contact} last seen at the given address, or null if there isn't one.
+	 * @param address
+	 * @return
+	 */
+	public Contact getContactByIP(InetAddress address) {
+		return byIP.get(address);
 	}
 	
 	/**
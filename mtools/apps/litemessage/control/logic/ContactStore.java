@@ -0,0 +1,358 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+import mtools.apps.litemessage.core.Metrics;
+import mtools.logging.MLog;
+
+/**
+ * Write-behind persistence for contacts.  Changes are appended to a journal as
+ * one line each, "+name,uid,ip" to add or replace the contact with that name, and
+ * "-name" to remove it.  A background thread writes every change that is waiting
+ * in one batch and forces it to disk once (group commit), so callers never wait on the disk.
+ * Once the journal gets long, the current contacts are written to a temporary
+ * snapshot which atomically replaces the old one, and the journal is emptied.
+ * Replaying a record twice gives the same result, so a crash between any of these
+ * steps loses nothing that made it into the journal.
+ * @author Noah
+ *
+ */
+public class ContactStore {
+	
+	/**
+	 * The journal is compacted into the snapshot once it has this many records.
+	 */
+	public static final int COMPACT_THRESHOLD = 256;
+	
+	private static final String STOP = "";
+	
+	private final Path snapshotPath;
+	private final Path tempPath;
+	private final Path journalPath;
+	private final Supplier<List<String>> snapshot;
+	private final LinkedBlockingQueue<String> pending;
+	private final Object writeLock;
+	private FileChannel journal;
+	private int journalRecords;
+	private Thread writer;
+	private volatile boolean closed;
+	
+	/**
+	 * @param snapshotFile the contacts file, with one "name,uid,ip" line per contact.
+	 * @param journalFile the file changes are appended to.
+	 * @param snapshot supplies the current contacts in snapshot form when compacting.
+	 */
+	public ContactStore(String snapshotFile, String journalFile, Supplier<List<String>> snapshot) {
+		snapshotPath = Paths.get(snapshotFile);
+		tempPath = Paths.get(snapshotFile + ".tmp");
+		journalPath = Paths.get(journalFile);
+		this.snapshot = snapshot;
+		pending = new LinkedBlockingQueue<String>();
+		writeLock = new Object();
+	}
+	
+	/**
+	 * Reads the snapshot and replays the journal over it.
+	 * @return the contacts, one "name,uid,ip" line each.
+	 * @throws IOException if the snapshot or journal can't be read.
+	 */
+	public List<String> load() throws IOException {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(snapshotPath, StandardCharsets.UTF_8);
+		} catch(NoSuchFileException e) {
+			//No snapshot yet, but there may still be a journal to replay.
+			lines = new ArrayList<String>();
+		}
+		
+		//The snapshot is written from unique contacts, so it only needs indexing if there is a journal.
+		if(journalSize() == 0) {
+			lines.removeIf(String::isEmpty);
+			return lines;
+		}
+		
+		//Keyed by lower-cased name, the same way ContactManager matches names.
+		LinkedHashMap<String, String> records = new LinkedHashMap<String, String>();
+		for(String line : lines) {
+			if(!line.isEmpty())
+				records.put(nameOf(line), line);
+		}
+		
+		synchronized(writeLock) {
+			journalRecords = replay(records);
+		}
+		
+		return new ArrayList<String>(records.values());
+	}
+	
+	private long journalSize() throws IOException {
+		try {
+			return Files.size(journalPath);
+		} catch(NoSuchFileException e) {
+			return 0;
+		}
+	}
+	
+	//Applies every complete journal record.  A torn final line from a crash is ignored.
+	private int replay(LinkedHashMap<String, String> records) throws IOException {
+		String data;
+		try {
+			data = new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8);
+		} catch(NoSuchFileException e) {
+			return 0;
+		}
+		
+		int count = 0;
+		int start = 0;
+		int end;
+		while((end = data.indexOf('\n', start)) >= 0) {
+			String record = data.substring(start, end);
+			start = end + 1;
+			
+			if(record.length() < 2)
+				continue;
+			
+			String body = record.substring(1);
+			if(record.charAt(0) == '+') {
+				records.put(nameOf(body), body);
+			} else if(record.charAt(0) == '-') {
+				records.remove(body.toLowerCase(Locale.ROOT));
+			} else {
+				continue;
+			}
+			count++;
+		}
+		
+		return count;
+	}
+	
+	private static String nameOf(String line) {
+		int comma = line.indexOf(',');
+		return (comma < 0 ? line : line.substring(0, comma)).toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Records that the contact with this name now has this data.
+	 * @param name
+	 * @param uid
+	 * @param ip
+	 */
+	public void put(String name, String uid, String ip) {
+		append("+" + name + "," + uid + "," + ip);
+	}
+	
+	/**
+	 * Records that the contact with this name was removed.
+	 * @param name
+	 */
+	public void remove(String name) {
+		append("-" + name);
+	}
+	
+	private void append(String record) {
+		if(closed) {
+			System.err.println("Contact store is closed, dropping change: " + record);
+			return;
+		}
+		
+		startWriter();
+		pending.add(record);
+	}
+	
+	private synchronized void startWriter() {
+		if(writer != null)
+			return;
+		
+		writer = new Thread(this::writeLoop, "LiteMessage contact store");
+		writer.setDaemon(true);
+		writer.start();
+		
+		//The app exits through System.exit(), so make sure the last batch gets written.
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "LiteMessage contact store shutdown"));
+	}
+	
+	private void writeLoop() {
+		ArrayList<String> batch = new ArrayList<String>();
+		
+		while(true) {
+			try {
+				batch.add(pending.take());
+			} catch(InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batch);
+			
+			boolean stop = batch.remove(STOP);
+			
+			try {
+				synchronized(writeLock) {
+					long start = System.nanoTime();
+					writeBatch(batch);
+					if(journalRecords >= COMPACT_THRESHOLD)
+						compact();
+					Metrics.getDefault().contactsFlushed(System.nanoTime() - start);
+				}
+			} catch(IOException e) {
+				System.err.println("Could not write contacts journal");
+				e.printStackTrace();
+				MLog.fileLog.log("Could not write contacts journal: " + e.getMessage());
+			}
+			batch.clear();
+			
+			if(stop)
+				return;
+		}
+	}
+	
+	//Writes and forces the whole batch at once.
+	private void writeBatch(List<String> batch) throws IOException {
+		if(batch.isEmpty())
+			return;
+		
+		StringBuilder sb = new StringBuilder();
+		for(String record : batch)
+			sb.append(record).append('\n');
+		
+		if(journal == null)
+			journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		
+		ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+		while(buf.hasRemaining())
+			journal.write(buf);
+		journal.force(false);
+		
+		journalRecords += batch.size();
+	}
+	
+	/**
+	 * Writes the current contacts to a new snapshot, swaps it in atomically,
+	 * and empties the journal.  Changes still waiting to be written are already in the
+	 * snapshot and are replayed harmlessly after it.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		synchronized(writeLock) {
+			StringBuilder sb = new StringBuilder();
+			for(String line : snapshot.get())
+				sb.append(line).append('\n');
+			
+			try(FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+				while(buf.hasRemaining())
+					out.write(buf);
+				out.force(true);
+			}
+			
+			try {
+				Files.move(tempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+			
+			//Only once the snapshot is in place is it safe to forget the journal.
+			if(journal != null) {
+				journal.truncate(0);
+				journal.force(true);
+			} else {
+				Files.deleteIfExists(journalPath);
+			}
+			journalRecords = 0;
+		}
+	}
+	
+	/**
+	 * Returns the number of records in the journal since the last compaction.
+	 * @return
+	 */
+	public int getJournalRecords() {
+		synchronized(writeLock) {
+			return journalRecords;
+		}
+	}
+	
+	/**
+	 * Writes everything waiting, compacts, and stops the background writer.
+	 */
+	public void close() {
+		Thread w;
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+			w = writer;
+		}
+		
+		try {
+			if(w != null) {
+				pending.add(STOP);
+				w.join();
+			}
+			
+			synchronized(writeLock) {
+				if(journalRecords > 0)
+					compact();
+				if(journal != null) {
+					journal.close();
+					journal = null;
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(IOException e) {
+			System.err.println("Could not compact contacts");
+			e.printStackTrace();
+		}
+	}
+}
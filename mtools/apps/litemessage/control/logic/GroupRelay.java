@@ -0,0 +1,188 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.apps.litemessage.core.EventLog;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.LatencyHistogram;
+import mtools.apps.litemessage.core.networking.SharedFrame;
+
+/**
+ * A group chat.  Every message a member sends is relayed to every other member.  The
+ * message is made into one {@link SharedFrame}, so it is encoded once no matter how many
+ * members there are, and it is then queued on each member's own outbound queue.  A slow
+ * member only backs up its own queue, never the sender or the rest of the group.
+ * <p>
+ * How long each relayed message took to be written to each member, from when the relay
+ * got it, is kept in {@link #getFanOutLatency()}.  That is the number to watch when deciding
+ * how big a group can get.
+ * @author Noah
+ *
+ */
+public class GroupRelay {
+	
+	private final String name;
+	private final CopyOnWriteArrayList<GroupSessionModule> members;
+	private final LatencyHistogram fanOutLatency;
+	private final AtomicLong relayed;
+	private final AtomicLong deliveries;
+	private final AtomicLong failedDeliveries;
+	private final EventLog log;
+	
+	public GroupRelay(String groupName) {
+		name = groupName;
+		members = new CopyOnWriteArrayList<GroupSessionModule>();
+		fanOutLatency = new LatencyHistogram();
+		relayed = new AtomicLong();
+		deliveries = new AtomicLong();
+		failedDeliveries = new AtomicLong();
+		log = EventLog.getDefault();
+	}
+	
+	/**
+	 * Adds a member whose session has started, and lets everybody else know.
+	 * @param member
+	 */
+	public void join(GroupSessionModule member) {
+		members.addIfAbsent(member);
+		log.info("{} joined {}", member.getConnectedContact().getName(), name);
+		announce(member, member.getConnectedContact().getName() + " has joined " + name + ".");
+	}
+	
+	/**
+	 * Removes a member, and lets everybody else know.  Does nothing if they already left.
+	 * @param member
+	 */
+	public void leave(GroupSessionModule member) {
+		if(!members.remove(member)) {
+			return;
+		}
+		
+		log.info("{} left {}", member.getConnectedContact().getName(), name);
+		announce(member, member.getConnectedContact().getName() + " has left " + name + ".");
+	}
+	
+	/**
+	 * Sends a message from a member to everybody else in the group.  The sender's name is
+	 * put in front of it, so the others know who it is from.
+	 * @param from
+	 * @param text
+	 */
+	public void relay(GroupSessionModule from, String text) {
+		relayed.incrementAndGet();
+		fanOut(from, SharedFrame.of(Frame.text(from.getConnectedContact().getName() + ": " + text)));
+	}
+	
+	/**
+	 * Sends a message to everybody but the member it is about.
+	 * @param about
+	 * @param text
+	 */
+	public void announce(GroupSessionModule about, String text) {
+		fanOut(about, SharedFrame.of(Frame.text(text)));
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the members right now.
+	 * @return
+	 */
+	public ArrayList<GroupSessionModule> getMembers() {
+		return new ArrayList<GroupSessionModule>(members);
+	}
+	
+	public int size() {
+		return members.size();
+	}
+	
+	/**
+	 * Returns how long, in nanoseconds, relayed messages took to be written to each member.
+	 * It is shared by every member's outbound queue.
+	 * @return
+	 */
+	public LatencyHistogram getFanOutLatency() {
+		return fanOutLatency;
+	}
+	
+	/**
+	 * Returns how many messages have been relayed.
+	 * @return
+	 */
+	public long getRelayed() {
+		return relayed.get();
+	}
+	
+	/**
+	 * Returns how many times a message has been queued for a member.
+	 * @return
+	 */
+	public long getDeliveries() {
+		return deliveries.get();
+	}
+	
+	/**
+	 * Returns how many times a message couldn't be queued for a member.
+	 * @return
+	 */
+	public long getFailedDeliveries() {
+		return failedDeliveries.get();
+	}
+	
+	//The same frame goes on every queue.
+	private void fanOut(GroupSessionModule from, SharedFrame frame) {
+		for(GroupSessionModule member : members) {
+			if(member == from) {
+				continue;
+			}
+			
+			try {
+				member.deliver(frame);
+				deliveries.incrementAndGet();
+			} catch(IOException e) {
+				failedDeliveries.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.IOException;
+
+import mtools.apps.litemessage.core.TextDisplayObject;
+import mtools.apps.litemessage.core.TextInputObject;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.OverflowPolicy;
+import mtools.apps.litemessage.core.networking.SharedFrame;
+import mtools.io.MDisplay;
+
+/**
+ * One member's session in a {@link GroupRelay}.  It is set up like any other session, but
+ * what the member sends goes to the relay instead of a display, and what the relay sends
+ * goes out through this session's outbound queue.  The queue drops the oldest messages when
+ * it fills up, so a member that can't keep up misses messages rather than holding up the group.
+ * @author Noah
+ *
+ */
+public class GroupSessionModule extends MessagingControlModule {
+	
+	private GroupRelay relay;
+	
+	public GroupSessionModule(MDisplay dis, TextDisplayObject tdo, TextInputObject tio, ConnectionManager conMan, ContactManager cm, GroupRelay groupRelay) {
+		super(dis, tdo, tio, conMan, cm);
+		relay = groupRelay;
+		setOutboundQueue(outboundCapacity, OverflowPolicy.DROP_OLDEST);
+	}
+	
+	public GroupRelay getRelay() {
+		return relay;
+	}
+	
+	/**
+	 * Queues a message from the relay to be sent to this member.
+	 * @param frame
+	 * @throws IOException if the session has ended.
+	 */
+	public void deliver(SharedFrame frame) throws IOException {
+		if(outbound == null) {
+			throw new IOException("The session hasn't started.");
+		}
+		
+		outbound.send(frame);
+	}
+	
+	//Joins the relay once the outbound queue is there to deliver to.
+	@Override
+	protected void startSession() {
+		super.startSession();
+		outbound.setLatencyRecorder(relay.getFanOutLatency());
+		relay.join(this);
+	}
+	
+	@Override
+	public void run() {
+		Frame rxData;
+		
+		while(true) {
+			try {
+				rxData = sBundle.readFrame();
+			} catch(IOException e) {
+				log.info("Connection with {} has ended", otherUser.getName());
+				relay.leave(this);
+				clearConnections();
+				return;
+			}
+			
+			if(handleHeartbeat(rxData)) {
+				continue;
+			}
+			
+			if(cpm.evaluateFrame(rxData) == CommandType.EXIT) {
+				log.info("Connection with {} has ended", otherUser.getName());
+				relay.leave(this);
+				clearConnections();
+				return;
+			}
+			
+			if(rxData.getType() == FrameType.TEXT) {
+				relay.relay(this, rxData.getText());
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import mtools.apps.litemessage.core.EventLog;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Accepts chats for hub mode.  One acceptor waits on the control port for the life of the
+ * hub, and every session it accepts is set up on the {@link SessionExecutor}, so a slow peer
+ * never holds up the next one.  The ConnectionManager should have a persistent listener,
+ * or be in single port mode, so peers aren't refused between accepts.
+ * @author Noah
+ *
+ */
+public class HubAcceptor implements Runnable {
+	
+	//How long to wait before trying again if the control port can't be used.
+	private static final long RETRY_DELAY = 1000;
+	
+	private final ConnectionManager connectionMan;
+	private final Supplier<MessagingControlModule> sessionFactory;
+	private final Consumer<MessagingControlModule> onAccepted;
+	private volatile boolean running;
+	private final EventLog log;
+	
+	/**
+	 * @param conMan
+	 * @param factory creates the module for each new chat.
+	 * @param accepted is called, on the executor, with each chat once it has started.
+	 */
+	public HubAcceptor(ConnectionManager conMan, Supplier<MessagingControlModule> factory, Consumer<MessagingControlModule> accepted) {
+		connectionMan = conMan;
+		sessionFactory = factory;
+		onAccepted = accepted;
+		log = EventLog.getDefault();
+	}
+	
+	/**
+	 * Starts accepting chats on the default {@link SessionExecutor}.
+	 */
+	public void start() {
+		running = true;
+		SessionExecutor.getDefault().execute(this);
+	}
+	
+	/**
+	 * Stops accepting chats and closes the control port listener.  Chats that have already
+	 * started are left alone.
+	 */
+	public void stop() {
+		running = false;
+		
+		try {
+			connectionMan.closeServerSocket();
+		} catch(Exception e) {
+			
+		}
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	@Override
+	public void run() {
+		while(running) {
+			StreamBundle bundle;
+			
+			try {
+				bundle = connectionMan.waitForSessionNegotiation();
+			} catch(IOException e) {
+				if(!running) {
+					return;
+				}
+				
+				log.warn("Hub could not accept a chat: {}", e.getMessage());
+				
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				
+				continue;
+			}
+			
+			if(bundle == null) {
+				continue;
+			}
+			
+			SessionExecutor.getDefault().execute(() -> {
+				MessagingControlModule session = sessionFactory.get();
+				
+				if(session.acceptSession(bundle)) {
+					onAccepted.accept(session);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,497 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mtools.logging.MLog;
+
+/**
+ * Keeps every chat message, per contact, so conversations survive restarts.
+ * <p>
+ * Each contact's history is split into segments.  A segment is a data file of up to
+ * {@link #SEGMENT_SIZE} bytes, and an index file holding how many messages are in the
+ * segment, and where each one starts.  Both are memory-mapped, so saving a message is a
+ * copy into memory, and finding message number n only takes a look in the index.  The
+ * index count is written last, so a message is either all there after a crash, or not there.
+ * <p>
+ * Only the segment being written to, and the few that were read last, are kept mapped, so
+ * long conversations don't take more and more memory to page through.
+ * @author Noah
+ *
+ */
+public class MessageHistory {
+	
+	public static final String DEFAULT_DIRECTORY = "history";
+	
+	/**
+	 * How big each data file is.  A message bigger than this gets a segment of its own.
+	 */
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+	
+	/**
+	 * The most messages a segment can hold.
+	 */
+	public static final int INDEX_CAPACITY = 16384;
+	
+	/**
+	 * How many segments that aren't being written to are kept mapped, per contact.
+	 */
+	public static final int MAPPED_SEGMENTS = 4;
+	
+	//Time, whether we sent it, and the length of the text.
+	private static final int RECORD_HEADER = 8 + 1 + 4;
+	private static final String DATA_SUFFIX = ".dat";
+	private static final String INDEX_SUFFIX = ".idx";
+	
+	private static volatile MessageHistory defaultHistory;
+	
+	private final File directory;
+	private final ConcurrentHashMap<String, Conversation> conversations;
+	
+	public MessageHistory(File dir) {
+		directory = dir;
+		conversations = new ConcurrentHashMap<String, Conversation>();
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "LiteMessage history shutdown"));
+	}
+	
+	/**
+	 * Returns the history that chats are saved to, or null if they aren't saved.
+	 * @return
+	 */
+	public static MessageHistory getDefault() {
+		return defaultHistory;
+	}
+	
+	public static void setDefault(MessageHistory history) {
+		defaultHistory = history;
+	}
+	
+	/**
+	 * Saves a message in the history with the contact with this UID.
+	 * @param uid
+	 * @param sent true if we sent it, false if they did.
+	 * @param text
+	 * @return the message's number in the history, or -1 if it couldn't be saved.
+	 */
+	public long record(String uid, boolean sent, String text) {
+		Conversation c = open(uid);
+		
+		if(c == null) {
+			return -1;
+		}
+		
+		try {
+			return c.append(System.currentTimeMillis(), sent, text.getBytes(StandardCharsets.UTF_8));
+		} catch(IOException e) {
+			System.err.println("Could not save a message to the history with " + uid + ".");
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns how many messages are in the history with the contact with this UID.
+	 * @param uid
+	 * @return
+	 */
+	public long size(String uid) {
+		Conversation c = open(uid);
+		return c == null ? 0 : c.size();
+	}
+	
+	/**
+	 * Reads up to max messages from the history with the contact with this UID, starting
+	 * with message number from.
+	 * @param uid
+	 * @param from
+	 * @param max
+	 * @return the messages, oldest first.  Empty if there aren't any.
+	 */
+	public ArrayList<Entry> read(String uid, long from, int max) {
+		Conversation c = open(uid);
+		
+		if(c == null) {
+			return new ArrayList<Entry>();
+		}
+		
+		try {
+			return c.read(from, max);
+		} catch(IOException e) {
+			System.err.println("Could not read the history with " + uid + ".");
+			e.printStackTrace();
+			return new ArrayList<Entry>();
+		}
+	}
+	
+	/**
+	 * Forces everything to disk.  Called when the program exits.
+	 */
+	public void close() {
+		for(Conversation c : conversations.values()) {
+			c.force();
+		}
+	}
+	
+	private Conversation open(String uid) {
+		if(uid == null) {
+			return null;
+		}
+		
+		Conversation c = conversations.get(uid);
+		if(c != null) {
+			return c;
+		}
+		
+		try {
+			c = new Conversation(uid);
+		} catch(IOException e) {
+			System.err.println("Could not open the history with " + uid + ".");
+			e.printStackTrace();
+			MLog.fileLog.log("Could not open the history with " + uid + ": " + e.getMessage());
+			return null;
+		}
+		
+		Conversation existing = conversations.putIfAbsent(uid, c);
+		return existing == null ? c : existing;
+	}
+	
+	/**
+	 * One message from the history.
+	 */
+	public static class Entry {
+		
+		private final long index;
+		private final long time;
+		private final boolean sent;
+		private final String text;
+		
+		Entry(long i, long t, boolean s, String txt) {
+			index = i;
+			time = t;
+			sent = s;
+			text = txt;
+		}
+		
+		/**
+		 * Returns the message's number in the history.
+		 * @return
+		 */
+		public long getIndex() {
+			return index;
+		}
+		
+		/**
+		 * Returns when the message was saved, in milliseconds since the epoch.
+		 * @return
+		 */
+		public long getTime() {
+			return time;
+		}
+		
+		/**
+		 * Returns true if we sent the message, and false if it was sent to us.
+		 * @return
+		 */
+		public boolean isSent() {
+			return sent;
+		}
+		
+		public String getText() {
+			return text;
+		}
+	}
+	
+	//The history with one contact.
+	private class Conversation {
+		
+		private final String uid;
+		private final File dir;
+		private final ArrayList<Segment> segments;
+		private final LinkedHashMap<Long, Segment> mapped;
+		private Segment tail;
+		
+		Conversation(String id) throws IOException {
+			uid = id;
+			dir = new File(directory, URLEncoder.encode(id, StandardCharsets.UTF_8));
+			segments = new ArrayList<Segment>();
+			
+			//Least recently read first, so the eldest is the one to let go of.
+			mapped = new LinkedHashMap<Long, Segment>(MAPPED_SEGMENTS, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, Segment> eldest) {
+					if(size() > MAPPED_SEGMENTS) {
+						eldest.getValue().unmap();
+						return true;
+					}
+					return false;
+				}
+			};
+			
+			load();
+		}
+		
+		private void load() throws IOException {
+			String[] names = dir.list((d, name) -> name.endsWith(INDEX_SUFFIX));
+			
+			if(names == null) {
+				return;
+			}
+			
+			long[] seqs = new long[names.length];
+			for(int i = 0; i < names.length; i++) {
+				seqs[i] = Long.parseLong(names[i].substring(0, names[i].length() - INDEX_SUFFIX.length()));
+			}
+			Arrays.sort(seqs);
+			
+			//Only the counts are read now.  Segments are mapped when they are needed.
+			long first = 0;
+			for(long seq : seqs) {
+				Segment s = new Segment(seq, first);
+				s.count = readCount(s.indexPath());
+				segments.add(s);
+				first += s.count;
+			}
+			
+			if(!segments.isEmpty()) {
+				tail = segments.get(segments.size() - 1);
+				tail.map(true);
+			}
+		}
+		
+		synchronized long size() {
+			return tail == null ? 0 : tail.first + tail.count;
+		}
+		
+		synchronized long append(long time, boolean sent, byte[] text) throws IOException {
+			int size = RECORD_HEADER + text.length;
+			
+			if(tail == null || tail.count >= INDEX_CAPACITY || tail.end + size > tail.data.capacity()) {
+				roll(size);
+			}
+			
+			int offset = tail.end;
+			ByteBuffer data = tail.data;
+			data.putLong(offset, time);
+			data.put(offset + 8, (byte) (sent ? 1 : 0));
+			data.putInt(offset + 9, text.length);
+			data.put(offset + RECORD_HEADER, text);
+			
+			//The count goes last, so the message isn't seen until all of it is there.
+			tail.index.putInt(4 + tail.count * 4, offset);
+			tail.index.putInt(0, tail.count + 1);
+			tail.count++;
+			tail.end = offset + size;
+			
+			return tail.first + tail.count - 1;
+		}
+		
+		synchronized ArrayList<Entry> read(long from, int max) throws IOException {
+			ArrayList<Entry> entries = new ArrayList<Entry>();
+			long end = Math.min(size(), from + max);
+			long i = Math.max(from, 0);
+			
+			while(i < end) {
+				Segment s = segmentFor(i);
+				
+				if(s != tail) {
+					mapped.put(s.seq, s);
+				}
+				
+				s.map(s == tail);
+				
+				for(; i < end && i < s.first + s.count; i++) {
+					int offset = s.index.getInt(4 + (int) (i - s.first) * 4);
+					long time = s.data.getLong(offset);
+					boolean sent = s.data.get(offset + 8) == 1;
+					byte[] text = new byte[s.data.getInt(offset + 9)];
+					s.data.get(offset + RECORD_HEADER, text);
+					entries.add(new Entry(i, time, sent, new String(text, StandardCharsets.UTF_8)));
+				}
+			}
+			
+			return entries;
+		}
+		
+		//Finds the segment holding message number i.
+		private Segment segmentFor(long i) {
+			int low = 0;
+			int high = segments.size() - 1;
+			
+			while(low < high) {
+				int mid = (low + high + 1) >>> 1;
+				
+				if(segments.get(mid).first <= i) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			
+			return segments.get(low);
+		}
+		
+		private void roll(int recordSize) throws IOException {
+			Files.createDirectories(dir.toPath());
+			
+			long seq = 0;
+			long first = 0;
+			
+			if(tail != null) {
+				tail.force();
+				tail.unmap();
+				seq = tail.seq + 1;
+				first = tail.first + tail.count;
+			}
+			
+			tail = new Segment(seq, first);
+			tail.create(Math.max(SEGMENT_SIZE, recordSize));
+			segments.add(tail);
+		}
+		
+		synchronized void force() {
+			if(tail != null) {
+				tail.force();
+			}
+		}
+		
+		//One data file and its index.
+		private class Segment {
+			
+			final long seq;
+			final long first;
+			int count;
+			int end;
+			MappedByteBuffer data;
+			MappedByteBuffer index;
+			
+			Segment(long s, long f) {
+				seq = s;
+				first = f;
+			}
+			
+			Path dataPath() {
+				return dir.toPath().resolve(String.format("%016d", seq) + DATA_SUFFIX);
+			}
+			
+			Path indexPath() {
+				return dir.toPath().resolve(String.format("%016d", seq) + INDEX_SUFFIX);
+			}
+			
+			void create(int dataSize) throws IOException {
+				data = mapFile(dataPath(), dataSize, true);
+				index = mapFile(indexPath(), 4 + INDEX_CAPACITY * 4, true);
+				count = 0;
+				end = 0;
+			}
+			
+			void map(boolean writable) throws IOException {
+				if(data != null) {
+					return;
+				}
+				
+				data = mapFile(dataPath(), Files.size(dataPath()), writable);
+				index = mapFile(indexPath(), 4 + INDEX_CAPACITY * 4, writable);
+				
+				//Writing carries on right after the last message.
+				if(count > 0) {
+					int last = index.getInt(4 + (count - 1) * 4);
+					end = last + RECORD_HEADER + data.getInt(last + 9);
+				}
+			}
+			
+			//The mapping goes away once nothing refers to it anymore.
+			void unmap() {
+				data = null;
+				index = null;
+			}
+			
+			void force() {
+				if(data == null) {
+					return;
+				}
+				
+				data.force();
+				index.force();
+			}
+		}
+	}
+	
+	private static int readCount(Path indexPath) throws IOException {
+		try(FileChannel ch = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			ByteBuffer count = ByteBuffer.allocate(4);
+			
+			while(count.hasRemaining()) {
+				if(ch.read(count, count.position()) < 0) {
+					return 0;
+				}
+			}
+			
+			return Math.min(Math.max(count.getInt(0), 0), INDEX_CAPACITY);
+		}
+	}
+	
+	private static MappedByteBuffer mapFile(Path path, long size, boolean writable) throws IOException {
+		if(writable) {
+			try(FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				return ch.map(MapMode.READ_WRITE, 0, size);
+			}
+		}
+		
+		try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			return ch.map(MapMode.READ_ONLY, 0, size);
+		}
+	}
+}
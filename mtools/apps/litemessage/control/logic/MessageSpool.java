@@ -0,0 +1,845 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.TextDisplayObject;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.logging.MLog;
+
+/**
+ * Keeps messages for contacts that can't be reached, and sends them once they can be.
+ * <p>
+ * Each contact's messages are appended to their own log in the spool directory, which is
+ * split into segment files of up to {@link #SEGMENT_SIZE} bytes.  A record is the length of
+ * the message and its CRC32, four bytes each, and then the message in UTF-8.  A cursor file
+ * remembers how far the log has been delivered, and segments are deleted once everything in
+ * them has been.  A record torn by a crash fails its CRC, and the log is cut off before it.
+ * <p>
+ * All file work is done by one background thread, so {@link #spool(String, String)} only
+ * checks that there is room and returns.  Appends that are waiting are forced to disk together.
+ * <p>
+ * Delivery is tried in the background, waiting twice as long after each failure, up to
+ * {@link #MAX_BACKOFF}.  As soon as a session with the contact starts, whether we started it
+ * or they did, the backlog is sent over it in batches of {@link #BATCH_SIZE}.  A batch is
+ * only marked delivered once the session's outbound queue has sent it, so a message may be
+ * sent twice if the session dies at just the wrong time, but is never lost.  Sessions the
+ * spool starts itself are ended once the backlog is sent.
+ * @author Noah
+ *
+ */
+public class MessageSpool {
+	
+	public static final String DEFAULT_DIRECTORY = "spool";
+	
+	/**
+	 * A segment is started once the current one would grow past this many bytes.
+	 */
+	public static final int SEGMENT_SIZE = 256 * 1024;
+	
+	/**
+	 * By default, the spool refuses messages once its files take this many bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	
+	/**
+	 * How many messages are sent to a session at a time.
+	 */
+	public static final int BATCH_SIZE = 32;
+	
+	/**
+	 * How long to wait, in milliseconds, before the first delivery attempt.
+	 */
+	public static final long INITIAL_BACKOFF = 5000;
+	
+	/**
+	 * The longest wait between delivery attempts.
+	 */
+	public static final long MAX_BACKOFF = 10 * 60 * 1000;
+	
+	//How often a session is checked for having sent its batch.
+	private static final long DRAIN_CHECK_INTERVAL = 50;
+	
+	private static final int RECORD_HEADER = 8;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CURSOR_FILE = "cursor";
+	
+	private static volatile MessageSpool defaultSpool;
+	
+	//What a session the spool started shows, since nobody is looking at it.
+	private static final TextDisplayObject LOG_DISPLAY = new TextDisplayObject() {
+		@Override
+		public void println(String s) {
+			MLog.fileLog.log("While delivering queued messages: " + s);
+		}
+		
+		@Override
+		public void tearDown() {
+			
+		}
+	};
+	
+	private final File directory;
+	private final ConnectionManager connectionMan;
+	private final ContactManager cMan;
+	private final ScheduledThreadPoolExecutor worker;
+	private final ConcurrentHashMap<String, Destination> destinations;
+	private final AtomicLong diskBytes;
+	private final AtomicLong spooled;
+	private final AtomicLong delivered;
+	private final AtomicLong rejected;
+	private final AtomicLong attempts;
+	private volatile long maxBytes;
+	private boolean forceScheduled;
+	
+	/**
+	 * Opens the spool, and starts delivering whatever was left in it in the background.
+	 * @param dir
+	 * @param conMan used to reach contacts.
+	 * @param cm used to look up where contacts are.
+	 */
+	public MessageSpool(File dir, ConnectionManager conMan, ContactManager cm) {
+		directory = dir;
+		connectionMan = conMan;
+		cMan = cm;
+		destinations = new ConcurrentHashMap<String, Destination>();
+		diskBytes = new AtomicLong();
+		spooled = new AtomicLong();
+		delivered = new AtomicLong();
+		rejected = new AtomicLong();
+		attempts = new AtomicLong();
+		maxBytes = DEFAULT_MAX_BYTES;
+		
+		worker = new ScheduledThreadPoolExecutor(1, (task) -> {
+			Thread t = new Thread(task, "LiteMessage spool");
+			t.setDaemon(true);
+			return t;
+		});
+		//Attempts that are still waiting when we close are dropped, and tried again next time.
+		worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		
+		worker.execute(this::load);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "LiteMessage spool shutdown"));
+	}
+	
+	/**
+	 * Returns the spool that sessions send backlogs from, or null if there isn't one.
+	 * @return
+	 */
+	public static MessageSpool getDefault() {
+		return defaultSpool;
+	}
+	
+	public static void setDefault(MessageSpool spool) {
+		defaultSpool = spool;
+	}
+	
+	/**
+	 * Changes how many bytes the spool's files may take before messages are refused.
+	 * @param bytes
+	 */
+	public void setMaxBytes(long bytes) {
+		maxBytes = bytes;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Queues a message for the contact with this UID.  It is written to disk in the background.
+	 * @param uid
+	 * @param message
+	 * @return false if the spool is full.
+	 */
+	public boolean spool(String uid, String message) {
+		if(worker.isShutdown()) {
+			return false;
+		}
+		
+		byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		long size = RECORD_HEADER + data.length;
+		
+		//Room is set aside now, so the bound holds no matter how far behind the worker is.
+		while(true) {
+			long used = diskBytes.get();
+			
+			if(used + size > maxBytes || size > SEGMENT_SIZE) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			
+			if(diskBytes.compareAndSet(used, used + size)) {
+				break;
+			}
+		}
+		
+		Destination d = destinations.computeIfAbsent(uid, (key) -> new Destination(key));
+		d.pending.incrementAndGet();
+		spooled.incrementAndGet();
+		
+		onWorker(() -> {
+			append(d, data);
+			
+			if(d.session != null) {
+				drain(d);
+			} else {
+				scheduleAttempt(d);
+			}
+		});
+		
+		return true;
+	}
+	
+	/**
+	 * Sends the backlog for the contact over a session that has just started with them.
+	 * Called by {@link MessagingControlModule} for every session.
+	 * @param uid
+	 * @param session
+	 */
+	public void sessionStarted(String uid, MessagingControlModule session) {
+		onWorker(() -> {
+			Destination d = destinations.get(uid);
+			
+			if(d == null || d.pending.get() == 0) {
+				endIfOurs(session);
+				return;
+			}
+			
+			if(d.attempt != null) {
+				d.attempt.cancel(false);
+				d.attempt = null;
+			}
+			
+			d.session = session;
+			d.backoff = INITIAL_BACKOFF;
+			drain(d);
+		});
+	}
+	
+	/**
+	 * Returns how many messages are waiting for the contact with this UID.
+	 * @param uid
+	 * @return
+	 */
+	public int getPending(String uid) {
+		Destination d = destinations.get(uid);
+		return d == null ? 0 : d.pending.get();
+	}
+	
+	/**
+	 * Returns how many messages are waiting for everybody.
+	 * @return
+	 */
+	public long getTotalPending() {
+		long total = 0;
+		
+		for(Destination d : destinations.values()) {
+			total += d.pending.get();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns how many bytes the spool's files take, plus room set aside for messages that
+	 * haven't been written yet.
+	 * @return
+	 */
+	public long getDiskUsage() {
+		return diskBytes.get();
+	}
+	
+	public long getSpooled() {
+		return spooled.get();
+	}
+	
+	public long getDelivered() {
+		return delivered.get();
+	}
+	
+	/**
+	 * Returns how many messages were refused because the spool was full.
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Returns how many times the spool has tried to reach a contact.
+	 * @return
+	 */
+	public long getAttempts() {
+		return attempts.get();
+	}
+	
+	/**
+	 * Forces everything to disk and closes the files.  Called when the program exits.
+	 */
+	public void close() {
+		if(worker.isShutdown()) {
+			return;
+		}
+		
+		worker.execute(() -> {
+			for(Destination d : destinations.values()) {
+				closeTail(d);
+			}
+		});
+		
+		worker.shutdown();
+		
+		try {
+			worker.awaitTermination(2, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Everything below runs on the worker.
+	
+	private void load() {
+		File[] dirs = directory.listFiles(File::isDirectory);
+		
+		if(dirs == null) {
+			return;
+		}
+		
+		for(File dir : dirs) {
+			String uid = URLDecoder.decode(dir.getName(), StandardCharsets.UTF_8);
+			Destination d = destinations.computeIfAbsent(uid, (key) -> new Destination(key));
+			
+			try {
+				loadDestination(d);
+			} catch(IOException e) {
+				System.err.println("Could not read the message spool for " + uid + ".");
+				e.printStackTrace();
+				continue;
+			}
+			
+			if(d.pending.get() > 0) {
+				scheduleAttempt(d);
+			}
+		}
+	}
+	
+	private void loadDestination(Destination d) throws IOException {
+		File[] files = d.dir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		
+		for(File f : files) {
+			String name = f.getName();
+			d.segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f.length());
+			diskBytes.addAndGet(f.length());
+		}
+		
+		Path cursor = d.dir.toPath().resolve(CURSOR_FILE);
+		boolean hasCursor = Files.exists(cursor);
+		
+		if(hasCursor) {
+			String[] position = Files.readString(cursor, StandardCharsets.UTF_8).trim().split(" ");
+			d.readSeq = Long.parseLong(position[0]);
+			d.readOffset = Long.parseLong(position[1]);
+		}
+		
+		//Everything was sent before, so the next segment has to be the one the cursor points at.
+		if(d.segments.isEmpty()) {
+			if(hasCursor) {
+				d.tailSeq = d.readSeq - 1;
+			}
+			
+			return;
+		}
+		
+		if(!hasCursor) {
+			d.readSeq = d.segments.firstKey();
+			d.readOffset = 0;
+		}
+		
+		d.tailSeq = d.segments.lastKey();
+		
+		//Count what is left, and cut the log off at the first bad record.
+		long seq = d.readSeq;
+		long offset = d.readOffset;
+		
+		for(Long segment : new ArrayList<Long>(d.segments.tailMap(d.readSeq).keySet())) {
+			long length = d.segments.get(segment);
+			
+			try(FileChannel ch = FileChannel.open(segmentPath(d, segment), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long position = segment == seq ? offset : 0;
+				
+				while(position < length) {
+					long next = nextRecord(ch, position, length);
+					
+					if(next < 0) {
+						MLog.fileLog.log("Message spool for " + d.uid + " had a bad record.  Cut off at " + position + " in segment " + segment + ".");
+						ch.truncate(position);
+						diskBytes.addAndGet(position - length);
+						d.segments.put(segment, position);
+						break;
+					}
+					
+					d.pending.incrementAndGet();
+					position = next;
+				}
+			}
+		}
+		
+		d.tailSize = d.segments.get(d.tailSeq);
+	}
+	
+	//Returns where the record after the one at this position starts, or -1 if this one is bad.
+	private static long nextRecord(FileChannel ch, long position, long length) throws IOException {
+		if(length - position < RECORD_HEADER) {
+			return -1;
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		readFully(ch, header, position);
+		header.flip();
+		int size = header.getInt();
+		int crc = header.getInt();
+		
+		if(size < 0 || size > length - position - RECORD_HEADER) {
+			return -1;
+		}
+		
+		ByteBuffer data = ByteBuffer.allocate(size);
+		readFully(ch, data, position + RECORD_HEADER);
+		
+		if(crcOf(data.array()) != crc) {
+			return -1;
+		}
+		
+		return position + RECORD_HEADER + size;
+	}
+	
+	private void append(Destination d, byte[] data) {
+		int size = RECORD_HEADER + data.length;
+		
+		try {
+			if(d.tail == null || d.tailSize + size > SEGMENT_SIZE) {
+				roll(d);
+			}
+			
+			ByteBuffer record = ByteBuffer.allocate(size);
+			record.putInt(data.length);
+			record.putInt(crcOf(data));
+			record.put(data);
+			record.flip();
+			
+			while(record.hasRemaining()) {
+				d.tail.write(record);
+			}
+			
+			d.tailSize += size;
+			d.segments.put(d.tailSeq, d.tailSize);
+		} catch(IOException e) {
+			System.err.println("Could not write to the message spool for " + d.uid + ".");
+			e.printStackTrace();
+			MLog.fileLog.log("Lost a queued message for " + d.uid + ": " + e.getMessage());
+			d.pending.decrementAndGet();
+			diskBytes.addAndGet(-size);
+			return;
+		}
+		
+		//One force for every append that is waiting right now.
+		if(!forceScheduled) {
+			forceScheduled = true;
+			worker.execute(this::forceAll);
+		}
+	}
+	
+	//Starts a new segment, or reopens the last one after a restart if there is room in it.
+	private void roll(Destination d) throws IOException {
+		if(d.tail == null && !d.segments.isEmpty() && d.tailSize < SEGMENT_SIZE) {
+			d.tail = FileChannel.open(segmentPath(d, d.tailSeq), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			
+			if(d.tailSize + RECORD_HEADER < SEGMENT_SIZE) {
+				return;
+			}
+		}
+		
+		closeTail(d);
+		Files.createDirectories(d.dir.toPath());
+		
+		d.tailSeq = d.segments.isEmpty() ? d.tailSeq + 1 : d.segments.lastKey() + 1;
+		d.tailSize = 0;
+		d.tail = FileChannel.open(segmentPath(d, d.tailSeq), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		d.segments.put(d.tailSeq, 0L);
+		
+		if(d.segments.size() == 1) {
+			d.readSeq = d.tailSeq;
+			d.readOffset = 0;
+			writeCursor(d);
+		}
+	}
+	
+	private void forceAll() {
+		forceScheduled = false;
+		
+		for(Destination d : destinations.values()) {
+			if(d.tail == null) {
+				continue;
+			}
+			
+			try {
+				d.tail.force(false);
+			} catch(IOException e) {
+				System.err.println("Could not force the message spool for " + d.uid + " to disk.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Sends the next batch once the last one has gone out.
+	private void drain(Destination d) {
+		MessagingControlModule session = d.session;
+		
+		if(session == null || d.draining) {
+			return;
+		}
+		
+		if(!session.isSessionOpen()) {
+			//What was in flight wasn't confirmed, so it is sent again next time.
+			d.session = null;
+			d.inFlight = 0;
+			scheduleAttempt(d);
+			return;
+		}
+		
+		if(d.inFlight > 0) {
+			if(session.getOutboundQueue().getOutstanding() > 0) {
+				d.draining = true;
+				worker.schedule(() -> {
+					d.draining = false;
+					drain(d);
+				}, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			commit(d);
+		}
+		
+		if(d.pending.get() == 0) {
+			d.session = null;
+			endIfOurs(session);
+			return;
+		}
+		
+		try {
+			ArrayList<String> batch = readBatch(d);
+			
+			for(String message : batch) {
+				if(!session.deliverSpooled(message)) {
+					d.session = null;
+					d.inFlight = 0;
+					scheduleAttempt(d);
+					return;
+				}
+			}
+		} catch(IOException e) {
+			System.err.println("Could not read the message spool for " + d.uid + ".");
+			e.printStackTrace();
+			d.session = null;
+			d.inFlight = 0;
+			return;
+		}
+		
+		//Checked again shortly, to confirm the batch went out.
+		drain(d);
+	}
+	
+	//Reads up to a batch of messages from the cursor, and remembers where the batch ends.
+	private ArrayList<String> readBatch(Destination d) throws IOException {
+		ArrayList<String> batch = new ArrayList<String>();
+		long seq = d.readSeq;
+		long offset = d.readOffset;
+		
+		while(batch.size() < BATCH_SIZE) {
+			Long length = d.segments.get(seq);
+			
+			if(length == null) {
+				break;
+			}
+			
+			if(offset >= length) {
+				Long next = d.segments.higherKey(seq);
+				
+				if(next == null) {
+					break;
+				}
+				
+				seq = next;
+				offset = 0;
+				continue;
+			}
+			
+			try(FileChannel ch = FileChannel.open(segmentPath(d, seq), StandardOpenOption.READ)) {
+				while(offset < length && batch.size() < BATCH_SIZE) {
+					ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+					readFully(ch, header, offset);
+					header.flip();
+					int size = header.getInt();
+					header.getInt();
+					
+					ByteBuffer data = ByteBuffer.allocate(size);
+					readFully(ch, data, offset + RECORD_HEADER);
+					batch.add(new String(data.array(), StandardCharsets.UTF_8));
+					offset += RECORD_HEADER + size;
+				}
+			}
+		}
+		
+		d.inFlight = batch.size();
+		d.inFlightSeq = seq;
+		d.inFlightOffset = offset;
+		return batch;
+	}
+	
+	//The batch in flight went out.  Moves the cursor past it, and deletes finished segments.
+	private void commit(Destination d) {
+		d.pending.addAndGet(-d.inFlight);
+		delivered.addAndGet(d.inFlight);
+		d.inFlight = 0;
+		d.readSeq = d.inFlightSeq;
+		d.readOffset = d.inFlightOffset;
+		
+		boolean allSent = d.pending.get() == 0 && d.readSeq == d.tailSeq && d.readOffset >= d.tailSize;
+		
+		try {
+			for(Long seq : new ArrayList<Long>(d.segments.keySet())) {
+				if(seq > d.readSeq || (seq == d.readSeq && !allSent)) {
+					break;
+				}
+				
+				if(seq == d.tailSeq) {
+					closeTail(d);
+				}
+				
+				Files.deleteIfExists(segmentPath(d, seq));
+				diskBytes.addAndGet(-d.segments.remove(seq));
+			}
+			
+			if(allSent) {
+				d.readSeq = d.tailSeq + 1;
+				d.readOffset = 0;
+				d.tailSize = 0;
+			}
+			
+			writeCursor(d);
+		} catch(IOException e) {
+			System.err.println("Could not update the message spool for " + d.uid + ".");
+			e.printStackTrace();
+		}
+	}
+	
+	private void writeCursor(Destination d) throws IOException {
+		Path cursor = d.dir.toPath().resolve(CURSOR_FILE);
+		Path temp = d.dir.toPath().resolve(CURSOR_FILE + ".tmp");
+		Files.writeString(temp, d.readSeq + " " + d.readOffset, StandardCharsets.UTF_8);
+		
+		try {
+			Files.move(temp, cursor, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(temp, cursor, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	//Tries to reach the contact later, waiting twice as long as the last time.
+	private void scheduleAttempt(Destination d) {
+		if(d.attempt != null || d.delivering != null || d.session != null || d.pending.get() == 0 || worker.isShutdown()) {
+			return;
+		}
+		
+		//A little jitter, so contacts that went away together aren't all retried together.
+		long delay = d.backoff + ThreadLocalRandom.current().nextLong(d.backoff / 5 + 1);
+		d.backoff = Math.min(d.backoff * 2, MAX_BACKOFF);
+		d.attempt = worker.schedule(() -> attempt(d), delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void attempt(Destination d) {
+		d.attempt = null;
+		
+		if(d.session != null || d.pending.get() == 0) {
+			return;
+		}
+		
+		Contact contact = cMan.getContactByUID(d.uid);
+		
+		if(contact == null || contact.getIPAddress() == null) {
+			scheduleAttempt(d);
+			return;
+		}
+		
+		attempts.incrementAndGet();
+		MessagingControlModule session = new MessagingControlModule(null, LOG_DISPLAY, null, connectionMan, cMan);
+		d.delivering = session;
+		
+		//Connecting can take a while, so it isn't done on the worker.
+		SessionExecutor.getDefault().execute(() -> {
+			boolean connected = session.connectQuietly(contact.getIPAddress());
+			
+			onWorker(() -> {
+				d.delivering = null;
+				
+				if(!connected) {
+					scheduleAttempt(d);
+					return;
+				}
+				
+				//Somebody else answered, or the backlog was already sent some other way.
+				if(d.session != session) {
+					endIfOurs(session);
+					scheduleAttempt(d);
+				}
+			});
+		});
+	}
+	
+	//Ends a session the spool started, once it isn't needed anymore.
+	private void endIfOurs(MessagingControlModule session) {
+		for(Destination d : destinations.values()) {
+			if(d.delivering == session) {
+				return;
+			}
+		}
+		
+		if(session.displayObject == LOG_DISPLAY) {
+			session.sendData("cmd-exit");
+		}
+	}
+	
+	private void closeTail(Destination d) {
+		if(d.tail == null) {
+			return;
+		}
+		
+		try {
+			d.tail.force(false);
+			d.tail.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		
+		d.tail = null;
+	}
+	
+	//Runs the task on the worker, unless the spool has been closed.
+	private void onWorker(Runnable task) {
+		try {
+			worker.execute(task);
+		} catch(RejectedExecutionException e) {
+			//We are shutting down.  Whatever is on disk is picked up next time.
+		}
+	}
+	
+	private static Path segmentPath(Destination d, long seq) {
+		return d.dir.toPath().resolve(String.format("%016d", seq) + SEGMENT_SUFFIX);
+	}
+	
+	private static void readFully(FileChannel ch, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = ch.read(buffer, position + buffer.position());
+			
+			if(read < 0) {
+				throw new IOException("Message spool segment ended early.");
+			}
+		}
+	}
+	
+	private static int crcOf(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+	
+	//One contact's log.  Only pending is touched outside of the worker.
+	private class Destination {
+		
+		final String uid;
+		final File dir;
+		final TreeMap<Long, Long> segments;
+		final AtomicInteger pending;
+		FileChannel tail;
+		long tailSeq;
+		long tailSize;
+		long readSeq;
+		long readOffset;
+		int inFlight;
+		long inFlightSeq;
+		long inFlightOffset;
+		boolean draining;
+		long backoff;
+		ScheduledFuture<?> attempt;
+		volatile MessagingControlModule session;
+		MessagingControlModule delivering;
+		
+		Destination(String id) {
+			uid = id;
+			dir = new File(directory, URLEncoder.encode(id, StandardCharsets.UTF_8));
+			segments = new TreeMap<Long, Long>();
+			pending = new AtomicInteger();
+			backoff = INITIAL_BACKOFF;
+		}
+	}
+}
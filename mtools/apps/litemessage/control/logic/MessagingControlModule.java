@@ -38,25 +38,42 @@ package mtools.apps.litemessage.control.logic;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JOptionPane;
 
 import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.EncryptionModule;
+import mtools.apps.litemessage.core.EventLog;
 import mtools.apps.litemessage.core.MessagingState;
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
 import mtools.apps.litemessage.core.TextDisplayObject;
 import mtools.apps.litemessage.core.TextInputObject;
+import mtools.apps.litemessage.core.networking.CompressionCodec;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.HeartbeatMonitor;
+import mtools.apps.litemessage.core.networking.OutboundQueue;
+import mtools.apps.litemessage.core.networking.OverflowPolicy;
+import mtools.apps.litemessage.core.networking.PooledSession;
 import mtools.apps.litemessage.core.networking.StreamBundle;
 import mtools.io.MDisplay;
-import mtools.logging.MLog;
 
 /**
- * This is used to control data flow in a single chat session.
+ * This is used to control data flow in a single chat session.  Once a session is
+ * established, the receive loop is run on the {@link SessionExecutor}.  Outgoing messages
+ * go through an {@link OutboundQueue}, so sending never waits on the network.
  * @author Noah
  *
  */
-public class MessagingControlModule extends Thread {
+public class MessagingControlModule implements Runnable {
 	
 	protected MDisplay display;
 	protected MessageStatusObject mState;
@@ -68,6 +85,33 @@ public class MessagingControlModule extends Thread {
 	protected TextInputObject inputObject;
 	protected ConnectionManager connectionMan;
 	protected StreamBundle sBundle;
+	protected SessionExecutor executor;
+	protected EventLog log;
+	protected OutboundQueue outbound;
+	protected int outboundCapacity;
+	protected OverflowPolicy overflowPolicy;
+	protected boolean compressionEnabled;
+	protected int compressionThreshold;
+	protected int peerHandshakeFlags;
+	protected boolean preconnecting;
+	protected volatile boolean leaving;
+	protected volatile boolean parked;
+	protected CompletableFuture<Void> receiveReady;
+	protected Contact spoolingTo;
+	protected HeartbeatMonitor.Heartbeat heartbeat;
+	protected volatile boolean timedOut;
+	private final AtomicBoolean counted = new AtomicBoolean();
+	
+	/**
+	 * How long to wait for queued messages to go out when the session is closed.
+	 */
+	public static final long OUTBOUND_DRAIN_TIMEOUT = 500;
+	
+	/**
+	 * When pooling, how long to wait for the peer to echo our exit before giving up on
+	 * keeping the connection.
+	 */
+	public static final long PARK_TIMEOUT = 5000;
 	
 	/**
 	 * The constructor.
@@ -83,6 +127,55 @@ public class MessagingControlModule extends Thread {
 		displayObject = tdo;
 		inputObject = tio;
 		connectionMan = conMan;
+		executor = SessionExecutor.getDefault();
+		log = EventLog.getDefault();
+		outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+		overflowPolicy = OverflowPolicy.FAIL;
+		compressionEnabled = true;
+		compressionThreshold = StreamBundle.DEFAULT_COMPRESSION_THRESHOLD;
+	}
+	
+	/**
+	 * Changes the executor that the receive loop is run on.  Defaults to
+	 * {@link SessionExecutor#getDefault()}.  Must be called before a session is started.
+	 * @param e
+	 */
+	public void setExecutor(SessionExecutor e) {
+		executor = e;
+	}
+	
+	/**
+	 * Changes the size of the outbound queue, and what happens when it fills up.
+	 * Defaults to {@link OutboundQueue#DEFAULT_CAPACITY} and {@link OverflowPolicy#FAIL}.
+	 * Must be called before a session is started.
+	 * @param capacity
+	 * @param policy
+	 */
+	public void setOutboundQueue(int capacity, OverflowPolicy policy) {
+		outboundCapacity = capacity;
+		overflowPolicy = policy;
+	}
+	
+	/**
+	 * Sets whether compression is offered in the handshake, and how big a message has to be
+	 * before it's compressed.  Compression is only used if the peer offers it as well.
+	 * Defaults to on, with {@link StreamBundle#DEFAULT_COMPRESSION_THRESHOLD}.  Must be
+	 * called before a session is started.
+	 * @param enabled
+	 * @param threshold
+	 */
+	public void setCompression(boolean enabled, int threshold) {
+		compressionEnabled = enabled;
+		compressionThreshold = threshold;
+	}
+	
+	/**
+	 * Returns the outbound queue of the current session, or null if there isn't one.
+	 * Useful for checking its depth and how many messages have been dropped.
+	 * @return
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
 	}
 	
 	public void startInitiateMessageLogic() {
@@ -116,7 +209,7 @@ public class MessagingControlModule extends Thread {
 			if(contactSelection == -1) {
 				//Was not a valid contact selection
 				//We'll assume it's an IP or hostname
-				address = InetAddress.getByName(input);
+				address = connectionMan.getResolver().resolveNow(input);
 			} else {
 				//Was a valid contact selection
 				address = cMan.getContacts().get(contactSelection).getIPAddress();
@@ -124,49 +217,53 @@ public class MessagingControlModule extends Thread {
 			
 		} catch (Exception e) {
 			System.err.println("Could not establish a connection.");
-			MLog.fileLog.log("Could not establish a connection with " + input);
+			log.warn("Could not establish a connection with {}", input);
 			return;
 		}
 		
-		display.clear();
-		display.setBanner("Making Connection...");
-		display.display();
-		
-		//We initiate the TransmitModule first, and it's constructor will
-		//reach out and let the other client know that we are attempting to connect
-		try {
-			sBundle = connectionMan.initSessionNegotiation(address);
-		} catch(Exception e) {
-			System.err.println("Could not establish a connection.");
-			MLog.fileLog.log("Could not establish a connection with " + address.getHostAddress());
-			return;
-		}
-		
-		if(sBundle == null) {
-			System.err.println("Made contact with peer, but could not negotiate a connection.");
-			MLog.fileLog.log("Made contact with peer, but could not negotiate a connection (" + address.getHostAddress() + ").");
-			displayObject.tearDown();
-			return;
-		}
-		
-		try {
-			//Send the info about ourselves
-			sBundle.writeUTFData(thisUser.getName() + "," + thisUser.getUID());
-			//Grab the info about the other user.
-			parseOtherUserData(sBundle.readUTFData());
-			otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
-		} catch (IOException e) {
-			System.err.println("Had issue either sending our user info, or receiving their user info.");
-			MLog.fileLog.log("Had issue either sending our user info, or receiving their user info (" + address.getHostAddress() + ")." );
-			e.printStackTrace();
+		//An idle connection from an earlier chat with this contact skips all of this.
+		if(!resumePooledSession(address)) {
+			display.clear();
+			display.setBanner("Making Connection...");
+			display.display();
+			
+			//We initiate the TransmitModule first, and it's constructor will
+			//reach out and let the other client know that we are attempting to connect
+			try {
+				sBundle = connectionMan.initSessionNegotiation(address);
+			} catch(Exception e) {
+				log.warn("Could not establish a connection with {}", address);
+				
+				if(!startSpooling(address)) {
+					System.err.println("Could not establish a connection.");
+				}
+				return;
+			}
+			
+			if(sBundle == null) {
+				System.err.println("Made contact with peer, but could not negotiate a connection.");
+				log.warn("Made contact with peer, but could not negotiate a connection ({}).", address);
+				displayObject.tearDown();
+				return;
+			}
+			
+			try {
+				swapUserData(true);
+			} catch (IOException e) {
+				System.err.println("Had issue either sending our user info, or receiving their user info.");
+				log.warn("Had issue either sending our user info, or receiving their user info ({}).", address);
+				e.printStackTrace();
+				clearConnections();
+				displayObject.tearDown();
+				return;
+			}
 		}
 		
-		
-		this.start();
+		startSession();
 		
 		display.setBanner("Connected with " + otherUser.getName());
 		display.display();
-		MLog.fileLog.log("Connected with " + otherUser.getName());
+		log.info("Connected with {}", otherUser.getName());
 		
 		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
 		
@@ -178,7 +275,7 @@ public class MessagingControlModule extends Thread {
 		if(otherUser.getUIDProblem()) {
 			System.err.println("This person may not be " + '"' + otherUser.getName() + '"' + ".  Different identifier detected!");
 			System.err.println("> If the contact needs to be updated, or you'd like to ignore this in the future, please remove the contact, or enable dynamic UID updates.");
-			MLog.fileLog.log("UID mismatch with name \"" + otherUser.getName() + '"');
+			log.warn("UID mismatch with name \"{}\"", otherUser.getName());
 			
 			System.out.print("> ");
 		}
@@ -196,50 +293,66 @@ public class MessagingControlModule extends Thread {
 		InetAddress address = null;
 		
 		try {
-			address = InetAddress.getByName(ipAddress);
+			address = connectionMan.getResolver().resolveNow(ipAddress);
 		} catch (Exception e) {
-			MLog.fileLog.log("Could not establish a connection with " + ipAddress);
-			JOptionPane.showMessageDialog(null, "Could not establish connection", "Error", JOptionPane.ERROR_MESSAGE);
-			displayObject.tearDown();
-			return;
-		}
-
-		displayObject.println("Making Connection...");
-		
-		//We initiate the TransmitModule first, and it's constructor will
-		//reach out and let the other client know that we are attempting to connect
-		try {
-			sBundle = connectionMan.initSessionNegotiation(address);
-		} catch(Exception e) {
-			MLog.fileLog.log("Could not establish a connection with " + address.getHostAddress());
+			log.warn("Could not establish a connection with {}", ipAddress);
 			JOptionPane.showMessageDialog(null, "Could not establish connection", "Error", JOptionPane.ERROR_MESSAGE);
 			displayObject.tearDown();
 			return;
 		}
 		
-		if(sBundle == null) {
-			MLog.fileLog.log("Made contact with peer, but could not negotiate a connection (" + address.getHostAddress() + ").");
-			JOptionPane.showMessageDialog(null, "Made contact with peer, but could not negotiate a connection.", "Error", JOptionPane.ERROR_MESSAGE);
-			displayObject.tearDown();
-			return;
-		}
-		
-		try {
-			//Send the info about ourselves
-			sBundle.writeUTFData(thisUser.getName() + "," + thisUser.getUID());
-			//Grab the info about the other user.
-			parseOtherUserData(sBundle.readUTFData());
-			otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
-		} catch (IOException e) {
-			MLog.fileLog.log("Had issue either sending our user info, or receiving their user info. (" + address.getHostAddress() + ").");
-			JOptionPane.showMessageDialog(null, "Had issue either sending our user info, or receiving their user info.", "Error", JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
+		startInitiateMessageLogicFromGUI(address);
+	}
+	
+	/**
+	 * To be called only from the GUI variant, once the address is known.
+	 * See {@link #startInitiateMessageLogicFromGUI(String)}.
+	 * @param address
+	 */
+	public void startInitiateMessageLogicFromGUI(InetAddress address) {
+		//An idle connection from an earlier chat with this contact skips all of this.
+		if(!resumePooledSession(address)) {
+			displayObject.println("Making Connection...");
+			
+			//We initiate the TransmitModule first, and it's constructor will
+			//reach out and let the other client know that we are attempting to connect
+			try {
+				sBundle = connectionMan.initSessionNegotiation(address);
+			} catch(Exception e) {
+				log.warn("Could not establish a connection with {}", address);
+				
+				if(startSpooling(address)) {
+					return;
+				}
+				
+				JOptionPane.showMessageDialog(null, "Could not establish connection", "Error", JOptionPane.ERROR_MESSAGE);
+				displayObject.tearDown();
+				return;
+			}
+			
+			if(sBundle == null) {
+				log.warn("Made contact with peer, but could not negotiate a connection ({}).", address);
+				JOptionPane.showMessageDialog(null, "Made contact with peer, but could not negotiate a connection.", "Error", JOptionPane.ERROR_MESSAGE);
+				displayObject.tearDown();
+				return;
+			}
+			
+			try {
+				swapUserData(true);
+			} catch (IOException e) {
+				log.warn("Had issue either sending our user info, or receiving their user info ({}).", address);
+				JOptionPane.showMessageDialog(null, "Had issue either sending our user info, or receiving their user info.", "Error", JOptionPane.ERROR_MESSAGE);
+				e.printStackTrace();
+				clearConnections();
+				displayObject.tearDown();
+				return;
+			}
 		}
 		
-		this.start();
+		startSession();
 		
 		displayObject.println("Connected with " + otherUser.getName() + "\n");
-		MLog.fileLog.log("Connected with " + otherUser.getName());
+		log.info("Connected with {}", otherUser.getName());
 		
 		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
 		
@@ -249,7 +362,7 @@ public class MessagingControlModule extends Thread {
 		if(otherUser.getUIDProblem()) {
 			JOptionPane.showMessageDialog(null, "This person may not be " + '"' + otherUser.getName() + '"' + ".  Different identifier detected!", "Warning", JOptionPane.WARNING_MESSAGE);
 			JOptionPane.showMessageDialog(null, "If the contact needs to be updated, or you'd like to ignore this in the future, please remove the contact, or enable dynamic UID updates.", "Information", JOptionPane.INFORMATION_MESSAGE);
-			MLog.fileLog.log("UID mismatch with name \"" + otherUser.getName() + '"');
+			log.warn("UID mismatch with name \"{}\"", otherUser.getName());
 		}
 	}
 	
@@ -262,29 +375,36 @@ public class MessagingControlModule extends Thread {
 	 * completes the comms circuit.
 	 */
 	public void startReceiveMessageLogic() {
+		boolean swapped;
 		
-		try {
-			sBundle = connectionMan.waitForSessionNegotiation();
-		} catch(Exception e) {
-			//System.err.println("Error while reaching back to the peer initiating connection.");
-			return;
-		}
-		
-		try {
-			//Grab the info about the other user.
-			parseOtherUserData(sBundle.readUTFData());
-			otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
-			//Send the info about ourselves
-			sBundle.writeUTFData(thisUser.getName() + "," + thisUser.getUID());
-		} catch (IOException e) {
-			System.err.println("Sombody else attempted to initiate contact.  Error while sending our user info, or receiving their user info.");
-			MLog.fileLog.log("Sombody else attempted to initiate contact.  Error while sending our user info, or receiving their user info.");
-			e.printStackTrace();
-		}
+		do {
+			try {
+				sBundle = connectionMan.waitForSessionNegotiation();
+			} catch(Exception e) {
+				//System.err.println("Error while reaching back to the peer initiating connection.");
+				return;
+			}
+			
+			swapped = true;
+			
+			try {
+				swapUserData(false);
+			} catch (IOException e) {
+				System.err.println("Sombody else attempted to initiate contact.  Error while sending our user info, or receiving their user info.");
+				log.warn("Sombody else attempted to initiate contact.  Error while sending our user info, or receiving their user info.");
+				e.printStackTrace();
+				
+				//Drop them, and keep waiting for somebody else.
+				clearConnections();
+				otherUser = new Contact();
+				peerHandshakeFlags = 0;
+				swapped = false;
+			}
+		} while(!swapped || handlePreconnect());
 		
 		display.setBanner("Connected with " + otherUser.getName());
 		display.display();
-		MLog.fileLog.log("Connected with " + otherUser.getName());
+		log.info("Connected with {}", otherUser.getName());
 		System.out.print("> ");
 		
 		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
@@ -294,40 +414,78 @@ public class MessagingControlModule extends Thread {
 		if(otherUser.getUIDProblem()) {
 			System.out.println("This person may not be " + '"' + otherUser.getName() + '"' + ".  Different identifier detected!");
 			System.out.println("> If the contact needs to be updated, or you'd like to ignore this in the future, please remove the contact, or enable dynamic UID updates.");
-			MLog.fileLog.log("UID mismatch with name \"" + otherUser.getName() + '"');
+			log.warn("UID mismatch with name \"{}\"", otherUser.getName());
 			
 			System.out.print("> ");
 		}
 		
-		this.start();
+		startSession();
 	}
 	
-	public void startReceiveMessageLogicFromGUI() {
-				
-		try {
-			sBundle = connectionMan.waitForSessionNegotiation();
-		} catch(Exception e) {
-			System.err.println("Somebody else attempted to initiate contact.  Error while reaching back to the peer initiating connection.");
-			MLog.fileLog.log("Somebody else attempted to initiate contact.  Error while reaching back to the peer initiating connection.");
-			return;
-		}
+	/**
+	 * For use with hub mode.  Sets up a session that a {@link HubAcceptor} has already
+	 * accepted, and starts it.  Unlike the other receive methods, this doesn't wait for
+	 * anything or display anything, so the acceptor can carry on right away.
+	 * @param bundle
+	 * @return false if the peer only connected to pre-connect, or the user info couldn't be swapped.
+	 */
+	public boolean acceptSession(StreamBundle bundle) {
+		sBundle = bundle;
 		
 		try {
-			//Grab the info about the other user.
-			parseOtherUserData(sBundle.readUTFData());
-			otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
-			//Send the info about ourselves
-			sBundle.writeUTFData(thisUser.getName() + "," + thisUser.getUID());
+			swapUserData(false);
 		} catch (IOException e) {
-			System.err.println("Error encountered while sending our user info, or receiving their user info.");
-			MLog.fileLog.log("Error encountered while sending our user info, or receiving their user info.");
-			e.printStackTrace();
+			log.warn("Sombody else attempted to initiate contact.  Error while sending our user info, or receiving their user info.");
+			clearConnections();
+			return false;
 		}
 		
-		this.start();
+		if(handlePreconnect()) {
+			return false;
+		}
+		
+		//Set first, so a peer that leaves right away isn't left looking connected.
+		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
+		cMan.addContact(otherUser);
+		log.info("Connected with {}", otherUser.getName());
+		
+		startSession();
+		return true;
+	}
+	
+	public void startReceiveMessageLogicFromGUI() {
+		boolean swapped;
+		
+		do {
+			try {
+				sBundle = connectionMan.waitForSessionNegotiation();
+			} catch(Exception e) {
+				System.err.println("Somebody else attempted to initiate contact.  Error while reaching back to the peer initiating connection.");
+				log.warn("Somebody else attempted to initiate contact.  Error while reaching back to the peer initiating connection.");
+				return;
+			}
+			
+			swapped = true;
+			
+			try {
+				swapUserData(false);
+			} catch (IOException e) {
+				System.err.println("Error encountered while sending our user info, or receiving their user info.");
+				log.warn("Error encountered while sending our user info, or receiving their user info.");
+				e.printStackTrace();
+				
+				//Drop them, and keep waiting for somebody else.
+				clearConnections();
+				otherUser = new Contact();
+				peerHandshakeFlags = 0;
+				swapped = false;
+			}
+		} while(!swapped || handlePreconnect());
+		
+		startSession();
 		
 		displayObject.println("Connected with " + otherUser.getName());
-		MLog.fileLog.log("Connected with " + otherUser.getName());
+		log.info("Connected with {}", otherUser.getName());
 		
 		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
 		cMan.addContact(otherUser);
@@ -336,7 +494,7 @@ public class MessagingControlModule extends Thread {
 		if(otherUser.getUIDProblem()) {
 			JOptionPane.showMessageDialog(null, "This person may not be " + '"' + otherUser.getName() + '"' + ".  Different identifier detected!", "Warning", JOptionPane.WARNING_MESSAGE);
 			JOptionPane.showMessageDialog(null, "If the contact needs to be updated, or you'd like to ignore this in the future, please remove the contact, or enable dynamic UID updates.", "Information", JOptionPane.INFORMATION_MESSAGE);
-			MLog.fileLog.log("UID mismatch with name \"" + otherUser.getName() + '"');
+			log.warn("UID mismatch with name \"{}\"", otherUser.getName());
 		}
 	}	
 	
@@ -345,6 +503,18 @@ public class MessagingControlModule extends Thread {
 	 * not close any ServerSockets.
 	 */
 	public void clearConnections() {
+		sessionEnded();
+		
+		//Give anything still queued, like an exit command, a chance to go out.
+		if(outbound != null) {
+			outbound.close(OUTBOUND_DRAIN_TIMEOUT);
+		}
+		
+		//The connection is being kept in the pool, or will be once the peer echoes our exit.
+		if(leaving || parked) {
+			mState.setMessagingState(MessagingState.NOT_MESSAGING);
+			return;
+		}
 		
 		try {
 			sBundle.closeStreams();	
@@ -397,93 +567,610 @@ public class MessagingControlModule extends Thread {
 	 * through the {@link TransmitModule}.  The TransmitModule
 	 * also parses it for any special commands.
 	 * @param s
+	 * @return the message's number in the {@link MessageHistory}, or -1 if it wasn't saved.
 	 */
-	public void sendData(String s) {
+	public long sendData(String s) {
 		//Don't do anything if we aren't currently connected with anybody
 		if(mState.getMessagingState() != MessagingState.CURRENTLY_MESSAGING)
-			return;
+			return -1;
+			
+		CommandType command = cpm.evaluateText(s);
+		
+		if(spoolingTo != null) {
+			return spoolData(s, command);
+		}
+		
+		//When pooling, the peer echoes our exit, and the connection is kept once it does.
+		if(command == CommandType.EXIT && isPoolingAgreed()) {
+			leaving = true;
 			
+			//Don't hang on to the connection if the echo never comes.
+			CompletableFuture.delayedExecutor(PARK_TIMEOUT, TimeUnit.MILLISECONDS).execute(() -> {
+				synchronized(this) {
+					if(leaving) {
+						leaving = false;
+						clearConnections();
+					}
+				}
+			});
+		}
+		
 		try {
-			sBundle.writeUTFData(s);
+			if(command == CommandType.EXIT) {
+				outbound.send(cpm.createCommandFrame(command));
+			} else {
+				outbound.send(Frame.text(s));
+			}
 		} catch(Exception e) {
 			System.err.println("LiteMessage: could not send data...");
+			return -1;
 		}
 		
-		if(cpm.evaluateText(s) == CommandType.EXIT) {
+		if(command == CommandType.EXIT) {
 			clearConnections();
 			displayObject.tearDown();
+			return -1;
+		}
+		
+		return record(true, s);
+	}
+	
+	/**
+	 * Starts the outbound queue's writer and the receive loop on the executor.  On a
+	 * connection taken from the pool, the receive loop waits until the pool lets go of it.
+	 * Anything that was queued for the peer while they couldn't be reached is sent first.
+	 */
+	protected void startSession() {
+		if(counted.compareAndSet(false, true)) {
+			Metrics.getDefault().sessionOpened();
+		}
+		
+		outbound = new OutboundQueue(sBundle, outboundCapacity, overflowPolicy);
+		outbound.start(executor);
+		timedOut = false;
+		heartbeat = HeartbeatMonitor.getDefault().watch(sBundle, outbound, isHeartbeatAgreed(), this::reap);
+		
+		if(receiveReady != null) {
+			receiveReady.thenRun(() -> executor.execute(this));
+		} else {
+			executor.execute(this);
+		}
+		
+		MessageSpool spool = MessageSpool.getDefault();
+		if(spool != null && otherUser.getUID() != null) {
+			int pending = spool.getPending(otherUser.getUID());
+			
+			if(pending > 0) {
+				displayObject.println("Sending " + pending + " message(s) that were waiting for " + otherUser.getName() + ".");
+			}
+			
+			spool.sessionStarted(otherUser.getUID(), this);
+		}
+	}
+	
+	/**
+	 * Starts a session with the contact at this address without displaying anything, for
+	 * sending messages that were waiting for them.  A pooled connection is used if there is one.
+	 * @param address
+	 * @return false if the contact couldn't be reached.
+	 */
+	public boolean connectQuietly(InetAddress address) {
+		if(!resumePooledSession(address)) {
+			try {
+				sBundle = connectionMan.initSessionNegotiation(address);
+				if(sBundle == null) {
+					return false;
+				}
+				
+				swapUserData(true);
+			} catch(Exception e) {
+				log.info("Could not reach {} to send waiting messages.", address);
+				clearConnections();
+				return false;
+			}
+		}
+		
+		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
+		cMan.addContact(otherUser);
+		startSession();
+		return true;
+	}
+	
+	/**
+	 * Queues a message that was waiting for the peer.  Unlike {@link #sendData(String)},
+	 * nothing is parsed, so text that looks like a command is sent as text.
+	 * @param s
+	 * @return false if the session can't send anymore.
+	 */
+	public boolean deliverSpooled(String s) {
+		if(!isSessionOpen()) {
+			return false;
+		}
+		
+		try {
+			outbound.send(Frame.text(s));
+		} catch(IOException e) {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns true if the session can still send.
+	 * @return
+	 */
+	public boolean isSessionOpen() {
+		OutboundQueue o = outbound;
+		return o != null && !o.isClosed() && o.getFailure() == null;
+	}
+	
+	/**
+	 * Returns true if messages are being queued for a contact that couldn't be reached,
+	 * rather than sent.
+	 * @return
+	 */
+	public boolean isSpooling() {
+		return spoolingTo != null;
+	}
+	
+	/**
+	 * Called when the contact at this address couldn't be reached.  If they are a known
+	 * contact, and there is a {@link MessageSpool}, messages typed from now on are queued
+	 * for them instead.
+	 * @param address
+	 * @return false if messages can't be queued for them.
+	 */
+	protected boolean startSpooling(InetAddress address) {
+		Contact contact = cMan.getContactByIP(address);
+		
+		if(MessageSpool.getDefault() == null || contact == null || contact.getUID() == null) {
+			return false;
+		}
+		
+		spoolingTo = contact;
+		otherUser.setName(contact.getName());
+		otherUser.setUID(contact.getUID());
+		otherUser.setIPAddress(address);
+		mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
+		
+		displayObject.println(contact.getName() + " can't be reached.  Messages will be sent when they can be.");
+		log.info("Queueing messages for {}", contact.getName());
+		return true;
+	}
+	
+	//Queues the text for the contact we couldn't reach, until we leave.
+	private long spoolData(String s, CommandType command) {
+		if(command == CommandType.EXIT) {
+			spoolingTo = null;
+			mState.setMessagingState(MessagingState.NOT_MESSAGING);
+			displayObject.tearDown();
+			return -1;
+		}
+		
+		if(!MessageSpool.getDefault().spool(spoolingTo.getUID(), s)) {
+			displayObject.println("Too many messages are waiting to be sent.  This one wasn't queued.");
+			return -1;
+		}
+		
+		return record(true, s);
+	}
+	
+	//Saves a chat message to the history with the peer, if there is a history.
+	private long record(boolean sent, String text) {
+		MessageHistory history = MessageHistory.getDefault();
+		
+		if(history == null || otherUser.getUID() == null) {
+			return -1;
 		}
+		
+		return history.record(otherUser.getUID(), sent, text);
 	}
 	
 	@Override
 	public void run() {
-		String rxData = null;
+		Frame rxData = null;
 		while(true) {
 			try {
-				rxData = sBundle.readUTFData();
+				rxData = sBundle.readFrame();
 			} catch (SocketException se) {
-				displayObject.println("Connection was reset.  You have been disconnected...");
-				MLog.fileLog.log("Connection with " + otherUser.getName() + " has ended");	
+				if(leaving) {
+					//We already left, and the connection went away before the peer echoed it.
+					leaving = false;
+					clearConnections();
+					return;
+				}
+				if(timedOut) {
+					displayObject.println(otherUser.getName() + " stopped responding.  You have been disconnected...");
+				} else {
+					displayObject.println("Connection was reset.  You have been disconnected...");
+				}
+				log.info("Connection with {} has ended", otherUser.getName());	
 				clearConnections();
 				return;
 			} catch (IOException e) {
-				displayObject.println("You have been disconnected...");
-				MLog.fileLog.log("Connection with " + otherUser.getName() + " has ended");
+				if(leaving) {
+					leaving = false;
+					clearConnections();
+					return;
+				}
+				if(timedOut) {
+					displayObject.println(otherUser.getName() + " stopped responding.  You have been disconnected...");
+				} else {
+					displayObject.println("You have been disconnected...");
+				}
+				log.info("Connection with {} has ended", otherUser.getName());
 				clearConnections();
 				return;
 			}
 			
-			if(cpm.evaluateText(rxData) == CommandType.EXIT) {
+			if(handleHeartbeat(rxData)) {
+				continue;
+			}
+			
+			if(cpm.evaluateFrame(rxData) == CommandType.EXIT) {
+				//The peer echoed our exit, so nothing else is coming and the connection can be kept.
+				synchronized(this) {
+					if(leaving) {
+						park();
+						return;
+					}
+				}
+				
+				if(isPoolingAgreed()) {
+					try {
+						//Let the peer know nothing else is coming from us either.
+						outbound.close(OUTBOUND_DRAIN_TIMEOUT);
+						sBundle.writeFrame(cpm.createCommandFrame(CommandType.EXIT), true);
+						park();
+					} catch(IOException e) {
+						clearConnections();
+					}
+					
+					displayObject.println(otherUser.getName() + " has left...");
+					log.info("Connection with {} has ended", otherUser.getName());
+					return;
+				}
+				
 				clearConnections();
 				
 				displayObject.println(otherUser.getName() + " has left...");
-				MLog.fileLog.log("Connection with " + otherUser.getName() + " has ended");
+				log.info("Connection with {} has ended", otherUser.getName());
 				return;
 			}
 			
-			displayObject.println(otherUser.getName() + ": " + rxData);
+			//Anything else that isn't chat text isn't meant for the display, and
+			//nothing is displayed once we've left.
+			if(rxData.getType() != FrameType.TEXT || leaving) {
+				continue;
+			}
+			
+			displayObject.printMessage(otherUser.getName() + ": " + rxData.getText(), record(false, rxData.getText()));
 		}
 	}
 	
-	protected void parseOtherUserData(String data) {
-		int count = 0;
-		String username = null;
-		String uid = null;
+	//Counted once, whether the session ends by closing or by being parked.
+	private void sessionEnded() {
+		HeartbeatMonitor.Heartbeat h = heartbeat;
+		if(h != null) {
+			h.cancel();
+		}
 		
-		//Grab the display name.
-		while(true) {
-			if(data.charAt(count) != ',') {
-				if(username == null)
-					username = String.valueOf(data.charAt(count));
-				else
-					username = username + String.valueOf(data.charAt(count));
+		if(counted.compareAndSet(true, false)) {
+			Metrics.getDefault().sessionClosed();
+		}
+	}
+	
+	/**
+	 * Answers a ping from the peer.  Returns true if the frame was a heartbeat, which only
+	 * shows the peer is still there, so there is nothing else to do with it.
+	 * @param frame
+	 * @return
+	 */
+	protected boolean handleHeartbeat(Frame frame) {
+		if(frame.getType() == FrameType.PING) {
+			if(outbound != null) {
+				outbound.trySend(Frame.pong());
+			}
+			return true;
+		}
+		
+		return frame.getType() == FrameType.PONG;
+	}
+	
+	//Run by the heartbeat monitor once the peer has been quiet for too long.  Closing the
+	//socket wakes up the receive loop, which cleans up everything else.
+	private void reap() {
+		timedOut = true;
+		log.info("{} stopped responding.  Closing the connection.", otherUser.getName());
+		
+		Socket socket = sBundle.getSocket();
+		if(connectionMan != null) {
+			connectionMan.closeSocket(socket);
+		}
+		
+		try {
+			socket.close();
+		} catch(IOException e) {
+		}
+	}
+	
+	/**
+	 * Swaps user info with the peer, then sets up encryption if both sides asked for it.
+	 * Whoever started the connection sends first.  How long it took is recorded in
+	 * {@link Metrics}.
+	 * @param initiating true if we started the connection.
+	 * @throws IOException
+	 */
+	protected void swapUserData(boolean initiating) throws IOException {
+		long start = System.nanoTime();
+		
+		try {
+			if(initiating) {
+				writeOwnUserData();
+				readOtherUserData();
 			} else {
-				break;
+				readOtherUserData();
+				writeOwnUserData();
 			}
-			count++;
 			
+			negotiateEncryption();
+		} catch(IOException e) {
+			Metrics.getDefault().handshakeFailed();
+			throw e;
 		}
 		
-		//Advance the counter past the comma.
-		count++;
+		Metrics.getDefault().handshakeCompleted(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Sends the info about ourselves that the peer needs to identify us, along with the
+	 * compression codecs we can handle, and whether we want the session encrypted.
+	 * @throws IOException
+	 */
+	protected void writeOwnUserData() throws IOException {
+		sBundle.writeFrame(Frame.handshake(thisUser.getName() + "," + thisUser.getUID(), getHandshakeFlags()), true);
+	}
+	
+	/**
+	 * Receives the info about the other user, and fills in {@link #otherUser} with it.
+	 * Compression is turned on if both sides offered a codec in common.
+	 * @throws IOException if the handshake can't be read, or is missing the name or the UID.
+	 */
+	protected void readOtherUserData() throws IOException {
+		Frame handshake = sBundle.readFrame();
+		parseOtherUserData(handshake.getText());
+		otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
+		peerHandshakeFlags = handshake.getFlags();
 		
-		///Grab the UID
-		while(true) {
-			//We'll read to the end of the line
-			if(count < (data.length())) {
-				if(uid == null)
-					uid = String.valueOf(data.charAt(count));
-				else
-					uid = uid + String.valueOf(data.charAt(count));
-				
-			} else {
-				break;
+		sBundle.setCompression(CompressionCodec.negotiate(getHandshakeFlags(), peerHandshakeFlags), compressionThreshold);
+	}
+	
+	/**
+	 * Exchanges keys and encrypts the session, if both sides asked for it in the handshake.
+	 * Both sides call this right after the user info has been swapped.
+	 * @throws IOException if the key exchange fails.
+	 */
+	protected void negotiateEncryption() throws IOException {
+		//A pooled connection keeps the keys it was set up with.
+		if(sBundle.isReused()) {
+			return;
+		}
+		
+		if((getHandshakeFlags() & Frame.FLAG_ENCRYPTION) == 0 || (peerHandshakeFlags & Frame.FLAG_ENCRYPTION) == 0) {
+			return;
+		}
+		
+		try {
+			new EncryptionModule().negotiate(sBundle);
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Could not set up encryption.", e);
+		}
+	}
+	
+	/**
+	 * Returns true if the current session is encrypted.
+	 * @return
+	 */
+	public boolean isEncrypted() {
+		return sBundle != null && sBundle.isEncrypted();
+	}
+	
+	//Only framed sessions can carry compressed or encrypted data.
+	private int getHandshakeFlags() {
+		if(!sBundle.isFramed()) {
+			return 0;
+		}
+		
+		int flags = 0;
+		
+		if(compressionEnabled) {
+			flags |= CompressionCodec.supportedFlags();
+		}
+		
+		if(connectionMan != null && connectionMan.isEncryptionEnabled() && EncryptionModule.isAvailable()) {
+			flags |= Frame.FLAG_ENCRYPTION;
+		}
+		
+		if(HeartbeatMonitor.getDefault().isHeartbeatEnabled()) {
+			flags |= Frame.FLAG_HEARTBEAT;
+		}
+		
+		if(connectionMan != null && connectionMan.getPool().isEnabled()) {
+			flags |= Frame.FLAG_POOLING;
+			
+			if(preconnecting) {
+				flags |= Frame.FLAG_PRECONNECT;
+			}
+		}
+		
+		return flags;
+	}
+	
+	/**
+	 * Returns true if both sides offered to answer pings.
+	 * @return
+	 */
+	protected boolean isHeartbeatAgreed() {
+		return sBundle != null && (getHandshakeFlags() & Frame.FLAG_HEARTBEAT) != 0 && (peerHandshakeFlags & Frame.FLAG_HEARTBEAT) != 0;
+	}
+	
+	/**
+	 * Returns true if both sides offered to keep the connection in a pool once the chat ends.
+	 * @return
+	 */
+	protected boolean isPoolingAgreed() {
+		return sBundle != null && (getHandshakeFlags() & Frame.FLAG_POOLING) != 0 && (peerHandshakeFlags & Frame.FLAG_POOLING) != 0;
+	}
+	
+	//Hands the connection to the pool.  Nothing else reads from it after this.
+	private void park() {
+		sessionEnded();
+		leaving = false;
+		parked = true;
+		
+		if(outbound != null) {
+			outbound.close(OUTBOUND_DRAIN_TIMEOUT);
+		}
+		
+		connectionMan.getPool().park(otherUser.getUID(), otherUser.getName(), peerHandshakeFlags, sBundle);
+		mState.setMessagingState(MessagingState.NOT_MESSAGING);
+	}
+	
+	/**
+	 * Starts a chat over an idle pooled connection to the contact at this address, if there is
+	 * one.  Our handshake is sent so the peer knows who it is, but the peer's is already known
+	 * from when the connection was set up, so nothing is waited on.
+	 * @param address
+	 * @return true if a pooled connection is being used.
+	 */
+	protected boolean resumePooledSession(InetAddress address) {
+		if(connectionMan == null || !connectionMan.getPool().isEnabled()) {
+			return false;
+		}
+		
+		Contact contact = cMan.getContactByIP(address);
+		if(contact == null) {
+			return false;
+		}
+		
+		PooledSession pooled = connectionMan.getPool().checkout(contact.getUID());
+		if(pooled == null) {
+			return false;
+		}
+		
+		sBundle = pooled.getBundle();
+		otherUser.setName(pooled.getName());
+		otherUser.setUID(pooled.getUID());
+		otherUser.setIPAddress(address);
+		peerHandshakeFlags = pooled.getPeerFlags();
+		
+		try {
+			writeOwnUserData();
+		} catch(IOException e) {
+			//It went bad while idle.  Start over with a new connection.
+			connectionMan.closeSocket(sBundle.getSocket());
+			sBundle = null;
+			return false;
+		}
+		
+		receiveReady = pooled.getReleased();
+		log.info("Reusing pooled connection with {}", otherUser.getName());
+		return true;
+	}
+	
+	/**
+	 * Opens a session with the contact at this address ahead of time, and parks it in the pool
+	 * without starting a chat, so the first chat with them starts right away.  Only works with
+	 * framed single port sessions, and only if the peer pools connections as well.
+	 * @param address
+	 * @return true if the connection was pooled.
+	 */
+	public boolean preconnect(InetAddress address) {
+		if(!connectionMan.getPool().isEnabled() || !connectionMan.isSinglePortMode() || !connectionMan.isFramedSessions()) {
+			return false;
+		}
+		
+		preconnecting = true;
+		
+		try {
+			sBundle = connectionMan.initSessionNegotiation(address);
+			if(sBundle == null) {
+				return false;
+			}
+			
+			swapUserData(true);
+		} catch(IOException e) {
+			log.warn("Could not pre-connect to {}", address);
+			clearConnections();
+			return false;
+		} finally {
+			preconnecting = false;
+		}
+		
+		if(!isPoolingAgreed()) {
+			clearConnections();
+			return false;
+		}
+		
+		park();
+		log.info("Pre-connected to {}", otherUser.getName());
+		return true;
+	}
+	
+	/**
+	 * Pre-connects to each of the named contacts in the background.  See {@link #preconnect(InetAddress)}.
+	 * @param connectionMan
+	 * @param cMan
+	 * @param names a comma separated list of contact names.
+	 */
+	public static void preconnectAll(ConnectionManager connectionMan, ContactManager cMan, String names) {
+		if(names == null || names.isEmpty() || !connectionMan.getPool().isEnabled()) {
+			return;
+		}
+		
+		for(String name : names.split(",")) {
+			Contact contact = cMan.getContactByName(name.trim());
+			if(contact == null || contact.getIPAddress() == null) {
+				continue;
 			}
-			count++;
 			
+			SessionExecutor.getDefault().execute(() -> {
+				new MessagingControlModule(null, null, null, connectionMan, cMan).preconnect(contact.getIPAddress());
+			});
+		}
+	}
+	
+	//If the peer only connected to pre-connect, parks the connection, or drops it if we don't
+	//pool, so waiting can carry on.  Returns true if that happened.
+	private boolean handlePreconnect() {
+		if(sBundle == null || (peerHandshakeFlags & Frame.FLAG_PRECONNECT) == 0) {
+			return false;
+		}
+		
+		if(isPoolingAgreed()) {
+			park();
+		} else {
+			clearConnections();
+		}
+		
+		//Start fresh for the next session.
+		parked = false;
+		otherUser = new Contact();
+		peerHandshakeFlags = 0;
+		return true;
+	}
+	
+	//Splits the peer's "name,uid" handshake text at the first comma.  Both have to be there,
+	//since contacts are looked up by each of them.
+	protected void parseOtherUserData(String data) throws IOException {
+		int comma = data.indexOf(',');
+		
+		if(comma <= 0 || comma == data.length() - 1) {
+			throw new IOException("Malformed handshake received: " + data);
 		}
 		
-		otherUser.setName(username);
-		otherUser.setUID(uid);
+		otherUser.setName(data.substring(0, comma));
+		otherUser.setUID(data.substring(comma + 1));
 	}
 }
@@ -0,0 +1,178 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.control.logic;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.MessagingState;
+
+/**
+ * Keeps track of the chats going on at the same time in hub mode, one per contact.  Chats
+ * are keyed by the contact's UID, or by name for peers that didn't send one.  Chats that
+ * have ended are dropped the next time the registry is looked at, so nothing has to tell
+ * the registry when a peer leaves.
+ * @author Noah
+ *
+ */
+public class SessionRegistry {
+	
+	private final ConcurrentHashMap<String, MessagingControlModule> sessions;
+	
+	public SessionRegistry() {
+		sessions = new ConcurrentHashMap<String, MessagingControlModule>();
+	}
+	
+	/**
+	 * Adds a chat that has been started.  If there was already a chat with the same contact,
+	 * it is replaced and its connection is closed.
+	 * @param session
+	 * @return the chat that was replaced, or null.
+	 */
+	public MessagingControlModule register(MessagingControlModule session) {
+		MessagingControlModule previous = sessions.put(keyOf(session.getConnectedContact()), session);
+		
+		if(previous != null && previous != session) {
+			previous.clearConnections();
+		}
+		
+		return previous;
+	}
+	
+	/**
+	 * Removes a chat, if it is still the one kept for its contact.
+	 * @param session
+	 * @return true if it was removed.
+	 */
+	public boolean unregister(MessagingControlModule session) {
+		return sessions.remove(keyOf(session.getConnectedContact()), session);
+	}
+	
+	/**
+	 * Returns the chat with the contact that has this UID, or null.
+	 * @param uid
+	 * @return
+	 */
+	public MessagingControlModule get(String uid) {
+		MessagingControlModule session = sessions.get(uid);
+		
+		if(session != null && !isActive(session)) {
+			sessions.remove(uid, session);
+			return null;
+		}
+		
+		return session;
+	}
+	
+	/**
+	 * Finds a chat from what the user typed.  That can be its number in {@link #getSessions()},
+	 * or the contact's name, ignoring case.
+	 * @param selection
+	 * @return the chat, or null if nothing matched.
+	 */
+	public MessagingControlModule find(String selection) {
+		ArrayList<MessagingControlModule> current = getSessions();
+		
+		try {
+			int index = Integer.parseInt(selection);
+			
+			if(index >= 0 && index < current.size()) {
+				return current.get(index);
+			}
+		} catch(NumberFormatException e) {
+			//Not a number.  Try it as a name.
+		}
+		
+		for(MessagingControlModule session : current) {
+			if(selection.equalsIgnoreCase(session.getConnectedContact().getName())) {
+				return session;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the chats that are still going, sorted by contact name, so their numbers
+	 * only change when a chat starts or ends.
+	 * @return
+	 */
+	public ArrayList<MessagingControlModule> getSessions() {
+		prune();
+		
+		ArrayList<MessagingControlModule> current = new ArrayList<MessagingControlModule>(sessions.values());
+		current.sort((a, b) -> String.valueOf(a.getConnectedContact().getName()).compareToIgnoreCase(String.valueOf(b.getConnectedContact().getName())));
+		return current;
+	}
+	
+	/**
+	 * Returns how many chats are still going.
+	 * @return
+	 */
+	public int size() {
+		prune();
+		return sessions.size();
+	}
+	
+	/**
+	 * Leaves every chat.  The peers are told we left.
+	 */
+	public void closeAll() {
+		for(MessagingControlModule session : getSessions()) {
+			session.sendData("cmd-exit");
+		}
+		
+		sessions.clear();
+	}
+	
+	private void prune() {
+		sessions.values().removeIf((session) -> !isActive(session));
+	}
+	
+	private static boolean isActive(MessagingControlModule session) {
+		return session.getMessagingState() == MessagingState.CURRENTLY_MESSAGING;
+	}
+	
+	private static String keyOf(Contact contact) {
+		if(contact.getUID() != null) {
+			return contact.getUID();
+		}
+		
+		return String.valueOf(contact.getName());
+	}
+}
@@ -78,6 +78,13 @@ public class SettingsModule {
 		menu.addMenuItem("Change control port");
 		menu.addMenuItem("Change data port");
 		menu.addMenuItem("Randomize data port");
+		menu.addMenuItem("Enable/disable single port sessions");
+		menu.addMenuItem("Platform/virtual threads");
+		menu.addMenuItem("Enable/disable encryption");
+		menu.addMenuItem("Enable/disable connection pooling");
+		menu.addMenuItem("Change favorite contacts");
+		menu.addMenuItem("Enable/disable hub mode");
+		menu.addMenuItem("Change idle timeout");
 		menu.addMenuItem("Delete Contact");
 		menu.addMenuItem("About");
 		menu.addMenuItem("Go back");
@@ -105,28 +112,39 @@ public class SettingsModule {
 			settings.thisUser.setUID(bReader.readLine());
 			
 			//Dynamic UID update
-			boolean dUIDUpdate;
-			String uidup = bReader.readLine();
-			if(uidup.matches("true")) {
-				dUIDUpdate = true;
-			} else {
-				dUIDUpdate = false;
-			}
-			settings.dynamicUIDUpdates = dUIDUpdate;
+			settings.dynamicUIDUpdates = parseFlag(bReader.readLine(), false);
 			
 			//Port info
 			settings.controlPort = Integer.parseInt(bReader.readLine());
 			settings.dataPort = Integer.parseInt(bReader.readLine());
 			
 			//Random Data Ports
-			String randomDataPorts = bReader.readLine();
-			boolean randDP;
-			if(randomDataPorts.matches("true")) {
-				randDP = true;
-			} else {
-				randDP = false;
+			settings.randomDataPorts = parseFlag(bReader.readLine(), false);
+			
+			//Single port sessions.  Older settings files won't have this, so we keep the default.
+			settings.singlePortSessions = parseFlag(bReader.readLine(), settings.singlePortSessions);
+			
+			//Virtual threads.  Older settings files won't have this either.
+			settings.virtualThreads = parseFlag(bReader.readLine(), settings.virtualThreads);
+			
+			//Encryption.  Older settings files won't have this either.
+			settings.encryption = parseFlag(bReader.readLine(), settings.encryption);
+			
+			//Connection pooling and favorites.  Older settings files won't have these either.
+			settings.connectionPooling = parseFlag(bReader.readLine(), settings.connectionPooling);
+			String favorites = bReader.readLine();
+			if(favorites != null) {
+				settings.favorites = favorites;
+			}
+			
+			//Hub mode.  Older settings files won't have this either.
+			settings.hubMode = parseFlag(bReader.readLine(), settings.hubMode);
+			
+			//Idle timeout.  Older settings files won't have this either.
+			String idle = bReader.readLine();
+			if(idle != null) {
+				settings.idleTimeout = Integer.parseInt(idle);
 			}
-			settings.randomDataPorts = randDP;
 			
 			//Close readers
 			bReader.close();
@@ -146,6 +164,13 @@ public class SettingsModule {
 			configForFirstRun();
 	}
 	
+	//Reads a true/false line.  A missing line (null) keeps the default.
+	private static boolean parseFlag(String line, boolean defaultValue) {
+		if(line == null)
+			return defaultValue;
+		return line.equals("true");
+	}
+	
 	/**
 	 * Writes whatever settings are configured in our {@link Settings} object to the cfg file.
 	 */
@@ -178,6 +203,51 @@ public class SettingsModule {
 				bWriter.write("false");
 			}
 			
+			bWriter.newLine();
+			
+			if(settings.singlePortSessions == true) {
+				bWriter.write("true");
+			} else {
+				bWriter.write("false");
+			}
+			
+			bWriter.newLine();
+			
+			if(settings.virtualThreads == true) {
+				bWriter.write("true");
+			} else {
+				bWriter.write("false");
+			}
+			
+			bWriter.newLine();
+			
+			if(settings.encryption == true) {
+				bWriter.write("true");
+			} else {
+				bWriter.write("false");
+			}
+			
+			bWriter.newLine();
+			
+			if(settings.connectionPooling == true) {
+				bWriter.write("true");
+			} else {
+				bWriter.write("false");
+			}
+			
+			bWriter.newLine();
+			bWriter.write(settings.favorites);
+			bWriter.newLine();
+			
+			if(settings.hubMode == true) {
+				bWriter.write("true");
+			} else {
+				bWriter.write("false");
+			}
+			
+			bWriter.newLine();
+			bWriter.write(String.valueOf(settings.idleTimeout));
+			
 			bWriter.flush();
 			bWriter.close();
 			fWriter.close();
@@ -325,8 +395,205 @@ public class SettingsModule {
 			
 			break;
 			
-		//Remove Contact
+		//Enable/disable single port sessions
 		case 5:
+			display.clear();
+			display.setBanner("Single port sessions");
+			display.addLine("Keeps chat sessions on the control port instead of handing them off to a data port.");
+			display.addLine("Peers that do not support this are still handed off to a data port.");
+			display.addLine("The default setting is true.  It is currently set to " + settings.singlePortSessions + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.addLine("0. True");
+			display.addLine("1. False");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int sps = 0;
+			
+			try {
+				sps = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(sps == 0) {
+				settings.singlePortSessions = true;
+			} else if(sps == 1) {
+				settings.singlePortSessions = false;
+			}
+			
+			break;
+			
+		//Platform/virtual threads
+		case 6:
+			display.clear();
+			display.setBanner("Platform/virtual threads");
+			display.addLine("Determines whether chat sessions are run on platform threads or virtual threads.");
+			display.addLine("Virtual threads use far less memory per chat, but need Java 21 or later.");
+			display.addLine("The default setting is platform.  It is currently set to " + (settings.virtualThreads ? "virtual" : "platform") + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.addLine("0. Platform");
+			display.addLine("1. Virtual");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int threads = 0;
+			
+			try {
+				threads = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(threads == 0) {
+				settings.virtualThreads = false;
+			} else if(threads == 1) {
+				settings.virtualThreads = true;
+			}
+			
+			break;
+			
+		//Enable/disable encryption
+		case 7:
+			display.clear();
+			display.setBanner("Encryption");
+			display.addLine("Encrypts chat sessions with a key that is agreed on when the session starts.");
+			display.addLine("A session is only encrypted if the other side has encryption enabled as well.");
+			display.addLine("The default setting is false.  It is currently set to " + settings.encryption + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.addLine("0. True");
+			display.addLine("1. False");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int enc = 0;
+			
+			try {
+				enc = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(enc == 0) {
+				settings.encryption = true;
+			} else if(enc == 1) {
+				settings.encryption = false;
+			}
+			
+			break;
+			
+		//Enable/disable connection pooling
+		case 8:
+			display.clear();
+			display.setBanner("Connection Pooling");
+			display.addLine("Keeps the connection of a finished chat open, so the next chat with the same contact starts right away.");
+			display.addLine("Only used with single port sessions, and if the other side has pooling enabled as well.");
+			display.addLine("The default setting is true.  It is currently set to " + settings.connectionPooling + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.addLine("0. True");
+			display.addLine("1. False");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int pool = 0;
+			
+			try {
+				pool = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(pool == 0) {
+				settings.connectionPooling = true;
+			} else if(pool == 1) {
+				settings.connectionPooling = false;
+			}
+			
+			break;
+			
+		//Change favorite contacts
+		case 9:
+			display.clear();
+			display.setBanner("Favorite Contacts");
+			display.addLine("Favorites are connected to when the program starts, so chatting with them starts right away.");
+			display.addLine("Needs connection pooling.  Separate names with commas, or leave blank for none.");
+			display.addLine("They are currently: " + settings.favorites);
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			settings.favorites = console.getInputString().trim();
+			
+			break;
+			
+		//Enable/disable hub mode
+		case 10:
+			display.clear();
+			display.setBanner("Hub Mode");
+			display.addLine("Holds many chats at once in the console, and keeps accepting new ones while others are going.");
+			display.addLine("Type cmd-help while in hub mode to see how to switch between chats.");
+			display.addLine("The default setting is false.  It is currently set to " + settings.hubMode + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.addLine("0. True");
+			display.addLine("1. False");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int hub = 0;
+			
+			try {
+				hub = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(hub == 0) {
+				settings.hubMode = true;
+			} else if(hub == 1) {
+				settings.hubMode = false;
+			}
+			
+			break;
+			
+		//Change the idle timeout
+		case 11:
+			display.clear();
+			display.setBanner("Idle Timeout");
+			display.addLine("Closes a chat after this many seconds without hearing from the other side.");
+			display.addLine("Only used for peers that can't answer heartbeats.  Others are closed once they stop answering.");
+			display.addLine("Use 0 to never close them.  It is currently set to " + settings.idleTimeout + ".");
+			display.addLine("Change requires program restart.");
+			display.addLine("");
+			display.display();
+			System.out.print("> ");
+			
+			int idle = 0;
+			
+			try {
+				idle = console.getInputInt();
+			} catch(Exception e) {
+				return;
+			}
+			
+			if(idle >= 0) {
+				settings.idleTimeout = idle;
+			}
+			
+			break;
+			
+		//Remove Contact
+		case 12:
 			display.clear();
 			System.out.println("Delete Contact\n");
 			for(int i = 0; i<cm.getNumContacts(); i++) {
@@ -350,7 +617,7 @@ public class SettingsModule {
 			break;
 			
 		//About Information
-		case 6:
+		case 13:
 			display.clear();
 			display.setBanner(AppInfo.getAboutInfoString());
 			display.addLine("Press enter to continue...");
@@ -358,7 +625,7 @@ public class SettingsModule {
 			console.getInputString();
 			
 		//Go back to the main menu
-		case 7:
+		case 14:
 			break;
 		}
 		
@@ -33,26 +33,133 @@
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
  * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package mtools.apps.litemessage.core;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import mtools.apps.litemessage.core.networking.CipherSuite;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.RecordCipher;
+import mtools.apps.litemessage.core.networking.StreamBundle;
 
 /**
- * For future use and implementation for secure text data in transit.
+ * Encrypts a session.  Each side makes a new X25519 key pair for the session, and sends its
+ * public key in a {@link FrameType#KEY_EXCHANGE} frame, along with the {@link CipherSuite}s
+ * it can handle.  Both sides then agree on the same secret, and derive a separate key for
+ * each direction from it with HKDF-SHA256.  From then on the {@link StreamBundle} sends and
+ * receives everything as authenticated records.
+ * 
+ * The keys are not tied to any identity, so this keeps out anyone just listening in, but
+ * not somebody who can get in the middle of the connection.
  * @author Noah
  *
  */
 public class EncryptionModule {
 	
-	public EncryptionModule() {
+	private static final byte[] SALT = "litemessage-x25519".getBytes(StandardCharsets.UTF_8);
+	
+	private KeyPair keyPair;
+	private CipherSuite suite;
+	
+	/**
+	 * Makes a new key pair for one session.
+	 * @throws GeneralSecurityException if the JDK doesn't provide X25519.
+	 */
+	public EncryptionModule() throws GeneralSecurityException {
+		keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+	}
+	
+	/**
+	 * Swaps public keys with the peer over the bundle, and starts encrypting it.  Both sides
+	 * call this at the same point in the session.  Nothing else can be using the bundle
+	 * until it returns.
+	 * @param bundle a framed bundle.
+	 * @throws IOException if the exchange fails, or there is no suite in common.
+	 */
+	public void negotiate(StreamBundle bundle) throws IOException {
+		int ourSuites = CipherSuite.supportedFlags();
+		bundle.writeFrame(new Frame(FrameType.KEY_EXCHANGE, ourSuites, keyPair.getPublic().getEncoded()), true);
+		
+		Frame theirs;
+		while(true) {
+			theirs = bundle.readFrame();
+			
+			if(theirs.getType() == FrameType.KEY_EXCHANGE) {
+				break;
+			}
+		}
+		
+		suite = CipherSuite.negotiate(ourSuites, theirs.getFlags());
+		
+		if(suite == null) {
+			throw new IOException("No cipher suite in common with the peer.");
+		}
+		
+		try {
+			PublicKey theirKey = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(theirs.getPayload()));
+			
+			KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+			agreement.init(keyPair.getPrivate());
+			agreement.doPhase(theirKey, true);
+			byte[] secret = agreement.generateSecret();
+			
+			//Each direction is keyed by the public key of the side sending it.
+			byte[] prk = hmac(SALT, secret);
+			byte[] sendKey = hmac(prk, info(keyPair.getPublic().getEncoded()));
+			byte[] receiveKey = hmac(prk, info(theirs.getPayload()));
+			
+			bundle.startEncryption(new RecordCipher(suite, sendKey, true), new RecordCipher(suite, receiveKey, false));
+		} catch(GeneralSecurityException | IllegalArgumentException e) {
+			throw new IOException("Could not agree on a key with the peer.", e);
+		}
+	}
+	
+	/**
+	 * Returns the suite agreed on, or null if keys haven't been exchanged yet.
+	 * @return
+	 */
+	public CipherSuite getSuite() {
+		return suite;
+	}
 	
+	/**
+	 * Returns true if the running JDK can encrypt sessions.
+	 * @return
+	 */
+	public static boolean isAvailable() {
+		try {
+			KeyAgreement.getInstance("X25519");
+			return CipherSuite.supportedFlags() != 0;
+		} catch(GeneralSecurityException e) {
+			return false;
+		}
 	}
 	
-	public String encryptText(String clearText) {
-		return clearText;
+	//The HKDF expand info for one direction: the suite, the sender's key, and a counter of 1.
+	private byte[] info(byte[] senderKey) {
+		byte[] name = suite.name().getBytes(StandardCharsets.UTF_8);
+		byte[] info = new byte[name.length + senderKey.length + 1];
+		System.arraycopy(name, 0, info, 0, name.length);
+		System.arraycopy(senderKey, 0, info, name.length, senderKey.length);
+		info[info.length - 1] = 1;
+		return info;
 	}
 	
-	public String decryptText(String cipherText) {
-		return cipherText;
+	private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data);
 	}
 }
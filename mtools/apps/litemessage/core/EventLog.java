@@ -0,0 +1,482 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import mtools.logging.MLog;
+
+/**
+ * Writes log lines from a background thread, so that logging never holds up a handshake or
+ * the receive loop.  A line is given as a template with "{}" in place of each argument, such
+ * as {@code log.info("Connected with {}", name)}.  The template and arguments are put in a
+ * fixed ring of slots, and only turned into text by the writer, so a line below the log's
+ * level costs nothing, and one that is kept costs no more than claiming a slot.  There are
+ * overloads for up to three arguments, so no array is made for them.
+ * 
+ * The writer takes lines in batches of up to {@link #BATCH_SIZE}.  A log made with a file
+ * appends each batch to it in a single write.  Otherwise the lines are handed to
+ * {@link MLog#fileLog}, so they end up where they always have.
+ * 
+ * If the ring is full, because lines are being logged faster than they can be written,
+ * new lines are dropped and counted rather than waited on.  See {@link #getDropped()}.
+ * @author Noah
+ *
+ */
+public class EventLog {
+	
+	/**
+	 * The number of lines that can be waiting to be written by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+	
+	/**
+	 * The most lines written at once.
+	 */
+	public static final int BATCH_SIZE = 256;
+	
+	//How long the writer sleeps when there's nothing to write.  Lines logged in the
+	//meantime wait at most this long, unless the ring starts filling up.
+	private static final long IDLE_NANOS = 50_000_000;
+	
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+	
+	private static EventLog defaultLog = new EventLog(null, DEFAULT_CAPACITY);
+	
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong claimed;
+	private volatile long consumed;
+	private final LongAdder dropped;
+	private final AtomicLong written;
+	private final File file;
+	private BufferedWriter out;
+	private long stampTime;
+	private String stamp;
+	private volatile LogLevel level;
+	private volatile boolean closed;
+	private volatile boolean sleeping;
+	private final Thread writer;
+	
+	/**
+	 * Starts a log.
+	 * @param logFile the file to append to, or null to hand lines to {@link MLog#fileLog}.
+	 * @param capacity how many lines can be waiting.  Rounded up to a power of two.
+	 */
+	public EventLog(File logFile, int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new Slot[size];
+		for(int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		
+		mask = size - 1;
+		claimed = new AtomicLong();
+		consumed = 0;
+		dropped = new LongAdder();
+		written = new AtomicLong();
+		file = logFile;
+		level = LogLevel.INFO;
+		closed = false;
+		
+		writer = new Thread(this::writeLoop, "LiteMessage log");
+		writer.setDaemon(true);
+		writer.start();
+		
+		//The app exits through System.exit(), so make sure the last lines get written.
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "LiteMessage log shutdown"));
+	}
+	
+	/**
+	 * Returns the log used by anything that wasn't given one explicitly.
+	 * @return
+	 */
+	public static EventLog getDefault() {
+		return defaultLog;
+	}
+	
+	/**
+	 * Changes the log used by anything that wasn't given one explicitly.  This should be set
+	 * at startup, before any sessions are created.  The old log is not closed.
+	 * @param log
+	 */
+	public static void setDefault(EventLog log) {
+		defaultLog = log;
+	}
+	
+	/**
+	 * Only lines at or above this level are kept.  Defaults to {@link LogLevel#INFO}.
+	 * @param l
+	 */
+	public void setLevel(LogLevel l) {
+		level = l;
+	}
+	
+	public LogLevel getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Returns true if lines at this level are kept.  Worth checking before working out an
+	 * argument that is expensive to get.
+	 * @param l
+	 * @return
+	 */
+	public boolean isEnabled(LogLevel l) {
+		return l != LogLevel.OFF && l.compareTo(level) >= 0;
+	}
+	
+	public void debug(String template) {
+		log(LogLevel.DEBUG, template, null, null, null, 0);
+	}
+	
+	public void debug(String template, Object a) {
+		log(LogLevel.DEBUG, template, a, null, null, 1);
+	}
+	
+	public void debug(String template, Object a, Object b) {
+		log(LogLevel.DEBUG, template, a, b, null, 2);
+	}
+	
+	public void debug(String template, Object a, Object b, Object c) {
+		log(LogLevel.DEBUG, template, a, b, c, 3);
+	}
+	
+	public void info(String template) {
+		log(LogLevel.INFO, template, null, null, null, 0);
+	}
+	
+	public void info(String template, Object a) {
+		log(LogLevel.INFO, template, a, null, null, 1);
+	}
+	
+	public void info(String template, Object a, Object b) {
+		log(LogLevel.INFO, template, a, b, null, 2);
+	}
+	
+	public void info(String template, Object a, Object b, Object c) {
+		log(LogLevel.INFO, template, a, b, c, 3);
+	}
+	
+	public void warn(String template) {
+		log(LogLevel.WARN, template, null, null, null, 0);
+	}
+	
+	public void warn(String template, Object a) {
+		log(LogLevel.WARN, template, a, null, null, 1);
+	}
+	
+	public void warn(String template, Object a, Object b) {
+		log(LogLevel.WARN, template, a, b, null, 2);
+	}
+	
+	public void warn(String template, Object a, Object b, Object c) {
+		log(LogLevel.WARN, template, a, b, c, 3);
+	}
+	
+	public void error(String template) {
+		log(LogLevel.ERROR, template, null, null, null, 0);
+	}
+	
+	public void error(String template, Object a) {
+		log(LogLevel.ERROR, template, a, null, null, 1);
+	}
+	
+	public void error(String template, Object a, Object b) {
+		log(LogLevel.ERROR, template, a, b, null, 2);
+	}
+	
+	public void error(String template, Object a, Object b, Object c) {
+		log(LogLevel.ERROR, template, a, b, c, 3);
+	}
+	
+	/**
+	 * Returns how many lines were thrown away because the ring was full, or the log was closed.
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	/**
+	 * Returns how many lines have been written.
+	 * @return
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+	
+	/**
+	 * Returns how many lines are waiting to be written.
+	 * @return
+	 */
+	public int getPending() {
+		return (int) (claimed.get() - consumed);
+	}
+	
+	/**
+	 * Writes everything that is waiting, and stops the writer.  Anything logged afterwards
+	 * is dropped.
+	 */
+	public void close() {
+		if(closed) {
+			return;
+		}
+		
+		closed = true;
+		LockSupport.unpark(writer);
+		
+		try {
+			writer.join(5000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Claims the next slot, unless the ring is full.  The writer only takes a slot once
+	//its published sequence is set, which is done last.
+	private void log(LogLevel l, String template, Object a, Object b, Object c, int argCount) {
+		if(l.compareTo(level) < 0 || closed) {
+			return;
+		}
+		
+		long seq;
+		do {
+			seq = claimed.get();
+			
+			if(seq - consumed >= slots.length) {
+				dropped.increment();
+				wakeWriter();
+				return;
+			}
+		} while(!claimed.compareAndSet(seq, seq + 1));
+		
+		Slot slot = slots[(int) (seq & mask)];
+		slot.level = l;
+		slot.time = System.currentTimeMillis();
+		slot.template = template;
+		slot.a = a;
+		slot.b = b;
+		slot.c = c;
+		slot.argCount = argCount;
+		slot.published = seq;
+		
+		//Errors go out right away, and so does a ring that is filling up.
+		if(l == LogLevel.ERROR || seq - consumed >= slots.length / 2) {
+			wakeWriter();
+		}
+	}
+	
+	private void wakeWriter() {
+		if(sleeping) {
+			sleeping = false;
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	private void writeLoop() {
+		StringBuilder line = new StringBuilder(128);
+		int batched = 0;
+		
+		while(true) {
+			long seq = consumed;
+			Slot slot = slots[(int) (seq & mask)];
+			
+			if(slot.published != seq) {
+				if(batched > 0) {
+					endBatch();
+					batched = 0;
+				}
+				
+				//Stop once everything claimed before closing has been written.
+				if(closed && claimed.get() == seq) {
+					closeFile();
+					return;
+				}
+				
+				sleeping = true;
+				
+				//Anything published since the check above would otherwise wait out the sleep.
+				if(slot.published != seq && !closed) {
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+				
+				sleeping = false;
+				continue;
+			}
+			
+			line.setLength(0);
+			format(slot, line);
+			slot.clear();
+			consumed = seq + 1;
+			
+			write(line);
+			written.incrementAndGet();
+			
+			if(++batched >= BATCH_SIZE) {
+				endBatch();
+				batched = 0;
+			}
+		}
+	}
+	
+	private void format(Slot slot, StringBuilder line) {
+		if(file != null) {
+			//Lines tend to come in bursts, so the time is only formatted when it changes.
+			if(stamp == null || slot.time != stampTime) {
+				stampTime = slot.time;
+				stamp = TIME_FORMAT.format(Instant.ofEpochMilli(slot.time));
+			}
+			
+			line.append(stamp).append(' ');
+		}
+		
+		line.append(slot.level.name());
+		for(int i = slot.level.name().length(); i < 6; i++) {
+			line.append(' ');
+		}
+		
+		String template = slot.template;
+		int arg = 0;
+		int start = 0;
+		
+		while(true) {
+			int at = template.indexOf("{}", start);
+			
+			if(at < 0 || arg >= slot.argCount) {
+				line.append(template, start, template.length());
+				return;
+			}
+			
+			line.append(template, start, at);
+			appendArg(line, arg == 0 ? slot.a : arg == 1 ? slot.b : slot.c);
+			arg++;
+			start = at + 2;
+		}
+	}
+	
+	private static void appendArg(StringBuilder line, Object arg) {
+		//InetAddress.toString() puts a slash in front.
+		if(arg instanceof InetAddress) {
+			line.append(((InetAddress) arg).getHostAddress());
+		} else {
+			line.append(arg);
+		}
+	}
+	
+	private void write(StringBuilder line) {
+		if(file == null) {
+			try {
+				MLog.fileLog.log(line.toString());
+			} catch(RuntimeException e) {
+				System.err.println("Could not write to the log");
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		try {
+			if(out == null) {
+				out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			
+			out.append(line).append('\n');
+		} catch(IOException e) {
+			System.err.println("Could not write to " + file.getPath());
+			e.printStackTrace();
+			closeFile();
+		}
+	}
+	
+	private void endBatch() {
+		if(out == null) {
+			return;
+		}
+		
+		try {
+			out.flush();
+		} catch(IOException e) {
+			System.err.println("Could not write to " + file.getPath());
+			e.printStackTrace();
+			closeFile();
+		}
+	}
+	
+	private void closeFile() {
+		if(out == null) {
+			return;
+		}
+		
+		try {
+			out.close();
+		} catch(IOException e) {
+		}
+		out = null;
+	}
+	
+	/**
+	 * One line waiting to be written.  Reused once the writer is done with it.
+	 */
+	private static class Slot {
+		volatile long published = -1;
+		LogLevel level;
+		long time;
+		String template;
+		Object a;
+		Object b;
+		Object c;
+		int argCount;
+		
+		void clear() {
+			template = null;
+			a = null;
+			b = null;
+			c = null;
+		}
+	}
+}
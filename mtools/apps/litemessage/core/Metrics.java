@@ -0,0 +1,513 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mtools.apps.litemessage.core.networking.LatencyHistogram;
+import mtools.apps.litemessage.core.networking.OutboundQueue;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+import mtools.apps.litemessage.core.networking.ThroughputCounter;
+import mtools.logging.MLog;
+
+/**
+ * Counts what the program is doing, for watching it over JMX with {@link #registerMBean()},
+ * or in a file with {@link #startSnapshots(File, long)}.  Everything that is counted while
+ * messages are flowing goes into a {@link LongAdder} or a {@link LatencyHistogram}, so
+ * counting never locks, and threads on different connections don't fight over the same
+ * counter.  Each {@link StreamBundle} also keeps its own counts, which are listed by
+ * {@link #getConnections()}.
+ * 
+ * Open connections and outbound queues are only held weakly, and things like the total
+ * queue depth are added up from them when asked for, so they cost nothing until then.
+ * @author Noah
+ *
+ */
+public class Metrics implements MetricsMBean {
+	
+	/**
+	 * The name the metrics are registered under with JMX.
+	 */
+	public static final String OBJECT_NAME = "mtools.apps.litemessage:type=Metrics";
+	
+	/**
+	 * Where {@link #startSnapshots(File, long)} writes by default.
+	 */
+	public static final String DEFAULT_SNAPSHOT_FILE = "metrics.log";
+	
+	private static final Metrics defaultMetrics = new Metrics();
+	
+	private final ThroughputCounter sessionsOpened;
+	private final LongAdder sessionsClosed;
+	private final LongAdder sessionsReaped;
+	private final LongAdder handshakeFailures;
+	private final LatencyHistogram handshakeLatency;
+	private final LongAdder bytesIn;
+	private final LongAdder bytesOut;
+	private final LongAdder framesIn;
+	private final LongAdder framesOut;
+	private final LongAdder portAllocationFailures;
+	private final LatencyHistogram contactFlushTime;
+	private final Set<StreamBundle> bundles;
+	private final Set<OutboundQueue> queues;
+	private ScheduledExecutorService snapshotter;
+	
+	public Metrics() {
+		sessionsOpened = new ThroughputCounter();
+		sessionsClosed = new LongAdder();
+		sessionsReaped = new LongAdder();
+		handshakeFailures = new LongAdder();
+		handshakeLatency = new LatencyHistogram();
+		bytesIn = new LongAdder();
+		bytesOut = new LongAdder();
+		framesIn = new LongAdder();
+		framesOut = new LongAdder();
+		portAllocationFailures = new LongAdder();
+		contactFlushTime = new LatencyHistogram();
+		bundles = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<StreamBundle, Boolean>()));
+		queues = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<OutboundQueue, Boolean>()));
+	}
+	
+	/**
+	 * Returns the metrics that everything in the program counts into.
+	 * @return
+	 */
+	public static Metrics getDefault() {
+		return defaultMetrics;
+	}
+	
+	/**
+	 * Makes the metrics visible over JMX, under {@link #OBJECT_NAME}.
+	 * @return false if they couldn't be registered.
+	 */
+	public boolean registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			if(!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+			return true;
+		} catch(JMException e) {
+			System.err.println("Could not register metrics with JMX");
+			MLog.fileLog.log("Could not register metrics with JMX: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Appends a {@link #getSnapshot()} to the file every period, until {@link #stopSnapshots()}
+	 * is called.  Any snapshots already being written are stopped first.
+	 * @param file
+	 * @param periodMillis
+	 */
+	public synchronized void startSnapshots(File file, long periodMillis) {
+		stopSnapshots();
+		
+		snapshotter = Executors.newSingleThreadScheduledExecutor((task) -> {
+			Thread t = new Thread(task, "LiteMessage metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		snapshotter.scheduleAtFixedRate(() -> writeSnapshot(file), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops writing snapshots.
+	 */
+	public synchronized void stopSnapshots() {
+		if(snapshotter != null) {
+			snapshotter.shutdownNow();
+			snapshotter = null;
+		}
+	}
+	
+	private void writeSnapshot(File file) {
+		try {
+			Files.write(file.toPath(), getSnapshot().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch(IOException e) {
+			System.err.println("Could not write metrics to " + file.getPath());
+			MLog.fileLog.log("Could not write metrics to " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Counts a chat session starting.
+	 */
+	public void sessionOpened() {
+		sessionsOpened.add(1);
+	}
+	
+	/**
+	 * Counts a chat session ending.  Only call this once for each call to {@link #sessionOpened()}.
+	 */
+	public void sessionClosed() {
+		sessionsClosed.increment();
+	}
+	
+	/**
+	 * Counts a session that was closed because the peer stopped responding.
+	 */
+	public void sessionReaped() {
+		sessionsReaped.increment();
+	}
+	
+	/**
+	 * Records how long it took to swap user info and set up encryption with a peer.
+	 * @param nanos
+	 */
+	public void handshakeCompleted(long nanos) {
+		handshakeLatency.record(nanos);
+	}
+	
+	/**
+	 * Counts a handshake that failed part way through.
+	 */
+	public void handshakeFailed() {
+		handshakeFailures.increment();
+	}
+	
+	/**
+	 * Counts bytes received from the network.
+	 * @param count
+	 */
+	public void bytesIn(long count) {
+		bytesIn.add(count);
+	}
+	
+	/**
+	 * Counts bytes sent to the network.
+	 * @param count
+	 */
+	public void bytesOut(long count) {
+		bytesOut.add(count);
+	}
+	
+	/**
+	 * Counts a frame, or an older peer's string, being received.
+	 */
+	public void frameIn() {
+		framesIn.increment();
+	}
+	
+	/**
+	 * Counts a frame, or an older peer's string, being sent.
+	 */
+	public void frameOut() {
+		framesOut.increment();
+	}
+	
+	/**
+	 * Counts a listening socket that couldn't be opened because no port was free.
+	 */
+	public void portAllocationFailed() {
+		portAllocationFailures.increment();
+	}
+	
+	/**
+	 * Records how long it took to write a batch of contact changes to disk.
+	 * @param nanos
+	 */
+	public void contactsFlushed(long nanos) {
+		contactFlushTime.record(nanos);
+	}
+	
+	/**
+	 * Lists the connection in {@link #getConnections()} for as long as it is open.
+	 * @param bundle
+	 */
+	public void register(StreamBundle bundle) {
+		bundles.add(bundle);
+	}
+	
+	/**
+	 * Adds the queue's depth to {@link #getQueuedFrames()} for as long as it is open.
+	 * @param queue
+	 */
+	public void register(OutboundQueue queue) {
+		queues.add(queue);
+	}
+	
+	@Override
+	public long getActiveSessions() {
+		return sessionsOpened.getTotal() - sessionsClosed.sum();
+	}
+	
+	@Override
+	public long getSessionsOpened() {
+		return sessionsOpened.getTotal();
+	}
+	
+	@Override
+	public long getSessionsClosed() {
+		return sessionsClosed.sum();
+	}
+	
+	@Override
+	public long getSessionsReaped() {
+		return sessionsReaped.sum();
+	}
+	
+	@Override
+	public double getSessionsPerSecond() {
+		return sessionsOpened.getRatePerSecond();
+	}
+	
+	@Override
+	public long getHandshakes() {
+		return handshakeLatency.getCount();
+	}
+	
+	@Override
+	public long getHandshakeFailures() {
+		return handshakeFailures.sum();
+	}
+	
+	@Override
+	public long getHandshakeP50Micros() {
+		return handshakeLatency.getValueAtPercentile(50) / 1000;
+	}
+	
+	@Override
+	public long getHandshakeP99Micros() {
+		return handshakeLatency.getValueAtPercentile(99) / 1000;
+	}
+	
+	@Override
+	public long getHandshakeMaxMicros() {
+		return handshakeLatency.getMax() / 1000;
+	}
+	
+	/**
+	 * Returns the handshake times, in nanoseconds.
+	 * @return
+	 */
+	public LatencyHistogram getHandshakeLatency() {
+		return handshakeLatency;
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+	
+	@Override
+	public long getFramesIn() {
+		return framesIn.sum();
+	}
+	
+	@Override
+	public long getFramesOut() {
+		return framesOut.sum();
+	}
+	
+	@Override
+	public int getOpenConnections() {
+		return openBundles().size();
+	}
+	
+	@Override
+	public long getQueuedFrames() {
+		long depth = 0;
+		
+		for(OutboundQueue q : openQueues()) {
+			depth += q.getDepth();
+		}
+		
+		return depth;
+	}
+	
+	@Override
+	public long getDeepestQueue() {
+		long deepest = 0;
+		
+		for(OutboundQueue q : openQueues()) {
+			deepest = Math.max(deepest, q.getHighWaterMark());
+		}
+		
+		return deepest;
+	}
+	
+	@Override
+	public long getPortAllocationFailures() {
+		return portAllocationFailures.sum();
+	}
+	
+	@Override
+	public long getContactFlushes() {
+		return contactFlushTime.getCount();
+	}
+	
+	@Override
+	public long getContactFlushP99Micros() {
+		return contactFlushTime.getValueAtPercentile(99) / 1000;
+	}
+	
+	@Override
+	public long getContactFlushMaxMicros() {
+		return contactFlushTime.getMax() / 1000;
+	}
+	
+	/**
+	 * Returns the contact flush times, in nanoseconds.
+	 * @return
+	 */
+	public LatencyHistogram getContactFlushTime() {
+		return contactFlushTime;
+	}
+	
+	/**
+	 * Returns one line for every open connection, with what has been sent and received on it.
+	 * @return
+	 */
+	@Override
+	public String[] getConnections() {
+		ArrayList<StreamBundle> open = openBundles();
+		String[] lines = new String[open.size()];
+		
+		for(int i = 0; i < lines.length; i++) {
+			StreamBundle b = open.get(i);
+			Socket s = b.getSocket();
+			
+			lines[i] = s.getInetAddress().getHostAddress() + ":" + s.getPort()
+					+ " bytesIn=" + b.getBytesRead().getTotal()
+					+ " bytesOut=" + b.getBytesWritten().getTotal()
+					+ " framesIn=" + b.getFramesRead()
+					+ " framesOut=" + b.getFramesWritten()
+					+ " outRate=" + (long) b.getBytesWritten().getRatePerSecond() + "B/s";
+		}
+		
+		return lines;
+	}
+	
+	/**
+	 * Returns everything on a few lines of text, headed with the time.
+	 * @return
+	 */
+	@Override
+	public String getSnapshot() {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("--- ").append(LocalDateTime.now()).append(" ---\n");
+		sb.append("sessions: active=").append(getActiveSessions())
+				.append(" opened=").append(getSessionsOpened())
+				.append(" closed=").append(getSessionsClosed())
+				.append(" reaped=").append(getSessionsReaped())
+				.append(" perSecond=").append(String.format("%.1f", getSessionsPerSecond())).append('\n');
+		sb.append("handshakes (us): ").append(handshakeLatency.summary(1000))
+				.append(" failed=").append(getHandshakeFailures()).append('\n');
+		sb.append("traffic: bytesIn=").append(getBytesIn())
+				.append(" bytesOut=").append(getBytesOut())
+				.append(" framesIn=").append(getFramesIn())
+				.append(" framesOut=").append(getFramesOut()).append('\n');
+		sb.append("outbound queues: queued=").append(getQueuedFrames())
+				.append(" deepest=").append(getDeepestQueue()).append('\n');
+		sb.append("port allocation failures: ").append(getPortAllocationFailures()).append('\n');
+		sb.append("contact flushes (us): ").append(contactFlushTime.summary(1000)).append('\n');
+		
+		String[] connections = getConnections();
+		sb.append("connections: ").append(connections.length).append('\n');
+		for(String c : connections) {
+			sb.append("  ").append(c).append('\n');
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Forgets the handshake and contact flush times recorded so far.
+	 */
+	@Override
+	public void resetLatencies() {
+		handshakeLatency.reset();
+		contactFlushTime.reset();
+	}
+	
+	//Copied out, so the set isn't locked while the bundles are looked at.
+	private ArrayList<StreamBundle> openBundles() {
+		ArrayList<StreamBundle> open = new ArrayList<StreamBundle>();
+		
+		synchronized(bundles) {
+			for(StreamBundle b : bundles) {
+				if(!b.getSocket().isClosed()) {
+					open.add(b);
+				}
+			}
+		}
+		
+		return open;
+	}
+	
+	private ArrayList<OutboundQueue> openQueues() {
+		ArrayList<OutboundQueue> open = new ArrayList<OutboundQueue>();
+		
+		synchronized(queues) {
+			for(OutboundQueue q : queues) {
+				if(!q.isClosed()) {
+					open.add(q);
+				}
+			}
+		}
+		
+		return open;
+	}
+}
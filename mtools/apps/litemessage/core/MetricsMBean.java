@@ -0,0 +1,92 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core;
+
+/**
+ * What {@link Metrics} shows over JMX.  Times are in microseconds.
+ * @author Noah
+ *
+ */
+public interface MetricsMBean {
+	
+	public long getActiveSessions();
+	
+	public long getSessionsOpened();
+	
+	public long getSessionsClosed();
+	
+	public long getSessionsReaped();
+	
+	public double getSessionsPerSecond();
+	
+	public long getHandshakes();
+	
+	public long getHandshakeFailures();
+	
+	public long getHandshakeP50Micros();
+	
+	public long getHandshakeP99Micros();
+	
+	public long getHandshakeMaxMicros();
+	
+	public long getBytesIn();
+	
+	public long getBytesOut();
+	
+	public long getFramesIn();
+	
+	public long getFramesOut();
+	
+	public int getOpenConnections();
+	
+	public long getQueuedFrames();
+	
+	public long getDeepestQueue();
+	
+	public long getPortAllocationFailures();
+	
+	public long getContactFlushes();
+	
+	public long getContactFlushP99Micros();
+	
+	public long getContactFlushMaxMicros();
+	
+	public String[] getConnections();
+	
+	public String getSnapshot();
+	
+	public void resetLatencies();
+}
@@ -0,0 +1,148 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the long lived loops of the program, such as a chat session's receive loop, or
+ * the loop waiting for somebody to contact us.  By default every task gets its own platform
+ * thread, which is how things have always worked.  It can instead run every task on a virtual
+ * thread, so that an idle chat doesn't hold a whole platform thread and its stack.  Any other
+ * {@link Executor} can also be plugged in.
+ * 
+ * Virtual threads need Java 21 or later.  On older runtimes, asking for them falls back to
+ * platform threads.
+ * @author Noah
+ *
+ */
+public class SessionExecutor {
+	
+	private static SessionExecutor defaultExecutor = new SessionExecutor(ThreadMode.PLATFORM);
+	
+	private Executor executor;
+	private ThreadMode mode;
+	
+	/**
+	 * Creates an executor that runs every task on its own thread of the requested kind.
+	 * @param requestedMode
+	 */
+	public SessionExecutor(ThreadMode requestedMode) {
+		if(requestedMode == ThreadMode.VIRTUAL) {
+			executor = createVirtualThreadExecutor();
+			
+			if(executor != null) {
+				mode = ThreadMode.VIRTUAL;
+				return;
+			}
+			
+			System.err.println("SessionExecutor: Virtual threads are not supported by this Java runtime.  Using platform threads.");
+		}
+		
+		executor = (task) -> new Thread(task).start();
+		mode = ThreadMode.PLATFORM;
+	}
+	
+	/**
+	 * Creates a SessionExecutor that hands every task to the passed executor.  The executor
+	 * must not run tasks on the calling thread, since the tasks generally loop until a
+	 * session ends.
+	 * @param e
+	 * @param m the kind of threads the executor uses.  Only used for reporting.
+	 */
+	public SessionExecutor(Executor e, ThreadMode m) {
+		executor = e;
+		mode = m;
+	}
+	
+	/**
+	 * Runs the task in the background.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+	
+	/**
+	 * Returns the kind of threads that tasks are actually being run on.
+	 * @return
+	 */
+	public ThreadMode getThreadMode() {
+		return mode;
+	}
+	
+	/**
+	 * Returns the executor used by anything that wasn't given one explicitly.
+	 * @return
+	 */
+	public static SessionExecutor getDefault() {
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Changes the executor used by anything that wasn't given one explicitly.  This should
+	 * be set at startup, before any sessions are created.
+	 * @param e
+	 */
+	public static void setDefault(SessionExecutor e) {
+		defaultExecutor = e;
+	}
+	
+	/**
+	 * Returns true if this Java runtime supports virtual threads.
+	 * @return
+	 */
+	public static boolean areVirtualThreadsSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	//Looked up reflectively so that we can still build and run on runtimes older than Java 21.
+	private static Executor createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) factory.invoke(null);
+		} catch(Exception e) {
+			return null;
+		}
+	}
+}
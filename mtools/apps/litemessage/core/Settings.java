@@ -47,6 +47,30 @@ package mtools.apps.litemessage.core;
  * prevents somebody from spoofing somebody else's name, and then having their IP entered
  * as the correct IP for the contact.  Can be used as a small layer of assurance and security.
  * It is set to false by default for a default secure posture.
+ * 
+ * singlePortSessions determines if sessions are kept on the control port instead of being
+ * handed off to a data port.  It is set to true by default.
+ * 
+ * virtualThreads determines if chat sessions are run on virtual threads instead of platform
+ * threads.  It needs Java 21 or later, and is set to false by default.
+ * 
+ * encryption determines if chat sessions ask to be encrypted.  A session is only encrypted
+ * if the peer asks as well.  It is set to false by default.
+ * 
+ * connectionPooling determines if the connection of a finished chat is kept open for the next
+ * chat with the same contact.  It only applies to single port sessions, and only if the peer
+ * pools connections as well.  It is set to true by default.
+ * 
+ * favorites is a comma separated list of contact names that are connected to ahead of time
+ * when the program starts, so chatting with them starts right away.  It needs connectionPooling,
+ * and is empty by default.
+ * 
+ * hubMode determines if the console version holds many chats at once, accepting new ones while
+ * others are going, instead of one chat at a time.  It is set to false by default.
+ * 
+ * idleTimeout is how many seconds a chat with a peer that can't answer heartbeats can go
+ * without hearing anything before it is closed.  Peers that answer heartbeats are closed
+ * once they stop answering, whatever this is set to.  It is set to 0, never, by default.
  * @author Noah
  *
  */
@@ -56,6 +80,13 @@ public class Settings {
 	public int controlPort;
 	public int dataPort;
 	public boolean randomDataPorts;
+	public boolean singlePortSessions;
+	public boolean virtualThreads;
+	public boolean encryption;
+	public boolean connectionPooling;
+	public String favorites;
+	public boolean hubMode;
+	public int idleTimeout;
 	
 	/**
 	 * Initializes and sets every to default.
@@ -74,5 +105,12 @@ public class Settings {
 		controlPort = 5676;
 		dataPort = 49212;
 		randomDataPorts = true;
+		singlePortSessions = true;
+		virtualThreads = false;
+		encryption = false;
+		connectionPooling = true;
+		favorites = "";
+		hubMode = false;
+		idleTimeout = 0;
 	}
 }
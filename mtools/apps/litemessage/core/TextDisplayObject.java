@@ -43,6 +43,17 @@ public interface TextDisplayObject {
 	 */
 	public void println(String s);
 	
+	/**
+	 * Prints a chat message.  index is the message's number in the
+	 * {@link mtools.apps.litemessage.control.logic.MessageHistory}, or -1 if it isn't
+	 * saved there.  By default the message is just printed.
+	 * @param s
+	 * @param index
+	 */
+	public default void printMessage(String s, long index) {
+		println(s);
+	}
+	
 	/**
 	 * What should occur if a window is closed that is displaying text
 	 */
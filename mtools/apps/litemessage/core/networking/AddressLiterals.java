@@ -0,0 +1,139 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns IP address literals into {@link InetAddress} objects without ever asking a
+ * resolver.  Host names are left to the caller, so loading a file full of addresses
+ * can't block on DNS.
+ * @author Noah
+ *
+ */
+public final class AddressLiterals {
+	
+	private AddressLiterals() {}
+	
+	/**
+	 * Returns the address for an IPv4 or IPv6 literal, or null if the string isn't one.
+	 * IPv6 literals may be wrapped in brackets.
+	 * @param s
+	 * @return
+	 */
+	public static InetAddress parse(String s) {
+		if(s == null || s.isEmpty())
+			return null;
+		
+		if(s.indexOf(':') >= 0)
+			return parseV6(s);
+		
+		byte[] addr = parseV4(s);
+		if(addr == null)
+			return null;
+		
+		try {
+			return InetAddress.getByAddress(addr);
+		} catch(UnknownHostException e) {
+			//Only thrown for a bad length, which can't happen here.
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns true if the string is an IPv4 or IPv6 literal.
+	 * @param s
+	 * @return
+	 */
+	public static boolean isLiteral(String s) {
+		return parse(s) != null;
+	}
+	
+	//Parses a dotted quad in one pass.  Returns null if it isn't exactly four parts of 0-255.
+	private static byte[] parseV4(String s) {
+		byte[] addr = new byte[4];
+		int part = 0;
+		int value = 0;
+		int digits = 0;
+		
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			
+			if(c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				digits++;
+				if(value > 255 || digits > 3)
+					return null;
+			} else if(c == '.') {
+				if(digits == 0 || part == 3)
+					return null;
+				addr[part++] = (byte) value;
+				value = 0;
+				digits = 0;
+			} else {
+				return null;
+			}
+		}
+		
+		if(digits == 0 || part != 3)
+			return null;
+		addr[3] = (byte) value;
+		
+		return addr;
+	}
+	
+	//A string with a colon can only be an IPv6 literal, which InetAddress parses without a lookup.
+	private static InetAddress parseV6(String s) {
+		if(s.charAt(0) == '[' && s.charAt(s.length() - 1) == ']')
+			s = s.substring(1, s.length() - 1);
+		
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			boolean allowed = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')
+					|| c == ':' || c == '.' || c == '%';
+			if(!allowed && s.lastIndexOf('%', i) < 0)
+				return null;
+		}
+		
+		try {
+			return InetAddress.getByName(s);
+		} catch(UnknownHostException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns host names into addresses off the calling thread.  Each lookup returns a
+ * {@link CompletableFuture}, so the GUI and startup never wait on a slow resolver.
+ * Answers are cached for a while, failures for a shorter while, and asking for a
+ * name that is already being looked up shares that lookup instead of starting another.
+ * IP literals are answered right away without a lookup.
+ * @author Noah
+ *
+ */
+public class AddressResolver {
+	
+	/**
+	 * By default, an address is cached for this long.
+	 */
+	public static final long DEFAULT_TTL = 60000;
+	
+	/**
+	 * By default, a failed lookup is remembered for this long.
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 10000;
+	
+	/**
+	 * At most this many lookups run at once.
+	 */
+	public static final int MAX_LOOKUPS = 4;
+	
+	//Expired entries are swept out once the cache gets this big.
+	private static final int SWEEP_SIZE = 1024;
+	
+	private static final AddressResolver DEFAULT = new AddressResolver(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	
+	private final ConcurrentHashMap<String, Entry> cache;
+	private final ThreadPoolExecutor lookups;
+	private final long ttl;
+	private final long negativeTTL;
+	
+	/**
+	 * @param ttl how long, in milliseconds, a resolved address is cached.
+	 * @param negativeTTL how long, in milliseconds, a failed lookup is cached.
+	 */
+	public AddressResolver(long ttl, long negativeTTL) {
+		this.ttl = ttl;
+		this.negativeTTL = negativeTTL;
+		cache = new ConcurrentHashMap<String, Entry>();
+		
+		lookups = new ThreadPoolExecutor(MAX_LOOKUPS, MAX_LOOKUPS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (task) -> {
+			Thread t = new Thread(task, "LiteMessage resolver");
+			t.setDaemon(true);
+			return t;
+		});
+		lookups.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Returns the resolver shared by the whole program.
+	 * @return
+	 */
+	public static AddressResolver getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Looks up the host without blocking.  The future fails with an
+	 * {@link UnknownHostException} if the host can't be resolved.
+	 * @param host a host name or IP literal.
+	 * @return
+	 */
+	public CompletableFuture<InetAddress> resolve(String host) {
+		InetAddress literal = AddressLiterals.parse(host);
+		if(literal != null) {
+			return CompletableFuture.completedFuture(literal);
+		}
+		
+		String key = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		
+		Entry entry = cache.get(key);
+		if(entry != null && !entry.isExpired(now)) {
+			return entry.future;
+		}
+		
+		//Only one caller gets to install a new entry, everyone else shares it.
+		Entry fresh = new Entry();
+		entry = cache.compute(key, (k, old) -> (old != null && !old.isExpired(now)) ? old : fresh);
+		if(entry != fresh) {
+			return entry.future;
+		}
+		
+		if(cache.size() > SWEEP_SIZE) {
+			sweep(now);
+		}
+		
+		lookups.execute(() -> lookup(host, fresh));
+		return fresh.future;
+	}
+	
+	/**
+	 * Looks up the host and waits for the answer.  Cached answers come back right away.
+	 * Only meant for threads that are allowed to block, such as the console.
+	 * @param host
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	public InetAddress resolveNow(String host) throws UnknownHostException {
+		try {
+			return resolve(host).get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			throw new UnknownHostException(host + ": " + e.getCause());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException(host + ": interrupted");
+		}
+	}
+	
+	/**
+	 * Forgets everything that has been cached.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+	
+	/**
+	 * Returns the number of cached names, including lookups still running.
+	 * @return
+	 */
+	public int getCacheSize() {
+		return cache.size();
+	}
+	
+	private void lookup(String host, Entry entry) {
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			entry.expires = System.currentTimeMillis() + ttl;
+			entry.future.complete(address);
+		} catch(UnknownHostException e) {
+			entry.expires = System.currentTimeMillis() + negativeTTL;
+			entry.future.completeExceptionally(e);
+		} catch(RuntimeException e) {
+			entry.expires = System.currentTimeMillis() + negativeTTL;
+			entry.future.completeExceptionally(new UnknownHostException(host + ": " + e));
+		}
+	}
+	
+	private void sweep(long now) {
+		cache.values().removeIf((e) -> e.isExpired(now));
+	}
+	
+	private static class Entry {
+		final CompletableFuture<InetAddress> future = new CompletableFuture<InetAddress>();
+		
+		//Lookups still running never expire.
+		volatile long expires = Long.MAX_VALUE;
+		
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+	}
+}
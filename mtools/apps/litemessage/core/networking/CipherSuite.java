@@ -0,0 +1,128 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * The authenticated ciphers a session can be encrypted with.  When keys are exchanged, each
+ * side lists the suites it can handle in the flags of its key exchange frame, and the first
+ * suite both sides listed is used.  The flag is what is actually sent over the wire, so
+ * existing flags must never be changed.
+ * @author Noah
+ *
+ */
+public enum CipherSuite {
+	AES_GCM(0x01, "AES/GCM/NoPadding", "AES"),
+	CHACHA20_POLY1305(0x02, "ChaCha20-Poly1305", "ChaCha20");
+	
+	private final int flag;
+	private final String transformation;
+	private final String keyAlgorithm;
+	
+	private CipherSuite(int f, String t, String k) {
+		flag = f;
+		transformation = t;
+		keyAlgorithm = k;
+	}
+	
+	public int getFlag() {
+		return flag;
+	}
+	
+	/**
+	 * Returns the name used to get a {@link Cipher} for this suite.
+	 * @return
+	 */
+	public String getTransformation() {
+		return transformation;
+	}
+	
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+	
+	/**
+	 * Returns true if the running JDK provides this suite.
+	 * @return
+	 */
+	public boolean isAvailable() {
+		try {
+			Cipher.getInstance(transformation);
+			return true;
+		} catch(GeneralSecurityException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the flags for every suite the running JDK provides.
+	 * @return
+	 */
+	public static int supportedFlags() {
+		int flags = 0;
+		
+		for(CipherSuite suite : values()) {
+			if(suite.isAvailable()) {
+				flags |= suite.flag;
+			}
+		}
+		
+		return flags;
+	}
+	
+	/**
+	 * Picks the suite to use, given the suites each side listed.  Returns null if there's
+	 * nothing in common.
+	 * @param ourFlags
+	 * @param theirFlags
+	 * @return
+	 */
+	public static CipherSuite negotiate(int ourFlags, int theirFlags) {
+		int common = ourFlags & theirFlags;
+		
+		for(CipherSuite suite : values()) {
+			if((common & suite.flag) == suite.flag) {
+				return suite;
+			}
+		}
+		
+		return null;
+	}
+}
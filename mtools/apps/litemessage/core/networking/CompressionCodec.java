@@ -0,0 +1,92 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+/**
+ * The ways frame payloads can be compressed.  When a session starts, each side lists the
+ * codecs it can handle in the flags of its handshake frame, and the first codec both sides
+ * listed is used.  The flag is what is actually sent over the wire, so existing flags must
+ * never be changed.
+ * @author Noah
+ *
+ */
+public enum CompressionCodec {
+	NONE(0x00), DEFLATE(0x01);
+	
+	private final int flag;
+	
+	private CompressionCodec(int f) {
+		flag = f;
+	}
+	
+	public int getFlag() {
+		return flag;
+	}
+	
+	/**
+	 * Returns the flags for every codec this version can handle.
+	 * @return
+	 */
+	public static int supportedFlags() {
+		int flags = 0;
+		
+		for(CompressionCodec codec : values()) {
+			flags |= codec.flag;
+		}
+		
+		return flags;
+	}
+	
+	/**
+	 * Picks the codec to use, given the codecs each side listed.  Returns {@link #NONE}
+	 * if there's nothing in common.
+	 * @param ourFlags
+	 * @param theirFlags
+	 * @return
+	 */
+	public static CompressionCodec negotiate(int ourFlags, int theirFlags) {
+		int common = ourFlags & theirFlags;
+		
+		for(CompressionCodec codec : values()) {
+			if(codec != NONE && (common & codec.flag) == codec.flag) {
+				return codec;
+			}
+		}
+		
+		return NONE;
+	}
+}
@@ -39,11 +39,21 @@ package mtools.apps.litemessage.core.networking;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import mtools.apps.litemessage.core.SessionExecutor;
 
 /**
  * Used for establishing connections and managing those connections.
@@ -61,16 +71,59 @@ public class ConnectionManager {
 	public static final int LAST_DYNAMIC_PORT = 65535;
 	public static final int DEFAULT_NEGOTIATION_TIMEOUT = 2000;
 	
+	/**
+	 * How often, in milliseconds, a single port listener checks for chats started on idle
+	 * pooled connections, and whether it has been closed, while it waits for a session.
+	 */
+	public static final int POOL_POLL_INTERVAL = 100;
+	
+	/**
+	 * Sent by the initiating peer when it would like to keep the session on the control port
+	 * instead of being handed over to a dynamic port.
+	 */
+	public static final String SINGLE_PORT_REQUEST = "lm-single-port";
+	
+	/**
+	 * Sent back by a listening peer that agrees to keep the session on the control port.
+	 */
+	public static final String SINGLE_PORT_ACCEPT = "lm-single-port-ok";
+	
+	/**
+	 * Sent instead of {@link #SINGLE_PORT_REQUEST} by an initiating peer that would also like
+	 * to send {@link Frame}s instead of writeUTF strings.
+	 */
+	public static final String FRAMED_SESSION_REQUEST = "lm-single-port-framed";
+	
+	/**
+	 * Sent back by a listening peer that agrees to a framed single port session.
+	 */
+	public static final String FRAMED_SESSION_ACCEPT = "lm-single-port-framed-ok";
+	
 	private int controlPort;
 	private int firstDynamicPort;
 	private int lastDynamicPort;
 	private int negotiationTimeout;
 	private boolean outgoingPortEnforcement;
+	private boolean singlePortMode;
+	private boolean persistentListener;
+	private boolean framedSessions;
+	private boolean encryption;
+	private int coalesceWindow;
+	private int byteBudget;
 	
 	private ServerSocket serverSocket;
+	private ServerSocket controlServerSocket;
+	private SelectorEngine selectorEngine;
+	private AddressResolver resolver;
+	private ConnectionPool pool;
+	private PortAllocator portAllocator;
 	
 	private ArrayList<Socket> sockets;
 	
+	//Sessions negotiated on the single port listener, waiting to be picked up.
+	private final LinkedBlockingQueue<StreamBundle> negotiated = new LinkedBlockingQueue<StreamBundle>();
+	private boolean singlePortAccepting;
+	
 	public ConnectionManager() {
 		sockets = new ArrayList<Socket>();
 		
@@ -79,6 +132,15 @@ public class ConnectionManager {
 		lastDynamicPort = LAST_DYNAMIC_PORT;
 		negotiationTimeout = DEFAULT_NEGOTIATION_TIMEOUT;
 		outgoingPortEnforcement = false;
+		singlePortMode = false;
+		persistentListener = false;
+		framedSessions = true;
+		encryption = false;
+		coalesceWindow = StreamBundle.DEFAULT_COALESCE_WINDOW;
+		byteBudget = StreamBundle.DEFAULT_BYTE_BUDGET;
+		resolver = AddressResolver.getDefault();
+		pool = new ConnectionPool(this);
+		portAllocator = new PortAllocator();
 	}
 	
 	/**
@@ -129,6 +191,127 @@ public class ConnectionManager {
 		negotiationTimeout = milliseconds;
 	}
 	
+	/**
+	 * Enables or disables single port mode.  When enabled, the control port is held open
+	 * for the life of the ConnectionManager and every session is accepted and kept on it,
+	 * rather than being handed off to a dynamic port.  Peers that still use the old
+	 * negotiation are detected and handed off to a dynamic port like before, so this can
+	 * be enabled without breaking older clients.  Disabled by default.
+	 * @param enabled
+	 */
+	public void setSinglePortMode(boolean enabled) {
+		singlePortMode = enabled;
+	}
+	
+	/**
+	 * Returns true if single port mode is enabled.
+	 * @return
+	 */
+	public boolean isSinglePortMode() {
+		return singlePortMode;
+	}
+	
+	/**
+	 * Keeps the control port listener open between sessions when not in single port mode,
+	 * so peers aren't refused while the next session is being waited on.  Sessions are
+	 * still handed off to a dynamic port.  Single port mode always keeps it open.
+	 * Disabled by default.
+	 * @param enabled
+	 */
+	public void setPersistentListener(boolean enabled) {
+		persistentListener = enabled;
+	}
+	
+	/**
+	 * Returns true if the control port listener is kept open between sessions.
+	 * @return
+	 */
+	public boolean isPersistentListener() {
+		return persistentListener || singlePortMode;
+	}
+	
+	/**
+	 * Determines if single port sessions that we initiate ask to send {@link Frame}s
+	 * instead of writeUTF strings.  Enabled by default.  Sessions that are handed off to a
+	 * dynamic port are never framed, since only older peers use the hand off.
+	 * @param enabled
+	 */
+	public void setFramedSessions(boolean enabled) {
+		framedSessions = enabled;
+	}
+	
+	/**
+	 * Returns true if single port sessions that we initiate ask to be framed.
+	 * @return
+	 */
+	public boolean isFramedSessions() {
+		return framedSessions;
+	}
+	
+	/**
+	 * Sets whether sessions ask to be encrypted.  A session is only encrypted if the peer
+	 * asks as well.  Off by default.
+	 * @param enabled
+	 */
+	public void setEncryption(boolean enabled) {
+		encryption = enabled;
+	}
+	
+	public boolean isEncryptionEnabled() {
+		return encryption;
+	}
+	
+	/**
+	 * Sets how the output of every {@link StreamBundle} created from now on is batched.
+	 * See {@link StreamBundle#setCoalescing(int, int)}.  By default every message is
+	 * flushed right away.
+	 * @param windowMillis
+	 * @param budget
+	 */
+	public void setWriteCoalescing(int windowMillis, int budget) {
+		coalesceWindow = windowMillis;
+		byteBudget = budget;
+	}
+	
+	/**
+	 * Changes the {@link AddressResolver} host names are looked up with.
+	 * By default the program-wide one is used.
+	 * @param r
+	 */
+	public void setResolver(AddressResolver r) {
+		resolver = r;
+	}
+	
+	public AddressResolver getResolver() {
+		return resolver;
+	}
+	
+	/**
+	 * Returns the pool that keeps the connections of finished chats open for the next chat
+	 * with the same contact.  Pooling only applies to framed single port sessions.
+	 * @return
+	 */
+	public ConnectionPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * Returns the allocator that hands out the dynamic ports, along with its counters.
+	 * @return
+	 */
+	public PortAllocator getPortAllocator() {
+		return portAllocator;
+	}
+	
+	/**
+	 * Looks up a host name or IP literal without blocking.  See {@link AddressResolver#resolve(String)}.
+	 * @param host
+	 * @return
+	 */
+	public CompletableFuture<InetAddress> resolve(String host) {
+		return resolver.resolve(host);
+	}
+	
 	/**
 	 * Attempts to initiate a connection with another device by reaching out and connecting
 	 * on a predetermined port.  The default port is 5676 (This port is configurable).
@@ -143,7 +326,25 @@ public class ConnectionManager {
 		Socket initSocket = new Socket(ipAddress, controlPort);
 		DataInputStream initInputStream = new DataInputStream(initSocket.getInputStream());
 		
+		//Ask to stay on the control port.  An older peer will ignore this
+		//and just send us a port number like it always has.
+		if(singlePortMode) {
+			DataOutputStream initOutputStream = new DataOutputStream(initSocket.getOutputStream());
+			
+			if(framedSessions) {
+				initOutputStream.writeUTF(FRAMED_SESSION_REQUEST);
+			} else {
+				initOutputStream.writeUTF(SINGLE_PORT_REQUEST);
+			}
+		}
+		
 		String port = initInputStream.readUTF();
+		
+		if(singlePortMode && (port.equals(SINGLE_PORT_ACCEPT) || port.equals(FRAMED_SESSION_ACCEPT))) {
+			track(initSocket);
+			return createBundle(initSocket, port.equals(FRAMED_SESSION_ACCEPT));
+		}
+		
 		int portNumber = 0;
 		
 		try {
@@ -164,53 +365,359 @@ public class ConnectionManager {
 			return null;
 		}
 		Socket dataSocket = new Socket(ipAddress, portNumber);
-		sockets.add(dataSocket);
-		return new StreamBundle(dataSocket);
+		track(dataSocket);
+		return createBundle(dataSocket, false);
 	}
 	
 	/**
 	 * Waits for a connection on a predetermined port.  The default port is 5676.  It will
 	 * then negotiate for a random new port that is, by default, within the IANA ephemeral port
 	 * range (49152-65535). This range is configurable.  A {@link StreamBundle} is then
-	 * returned based off of this new socket connection.
+	 * returned based off of this new socket connection.  If single port mode is enabled,
+	 * the control port is left open between sessions and the session is kept on it instead.
+	 * With a persistent listener, the control port is left open as well, but the session is
+	 * still handed off.
 	 * @return
 	 * @throws IOException
 	 */
 	public StreamBundle waitForSessionNegotiation() throws IOException {
+		if(singlePortMode) {
+			return waitForSinglePortSession();
+		}
+		
+		if(persistentListener) {
+			if(controlServerSocket == null || controlServerSocket.isClosed()) {
+				controlServerSocket = new ServerSocket(controlPort);
+			}
+			
+			controlServerSocket.setSoTimeout(0);
+			return handOffToDynamicPort(controlServerSocket.accept());
+		}
+		
 		serverSocket = new ServerSocket(controlPort);
 		Socket initSocket = serverSocket.accept();
 		serverSocket.close();
 		
-		DataOutputStream initStream = new DataOutputStream(initSocket.getOutputStream());
+		return handOffToDynamicPort(initSocket);
+	}
+	
+	/**
+	 * Waits for a session on the persistent control port listener, opening the listener first
+	 * if needed.  The listener is accepted on by its own thread, and each accepted socket is
+	 * negotiated on the {@link SessionExecutor}, so a quiet peer never holds up the ones
+	 * behind it.  The first session to finish negotiating is returned.  If the peer asks to
+	 * stay on the control port, the accepted socket is used as is, and framed if the peer
+	 * asked for that as well.  If the peer stays quiet for the negotiation timeout, it is an
+	 * older client waiting on a port number, so it is handed off to a dynamic port instead.
+	 * @return
+	 * @throws IOException
+	 */
+	private StreamBundle waitForSinglePortSession() throws IOException {
+		ServerSocket listener = startSinglePortListener();
 		
-		serverSocket = createUsableServerSocket();
+		while(true) {
+			//While pooling, a peer may also start a chat on one of the idle connections.
+			PooledSession pooled = pool.pollIncoming();
+			if(pooled != null) {
+				return pooled.getBundle();
+			}
+			
+			StreamBundle bundle;
+			try {
+				bundle = negotiated.poll(POOL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a session.");
+			}
+			
+			if(bundle != null) {
+				return bundle;
+			}
+			
+			if(listener.isClosed()) {
+				throw new SocketException("Socket closed");
+			}
+		}
+	}
+	
+	//Opens the control port listener if it isn't open, and starts a thread accepting on it.
+	private synchronized ServerSocket startSinglePortListener() throws IOException {
+		boolean reopen = controlServerSocket == null || controlServerSocket.isClosed();
+		
+		if(reopen) {
+			controlServerSocket = new ServerSocket(controlPort);
+		}
+		
+		//A thread may still be finishing up on the old listener.
+		if(reopen || !singlePortAccepting) {
+			controlServerSocket.setSoTimeout(0);
+			singlePortAccepting = true;
+			ServerSocket listener = controlServerSocket;
+			SessionExecutor.getDefault().execute(() -> acceptSinglePort(listener));
+		}
 		
+		return controlServerSocket;
+	}
+	
+	//Runs until the listener is closed.
+	private void acceptSinglePort(ServerSocket listener) {
 		try {
-			initStream.writeUTF(String.valueOf(serverSocket.getLocalPort()));
-			initStream.close();
-			initSocket.close();
-		} catch(Exception e) {
+			while(true) {
+				try {
+					Socket initSocket = listener.accept();
+					DataInputStream initInputStream = new DataInputStream(initSocket.getInputStream());
+					
+					//A newer peer usually has its whole request in by the time it's accepted.
+					//Then it is answered right here, since none of it can block.  Anything
+					//else is left for the executor.
+					int length = -1;
+					if(initInputStream.available() >= 2) {
+						length = initInputStream.readUnsignedShort();
+						
+						if(initInputStream.available() >= length) {
+							negotiateSinglePort(initSocket, initInputStream, length);
+							continue;
+						}
+					}
+					
+					int read = length;
+					SessionExecutor.getDefault().execute(() -> negotiateSinglePort(initSocket, initInputStream, read));
+				} catch(IOException e) {
+					if(listener.isClosed()) {
+						return;
+					}
+					
+					System.err.println("ConnectionManager: Error while accepting a connection.");
+					e.printStackTrace();
+					
+					//Such as running out of file handles.  Give it a moment before trying again.
+					try {
+						Thread.sleep(POOL_POLL_INTERVAL);
+					} catch(InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		} finally {
+			synchronized(this) {
+				if(listener == controlServerSocket) {
+					singlePortAccepting = false;
+				}
+			}
+		}
+	}
+	
+	//Queues the session for waitForSinglePortSession() if one was set up.
+	private void negotiateSinglePort(Socket initSocket, DataInputStream initInputStream, int length) {
+		try {
+			StreamBundle bundle = readSinglePortRequest(initSocket, initInputStream, length);
+			
+			if(bundle != null) {
+				negotiated.add(bundle);
+			}
+		} catch(IOException e) {
 			System.err.println("ConnectionManager: Error while negotiating connection.");
 			e.printStackTrace();
-			serverSocket.close();
-			return null;
+			
+			try {
+				initSocket.close();
+			} catch(IOException ce) {
+				
+			}
 		}
+	}
+	
+	//Reads the rest of a writeUTF request, given its length if that has been read already,
+	//and answers it.
+	private StreamBundle readSinglePortRequest(Socket initSocket, DataInputStream initInputStream, int length) throws IOException {
+		String request = null;
 		
-		serverSocket.setSoTimeout(negotiationTimeout);
-		Socket dataSocket = null;
-		
+		initSocket.setSoTimeout(negotiationTimeout);
 		try {
-			dataSocket = serverSocket.accept();
+			if(length < 0) {
+				length = initInputStream.readUnsignedShort();
+			}
+			
+			//The requests are plain ASCII, which writeUTF leaves as is.
+			byte[] data = new byte[length];
+			initInputStream.readFully(data);
+			request = new String(data, StandardCharsets.UTF_8);
 		} catch(SocketTimeoutException ste) {
-			System.err.println("ConnectionManager: Error while negotiating connection.");
-			ste.printStackTrace();
-			serverSocket.close();
+			//Older peer.  It's waiting on us to send it a port.
+		} catch(IOException e) {
+			initSocket.close();
 			return null;
 		}
 		
-		serverSocket.close();
-		sockets.add(dataSocket);
-		return new StreamBundle(dataSocket);
+		if(request == null) {
+			initSocket.setSoTimeout(0);
+			return handOffToDynamicPort(initSocket);
+		}
+		
+		boolean framed = request.equals(FRAMED_SESSION_REQUEST);
+		
+		if(!framed && !request.equals(SINGLE_PORT_REQUEST)) {
+			System.err.println("ConnectionManager: Unexpected negotiation request.");
+			initSocket.close();
+			return null;
+		}
+		
+		initSocket.setSoTimeout(0);
+		DataOutputStream initStream = new DataOutputStream(initSocket.getOutputStream());
+		
+		if(framed) {
+			initStream.writeUTF(FRAMED_SESSION_ACCEPT);
+		} else {
+			initStream.writeUTF(SINGLE_PORT_ACCEPT);
+		}
+		
+		track(initSocket);
+		return createBundle(initSocket, framed);
+	}
+	
+	/**
+	 * Sends the peer on the initial socket a dynamic port to reconnect on, closes the initial
+	 * socket, and then waits for the peer to connect to the dynamic port.
+	 * @param initSocket
+	 * @return
+	 * @throws IOException
+	 */
+	private StreamBundle handOffToDynamicPort(Socket initSocket) throws IOException {
+		DataOutputStream initStream = new DataOutputStream(initSocket.getOutputStream());
+		
+		//Hand offs from the single port listener can run at the same time, so the listener
+		//is only ever kept here.
+		ServerSocket listener = createUsableServerSocket();
+		
+		if(listener == null) {
+			initSocket.close();
+			throw new IOException("No usable dynamic port available.");
+		}
+		
+		try {
+			try {
+				initStream.writeUTF(String.valueOf(listener.getLocalPort()));
+				initStream.close();
+				initSocket.close();
+			} catch(Exception e) {
+				System.err.println("ConnectionManager: Error while negotiating connection.");
+				e.printStackTrace();
+				return null;
+			}
+			
+			listener.setSoTimeout(negotiationTimeout);
+			Socket dataSocket = null;
+			
+			try {
+				dataSocket = listener.accept();
+			} catch(SocketTimeoutException ste) {
+				System.err.println("ConnectionManager: Error while negotiating connection.");
+				ste.printStackTrace();
+				return null;
+			}
+			
+			track(dataSocket);
+			return createBundle(dataSocket, false);
+		} finally {
+			listener.close();
+		}
+	}
+	
+	/**
+	 * Opens a listener on a dynamic port for the extra connections of a file transfer.
+	 * The port is sent to the peer over the session, and the peer then connects to it with
+	 * {@link #connectTransferStream(InetAddress, int)}.  Accepts time out after the
+	 * negotiation timeout.
+	 * @return
+	 * @throws IOException if no usable port is available.
+	 */
+	public ServerSocket openTransferListener() throws IOException {
+		ServerSocket listener = createUsableServerSocket();
+		
+		if(listener == null) {
+			throw new IOException("No usable port available for a transfer.");
+		}
+		
+		listener.setSoTimeout(negotiationTimeout);
+		return listener;
+	}
+	
+	/**
+	 * Accepts one connection of a file transfer on a listener from {@link #openTransferListener()}.
+	 * Connections from anywhere other than the peer are turned away.
+	 * @param listener
+	 * @param peer
+	 * @return a framed bundle.
+	 * @throws IOException if the peer doesn't connect in time.
+	 */
+	public StreamBundle acceptTransferStream(ServerSocket listener, InetAddress peer) throws IOException {
+		while(true) {
+			Socket socket = listener.accept();
+			
+			if(!socket.getInetAddress().equals(peer)) {
+				socket.close();
+				continue;
+			}
+			
+			return createBundle(socket, true);
+		}
+	}
+	
+	/**
+	 * Connects one of the extra connections of a file transfer.  The socket comes from a
+	 * {@link SocketChannel}, so file data can be sent on it without being copied.
+	 * @param ipAddress
+	 * @param portNumber
+	 * @return a framed bundle.
+	 * @throws IOException if the connection can't be made, or the port is outside of the
+	 * dynamic port range while outgoing port enforcement is on.
+	 */
+	public StreamBundle connectTransferStream(InetAddress ipAddress, int portNumber) throws IOException {
+		if(outgoingPortEnforcement) {
+			if(portNumber < firstDynamicPort || portNumber > lastDynamicPort) {
+				throw new IOException("Negotiated port was outside of acceptable configured ports.");
+			}
+		}
+		
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(ipAddress, portNumber));
+		return createBundle(channel.socket(), true);
+	}
+	
+	/**
+	 * Starts serving sessions on the control port with a {@link SelectorEngine} instead of
+	 * a blocking thread per session.  Only peers that ask for a single port session can be
+	 * served this way.  The blocking {@link #waitForSessionNegotiation()} can't be used on the
+	 * same control port while the engine is running.
+	 * @param listener receives the session events.
+	 * @param workerThreads the number of threads that session events are dispatched on.
+	 * @return the running engine.
+	 * @throws IOException if the control port can't be bound.
+	 */
+	public SelectorEngine startSelectorEngine(SelectorSessionListener listener, int workerThreads) throws IOException {
+		if(selectorEngine != null && selectorEngine.isRunning()) {
+			throw new IllegalStateException("The selector engine is already running.");
+		}
+		
+		selectorEngine = new SelectorEngine(controlPort, listener, workerThreads, negotiationTimeout);
+		selectorEngine.start();
+		return selectorEngine;
+	}
+	
+	/**
+	 * Returns the running {@link SelectorEngine}, or null if it was never started.
+	 * @return
+	 */
+	public SelectorEngine getSelectorEngine() {
+		return selectorEngine;
+	}
+	
+	/**
+	 * Stops the {@link SelectorEngine}, if it is running, and closes all of its sessions.
+	 */
+	public void stopSelectorEngine() {
+		if(selectorEngine != null) {
+			selectorEngine.shutdown();
+		}
 	}
 	
 	/**
@@ -274,18 +781,40 @@ public class ConnectionManager {
 	
 	/**
 	 * Returns true if we are able to establish a ServerSocket on the specified port.
-	 * Returns false if one can't be made.
+	 * Returns false if one can't be made, or if the port was handed out for one of our
+	 * own sessions.
 	 * @param port
 	 * @return
 	 */
 	public boolean isLocalPortUsable(int port) {
-		try {
-			ServerSocket tempServerSocket = new ServerSocket(port);
-			tempServerSocket.close();
+		return portAllocator.isUsable(port);
+	}
+	
+	/**
+	 * Returns true if the control port can be used to receive sessions.  This is the case
+	 * if our own single port listener is already holding it, or if a ServerSocket could be
+	 * established on it.
+	 * @return
+	 */
+	public boolean isControlPortAvailable() {
+		if(isListening()) {
 			return true;
-		} catch (IOException e) {
-			return false;
 		}
+		
+		return isLocalPortUsable(controlPort);
+	}
+	
+	/**
+	 * Returns true if the persistent control port listener used in single port mode is open,
+	 * or if the {@link SelectorEngine} is serving the control port.
+	 * @return
+	 */
+	public boolean isListening() {
+		if(selectorEngine != null && selectorEngine.isRunning()) {
+			return true;
+		}
+		
+		return controlServerSocket != null && !controlServerSocket.isClosed();
 	}
 	
 	/**
@@ -293,7 +822,7 @@ public class ConnectionManager {
 	 * active socket array list.
 	 * @param remoteIPAddress
 	 */
-	public void closeSocket(InetAddress remoteIPAddress) {
+	public synchronized void closeSocket(InetAddress remoteIPAddress) {
 		for(int i = 0; i<sockets.size(); i++) {
 			if(sockets.get(i).getInetAddress().equals(remoteIPAddress)) {
 				try {
@@ -312,7 +841,7 @@ public class ConnectionManager {
 	 * socket array list.
 	 * @param s
 	 */
-	public void closeSocket(Socket s) {
+	public synchronized void closeSocket(Socket s) {
 		for(int i = 0; i<sockets.size(); i++) {
 			if(sockets.get(i) == s) {
 				try {
@@ -329,34 +858,35 @@ public class ConnectionManager {
 	/**
 	 * Closes the ServerSocket if it is waiting for a connection.
 	 * It will throw a SocketException if the ServerSocket is waiting for a connection.
-	 * It can also throw a NullPointerException if the ServerSocket wasn't initialized.
 	 * It can also throw an IOException if there are any other issues closing the ServerSocket.
+	 * The single port listener is closed as well, and will be reopened the next time
+	 * {@link #waitForSessionNegotiation()} is called.  Sessions it negotiated that were
+	 * never picked up are closed.
 	 * @throws IOException
 	 */
 	public void closeServerSocket() throws IOException {
-		serverSocket.close();
+		if(controlServerSocket != null) {
+			controlServerSocket.close();
+		}
+		
+		StreamBundle unclaimed;
+		while((unclaimed = negotiated.poll()) != null) {
+			closeSocket(unclaimed.getSocket());
+		}
+		
+		if(serverSocket != null) {
+			serverSocket.close();
+		}
 	}
 	
 	/**
 	 * for testing
 	 */
 	public void listServerSocketAvailability() {
-		ServerSocket newServerSocket = null;
-		
-		int portOffset = 0;
-		while(true) {
-			try {
-				if(firstDynamicPort + portOffset > lastDynamicPort) {
-					break;
-				}
-				
-				newServerSocket = new ServerSocket(firstDynamicPort + portOffset);
-				newServerSocket.close();
-			} catch (IOException e) {
-				System.out.println("Can't use " + (firstDynamicPort + portOffset));
+		for(int port = firstDynamicPort; port <= lastDynamicPort; port++) {
+			if(!portAllocator.isUsable(port)) {
+				System.out.println("Can't use " + port);
 			}
-			
-			portOffset++;
 		}
 	}
 	
@@ -375,53 +905,23 @@ public class ConnectionManager {
 		outgoingPortEnforcement = portEnforcement;
 	}
 	
+	//Idle pooled connections are closed from other threads, so the list is only changed while locked.
+	private synchronized void track(Socket socket) {
+		sockets.add(socket);
+	}
+	
+	private StreamBundle createBundle(Socket socket, boolean framed) throws IOException {
+		StreamBundle bundle = new StreamBundle(socket, framed);
+		bundle.setCoalescing(coalesceWindow, byteBudget);
+		return bundle;
+	}
+	
 	/**
-	 * Randomly searches through ephemeral/dynamic ports until an open one is available.  It then creates
-	 * and returns a server socket using that port.  Will return null if no usable ports are available.
+	 * Opens a server socket on a free dynamic port, using the {@link PortAllocator}.  Will return
+	 * null if no usable ports are available.
 	 * @return
 	 */
 	private ServerSocket createUsableServerSocket() {
-		
-		ServerSocket newServerSocket = null;
-		int startingPort = selectRandomStartingPort();
-		int hopefulPort = startingPort;
-		boolean returnedToFirst = false;
-		
-		while(newServerSocket == null) {
-			try {
-				
-				newServerSocket = new ServerSocket(hopefulPort);
-
-			} catch (IOException e) {
-				
-				if(returnedToFirst) {
-					if(hopefulPort == startingPort) {
-						return null;
-					} else {
-						hopefulPort++;
-					}
-				} else {
-					if(hopefulPort >= lastDynamicPort) {
-						hopefulPort = firstDynamicPort;
-						returnedToFirst = true;
-					} else {
-						hopefulPort++;
-					}
-				}
-			}
-		}
-		
-		return newServerSocket;
-	}
-	
-	private int selectRandomStartingPort() {
-		int portRangeSize = lastDynamicPort - firstDynamicPort;
-		
-		double rand = Math.random();
-		rand = rand * portRangeSize;
-		
-		int port = (int) (firstDynamicPort + Math.round(rand));
-		
-		return port;
+		return portAllocator.open(firstDynamicPort, lastDynamicPort);
 	}
 }
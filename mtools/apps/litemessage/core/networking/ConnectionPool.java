@@ -0,0 +1,314 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.apps.litemessage.core.SessionExecutor;
+
+/**
+ * Keeps the connections of finished chats open, one per contact UID, so the next chat with
+ * that contact can start right away instead of negotiating a new connection.
+ * <p>
+ * While a connection is idle, the pool reads from it on the {@link SessionExecutor}.  If the
+ * peer closes it, it is dropped right away.  If the peer starts a new chat on it, the first
+ * frame is pushed back into the bundle and the session is handed to whoever is waiting for
+ * sessions (see {@link #pollIncoming()}).  If we start a new chat on it with
+ * {@link #checkout(String)}, whatever the watcher reads next is pushed back for the new chat
+ * to read once {@link PooledSession#getReleased()} completes.  Connections idle for longer
+ * than the TTL are closed.
+ * @author Noah
+ *
+ */
+public class ConnectionPool {
+	
+	/**
+	 * By default, an idle connection is kept for this long.
+	 */
+	public static final long DEFAULT_IDLE_TTL = 5 * 60 * 1000;
+	
+	//How often idle connections are checked for expiry.
+	private static final long REAP_INTERVAL = 10000;
+	
+	//One thread reaps the idle connections of every pool.
+	private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor((task) -> {
+		Thread t = new Thread(task, "LiteMessage pool reaper");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private final ConnectionManager connectionMan;
+	private final ConcurrentHashMap<String, PooledSession> idle;
+	private final LinkedBlockingQueue<PooledSession> incoming;
+	private final AtomicLong parked;
+	private final AtomicLong reused;
+	private final AtomicLong evicted;
+	private volatile long idleTTL;
+	private volatile boolean enabled;
+	
+	ConnectionPool(ConnectionManager cm) {
+		connectionMan = cm;
+		idle = new ConcurrentHashMap<String, PooledSession>();
+		incoming = new LinkedBlockingQueue<PooledSession>();
+		parked = new AtomicLong();
+		reused = new AtomicLong();
+		evicted = new AtomicLong();
+		idleTTL = DEFAULT_IDLE_TTL;
+		enabled = false;
+		
+		REAPER.scheduleWithFixedDelay(this::reap, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Turns pooling on or off.  Turning it off closes every idle connection.  Off by default.
+	 * @param on
+	 */
+	public void setEnabled(boolean on) {
+		enabled = on;
+		
+		if(!on) {
+			closeAll();
+		}
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Changes how long, in milliseconds, a connection may sit idle before it is closed.
+	 * @param millis
+	 */
+	public void setIdleTTL(long millis) {
+		idleTTL = millis;
+	}
+	
+	public long getIdleTTL() {
+		return idleTTL;
+	}
+	
+	/**
+	 * Keeps the connection of a finished chat for the next one with the same contact.
+	 * An idle connection already kept for that contact is closed.  If pooling is off, the
+	 * connection is closed instead.  Nothing else may read from the bundle afterwards.
+	 * @param uid the peer's UID.
+	 * @param name the peer's display name.
+	 * @param peerFlags the flags of the peer's handshake.
+	 * @param bundle
+	 */
+	public void park(String uid, String name, int peerFlags, StreamBundle bundle) {
+		if(!enabled || uid == null) {
+			close(bundle);
+			return;
+		}
+		
+		try {
+			//Lets the OS notice a peer that disappeared without closing the connection.
+			bundle.getSocket().setKeepAlive(true);
+		} catch(IOException e) {}
+		
+		PooledSession session = new PooledSession(uid, name, peerFlags, bundle);
+		PooledSession old = idle.put(uid, session);
+		if(old != null && old.claim(PooledSession.CLOSED)) {
+			close(old.getBundle());
+		}
+		
+		parked.incrementAndGet();
+		SessionExecutor.getDefault().execute(() -> watch(session));
+	}
+	
+	/**
+	 * Takes the idle connection to the contact with this UID out of the pool, if there is a
+	 * healthy one.  Returns null otherwise.
+	 * @param uid
+	 * @return
+	 */
+	public PooledSession checkout(String uid) {
+		if(uid == null) {
+			return null;
+		}
+		
+		PooledSession session = idle.remove(uid);
+		
+		//The peer may have just started a chat on it, or it may have just been reaped.
+		if(session == null || !session.claim(PooledSession.CLAIMED_LOCALLY)) {
+			return null;
+		}
+		
+		Socket socket = session.getBundle().getSocket();
+		if(socket.isClosed() || System.currentTimeMillis() - session.getParkedAt() > idleTTL) {
+			close(session.getBundle());
+			return null;
+		}
+		
+		session.getBundle().markReused();
+		reused.incrementAndGet();
+		return session;
+	}
+	
+	/**
+	 * Returns true if there is an idle connection to the contact with this UID.
+	 * @param uid
+	 * @return
+	 */
+	public boolean hasIdle(String uid) {
+		return uid != null && idle.containsKey(uid);
+	}
+	
+	/**
+	 * Returns the next idle connection the peer has started a new chat on, or null if there
+	 * isn't one.  Its first frame, the peer's handshake, is waiting in the bundle.
+	 * @return
+	 */
+	public PooledSession pollIncoming() {
+		return incoming.poll();
+	}
+	
+	/**
+	 * Closes every idle connection.
+	 */
+	public void closeAll() {
+		for(PooledSession session : idle.values()) {
+			if(session.claim(PooledSession.CLOSED)) {
+				idle.remove(session.getUID(), session);
+				close(session.getBundle());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of idle connections.
+	 * @return
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+	
+	/**
+	 * Returns how many connections have been put in the pool.
+	 * @return
+	 */
+	public long getParkedCount() {
+		return parked.get();
+	}
+	
+	/**
+	 * Returns how many chats were started over a pooled connection, by either side.
+	 * @return
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+	
+	/**
+	 * Returns how many idle connections were closed for being idle too long, or because the
+	 * peer closed them.
+	 * @return
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+	
+	//Reads the first thing that arrives on an idle connection, and decides what it means.
+	private void watch(PooledSession session) {
+		StreamBundle bundle = session.getBundle();
+		Frame frame = null;
+		
+		try {
+			//A heartbeat sent just before the peer parked its end isn't the start of anything.
+			do {
+				frame = bundle.readFrame();
+			} while(frame.getType() == FrameType.PING || frame.getType() == FrameType.PONG);
+		} catch(IOException e) {
+			//Closed by the peer, or by us.
+			frame = null;
+		}
+		
+		if(session.claim(PooledSession.CLAIMED_REMOTELY)) {
+			idle.remove(session.getUID(), session);
+			
+			if(frame != null && frame.getType() == FrameType.HANDSHAKE) {
+				//The peer started a new chat on it.
+				bundle.pushBack(frame);
+				bundle.markReused();
+				reused.incrementAndGet();
+				incoming.add(session);
+			} else {
+				evicted.incrementAndGet();
+				close(bundle);
+			}
+		} else if(frame != null) {
+			//We took it for a chat of our own, so this is the start of that chat.
+			bundle.pushBack(frame);
+		}
+		
+		session.release();
+	}
+	
+	private void reap() {
+		long now = System.currentTimeMillis();
+		
+		for(PooledSession session : idle.values()) {
+			if(now - session.getParkedAt() > idleTTL && session.claim(PooledSession.CLOSED)) {
+				idle.remove(session.getUID(), session);
+				evicted.incrementAndGet();
+				close(session.getBundle());
+			}
+		}
+	}
+	
+	private void close(StreamBundle bundle) {
+		Socket socket = bundle.getSocket();
+		connectionMan.closeSocket(socket);
+		
+		try {
+			socket.close();
+		} catch(IOException e) {}
+		
+		//Frees the bundle's compressor as well.
+		try {
+			bundle.closeStreams();
+		} catch(IOException e) {}
+	}
+}
@@ -0,0 +1,225 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message on a framed session.  On the wire, a frame is a type byte, a flags byte,
+ * the length of the payload as a varint, and then the payload.  See {@link FrameEncoder}
+ * and {@link FrameDecoder}.
+ * 
+ * Older peers only understand strings sent with writeUTF.  {@link #fromLegacyText(String)}
+ * and {@link #toLegacyText()} convert between the two, so the rest of the program can deal
+ * in frames no matter what kind of peer it is talking to.
+ * @author Noah
+ *
+ */
+public class Frame {
+	
+	/**
+	 * What older peers send instead of an {@link ControlCommand#EXIT} control frame.
+	 */
+	public static final String LEGACY_EXIT_TEXT = "cmd-exit";
+	
+	/**
+	 * Set on a text or file chunk frame whose payload was compressed by a {@link FrameCompressor}.
+	 * Other frame types use their flags for their own purposes.
+	 */
+	public static final int FLAG_COMPRESSED = 0x01;
+	
+	/**
+	 * Set in the flags of a handshake frame by a side that wants to exchange keys and
+	 * encrypt the session.  The low flags of a handshake frame list {@link CompressionCodec}s.
+	 */
+	public static final int FLAG_ENCRYPTION = 0x80;
+	
+	/**
+	 * Set in the flags of a handshake frame by a side that can keep the connection open in a
+	 * {@link ConnectionPool} once the chat ends.  Only done if both sides set it.
+	 */
+	public static final int FLAG_POOLING = 0x40;
+	
+	/**
+	 * Set in the flags of a handshake frame when the session is only being opened ahead of
+	 * time, to be pooled right away rather than start a chat.
+	 */
+	public static final int FLAG_PRECONNECT = 0x20;
+	
+	/**
+	 * Set in the flags of a handshake frame by a side that answers a {@link FrameType#PING}
+	 * with a {@link FrameType#PONG}.  Pings are only sent if both sides set it, since older
+	 * peers skip frame types they don't know without answering.
+	 */
+	public static final int FLAG_HEARTBEAT = 0x10;
+	
+	private final FrameType type;
+	private final int flags;
+	private final byte[] payload;
+	
+	/**
+	 * Creates a frame.  The payload is not copied, so it must not be changed afterwards.
+	 * @param t
+	 * @param f
+	 * @param p
+	 */
+	public Frame(FrameType t, int f, byte[] p) {
+		type = t;
+		flags = f & 0xFF;
+		payload = p;
+	}
+	
+	/**
+	 * Creates a chat message frame.
+	 * @param text
+	 * @return
+	 */
+	public static Frame text(String text) {
+		return new Frame(FrameType.TEXT, 0, text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Creates a control frame carrying a command.
+	 * @param command
+	 * @return
+	 */
+	public static Frame control(ControlCommand command) {
+		return new Frame(FrameType.CONTROL, 0, new byte[] {(byte) command.getCode()});
+	}
+	
+	/**
+	 * Creates a frame asking the peer to show it is still there.
+	 * @return
+	 */
+	public static Frame ping() {
+		return new Frame(FrameType.PING, 0, new byte[0]);
+	}
+	
+	/**
+	 * Creates the answer to a {@link #ping()}.
+	 * @return
+	 */
+	public static Frame pong() {
+		return new Frame(FrameType.PONG, 0, new byte[0]);
+	}
+	
+	/**
+	 * Creates a frame carrying the user info that is swapped when a session starts.
+	 * @param userData
+	 * @return
+	 */
+	public static Frame handshake(String userData) {
+		return new Frame(FrameType.HANDSHAKE, 0, userData.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Creates a frame carrying the user info that is swapped when a session starts.  The
+	 * flags list the {@link CompressionCodec}s this side can handle.  Older peers ignore them.
+	 * @param userData
+	 * @param codecFlags
+	 * @return
+	 */
+	public static Frame handshake(String userData, int codecFlags) {
+		return new Frame(FrameType.HANDSHAKE, codecFlags, userData.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Converts a string received from an older peer into a frame.
+	 * @param text
+	 * @return
+	 */
+	public static Frame fromLegacyText(String text) {
+		if(text.equals(LEGACY_EXIT_TEXT)) {
+			return control(ControlCommand.EXIT);
+		}
+		
+		return text(text);
+	}
+	
+	/**
+	 * Converts this frame into the string an older peer expects.
+	 * @return
+	 */
+	public String toLegacyText() {
+		if(getControlCommand() == ControlCommand.EXIT) {
+			return LEGACY_EXIT_TEXT;
+		}
+		
+		return getText();
+	}
+	
+	public FrameType getType() {
+		return type;
+	}
+	
+	public int getFlags() {
+		return flags;
+	}
+	
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * Returns true if every bit of the flag is set.
+	 * @param flag
+	 * @return
+	 */
+	public boolean hasFlag(int flag) {
+		return (flags & flag) == flag;
+	}
+	
+	/**
+	 * Returns the payload decoded as UTF-8 text.
+	 * @return
+	 */
+	public String getText() {
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Returns the command of a control frame, or null if this isn't a control frame or
+	 * the command isn't known.
+	 * @return
+	 */
+	public ControlCommand getControlCommand() {
+		if(type != FrameType.CONTROL || payload.length < 1) {
+			return null;
+		}
+		
+		return ControlCommand.fromCode(payload[0] & 0xFF);
+	}
+}
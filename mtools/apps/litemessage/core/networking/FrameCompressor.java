@@ -0,0 +1,268 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads for one connection with {@link Deflater} and
+ * {@link Inflater}.  Each payload is compressed on its own, but with the last
+ * {@link #WINDOW_SIZE} bytes of everything compressed before it on the connection as a
+ * preset dictionary, so a chat full of short, similar messages still compresses well.  Both
+ * sides keep the same window, since it's built only from payloads that were sent compressed.
+ * 
+ * A compressed payload is the original length as four bytes, followed by the zlib data.
+ * Payloads that don't get smaller are not compressed at all.
+ * 
+ * The sending half and the receiving half can be used by different threads, but neither half
+ * should be used by more than one thread at a time.  {@link #end()} can be called from any
+ * thread, and either half fails cleanly if it is used afterwards.
+ * @author Noah
+ *
+ */
+public class FrameCompressor {
+	
+	/**
+	 * How much of the earlier payloads is used as the dictionary.  This is as much as
+	 * deflate can look back.
+	 */
+	public static final int WINDOW_SIZE = 32 * 1024;
+	
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] sendWindow;
+	private int sendWindowLength;
+	private byte[] receiveWindow;
+	private int receiveWindowLength;
+	private long compressedFrames;
+	private long skippedFrames;
+	private long bytesIn;
+	private long bytesOut;
+	private boolean sendEnded;
+	private boolean receiveEnded;
+	
+	public FrameCompressor() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * @param level a {@link Deflater} compression level.
+	 */
+	public FrameCompressor(int level) {
+		deflater = new Deflater(level);
+		inflater = new Inflater();
+		sendWindow = new byte[WINDOW_SIZE];
+		receiveWindow = new byte[WINDOW_SIZE];
+		sendWindowLength = 0;
+		receiveWindowLength = 0;
+	}
+	
+	/**
+	 * Compresses the payload.  Returns null if it doesn't get any smaller, in which case it
+	 * should be sent as is.
+	 * @param payload
+	 * @return
+	 */
+	public byte[] compress(byte[] payload) {
+		synchronized(deflater) {
+			return sendEnded ? null : deflate(payload);
+		}
+	}
+	
+	private byte[] deflate(byte[] payload) {
+		if(payload.length <= 4) {
+			skippedFrames++;
+			return null;
+		}
+		
+		deflater.reset();
+		if(sendWindowLength > 0) {
+			deflater.setDictionary(sendWindow, 0, sendWindowLength);
+		}
+		
+		deflater.setInput(payload);
+		deflater.finish();
+		
+		//Anything that doesn't fit in the size of the original isn't worth sending.
+		byte[] out = new byte[payload.length];
+		int length = 4;
+		
+		while(!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		
+		if(!deflater.finished()) {
+			skippedFrames++;
+			return null;
+		}
+		
+		out[0] = (byte) (payload.length >>> 24);
+		out[1] = (byte) (payload.length >>> 16);
+		out[2] = (byte) (payload.length >>> 8);
+		out[3] = (byte) payload.length;
+		
+		sendWindowLength = slide(sendWindow, sendWindowLength, payload);
+		compressedFrames++;
+		bytesIn += payload.length;
+		bytesOut += length;
+		
+		byte[] compressed = new byte[length];
+		System.arraycopy(out, 0, compressed, 0, length);
+		return compressed;
+	}
+	
+	/**
+	 * Decompresses a payload made by {@link #compress(byte[])}.
+	 * @param payload
+	 * @param maxSize the largest payload that will be accepted once decompressed.
+	 * @return
+	 * @throws IOException if the payload is corrupt or too big.
+	 */
+	public byte[] decompress(byte[] payload, int maxSize) throws IOException {
+		synchronized(inflater) {
+			if(receiveEnded) {
+				throw new IOException("The connection's compressor has been closed.");
+			}
+			
+			return inflate(payload, maxSize);
+		}
+	}
+	
+	private byte[] inflate(byte[] payload, int maxSize) throws IOException {
+		if(payload.length < 4) {
+			throw new IOException("Compressed payload is too short.");
+		}
+		
+		int length = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+		
+		if(length < 0 || length > maxSize) {
+			throw new IOException("Compressed payload of " + length + " bytes is larger than the limit of " + maxSize + " bytes.");
+		}
+		
+		byte[] out = new byte[length];
+		inflater.reset();
+		inflater.setInput(payload, 4, payload.length - 4);
+		
+		try {
+			int done = 0;
+			
+			while(!inflater.finished()) {
+				int count = inflater.inflate(out, done, out.length - done);
+				
+				if(count == 0) {
+					if(inflater.needsDictionary()) {
+						inflater.setDictionary(receiveWindow, 0, receiveWindowLength);
+					} else if(inflater.needsInput() || done == out.length) {
+						throw new IOException("Compressed payload is corrupt.");
+					}
+				}
+				
+				done += count;
+			}
+			
+			if(done != length) {
+				throw new IOException("Compressed payload is corrupt.");
+			}
+		} catch(DataFormatException | IllegalArgumentException e) {
+			throw new IOException("Compressed payload is corrupt.", e);
+		}
+		
+		receiveWindowLength = slide(receiveWindow, receiveWindowLength, out);
+		return out;
+	}
+	
+	/**
+	 * Returns the number of payloads that were compressed.
+	 * @return
+	 */
+	public long getCompressedFrames() {
+		return compressedFrames;
+	}
+	
+	/**
+	 * Returns the number of payloads that were sent as is, because they didn't compress.
+	 * @return
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+	
+	/**
+	 * Returns how much smaller the compressed payloads were, as original size over
+	 * compressed size.
+	 * @return
+	 */
+	public double getRatio() {
+		if(bytesOut == 0) {
+			return 1;
+		}
+		
+		return (double) bytesIn / bytesOut;
+	}
+	
+	/**
+	 * Frees the native memory held by the deflater and inflater.  Waits for a payload that is
+	 * being compressed or decompressed to finish first.  Calling it again does nothing.
+	 */
+	public void end() {
+		synchronized(deflater) {
+			sendEnded = true;
+			deflater.end();
+		}
+		
+		synchronized(inflater) {
+			receiveEnded = true;
+			inflater.end();
+		}
+	}
+	
+	//Adds the data to the end of the window, dropping whatever falls off the front.
+	private static int slide(byte[] window, int windowLength, byte[] data) {
+		if(data.length >= window.length) {
+			System.arraycopy(data, data.length - window.length, window, 0, window.length);
+			return window.length;
+		}
+		
+		int keep = Math.min(windowLength, window.length - data.length);
+		System.arraycopy(window, windowLength - keep, window, 0, keep);
+		System.arraycopy(data, 0, window, keep, data.length);
+		return keep + data.length;
+	}
+}
@@ -0,0 +1,279 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads {@link Frame}s written by a {@link FrameEncoder}.  Frames can either be read from a
+ * blocking stream, or pulled out of a buffer as the bytes come in.  Frames of a type this
+ * version doesn't know about are skipped, so new frame types can be added without breaking
+ * older peers.
+ * @author Noah
+ *
+ */
+public class FrameDecoder {
+	
+	/**
+	 * The default largest payload that will be accepted.  Anything bigger is treated as a
+	 * broken or hostile stream.
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+	
+	private int maxPayloadSize;
+	
+	public FrameDecoder() {
+		maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+	}
+	
+	/**
+	 * Changes the largest payload that will be accepted.
+	 * @param size
+	 */
+	public void setMaxPayloadSize(int size) {
+		maxPayloadSize = size;
+	}
+	
+	public int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+	
+	/**
+	 * Blocks until a whole frame has been read from the stream.
+	 * @param in
+	 * @return
+	 * @throws EOFException if the stream ends.
+	 * @throws IOException if the stream is broken, or the frame is too big.
+	 */
+	public Frame readFrame(InputStream in) throws IOException {
+		int[] typeAndFlags = new int[2];
+		
+		while(true) {
+			int length = readHeader(in, typeAndFlags);
+			
+			byte[] payload = new byte[length];
+			int read = 0;
+			while(read < length) {
+				int count = in.read(payload, read, length - read);
+				
+				if(count < 0) {
+					throw new EOFException();
+				}
+				
+				read += count;
+			}
+			
+			FrameType type = FrameType.fromCode(typeAndFlags[0]);
+			
+			//We don't know what this is, so skip it.
+			if(type == null) {
+				continue;
+			}
+			
+			return new Frame(type, typeAndFlags[1], payload);
+		}
+	}
+	
+	/**
+	 * Blocks until the header of the next frame has been read, and returns the length of its
+	 * payload.  The type code and flags are put in the first two slots of the array.  The
+	 * payload is left in the stream, so it can be streamed somewhere without being held in
+	 * memory.  It must be read or skipped before the next frame.
+	 * @param in
+	 * @param typeAndFlags
+	 * @return
+	 * @throws EOFException if the stream ends.
+	 * @throws IOException if the stream is broken, or the frame is too big.
+	 */
+	public int readHeader(InputStream in, int[] typeAndFlags) throws IOException {
+		typeAndFlags[0] = readByte(in);
+		typeAndFlags[1] = readByte(in);
+		int length = 0;
+		int shift = 0;
+		
+		while(true) {
+			int b = readByte(in);
+			length |= (b & 0x7F) << shift;
+			
+			if((b & 0x80) == 0) {
+				break;
+			}
+			
+			shift += 7;
+			if(shift > 28) {
+				throw new IOException("Frame length is malformed.");
+			}
+		}
+		
+		checkLength(length);
+		
+		return length;
+	}
+	
+	/**
+	 * Throws away a payload left in the stream by {@link #readHeader(InputStream, int[])}.
+	 * @param in
+	 * @param length
+	 * @throws IOException
+	 */
+	public void skipPayload(InputStream in, int length) throws IOException {
+		int remaining = length;
+		
+		while(remaining > 0) {
+			long skipped = in.skip(remaining);
+			
+			if(skipped <= 0) {
+				readByte(in);
+				skipped = 1;
+			}
+			
+			remaining -= skipped;
+		}
+	}
+	
+	/**
+	 * Pulls the next whole frame out of the buffer, which must be in read mode.  Returns null,
+	 * and leaves the buffer where it was, if the whole frame hasn't arrived yet.
+	 * @param buffer
+	 * @return
+	 * @throws IOException if the frame is malformed or too big.
+	 */
+	public Frame decode(ByteBuffer buffer) throws IOException {
+		while(true) {
+			int frameLength = peekFrameLength(buffer);
+			
+			if(frameLength < 0 || buffer.remaining() < frameLength) {
+				return null;
+			}
+			
+			int start = buffer.position();
+			int typeCode = buffer.get(start) & 0xFF;
+			int flags = buffer.get(start + 1) & 0xFF;
+			int headerLength = frameLength - readLength(buffer, start + 2);
+			
+			byte[] payload = new byte[frameLength - headerLength];
+			buffer.position(start + headerLength);
+			buffer.get(payload);
+			
+			FrameType type = FrameType.fromCode(typeCode);
+			
+			//We don't know what this is, so skip it.
+			if(type == null) {
+				continue;
+			}
+			
+			return new Frame(type, flags, payload);
+		}
+	}
+	
+	/**
+	 * Returns the total size, header included, of the frame at the start of the buffer.
+	 * Returns -1 if not enough of the header has arrived to tell.
+	 * @param buffer
+	 * @return
+	 * @throws IOException if the frame is malformed or too big.
+	 */
+	public int peekFrameLength(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int end = buffer.limit();
+		
+		if(end - start < 3) {
+			return -1;
+		}
+		
+		int length = 0;
+		int shift = 0;
+		int pos = start + 2;
+		
+		while(true) {
+			if(pos >= end) {
+				return -1;
+			}
+			
+			int b = buffer.get(pos++) & 0xFF;
+			length |= (b & 0x7F) << shift;
+			
+			if((b & 0x80) == 0) {
+				break;
+			}
+			
+			shift += 7;
+			if(shift > 28) {
+				throw new IOException("Frame length is malformed.");
+			}
+		}
+		
+		checkLength(length);
+		
+		return (pos - start) + length;
+	}
+	
+	//Reads a varint that is already known to be complete.
+	private int readLength(ByteBuffer buffer, int pos) {
+		int length = 0;
+		int shift = 0;
+		
+		while(true) {
+			int b = buffer.get(pos++) & 0xFF;
+			length |= (b & 0x7F) << shift;
+			
+			if((b & 0x80) == 0) {
+				return length;
+			}
+			
+			shift += 7;
+		}
+	}
+	
+	private void checkLength(int length) throws IOException {
+		if(length < 0 || length > maxPayloadSize) {
+			throw new IOException("Frame payload of " + length + " bytes is larger than the limit of " + maxPayloadSize + " bytes.");
+		}
+	}
+	
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		
+		if(b < 0) {
+			throw new EOFException();
+		}
+		
+		return b;
+	}
+}
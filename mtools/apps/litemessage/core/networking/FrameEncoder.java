@@ -0,0 +1,127 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes {@link Frame}s in their wire format: a type byte, a flags byte, the payload
+ * length as an unsigned varint (7 bits per byte, low bits first), and then the payload.
+ * An encoder keeps a scratch buffer for the header, so it should not be shared between
+ * threads without synchronizing.
+ * @author Noah
+ *
+ */
+public class FrameEncoder {
+	
+	/**
+	 * The most bytes a header can take.  A type, flags, and a five byte varint.
+	 */
+	public static final int MAX_HEADER_SIZE = 7;
+	
+	private byte[] header;
+	
+	public FrameEncoder() {
+		header = new byte[MAX_HEADER_SIZE];
+	}
+	
+	/**
+	 * Writes the frame to the stream.  It does not flush the stream.
+	 * @param frame
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeFrame(Frame frame, OutputStream out) throws IOException {
+		int headerLength = writeHeader(frame.getType(), frame.getFlags(), frame.getPayload().length, header, 0);
+		out.write(header, 0, headerLength);
+		out.write(frame.getPayload());
+	}
+	
+	/**
+	 * Encodes the frame into a new buffer that is ready to be read from.
+	 * @param frame
+	 * @return
+	 */
+	public ByteBuffer encode(Frame frame) {
+		byte[] payload = frame.getPayload();
+		byte[] encoded = new byte[2 + varintSize(payload.length) + payload.length];
+		int headerLength = writeHeader(frame.getType(), frame.getFlags(), payload.length, encoded, 0);
+		System.arraycopy(payload, 0, encoded, headerLength, payload.length);
+		return ByteBuffer.wrap(encoded);
+	}
+	
+	/**
+	 * Writes a frame header into the array, and returns the number of bytes written.
+	 * @param type
+	 * @param flags
+	 * @param payloadLength
+	 * @param dest
+	 * @param offset
+	 * @return
+	 */
+	public static int writeHeader(FrameType type, int flags, int payloadLength, byte[] dest, int offset) {
+		int pos = offset;
+		dest[pos++] = (byte) type.getCode();
+		dest[pos++] = (byte) flags;
+		
+		int remaining = payloadLength;
+		while((remaining & ~0x7F) != 0) {
+			dest[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		dest[pos++] = (byte) remaining;
+		
+		return pos - offset;
+	}
+	
+	/**
+	 * Returns the number of bytes a length takes as a varint.
+	 * @param value
+	 * @return
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		
+		while((value & ~0x7F) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		
+		return size;
+	}
+}
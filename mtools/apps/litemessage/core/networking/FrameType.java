@@ -0,0 +1,72 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+/**
+ * The kinds of {@link Frame} that can be sent over a session.  The code is what is
+ * actually sent over the wire, so existing codes must never be changed.
+ * @author Noah
+ *
+ */
+public enum FrameType {
+	TEXT(0x01), CONTROL(0x02), HANDSHAKE(0x03), FILE_CHUNK(0x04), FILE_INFO(0x05),
+	TRANSFER_OFFER(0x06), TRANSFER_STATUS(0x07), KEY_EXCHANGE(0x08), PING(0x09), PONG(0x0A);
+	
+	private final int code;
+	
+	private FrameType(int c) {
+		code = c;
+	}
+	
+	public int getCode() {
+		return code;
+	}
+	
+	/**
+	 * Returns the FrameType that matches the code, or null if the code isn't known.
+	 * @param code
+	 * @return
+	 */
+	public static FrameType fromCode(int code) {
+		for(FrameType type : values()) {
+			if(type.code == code) {
+				return type;
+			}
+		}
+		
+		return null;
+	}
+}
@@ -0,0 +1,374 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.apps.litemessage.core.Metrics;
+
+/**
+ * Notices sessions whose peer has gone away without saying so, such as when a NAT drops the
+ * connection or a cable is pulled.  A blocked read never finds out about that on its own, so
+ * the session, its thread and its socket would otherwise be kept forever.
+ * 
+ * Every watched session is checked by one shared thread, which keeps them in a timer wheel:
+ * a ring of {@link #WHEEL_SIZE} buckets, one per {@link #TICK_MILLIS}, where a session is put
+ * in the bucket for the next time it needs looking at.  Each tick only the sessions in one
+ * bucket are checked, so thousands of quiet sessions cost almost nothing.
+ * 
+ * A session counts as active whenever more bytes have been read from its {@link StreamBundle}
+ * since it was last checked, so nothing is added to the read path.  The price is that activity
+ * is only noticed when a session is checked, so quiet times are measured from then, and can be
+ * up to one ping interval short of the truth.
+ * 
+ * If the peer agreed to heartbeats, a {@link FrameType#PING} is sent whenever it has been quiet
+ * for the ping interval, and it is given up on once it has been quiet for the dead timeout.
+ * Peers that can't answer pings are given up on after the idle timeout instead, if there is
+ * one.  Giving up on a session runs the callback it was watched with, which is expected to
+ * close it.
+ * @author Noah
+ *
+ */
+public class HeartbeatMonitor {
+	
+	/**
+	 * How often the wheel moves on to its next bucket.
+	 */
+	public static final long TICK_MILLIS = 1000;
+	
+	/**
+	 * The number of buckets.  Sessions further off than one turn of the wheel wait out the
+	 * extra turns in their bucket.
+	 */
+	public static final int WHEEL_SIZE = 512;
+	
+	/**
+	 * By default, a quiet peer is pinged after this long.
+	 */
+	public static final long DEFAULT_PING_INTERVAL = 30000;
+	
+	/**
+	 * By default, a peer that answers pings is given up on after being quiet this long.
+	 */
+	public static final long DEFAULT_DEAD_TIMEOUT = 90000;
+	
+	/**
+	 * By default, peers that can't answer pings are never given up on.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 0;
+	
+	private static HeartbeatMonitor defaultMonitor = new HeartbeatMonitor();
+	
+	private final ArrayList<ArrayList<Heartbeat>> wheel;
+	private final ConcurrentLinkedQueue<Heartbeat> added;
+	private final AtomicLong pings;
+	private final AtomicLong reaped;
+	private volatile long pingInterval;
+	private volatile long deadTimeout;
+	private volatile long idleTimeout;
+	private int cursor;
+	private long now;
+	private Thread ticker;
+	
+	public HeartbeatMonitor() {
+		wheel = new ArrayList<ArrayList<Heartbeat>>(WHEEL_SIZE);
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayList<Heartbeat>());
+		}
+		
+		added = new ConcurrentLinkedQueue<Heartbeat>();
+		pings = new AtomicLong();
+		reaped = new AtomicLong();
+		pingInterval = DEFAULT_PING_INTERVAL;
+		deadTimeout = DEFAULT_DEAD_TIMEOUT;
+		idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		cursor = 0;
+	}
+	
+	/**
+	 * Returns the monitor used by anything that wasn't given one explicitly.
+	 * @return
+	 */
+	public static HeartbeatMonitor getDefault() {
+		return defaultMonitor;
+	}
+	
+	/**
+	 * Changes the monitor used by anything that wasn't given one explicitly.  This should be
+	 * set at startup, before any sessions are created.
+	 * @param monitor
+	 */
+	public static void setDefault(HeartbeatMonitor monitor) {
+		defaultMonitor = monitor;
+	}
+	
+	/**
+	 * Changes how long a peer that answers pings can be quiet before it is pinged, and before
+	 * it is given up on.  A ping interval of zero turns heartbeats off, so these peers are
+	 * treated like ones that can't answer pings.  Applies to sessions already being watched
+	 * the next time they are checked.
+	 * @param pingMillis
+	 * @param deadMillis should be a few ping intervals, so a lost pong or two isn't fatal.
+	 */
+	public void setHeartbeat(long pingMillis, long deadMillis) {
+		pingInterval = Math.max(0, pingMillis);
+		deadTimeout = Math.max(pingMillis, deadMillis);
+	}
+	
+	/**
+	 * Changes how long a peer that can't answer pings can be quiet before it is given up on.
+	 * Zero means never.  Since a quiet chat and a vanished peer look the same without pings,
+	 * this is best left off except on relays and servers.
+	 * @param millis
+	 */
+	public void setIdleTimeout(long millis) {
+		idleTimeout = Math.max(0, millis);
+	}
+	
+	public long getPingInterval() {
+		return pingInterval;
+	}
+	
+	public long getDeadTimeout() {
+		return deadTimeout;
+	}
+	
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	/**
+	 * Returns true if sessions should offer to answer pings in their handshake.
+	 * @return
+	 */
+	public boolean isHeartbeatEnabled() {
+		return pingInterval > 0;
+	}
+	
+	/**
+	 * Returns how many pings have been sent.
+	 * @return
+	 */
+	public long getPingsSent() {
+		return pings.get();
+	}
+	
+	/**
+	 * Returns how many sessions have been given up on.
+	 * @return
+	 */
+	public long getReaped() {
+		return reaped.get();
+	}
+	
+	/**
+	 * Starts watching a session.  Pings are queued on the outbound queue, and never wait for
+	 * room in it.  The callback is run on the monitor's thread, so it must not block for long.
+	 * @param bundle
+	 * @param queue where pings are sent.  May be null if pinging isn't agreed.
+	 * @param pinging true if both sides agreed to heartbeats with {@link Frame#FLAG_HEARTBEAT}.
+	 * @param onDead closes the session.
+	 * @return the handle used to stop watching the session when it ends.
+	 */
+	public Heartbeat watch(StreamBundle bundle, OutboundQueue queue, boolean pinging, Runnable onDead) {
+		Heartbeat heartbeat = new Heartbeat(bundle, queue, pinging && queue != null, onDead);
+		added.add(heartbeat);
+		startTicker();
+		return heartbeat;
+	}
+	
+	private synchronized void startTicker() {
+		if(ticker != null) {
+			return;
+		}
+		
+		ticker = new Thread(this::tickLoop, "LiteMessage heartbeat");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+	
+	private void tickLoop() {
+		long start = System.nanoTime();
+		long ticks = 0;
+		
+		while(true) {
+			//Sleep until the next tick is due, so slow ticks don't add up.
+			long sleep = (ticks + 1) * TICK_MILLIS - (System.nanoTime() - start) / 1000000;
+			if(sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+			
+			ticks++;
+			now = (System.nanoTime() - start) / 1000000;
+			
+			try {
+				tick();
+			} catch(RuntimeException e) {
+				System.err.println("Error while checking session heartbeats");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Only ever run on the ticker thread, which is the only thing that touches the wheel.
+	private void tick() {
+		cursor = (cursor + 1) % WHEEL_SIZE;
+		ArrayList<Heartbeat> bucket = wheel.get(cursor);
+		
+		//Taken out first, since checking puts sessions back in buckets, possibly this one.
+		ArrayList<Heartbeat> due = new ArrayList<Heartbeat>();
+		for(int i = bucket.size() - 1; i >= 0; i--) {
+			Heartbeat h = bucket.get(i);
+			
+			if(h.cancelled) {
+				bucket.remove(i);
+			} else if(h.rounds > 0) {
+				h.rounds--;
+			} else {
+				bucket.remove(i);
+				due.add(h);
+			}
+		}
+		
+		for(Heartbeat d : due) {
+			check(d);
+		}
+		
+		Heartbeat h;
+		while((h = added.poll()) != null) {
+			h.lastActivity = now;
+			h.lastBytes = h.bundle.getBytesRead().getTotal();
+			schedule(h, nextCheck(h));
+		}
+	}
+	
+	private void check(Heartbeat h) {
+		if(h.bundle.getSocket().isClosed()) {
+			return;
+		}
+		
+		long bytes = h.bundle.getBytesRead().getTotal();
+		if(bytes != h.lastBytes) {
+			h.lastBytes = bytes;
+			h.lastActivity = now;
+		}
+		
+		long quiet = now - h.lastActivity;
+		boolean pinging = h.pinging && pingInterval > 0;
+		long timeout = pinging ? deadTimeout : idleTimeout;
+		
+		if(timeout > 0 && quiet >= timeout) {
+			reaped.incrementAndGet();
+			Metrics.getDefault().sessionReaped();
+			h.cancelled = true;
+			h.onDead.run();
+			return;
+		}
+		
+		if(pinging && quiet >= pingInterval && h.queue.trySend(Frame.ping())) {
+			pings.incrementAndGet();
+		}
+		
+		schedule(h, nextCheck(h));
+	}
+	
+	//How long until the session next needs looking at, if nothing is heard from it.
+	private long nextCheck(Heartbeat h) {
+		long quiet = now - h.lastActivity;
+		
+		if(h.pinging && pingInterval > 0) {
+			//Ping again every interval, until the dead timeout.
+			long nextPing = pingInterval - quiet % pingInterval;
+			return Math.min(nextPing, deadTimeout - quiet);
+		}
+		
+		if(idleTimeout > 0) {
+			return idleTimeout - quiet;
+		}
+		
+		//Nothing to do, but the timeouts could be changed later.
+		return DEFAULT_PING_INTERVAL;
+	}
+	
+	private void schedule(Heartbeat h, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+		h.rounds = (ticks - 1) / WHEEL_SIZE;
+		wheel.get((int) ((cursor + ticks) % WHEEL_SIZE)).add(h);
+	}
+	
+	/**
+	 * A session being watched by a {@link HeartbeatMonitor}.
+	 */
+	public static class Heartbeat {
+		
+		private final StreamBundle bundle;
+		private final OutboundQueue queue;
+		private final boolean pinging;
+		private final Runnable onDead;
+		private volatile boolean cancelled;
+		private long lastActivity;
+		private long lastBytes;
+		private long rounds;
+		
+		private Heartbeat(StreamBundle b, OutboundQueue q, boolean p, Runnable r) {
+			bundle = b;
+			queue = q;
+			pinging = p;
+			onDead = r;
+		}
+		
+		/**
+		 * Stops watching the session.  Call it when the session ends.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		/**
+		 * Returns true if pings are being sent to the peer.
+		 * @return
+		 */
+		public boolean isPinging() {
+			return pinging;
+		}
+	}
+}
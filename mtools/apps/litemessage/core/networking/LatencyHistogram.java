@@ -0,0 +1,196 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies, or any other positive values, and reports percentiles of them.  Values
+ * are counted in buckets that are exact below 128, and above that split every power of two
+ * into 64 buckets, so a reported percentile is within about 1.6% of the real value no matter
+ * how large it is.  Recording never locks or allocates, so it can be done from many threads
+ * on every message.
+ * @author Noah
+ *
+ */
+public class LatencyHistogram {
+	
+	//Values below this are counted exactly.
+	private static final int SUB_BUCKETS = 128;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+	
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+	
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * Counts a value.  Negative values are counted as zero.
+	 * @param value
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+	
+	/**
+	 * Returns how many values have been recorded.
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the largest value recorded.
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the average of the values recorded.
+	 * @return
+	 */
+	public double getMean() {
+		long n = count.get();
+		
+		if(n == 0) {
+			return 0;
+		}
+		
+		return (double) total.get() / n;
+	}
+	
+	/**
+	 * Returns the value that the given percent of recorded values are at or below.  The
+	 * highest value of the bucket it falls in is returned, but never more than {@link #getMax()}.
+	 * @param percentile from 0 to 100.
+	 * @return the value, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		
+		if(n == 0) {
+			return 0;
+		}
+		
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n);
+		if(rank < 1) {
+			rank = 1;
+		}
+		
+		long seen = 0;
+		
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			
+			if(seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		
+		return max.get();
+	}
+	
+	/**
+	 * Forgets everything that has been recorded.  Values recorded at the same time may or
+	 * may not be forgotten.
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+	
+	/**
+	 * Returns the usual percentiles on one line, with the values divided by the given unit,
+	 * such as 1000 to show nanoseconds as microseconds.
+	 * @param unit
+	 * @return
+	 */
+	public String summary(long unit) {
+		return "count=" + getCount()
+				+ " p50=" + getValueAtPercentile(50) / unit
+				+ " p90=" + getValueAtPercentile(90) / unit
+				+ " p99=" + getValueAtPercentile(99) / unit
+				+ " p99.9=" + getValueAtPercentile(99.9) / unit
+				+ " max=" + getMax() / unit;
+	}
+	
+	private static int indexOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		//Keep the top seven bits of the value.  The top one is always set.
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int mantissa = (int) (value >>> shift);
+		return SUB_BUCKETS + (shift - 1) * HALF + (mantissa - HALF);
+	}
+	
+	private static long highestValueOf(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
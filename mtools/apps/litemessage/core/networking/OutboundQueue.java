@@ -0,0 +1,381 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
+
+/**
+ * A bounded queue of frames waiting to be sent on a {@link StreamBundle}, along with the
+ * writer that sends them.  {@link #send(Frame)} returns as soon as the frame is queued, so
+ * a slow or stalled peer never holds up the thread that is sending, such as the Swing
+ * event thread.  What happens when the queue fills up is decided by its {@link OverflowPolicy}.
+ * @author Noah
+ *
+ */
+public class OutboundQueue implements Runnable {
+	
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	private StreamBundle sBundle;
+	private ArrayBlockingQueue<SharedFrame> queue;
+	private OverflowPolicy policy;
+	private AtomicLong enqueued;
+	private AtomicLong dropped;
+	private AtomicLong rejected;
+	private AtomicInteger outstanding;
+	private volatile int highWaterMark;
+	private volatile boolean closed;
+	private volatile IOException failure;
+	private volatile Thread writer;
+	private volatile LatencyHistogram latency;
+	private final Object drainLock;
+	
+	/**
+	 * Creates the queue.  Nothing is sent until {@link #start(SessionExecutor)} is called.
+	 * @param bundle
+	 * @param capacity the most frames that can be waiting.
+	 * @param overflowPolicy
+	 */
+	public OutboundQueue(StreamBundle bundle, int capacity, OverflowPolicy overflowPolicy) {
+		sBundle = bundle;
+		queue = new ArrayBlockingQueue<SharedFrame>(capacity);
+		policy = overflowPolicy;
+		enqueued = new AtomicLong();
+		dropped = new AtomicLong();
+		rejected = new AtomicLong();
+		outstanding = new AtomicInteger();
+		highWaterMark = 0;
+		closed = false;
+		drainLock = new Object();
+	}
+	
+	/**
+	 * Starts the writer on the executor.
+	 * @param executor
+	 */
+	public void start(SessionExecutor executor) {
+		Metrics.getDefault().register(this);
+		executor.execute(this);
+	}
+	
+	/**
+	 * Records how long each frame waited from when it was made until it was written to the
+	 * connection, in nanoseconds.  Several queues can share one histogram.  Null stops recording.
+	 * @param histogram
+	 */
+	public void setLatencyRecorder(LatencyHistogram histogram) {
+		latency = histogram;
+	}
+	
+	/**
+	 * Queues a frame to be sent.  Only blocks if the policy is {@link OverflowPolicy#BLOCK}.
+	 * @param frame
+	 * @throws IOException if the queue is closed, a previous write failed, or the queue is
+	 * full and the policy is {@link OverflowPolicy#FAIL}.
+	 */
+	public void send(Frame frame) throws IOException {
+		send(SharedFrame.single(frame));
+	}
+	
+	/**
+	 * Queues a frame that is going to many peers.  It is sent from its shared encoding.
+	 * See {@link #send(Frame)}.
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void send(SharedFrame frame) throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+		
+		if(closed) {
+			throw new IOException("Outbound queue is closed.");
+		}
+		
+		outstanding.incrementAndGet();
+		
+		switch(policy) {
+		case BLOCK:
+			try {
+				queue.put(frame);
+			} catch(InterruptedException e) {
+				outstanding.decrementAndGet();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for room in the outbound queue.");
+			}
+			break;
+			
+		case DROP_OLDEST:
+			while(!queue.offer(frame)) {
+				SharedFrame oldest = oldestDroppable();
+				
+				if(oldest != null) {
+					if(queue.remove(oldest)) {
+						outstanding.decrementAndGet();
+						dropped.incrementAndGet();
+					}
+				} else if(isDroppable(frame)) {
+					//Everything waiting has to go out, so this is the one thrown away.
+					outstanding.decrementAndGet();
+					dropped.incrementAndGet();
+					return;
+				} else {
+					//Only control frames are waiting, and they go out right away, so wait for room.
+					try {
+						queue.put(frame);
+						break;
+					} catch(InterruptedException e) {
+						outstanding.decrementAndGet();
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for room in the outbound queue.");
+					}
+				}
+			}
+			break;
+			
+		case FAIL:
+			if(!queue.offer(frame)) {
+				outstanding.decrementAndGet();
+				rejected.incrementAndGet();
+				throw new IOException("Outbound queue is full.");
+			}
+			break;
+		}
+		
+		enqueued.incrementAndGet();
+		
+		int depth = queue.size();
+		if(depth > highWaterMark) {
+			highWaterMark = depth;
+		}
+	}
+	
+	//Chat text, and frames going to many peers, can be thrown away.  Control frames,
+	//like exit, and heartbeats never are.
+	private static boolean isDroppable(SharedFrame frame) {
+		return frame.isShared() || frame.getFrame().getType() == FrameType.TEXT;
+	}
+	
+	private SharedFrame oldestDroppable() {
+		for(SharedFrame waiting : queue) {
+			if(isDroppable(waiting)) {
+				return waiting;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Queues a frame if there is room, without ever waiting or throwing, whatever the policy.
+	 * Used for frames that can be lost, such as heartbeats.
+	 * @param frame
+	 * @return false if the queue is full, closed, or a previous write failed.
+	 */
+	public boolean trySend(Frame frame) {
+		if(failure != null || closed) {
+			return false;
+		}
+		
+		outstanding.incrementAndGet();
+		
+		if(!queue.offer(SharedFrame.single(frame))) {
+			outstanding.decrementAndGet();
+			return false;
+		}
+		
+		enqueued.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Waits up to the timeout for everything queued to be sent, and then stops the writer.
+	 * Anything still waiting after that is thrown away.
+	 * @param timeoutMillis
+	 */
+	public void close(long timeoutMillis) {
+		closed = true;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		
+		synchronized(drainLock) {
+			while(outstanding.get() > 0 && failure == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				
+				if(remaining <= 0) {
+					break;
+				}
+				
+				try {
+					drainLock.wait(remaining);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		queue.clear();
+		
+		Thread w = writer;
+		if(w != null) {
+			w.interrupt();
+		}
+	}
+	
+	@Override
+	public void run() {
+		writer = Thread.currentThread();
+		
+		//We may have been closed before we even got started.
+		if(closed) {
+			writer = null;
+			return;
+		}
+		
+		try {
+			while(true) {
+				SharedFrame frame = queue.take();
+				//Control frames, like exit, go out right away, and so do heartbeats.
+				FrameType type = frame.getFrame().getType();
+				boolean flushNow = type == FrameType.CONTROL || type == FrameType.PING || type == FrameType.PONG;
+				
+				if(frame.isShared()) {
+					sBundle.writeFrame(frame, flushNow);
+				} else {
+					sBundle.writeFrame(frame.getFrame(), flushNow);
+				}
+				
+				LatencyHistogram l = latency;
+				if(l != null) {
+					l.record(System.nanoTime() - frame.getCreatedNanos());
+				}
+				
+				if(outstanding.decrementAndGet() == 0) {
+					synchronized(drainLock) {
+						drainLock.notifyAll();
+					}
+				}
+			}
+		} catch(InterruptedException e) {
+			//We were closed.
+		} catch(IOException e) {
+			failure = e;
+			queue.clear();
+			outstanding.set(0);
+		} finally {
+			writer = null;
+			
+			synchronized(drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of frames waiting to be sent.
+	 * @return
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+	
+	/**
+	 * Returns the number of frames that are waiting, or being written, but haven't been
+	 * handed to the connection yet.
+	 * @return
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+	
+	/**
+	 * Returns the most frames that have ever been waiting at once.
+	 * @return
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+	
+	/**
+	 * Returns the number of frames that have been queued.
+	 * @return
+	 */
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+	
+	/**
+	 * Returns the number of frames thrown away by {@link OverflowPolicy#DROP_OLDEST}.
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Returns the number of frames refused by {@link OverflowPolicy#FAIL}.
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Returns true once the queue has been closed.  Nothing more can be sent after that.
+	 * @return
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Returns the error that stopped the writer, or null if it hasn't failed.
+	 * @return
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+}
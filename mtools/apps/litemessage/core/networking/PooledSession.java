@@ -0,0 +1,121 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection sitting idle in a {@link ConnectionPool}, along with what is needed to chat
+ * over it again without another handshake: who the peer is, and the flags it sent.
+ * @author Noah
+ *
+ */
+public class PooledSession {
+	
+	static final int IDLE = 0;
+	static final int CLAIMED_LOCALLY = 1;
+	static final int CLAIMED_REMOTELY = 2;
+	static final int CLOSED = 3;
+	
+	private final String uid;
+	private final String name;
+	private final int peerFlags;
+	private final StreamBundle bundle;
+	private final long parkedAt;
+	private final AtomicInteger state;
+	private final CompletableFuture<Void> released;
+	
+	PooledSession(String uid, String name, int peerFlags, StreamBundle bundle) {
+		this.uid = uid;
+		this.name = name;
+		this.peerFlags = peerFlags;
+		this.bundle = bundle;
+		parkedAt = System.currentTimeMillis();
+		state = new AtomicInteger(IDLE);
+		released = new CompletableFuture<Void>();
+	}
+	
+	//Moves the session out of IDLE.  Only one of the pool, the watcher, and the reaper wins.
+	boolean claim(int newState) {
+		return state.compareAndSet(IDLE, newState);
+	}
+	
+	int getState() {
+		return state.get();
+	}
+	
+	void release() {
+		released.complete(null);
+	}
+	
+	public String getUID() {
+		return uid;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the flags the peer sent in its handshake when the connection was first set up.
+	 * @return
+	 */
+	public int getPeerFlags() {
+		return peerFlags;
+	}
+	
+	public StreamBundle getBundle() {
+		return bundle;
+	}
+	
+	/**
+	 * Returns when the connection was put in the pool.
+	 * @return
+	 */
+	public long getParkedAt() {
+		return parkedAt;
+	}
+	
+	/**
+	 * Completes once the pool has stopped watching the connection, and it is safe to read from it.
+	 * @return
+	 */
+	public CompletableFuture<Void> getReleased() {
+		return released;
+	}
+}
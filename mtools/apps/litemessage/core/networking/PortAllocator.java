@@ -0,0 +1,463 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.apps.litemessage.core.Metrics;
+
+/**
+ * Hands out listening sockets on the dynamic ports.  The operating system is first asked for
+ * one of its ephemeral ports, which costs a single bind.  If that port falls outside of the
+ * dynamic port range, a free port is looked up in a bitmap of the range instead.
+ * <p>
+ * The bitmap holds the ports this allocator has handed out and not yet gotten back, and the
+ * ports that were recently released or that failed to bind.  The latter are skipped for
+ * between one and two {@link #AVOID_TTL}s, so a busy host doesn't cost a failed bind on
+ * every port in use for every session.  Sockets from {@link #open(int, int)} give their port
+ * back when they are closed.
+ * @author Noah
+ *
+ */
+public class PortAllocator {
+	
+	/**
+	 * How long, in milliseconds, a released or unbindable port is at least skipped for.
+	 */
+	public static final long AVOID_TTL = 30000;
+	
+	//How many ephemeral binds are tried before searching the bitmap.
+	private static final int EPHEMERAL_ATTEMPTS = 2;
+	
+	//After this many ephemeral binds without one landing in the range, they aren't tried for that range anymore.
+	private static final int EPHEMERAL_GIVE_UP = 8;
+	
+	private static final int PORTS = 65536;
+	
+	private final long[] allocated;
+	private long[] avoid;
+	private long[] avoidOld;
+	private long rotatedAt;
+	
+	private volatile boolean preferEphemeral;
+	private int ephemeralFirst;
+	private int ephemeralLast;
+	private int ephemeralTries;
+	private int ephemeralRangeHits;
+	private boolean ephemeralUseless;
+	
+	private final AtomicLong allocations;
+	private final AtomicLong releases;
+	private final AtomicLong failedBinds;
+	private final AtomicLong exhausted;
+	private final AtomicLong ephemeralHits;
+	private final AtomicLong ephemeralMisses;
+	private final AtomicLong totalNanos;
+	private final AtomicLong maxNanos;
+	
+	public PortAllocator() {
+		allocated = new long[PORTS / 64];
+		avoid = new long[PORTS / 64];
+		avoidOld = new long[PORTS / 64];
+		rotatedAt = System.currentTimeMillis();
+		preferEphemeral = true;
+		
+		allocations = new AtomicLong();
+		releases = new AtomicLong();
+		failedBinds = new AtomicLong();
+		exhausted = new AtomicLong();
+		ephemeralHits = new AtomicLong();
+		ephemeralMisses = new AtomicLong();
+		totalNanos = new AtomicLong();
+		maxNanos = new AtomicLong();
+	}
+	
+	/**
+	 * Sets whether the operating system is asked for a port before the bitmap is searched.
+	 * On by default.
+	 * @param prefer
+	 */
+	public void setPreferEphemeral(boolean prefer) {
+		preferEphemeral = prefer;
+	}
+	
+	public boolean isPreferEphemeral() {
+		return preferEphemeral;
+	}
+	
+	/**
+	 * Opens a listening socket on a free port between first and last, inclusive.  The port is
+	 * given back when the socket is closed.  Returns null if no port in the range could be bound.
+	 * @param first
+	 * @param last
+	 * @return
+	 */
+	public ServerSocket open(int first, int last) {
+		long start = System.nanoTime();
+		ServerSocket socket = null;
+		
+		if(tryEphemeral(first, last)) {
+			socket = openEphemeral(first, last);
+		}
+		
+		if(socket == null) {
+			socket = searchBitmap(first, last, true);
+		}
+		
+		//Every port was skipped or failed.  The skipped ones might be free again by now.
+		if(socket == null) {
+			socket = searchBitmap(first, last, false);
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		totalNanos.addAndGet(elapsed);
+		maxNanos.accumulateAndGet(elapsed, Math::max);
+		
+		if(socket == null) {
+			exhausted.incrementAndGet();
+			Metrics.getDefault().portAllocationFailed();
+		} else {
+			allocations.incrementAndGet();
+		}
+		
+		return socket;
+	}
+	
+	/**
+	 * Returns true if the port is not held by this allocator and a ServerSocket can be
+	 * established on it.  Ports held by this allocator are answered without a bind.
+	 * @param port
+	 * @return
+	 */
+	public boolean isUsable(int port) {
+		synchronized(this) {
+			if(isSet(allocated, port)) {
+				return false;
+			}
+		}
+		
+		try {
+			ServerSocket probe = new ServerSocket(port);
+			probe.close();
+			return true;
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns true if this allocator has handed out the port and not gotten it back yet.
+	 * @param port
+	 * @return
+	 */
+	public synchronized boolean isAllocated(int port) {
+		return isSet(allocated, port);
+	}
+	
+	/**
+	 * Returns how many sockets have been handed out.
+	 * @return
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+	
+	/**
+	 * Returns how many handed out sockets have been closed.
+	 * @return
+	 */
+	public long getReleases() {
+		return releases.get();
+	}
+	
+	/**
+	 * Returns how many binds failed while searching the bitmap.
+	 * @return
+	 */
+	public long getFailedBinds() {
+		return failedBinds.get();
+	}
+	
+	/**
+	 * Returns how many times no port in the range could be bound.
+	 * @return
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+	
+	/**
+	 * Returns how many ports the operating system chose within the range.
+	 * @return
+	 */
+	public long getEphemeralHits() {
+		return ephemeralHits.get();
+	}
+	
+	/**
+	 * Returns how many ports the operating system chose outside of the range.
+	 * @return
+	 */
+	public long getEphemeralMisses() {
+		return ephemeralMisses.get();
+	}
+	
+	/**
+	 * Returns the average time, in nanoseconds, that {@link #open(int, int)} took.
+	 * @return
+	 */
+	public long getAverageLatencyNanos() {
+		long count = allocations.get() + exhausted.get();
+		
+		if(count == 0) {
+			return 0;
+		}
+		
+		return totalNanos.get() / count;
+	}
+	
+	/**
+	 * Returns the longest time, in nanoseconds, that {@link #open(int, int)} took.
+	 * @return
+	 */
+	public long getMaxLatencyNanos() {
+		return maxNanos.get();
+	}
+	
+	void release(int port) {
+		synchronized(this) {
+			clear(allocated, port);
+			set(avoid, port);
+		}
+		
+		releases.incrementAndGet();
+	}
+	
+	//Whether the operating system is worth asking for a port in this range.
+	private synchronized boolean tryEphemeral(int first, int last) {
+		if(!preferEphemeral || first == last) {
+			return false;
+		}
+		
+		if(first != ephemeralFirst || last != ephemeralLast) {
+			ephemeralFirst = first;
+			ephemeralLast = last;
+			ephemeralTries = 0;
+			ephemeralRangeHits = 0;
+			ephemeralUseless = false;
+		}
+		
+		return !ephemeralUseless;
+	}
+	
+	private ServerSocket openEphemeral(int first, int last) {
+		for(int i = 0; i < EPHEMERAL_ATTEMPTS; i++) {
+			AllocatedServerSocket socket = null;
+			
+			try {
+				socket = new AllocatedServerSocket();
+				socket.bind(new InetSocketAddress(0));
+			} catch(IOException e) {
+				closeQuietly(socket);
+				return null;
+			}
+			
+			int port = socket.getLocalPort();
+			
+			synchronized(this) {
+				if(port >= first && port <= last && !isSet(allocated, port)) {
+					set(allocated, port);
+					socket.port = port;
+					ephemeralRangeHits++;
+					ephemeralHits.incrementAndGet();
+					return socket;
+				}
+				
+				ephemeralMisses.incrementAndGet();
+				
+				if(first == ephemeralFirst && last == ephemeralLast && ++ephemeralTries >= EPHEMERAL_GIVE_UP && ephemeralRangeHits == 0) {
+					ephemeralUseless = true;
+				}
+			}
+			
+			closeQuietly(socket);
+		}
+		
+		return null;
+	}
+	
+	private ServerSocket searchBitmap(int first, int last, boolean skipAvoided) {
+		int start = first + ThreadLocalRandom.current().nextInt(last - first + 1);
+		
+		ServerSocket socket = openFromBitmap(start, last, skipAvoided);
+		
+		if(socket == null && start > first) {
+			socket = openFromBitmap(first, start - 1, skipAvoided);
+		}
+		
+		return socket;
+	}
+	
+	//Binds the first free port from 'from' to 'to' that will bind.
+	private ServerSocket openFromBitmap(int from, int to, boolean skipAvoided) {
+		while(true) {
+			int port;
+			
+			synchronized(this) {
+				rotateAvoided();
+				port = nextFree(from, to, skipAvoided);
+				
+				if(port < 0) {
+					return null;
+				}
+				
+				//Reserved before binding, so another thread doesn't try the same port.
+				set(allocated, port);
+			}
+			
+			AllocatedServerSocket socket = null;
+			
+			try {
+				socket = new AllocatedServerSocket();
+				socket.bind(new InetSocketAddress(port));
+				socket.port = port;
+				return socket;
+			} catch(IOException e) {
+				closeQuietly(socket);
+				failedBinds.incrementAndGet();
+				
+				synchronized(this) {
+					clear(allocated, port);
+					set(avoid, port);
+				}
+			}
+			
+			from = port + 1;
+		}
+	}
+	
+	//Returns the first port from 'from' to 'to' that isn't allocated, or avoided if asked, or -1.
+	private int nextFree(int from, int to, boolean skipAvoided) {
+		if(from > to) {
+			return -1;
+		}
+		
+		int word = from >>> 6;
+		int lastWord = to >>> 6;
+		long mask = -1L << (from & 63);
+		
+		for(; word <= lastWord; word++) {
+			long taken = allocated[word];
+			
+			if(skipAvoided) {
+				taken |= avoid[word] | avoidOld[word];
+			}
+			
+			long free = ~taken & mask;
+			mask = -1L;
+			
+			if(free != 0) {
+				int port = (word << 6) + Long.numberOfTrailingZeros(free);
+				return port <= to ? port : -1;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private void rotateAvoided() {
+		long now = System.currentTimeMillis();
+		
+		if(now - rotatedAt < AVOID_TTL) {
+			return;
+		}
+		
+		long[] cleared = avoidOld;
+		Arrays.fill(cleared, 0);
+		avoidOld = avoid;
+		avoid = cleared;
+		rotatedAt = now;
+	}
+	
+	private static boolean isSet(long[] bits, int port) {
+		return (bits[port >>> 6] & (1L << (port & 63))) != 0;
+	}
+	
+	private static void set(long[] bits, int port) {
+		bits[port >>> 6] |= 1L << (port & 63);
+	}
+	
+	private static void clear(long[] bits, int port) {
+		bits[port >>> 6] &= ~(1L << (port & 63));
+	}
+	
+	private static void closeQuietly(ServerSocket socket) {
+		if(socket == null) {
+			return;
+		}
+		
+		try {
+			socket.close();
+		} catch(IOException e) {}
+	}
+	
+	//Gives its port back to the allocator when it is closed.
+	private class AllocatedServerSocket extends ServerSocket {
+		
+		private volatile int port = -1;
+		
+		AllocatedServerSocket() throws IOException {
+			super();
+		}
+		
+		@Override
+		public synchronized void close() throws IOException {
+			int held = port;
+			port = -1;
+			super.close();
+			
+			if(held >= 0) {
+				release(held);
+			}
+		}
+	}
+}
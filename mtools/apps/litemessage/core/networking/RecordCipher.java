@@ -0,0 +1,155 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals or opens the records sent in one direction of an encrypted session.  The same
+ * {@link Cipher} is used for every record, and each record's nonce is a counter, so the two
+ * sides stay in step without sending nonces.  Since records are numbered, one that is
+ * dropped, replayed, or moved fails to open.  Each direction must have its own key.
+ * 
+ * A RecordCipher is not thread safe.
+ * @author Noah
+ *
+ */
+public class RecordCipher {
+	
+	/**
+	 * The bytes an authentication tag adds to every record.
+	 */
+	public static final int TAG_SIZE = 16;
+	
+	private static final int NONCE_SIZE = 12;
+	
+	private CipherSuite suite;
+	private Cipher cipher;
+	private SecretKeySpec key;
+	private int mode;
+	private byte[] nonce;
+	private long counter;
+	
+	/**
+	 * @param cipherSuite
+	 * @param keyBytes a 256 bit key.
+	 * @param encrypt true to seal records, false to open them.
+	 * @throws GeneralSecurityException if the suite isn't available.
+	 */
+	public RecordCipher(CipherSuite cipherSuite, byte[] keyBytes, boolean encrypt) throws GeneralSecurityException {
+		suite = cipherSuite;
+		cipher = Cipher.getInstance(suite.getTransformation());
+		key = new SecretKeySpec(keyBytes, suite.getKeyAlgorithm());
+		mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+		nonce = new byte[NONCE_SIZE];
+		counter = 0;
+	}
+	
+	/**
+	 * Encrypts a record into the output, and returns the number of bytes written, which is
+	 * the length plus {@link #TAG_SIZE}.
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 * @return
+	 * @throws IOException if the record can't be sealed.
+	 */
+	public int seal(byte[] in, int offset, int length, byte[] out, int outOffset) throws IOException {
+		try {
+			cipher.init(mode, key, nextParameters());
+			return cipher.doFinal(in, offset, length, out, outOffset);
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Could not encrypt a record.", e);
+		}
+	}
+	
+	/**
+	 * Decrypts a record into the output, and returns the number of bytes written.
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 * @return
+	 * @throws IOException if the record has been tampered with, or is out of order.
+	 */
+	public int open(byte[] in, int offset, int length, byte[] out, int outOffset) throws IOException {
+		try {
+			cipher.init(mode, key, nextParameters());
+			return cipher.doFinal(in, offset, length, out, outOffset);
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Received a record that could not be authenticated.", e);
+		}
+	}
+	
+	public CipherSuite getSuite() {
+		return suite;
+	}
+	
+	/**
+	 * Returns the number of records sealed or opened.
+	 * @return
+	 */
+	public long getRecords() {
+		return counter;
+	}
+	
+	//The nonce is four zero bytes followed by the record number.
+	private AlgorithmParameterSpec nextParameters() {
+		long n = counter++;
+		
+		for(int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--) {
+			nonce[i] = (byte) n;
+			n >>>= 8;
+		}
+		
+		if(suite == CipherSuite.AES_GCM) {
+			return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+		}
+		
+		return new IvParameterSpec(nonce);
+	}
+}
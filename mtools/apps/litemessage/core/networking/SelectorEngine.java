@@ -0,0 +1,476 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mtools.apps.litemessage.core.Metrics;
+
+/**
+ * Serves every session on the control port from a single selector thread, instead of
+ * holding a blocked thread per connection.  Reads and writes are non-blocking, incoming
+ * frames are reassembled per connection, and complete {@link Frame}s are handed to a small pool
+ * of worker threads through a {@link SelectorSessionListener}.
+ * 
+ * Peers have to ask for a single port session (see {@link ConnectionManager#setSinglePortMode(boolean)}).
+ * Older peers that expect to be handed off to a data port are dropped once the negotiation
+ * timeout passes.  Use the blocking {@link ConnectionManager#waitForSessionNegotiation()} if
+ * those peers need to be served.
+ * @author Noah
+ *
+ */
+public class SelectorEngine extends Thread {
+	
+	public static final int DEFAULT_WORKER_THREADS = 4;
+	
+	//How often the selector wakes up on its own to check for stalled negotiations.
+	private static final int SELECT_TIMEOUT = 500;
+	
+	//The largest string that writeUTF can produce, including the length.
+	private static final int MAX_UTF_FRAME_SIZE = 65535 + 2;
+	
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectorSessionListener listener;
+	private ExecutorService workers;
+	private ConcurrentLinkedQueue<SelectorSession> serviceRequests;
+	private Set<SelectorSession> sessions;
+	private int negotiationTimeout;
+	private volatile boolean running;
+	
+	/**
+	 * Binds the port and sets up the engine.  Nothing is accepted until {@link #start()} is called.
+	 * @param port the port to accept sessions on.
+	 * @param l receives the session events.
+	 * @param workerThreads the number of threads that events are dispatched on.
+	 * @param timeout milliseconds a new connection has to finish negotiating.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public SelectorEngine(int port, SelectorSessionListener l, int workerThreads, int timeout) throws IOException {
+		listener = l;
+		negotiationTimeout = timeout;
+		serviceRequests = new ConcurrentLinkedQueue<SelectorSession>();
+		sessions = ConcurrentHashMap.newKeySet();
+		
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		
+		try {
+			serverChannel.bind(new InetSocketAddress(port));
+		} catch(IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		workers = Executors.newFixedThreadPool(workerThreads);
+		running = true;
+		
+		this.setName("LiteMessage selector");
+		this.setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while(running) {
+				selector.select(SELECT_TIMEOUT);
+				
+				serviceRequestedSessions();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					if(!key.isValid()) {
+						continue;
+					}
+					
+					if(key.isAcceptable()) {
+						acceptSession();
+						continue;
+					}
+					
+					SelectorSession session = (SelectorSession) key.attachment();
+					
+					try {
+						if(key.isReadable()) {
+							readFromSession(session);
+						}
+						
+						if(key.isValid() && key.isWritable()) {
+							writeToSession(session);
+						}
+					} catch(IOException e) {
+						closeSession(session);
+					}
+				}
+				
+				dropStalledNegotiations();
+			}
+		} catch(IOException e) {
+			System.err.println("SelectorEngine: Selector failed.");
+			e.printStackTrace();
+		} finally {
+			tearDown();
+		}
+	}
+	
+	/**
+	 * Stops accepting sessions and closes every open session.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Returns true until the engine has been shut down.
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Returns every session that is currently connected, including ones still negotiating.
+	 * @return
+	 */
+	public Set<SelectorSession> getSessions() {
+		return sessions;
+	}
+	
+	/**
+	 * Returns the number of sessions that are currently connected.
+	 * @return
+	 */
+	public int getNumOfSessions() {
+		return sessions.size();
+	}
+	
+	/**
+	 * Asks the selector thread to look at a session's pending writes or close request.
+	 * @param session
+	 */
+	void requestService(SelectorSession session) {
+		serviceRequests.add(session);
+		selector.wakeup();
+	}
+	
+	private void serviceRequestedSessions() {
+		SelectorSession session;
+		
+		while((session = serviceRequests.poll()) != null) {
+			if(session.isClosed() || session.getKey() == null) {
+				continue;
+			}
+			
+			try {
+				writeToSession(session);
+			} catch(IOException e) {
+				closeSession(session);
+			}
+		}
+	}
+	
+	private void acceptSession() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		
+		if(channel == null) {
+			return;
+		}
+		
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		
+		SelectorSession session = new SelectorSession(this, channel);
+		session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+		sessions.add(session);
+	}
+	
+	/**
+	 * Reads whatever is available, and then pulls every complete frame out of the buffer.
+	 * Partial frames are left in the buffer until the rest arrives.  The negotiation is
+	 * always a writeUTF string, but a framed session switches over to frames right after it,
+	 * possibly in the middle of the buffer.
+	 */
+	private void readFromSession(SelectorSession session) throws IOException {
+		ByteBuffer buffer = session.getReadBuffer();
+		int read = session.getChannel().read(buffer);
+		
+		if(read == -1) {
+			closeSession(session);
+			return;
+		}
+		
+		Metrics.getDefault().bytesIn(read);
+		buffer.flip();
+		
+		while(true) {
+			if(session.isFramed()) {
+				Frame frame = session.getDecoder().decode(buffer);
+				
+				if(frame == null) {
+					break;
+				}
+				
+				dispatch(session, () -> listener.frameReceived(session, frame));
+			} else {
+				int frameLength = peekUTFLength(buffer);
+				
+				if(frameLength < 0 || buffer.remaining() < frameLength) {
+					break;
+				}
+				
+				byte[] utf = new byte[frameLength];
+				buffer.get(utf);
+				utfReceived(session, new DataInputStream(new ByteArrayInputStream(utf)).readUTF());
+			}
+			
+			if(session.isClosed()) {
+				return;
+			}
+		}
+		
+		buffer.compact();
+		
+		//Make sure there's room for the rest of the frame we are waiting on.
+		ByteBuffer pending = buffer.duplicate();
+		pending.flip();
+		
+		int frameLength;
+		int maxFrameLength;
+		
+		if(session.isFramed()) {
+			frameLength = session.getDecoder().peekFrameLength(pending);
+			maxFrameLength = session.getDecoder().getMaxPayloadSize() + FrameEncoder.MAX_HEADER_SIZE;
+		} else {
+			frameLength = peekUTFLength(pending);
+			maxFrameLength = MAX_UTF_FRAME_SIZE;
+		}
+		
+		if(frameLength > buffer.capacity()) {
+			session.growReadBuffer(Math.min(Math.max(frameLength, buffer.capacity() * 2), maxFrameLength));
+		}
+	}
+	
+	//Returns the size of the writeUTF string at the start of the buffer, or -1 if the length hasn't arrived yet.
+	private int peekUTFLength(ByteBuffer buffer) {
+		if(buffer.remaining() < 2) {
+			return -1;
+		}
+		
+		int pos = buffer.position();
+		return 2 + (((buffer.get(pos) & 0xFF) << 8) | (buffer.get(pos + 1) & 0xFF));
+	}
+	
+	private void utfReceived(SelectorSession session, String message) throws IOException {
+		if(session.isNegotiated()) {
+			Frame frame = Frame.fromLegacyText(message);
+			dispatch(session, () -> listener.frameReceived(session, frame));
+			return;
+		}
+		
+		boolean framed = message.equals(ConnectionManager.FRAMED_SESSION_REQUEST);
+		
+		if(!framed && !message.equals(ConnectionManager.SINGLE_PORT_REQUEST)) {
+			System.err.println("SelectorEngine: Unexpected negotiation request.");
+			closeSession(session);
+			return;
+		}
+		
+		if(framed) {
+			session.getWriteQueue().add(SelectorSession.encodeUTF(ConnectionManager.FRAMED_SESSION_ACCEPT));
+		} else {
+			session.getWriteQueue().add(SelectorSession.encodeUTF(ConnectionManager.SINGLE_PORT_ACCEPT));
+		}
+		
+		session.setNegotiated(framed);
+		writeToSession(session);
+		dispatch(session, () -> listener.sessionOpened(session));
+	}
+	
+	/**
+	 * Writes as much of the queue as the socket will take.  Everything that is queued is
+	 * handed to the socket in a single gathering write, so a burst of small frames doesn't
+	 * turn into a burst of small writes.  If the socket can't take all of it, we wait for
+	 * it to become writable again.
+	 */
+	private void writeToSession(SelectorSession session) throws IOException {
+		ConcurrentLinkedQueue<ByteBuffer> queue = session.getWriteQueue();
+		ByteBuffer[] batch = session.getWriteBatch();
+		
+		while(!queue.isEmpty()) {
+			int count = 0;
+			for(ByteBuffer buffer : queue) {
+				if(count == batch.length) {
+					break;
+				}
+				batch[count++] = buffer;
+			}
+			
+			Metrics.getDefault().bytesOut(session.getChannel().write(batch, 0, count));
+			
+			//Drop everything that was completely written.
+			int written = 0;
+			while(written < count && !batch[written].hasRemaining()) {
+				queue.poll();
+				written++;
+			}
+			
+			Arrays.fill(batch, 0, count, null);
+			
+			if(written < count) {
+				session.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		
+		if(session.isCloseRequested()) {
+			closeSession(session);
+			return;
+		}
+		
+		session.getKey().interestOps(SelectionKey.OP_READ);
+	}
+	
+	private void dropStalledNegotiations() {
+		if(negotiationTimeout <= 0) {
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		ArrayList<SelectorSession> stalled = new ArrayList<SelectorSession>();
+		
+		for(SelectorSession session : sessions) {
+			if(!session.isNegotiated() && now - session.getAcceptedTime() > negotiationTimeout) {
+				stalled.add(session);
+			}
+		}
+		
+		for(SelectorSession session : stalled) {
+			closeSession(session);
+		}
+	}
+	
+	private void closeSession(SelectorSession session) {
+		if(session.isClosed()) {
+			return;
+		}
+		
+		session.setClosed();
+		sessions.remove(session);
+		
+		if(session.getKey() != null) {
+			session.getKey().cancel();
+		}
+		
+		try {
+			session.getChannel().close();
+		} catch(IOException e) {}
+		
+		if(session.isNegotiated()) {
+			dispatch(session, () -> listener.sessionClosed(session));
+		}
+	}
+	
+	/**
+	 * Hands an event to the worker pool.  Each session only ever has one worker running its
+	 * events at a time, so a session's events are always delivered in order.
+	 */
+	private void dispatch(SelectorSession session, Runnable event) {
+		session.getEvents().add(event);
+		
+		if(session.getDispatching().compareAndSet(false, true)) {
+			workers.execute(() -> drainEvents(session));
+		}
+	}
+	
+	private void drainEvents(SelectorSession session) {
+		while(true) {
+			Runnable event;
+			
+			while((event = session.getEvents().poll()) != null) {
+				try {
+					event.run();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+			
+			session.getDispatching().set(false);
+			
+			//Something might have been added after we emptied the queue, but before
+			//we cleared the flag.  If so, and nobody else picked it up, keep going.
+			if(session.getEvents().isEmpty() || !session.getDispatching().compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+	
+	private void tearDown() {
+		for(SelectorSession session : new ArrayList<SelectorSession>(sessions)) {
+			closeSession(session);
+		}
+		
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch(IOException e) {}
+		
+		workers.shutdown();
+	}
+}
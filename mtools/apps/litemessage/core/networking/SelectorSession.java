@@ -0,0 +1,279 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single non-blocking connection that is served by a {@link SelectorEngine}.  This is the
+ * selector based counterpart to a {@link StreamBundle}.  Data goes over the wire the same way
+ * as it does with a StreamBundle, so a peer using blocking streams can't tell the difference.
+ * Writes are queued and sent by the engine's selector thread, so {@link #writeFrame(Frame)}
+ * never blocks and is safe to call from any thread.
+ * @author Noah
+ *
+ */
+public class SelectorSession {
+	
+	private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+	
+	//The most queued buffers handed to the socket in one gathering write.
+	private static final int WRITE_BATCH_SIZE = 64;
+	
+	private SelectorEngine engine;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private FrameEncoder encoder;
+	private FrameDecoder decoder;
+	private ConcurrentLinkedQueue<ByteBuffer> writeQueue;
+	private ByteBuffer[] writeBatch;
+	private ConcurrentLinkedQueue<Runnable> events;
+	private AtomicBoolean dispatching;
+	private long acceptedTime;
+	private volatile boolean negotiated;
+	private volatile boolean framed;
+	private volatile boolean closeRequested;
+	private volatile boolean closed;
+	private volatile Object attachment;
+	
+	SelectorSession(SelectorEngine e, SocketChannel c) {
+		engine = e;
+		channel = c;
+		readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+		encoder = new FrameEncoder();
+		decoder = new FrameDecoder();
+		writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+		events = new ConcurrentLinkedQueue<Runnable>();
+		dispatching = new AtomicBoolean(false);
+		acceptedTime = System.currentTimeMillis();
+		negotiated = false;
+		closeRequested = false;
+		closed = false;
+	}
+	
+	/**
+	 * Queues a string to be sent to the peer as a {@link FrameType#TEXT} frame.  Returns right away.
+	 * @param data
+	 * @throws IOException if the session is closed, or the string is too long to send.
+	 */
+	public void writeUTFData(String data) throws IOException {
+		writeFrame(Frame.text(data));
+	}
+	
+	/**
+	 * Queues a frame to be sent to the peer.  Returns right away.  If the session isn't framed,
+	 * the frame is sent as the string an older peer expects, and file chunks are refused.
+	 * @param frame
+	 * @throws IOException if the session is closed, or the frame can't be sent to this peer.
+	 */
+	public void writeFrame(Frame frame) throws IOException {
+		if(closed || closeRequested) {
+			throw new IOException("Session is closed.");
+		}
+		
+		if(framed) {
+			queueWrite(encoder.encode(frame));
+			return;
+		}
+		
+		if(frame.getType() == FrameType.FILE_CHUNK) {
+			throw new IOException("The peer does not support framed data.");
+		}
+		
+		queueWrite(encodeUTF(frame.toLegacyText()));
+	}
+	
+	/**
+	 * Returns true if this session sends and receives {@link Frame}s on the wire.
+	 * @return
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+	
+	/**
+	 * Sends anything that is still queued, and then closes the connection.
+	 */
+	public void close() {
+		closeRequested = true;
+		engine.requestService(this);
+	}
+	
+	/**
+	 * Returns true once the session has been closed.
+	 * @return
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Returns the address of the peer, or null if it is no longer connected.
+	 * @return
+	 */
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+	
+	/**
+	 * Returns the remote port of the peer.
+	 * @return
+	 */
+	public int getPort() {
+		return channel.socket().getPort();
+	}
+	
+	/**
+	 * Returns the local port the session is connected on.
+	 * @return
+	 */
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+	
+	/**
+	 * Attaches an object to this session, such as the state of the chat it belongs to.
+	 * @param o
+	 */
+	public void setAttachment(Object o) {
+		attachment = o;
+	}
+	
+	/**
+	 * Returns the object attached to this session, or null.
+	 * @return
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+	
+	/**
+	 * Encodes a string the same way {@link DataOutputStream#writeUTF(String)} does.
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	static ByteBuffer encodeUTF(String data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length() + 2);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(data);
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+	
+	void queueWrite(ByteBuffer buffer) {
+		writeQueue.add(buffer);
+		engine.requestService(this);
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	void setKey(SelectionKey k) {
+		key = k;
+	}
+	
+	SelectionKey getKey() {
+		return key;
+	}
+	
+	FrameDecoder getDecoder() {
+		return decoder;
+	}
+	
+	ByteBuffer getReadBuffer() {
+		return readBuffer;
+	}
+	
+	/**
+	 * Swaps in a bigger read buffer when a frame won't fit in the current one.
+	 * The buffer is expected to be in write mode.
+	 * @param size
+	 */
+	void growReadBuffer(int size) {
+		ByteBuffer newBuffer = ByteBuffer.allocate(size);
+		readBuffer.flip();
+		newBuffer.put(readBuffer);
+		readBuffer = newBuffer;
+	}
+	
+	ConcurrentLinkedQueue<ByteBuffer> getWriteQueue() {
+		return writeQueue;
+	}
+	
+	ByteBuffer[] getWriteBatch() {
+		return writeBatch;
+	}
+	
+	ConcurrentLinkedQueue<Runnable> getEvents() {
+		return events;
+	}
+	
+	AtomicBoolean getDispatching() {
+		return dispatching;
+	}
+	
+	long getAcceptedTime() {
+		return acceptedTime;
+	}
+	
+	boolean isNegotiated() {
+		return negotiated;
+	}
+	
+	void setNegotiated(boolean isFramed) {
+		framed = isFramed;
+		negotiated = true;
+	}
+	
+	boolean isCloseRequested() {
+		return closeRequested;
+	}
+	
+	void setClosed() {
+		closed = true;
+	}
+}
@@ -0,0 +1,66 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+/**
+ * Receives events from a {@link SelectorEngine}.  Events for a single session are delivered
+ * in order, one at a time, on one of the engine's worker threads.  Events for different
+ * sessions may be delivered at the same time on different workers.
+ * @author Noah
+ *
+ */
+public interface SelectorSessionListener {
+	
+	/**
+	 * Called once a peer has finished negotiating and the session is ready to use.
+	 * @param session
+	 */
+	public void sessionOpened(SelectorSession session);
+	
+	/**
+	 * Called for every frame that is received from the peer.  Sessions that aren't framed
+	 * deliver each string as a frame, converted with {@link Frame#fromLegacyText(String)}.
+	 * @param session
+	 * @param frame
+	 */
+	public void frameReceived(SelectorSession session, Frame frame);
+	
+	/**
+	 * Called once after the session has been closed, by either side.
+	 * @param session
+	 */
+	public void sessionClosed(SelectorSession session);
+}
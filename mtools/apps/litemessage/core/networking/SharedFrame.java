@@ -0,0 +1,113 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.core.networking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Frame} that is sent to many peers, such as a message relayed to a group.  The
+ * frame is encoded into its wire format once, when this is made, and every peer is sent
+ * those same bytes, which are never changed.  Shared frames are never compressed, since each
+ * connection's {@link FrameCompressor} uses what was sent before on that connection as its
+ * dictionary, so compressed bytes can't be shared.  Encrypted sessions still encrypt the
+ * bytes with their own keys on the way out.
+ * @author Noah
+ *
+ */
+public final class SharedFrame {
+	
+	private final Frame frame;
+	private final byte[] encoded;
+	private final long createdAt;
+	
+	private SharedFrame(Frame f, byte[] e) {
+		frame = f;
+		encoded = e;
+		createdAt = System.nanoTime();
+	}
+	
+	/**
+	 * Encodes a frame that is going to many peers.
+	 * @param frame
+	 * @return
+	 */
+	public static SharedFrame of(Frame frame) {
+		byte[] payload = frame.getPayload();
+		byte[] encoded = new byte[2 + FrameEncoder.varintSize(payload.length) + payload.length];
+		int headerLength = FrameEncoder.writeHeader(frame.getType(), frame.getFlags(), payload.length, encoded, 0);
+		System.arraycopy(payload, 0, encoded, headerLength, payload.length);
+		return new SharedFrame(frame, encoded);
+	}
+	
+	//For a frame only going to one peer, which is written the normal way.
+	static SharedFrame single(Frame frame) {
+		return new SharedFrame(frame, null);
+	}
+	
+	public Frame getFrame() {
+		return frame;
+	}
+	
+	/**
+	 * Returns true if this frame is going to many peers, and is sent from its shared encoding.
+	 * @return
+	 */
+	public boolean isShared() {
+		return encoded != null;
+	}
+	
+	/**
+	 * Returns when this was made, from {@link System#nanoTime()}.
+	 * @return
+	 */
+	public long getCreatedNanos() {
+		return createdAt;
+	}
+	
+	/**
+	 * Returns a read only view of the encoded frame.
+	 * @return
+	 */
+	public ByteBuffer getEncoding() {
+		return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+	}
+	
+	//The bytes themselves, which must never be written to.
+	byte[] getEncodedBytes() {
+		return encoded;
+	}
+}
@@ -1,9 +1,27 @@
 package mtools.apps.litemessage.core.networking;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
 
 /**
  * A simple object that contains a {@link DataInputStream}, a {@link DataOutputStream}, and the
@@ -13,42 +31,645 @@ import java.net.Socket;
  * into this class, it is really only there for for reference purposes.  The preferred way of interacting with
  * the Socket is either with the {@link ConnectionManager} or directly with the Socket OUTSIDE of
  * this class.
+ * 
+ * A StreamBundle is either framed or not.  Framed bundles send {@link Frame}s.  Bundles that
+ * aren't framed talk to older peers with writeUTF strings.  {@link #readFrame()} and
+ * {@link #writeFrame(Frame)} work either way, converting to and from strings when needed.
+ * 
+ * Output is buffered.  By default every message is flushed as soon as it is written, which
+ * sends it in one write instead of several small ones.  With {@link #setCoalescing(int, int)},
+ * messages written within a short window are instead sent together in a single flush.
+ * 
+ * File chunks can be streamed straight between a {@link FileChannel} and the socket with
+ * {@link #writeFileChunk(FileChannel, long, int)} and {@link #readFileChunk(FileChannel, long)},
+ * so file data never has to be held in memory.
+ * 
+ * Once a {@link CompressionCodec} has been agreed on with the peer, text and file chunk
+ * payloads above a threshold are compressed with {@link #setCompression(CompressionCodec, int)}.
+ * Compressed frames are always understood when received, whether or not compression is on.
+ * 
+ * After keys have been exchanged, {@link #startEncryption(RecordCipher, RecordCipher)} turns
+ * every byte sent and received into authenticated records.  This sits below the framing,
+ * so it covers everything, but it means file chunks can no longer skip the copy into memory.
+ * 
+ * Every bundle counts the bytes and frames it sends and receives, and adds them to
+ * {@link Metrics#getDefault()} as well.
  * @author Noah
  *
  */
 public class StreamBundle {
+	
+	/**
+	 * By default, every message is flushed right away.
+	 */
+	public static final int DEFAULT_COALESCE_WINDOW = 0;
+	
+	/**
+	 * By default, a batch is flushed early once this many bytes are waiting.
+	 */
+	public static final int DEFAULT_BYTE_BUDGET = 16 * 1024;
+	
+	/**
+	 * By default, only payloads at least this big are compressed.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+	
+	private static final byte[] EMPTY_PREFIX = new byte[0];
+	
+	/**
+	 * The most data put in a single encrypted record.
+	 */
+	public static final int MAX_RECORD_SIZE = 16 * 1024;
+	
+	//One thread times the batches of every bundle.  The flushes themselves run on the
+	//SessionExecutor, since a peer that stops reading can block a flush indefinitely.
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor((task) -> {
+		Thread t = new Thread(task, "LiteMessage flusher");
+		t.setDaemon(true);
+		return t;
+	});
+	
 	private Socket socket;
 	private DataInputStream iStream;
 	private DataOutputStream oStream;
+	private boolean framed;
+	private FrameEncoder encoder;
+	private FrameDecoder decoder;
+	private int coalesceWindow;
+	private int byteBudget;
+	private int pendingBytes;
+	private boolean unflushed;
+	private boolean flushScheduled;
+	private ThroughputCounter bytesWritten;
+	private ThroughputCounter bytesRead;
+	private ThroughputCounter flushes;
+	private long framesWritten;
+	private long framesRead;
+	private final Metrics metrics;
+	private WritableByteChannel rawOut;
+	private ReadableByteChannel rawIn;
+	private RecordOutputStream recordOut;
+	private RecordInputStream recordIn;
+	private WritableByteChannel encryptedOut;
+	private int[] typeAndFlags;
+	private CompressionCodec compression;
+	private int compressionThreshold;
+	private volatile FrameCompressor compressor;
+	private final Object compressorLock = new Object();
+	private byte[] pendingChunk;
+	private int pendingChunkOffset;
+	private volatile Frame pushedBack;
+	private volatile boolean reused;
 	
 	/**
 	 * Constructs the StreamBundle by deriving DataInputStreams and DataOutputStreams from the
-	 * Socket that is passed.
+	 * Socket that is passed.  The bundle is not framed.
 	 * @param s
 	 * @throws IOException
 	 */
 	public StreamBundle(Socket s) throws IOException {
+		this(s, false);
+	}
+	
+	/**
+	 * Constructs the StreamBundle by deriving DataInputStreams and DataOutputStreams from the
+	 * Socket that is passed.
+	 * @param s
+	 * @param isFramed true if the peer agreed to send {@link Frame}s.
+	 * @throws IOException
+	 */
+	public StreamBundle(Socket s, boolean isFramed) throws IOException {
 		socket = s;
-		iStream = new DataInputStream(s.getInputStream());
-		oStream = new DataOutputStream(s.getOutputStream());
+		metrics = Metrics.getDefault();
+		bytesWritten = new ThroughputCounter();
+		bytesRead = new ThroughputCounter();
+		recordIn = new RecordInputStream(new BufferedInputStream(new CountingInputStream(s.getInputStream()), DEFAULT_BYTE_BUDGET));
+		iStream = new DataInputStream(recordIn);
+		flushes = new ThroughputCounter();
+		recordOut = new RecordOutputStream(new CountingOutputStream(s.getOutputStream()));
+		oStream = new DataOutputStream(new BufferedOutputStream(recordOut, DEFAULT_BYTE_BUDGET));
+		framed = isFramed;
+		encoder = new FrameEncoder();
+		decoder = new FrameDecoder();
+		coalesceWindow = DEFAULT_COALESCE_WINDOW;
+		byteBudget = DEFAULT_BYTE_BUDGET;
+		pendingBytes = 0;
+		unflushed = false;
+		flushScheduled = false;
+		typeAndFlags = new int[2];
+		compression = CompressionCodec.NONE;
+		compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		
+		//A socket that came from a SocketChannel can use it directly, which lets the OS copy
+		//file data straight to the socket.
+		if(s.getChannel() != null) {
+			rawOut = s.getChannel();
+		} else {
+			rawOut = Channels.newChannel(s.getOutputStream());
+		}
+		
+		//Reads have to go through iStream, since it may already be holding some of the data.
+		rawIn = Channels.newChannel(iStream);
+		
+		metrics.register(this);
+	}
+	
+	/**
+	 * Lets messages be sent together.  The first message written after a flush starts a
+	 * window.  Everything written before the window closes is sent in one flush, unless
+	 * more than the byte budget is waiting, in which case it is flushed early.  A window
+	 * of zero flushes every message right away.
+	 * @param windowMillis
+	 * @param budget
+	 */
+	public synchronized void setCoalescing(int windowMillis, int budget) {
+		coalesceWindow = windowMillis;
+		byteBudget = budget;
+	}
+	
+	/**
+	 * Starts compressing text and file chunk payloads that are at least the threshold in size.
+	 * Only use a codec the peer agreed to in the handshake.  Chunks sent with
+	 * {@link #writeFileChunk(FileChannel, long, int)} go straight from the file, so they are
+	 * never compressed.
+	 * @param codec
+	 * @param threshold
+	 */
+	public synchronized void setCompression(CompressionCodec codec, int threshold) {
+		if(!framed) {
+			return;
+		}
+		
+		compression = codec;
+		compressionThreshold = threshold;
+	}
+	
+	public CompressionCodec getCompression() {
+		return compression;
 	}
 	
 	/**
-	 * Convenience method to easily grab a string from the DataInputStream.
+	 * Returns true if payloads are being compressed.
+	 * @return
+	 */
+	public boolean isCompressing() {
+		return compression != CompressionCodec.NONE;
+	}
+	
+	/**
+	 * Returns the compressor for this connection, or null if nothing has been compressed or
+	 * decompressed yet.  Useful for checking how well compression is working.
+	 * @return
+	 */
+	public FrameCompressor getCompressor() {
+		return compressor;
+	}
+	
+	/**
+	 * Encrypts everything sent and received from here on.  Anything waiting to be sent is
+	 * flushed first, in the clear.  Both sides must switch at the same point in the stream,
+	 * right after the key exchange, and nothing can be read or written by another thread
+	 * while switching.
+	 * @param sending seals what is sent.
+	 * @param receiving opens what is received.
+	 * @throws IOException
+	 */
+	public synchronized void startEncryption(RecordCipher sending, RecordCipher receiving) throws IOException {
+		flush();
+		recordOut.sealer = sending;
+		recordIn.opener = receiving;
+		encryptedOut = Channels.newChannel(oStream);
+	}
+	
+	/**
+	 * Marks the bundle as carrying another chat after sitting idle in a {@link ConnectionPool}.
+	 */
+	void markReused() {
+		reused = true;
+	}
+	
+	/**
+	 * Returns true if the bundle was taken from a {@link ConnectionPool} rather than newly
+	 * negotiated.  Its keys and codecs are already set up, so they aren't negotiated again.
+	 * @return
+	 */
+	public boolean isReused() {
+		return reused;
+	}
+	
+	/**
+	 * Returns true if everything sent and received is encrypted.
+	 * @return
+	 */
+	public boolean isEncrypted() {
+		return encryptedOut != null;
+	}
+	
+	/**
+	 * Convenience method to easily grab a string from the DataInputStream.  On a framed
+	 * bundle, this returns the text of the next frame.
 	 * @return
 	 * @throws IOException
 	 */
 	public String readUTFData() throws IOException {
-		return iStream.readUTF();
+		if(framed) {
+			return readFrame().getText();
+		}
+		
+		String data = iStream.readUTF();
+		frameRead();
+		return data;
 	}
 	
 	/**
-	 * Convenience method to easily send a string with the DataOutputStream.
+	 * Convenience method to easily send a string with the DataOutputStream.  On a framed
+	 * bundle, this sends a {@link FrameType#TEXT} frame.
 	 * @param data
 	 * @throws IOException
 	 */
-	public void writeUTFData(String data) throws IOException {
+	public synchronized void writeUTFData(String data) throws IOException {
+		if(framed) {
+			writeFrame(Frame.text(data));
+			return;
+		}
+		
+		int before = oStream.size();
 		oStream.writeUTF(data);
+		afterWrite(oStream.size() - before, false);
+	}
+	
+	/**
+	 * Blocks until the next {@link Frame} is received.  If the bundle isn't framed, the next
+	 * string is read and converted with {@link Frame#fromLegacyText(String)}.
+	 * @return
+	 * @throws IOException
+	 */
+	public Frame readFrame() throws IOException {
+		Frame frame = pushedBack;
+		if(frame != null) {
+			pushedBack = null;
+			return frame;
+		}
+		
+		if(framed) {
+			frame = decoder.readFrame(iStream);
+			frameRead();
+			return decompress(frame);
+		}
+		
+		String legacy = iStream.readUTF();
+		frameRead();
+		return Frame.fromLegacyText(legacy);
+	}
+	
+	/**
+	 * Puts a frame that has already been read back, so the next {@link #readFrame()}
+	 * returns it.  Used when one thread reads a frame meant for whoever takes the bundle
+	 * over, such as the first frame on a pooled connection.
+	 * @param frame
+	 */
+	public void pushBack(Frame frame) {
+		pushedBack = frame;
+	}
+	
+	/**
+	 * Sends a {@link Frame}.  If the bundle isn't framed, it is sent as the string an older
+	 * peer expects.  Older peers have no way to receive file chunks, so those are refused.
+	 * The frame is flushed according to {@link #setCoalescing(int, int)}.
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void writeFrame(Frame frame) throws IOException {
+		writeFrame(frame, false);
+	}
+	
+	/**
+	 * Sends a {@link Frame}.  If flushNow is true, it is sent right away along with anything
+	 * else that is waiting, no matter how coalescing is set up.  Use it for messages where
+	 * latency matters more than batching.
+	 * @param frame
+	 * @param flushNow
+	 * @throws IOException
+	 */
+	public synchronized void writeFrame(Frame frame, boolean flushNow) throws IOException {
+		if(framed) {
+			frame = compress(frame);
+			encoder.writeFrame(frame, oStream);
+			afterWrite(2 + FrameEncoder.varintSize(frame.getPayload().length) + frame.getPayload().length, flushNow);
+			return;
+		}
+		
+		//Older peers only know about text, and the exit command.
+		if(frame.getType() != FrameType.TEXT && frame.getType() != FrameType.CONTROL && frame.getType() != FrameType.HANDSHAKE) {
+			throw new IOException("The peer does not support framed data.");
+		}
+		
+		int before = oStream.size();
+		oStream.writeUTF(frame.toLegacyText());
+		afterWrite(oStream.size() - before, flushNow);
+	}
+	
+	/**
+	 * Sends a frame that is going to many peers from its shared encoding, so it isn't encoded
+	 * again for this peer.  It is sent uncompressed, even if compression was agreed on.  If
+	 * the bundle isn't framed, it is sent like {@link #writeFrame(Frame, boolean)} would.
+	 * @param frame
+	 * @param flushNow
+	 * @throws IOException
+	 */
+	public synchronized void writeFrame(SharedFrame frame, boolean flushNow) throws IOException {
+		if(!framed) {
+			writeFrame(frame.getFrame(), flushNow);
+			return;
+		}
+		
+		byte[] encoded = frame.getEncodedBytes();
+		oStream.write(encoded);
+		afterWrite(encoded.length, flushNow);
+	}
+	
+	/**
+	 * Sends part of a file as a {@link FrameType#FILE_CHUNK} frame.  The header goes out through
+	 * the normal stream, and the data is then handed from the file to the socket with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so it is never copied
+	 * into memory here.
+	 * @param file
+	 * @param position where in the file the chunk starts.
+	 * @param length
+	 * @throws IOException if the bundle isn't framed, or the file ends early.
+	 */
+	public void writeFileChunk(FileChannel file, long position, int length) throws IOException {
+		writeFileChunk(file, position, length, EMPTY_PREFIX);
+	}
+	
+	/**
+	 * Sends part of a file as a {@link FrameType#FILE_CHUNK} frame, like
+	 * {@link #writeFileChunk(FileChannel, long, int)}, with some bytes in front of the data.
+	 * The receiver gets them back from {@link #nextFileChunk(byte[])}.
+	 * @param file
+	 * @param position where in the file the chunk starts.
+	 * @param length
+	 * @param prefix sent ahead of the data, as part of the payload.
+	 * @throws IOException if the bundle isn't framed, or the file ends early.
+	 */
+	public synchronized void writeFileChunk(FileChannel file, long position, int length, byte[] prefix) throws IOException {
+		if(!framed) {
+			throw new IOException("The peer does not support framed data.");
+		}
+		
+		byte[] header = new byte[FrameEncoder.MAX_HEADER_SIZE];
+		int headerLength = FrameEncoder.writeHeader(FrameType.FILE_CHUNK, 0, prefix.length + length, header, 0);
+		oStream.write(header, 0, headerLength);
+		oStream.write(prefix);
+		pendingBytes += headerLength + prefix.length;
+		framesWritten++;
+		metrics.frameOut();
+		
+		//Anything still buffered has to go out before the chunk does.
+		flush();
+		
+		//Encrypted data has to go through the records, so it is copied like anything else.
+		if(encryptedOut != null) {
+			long sent = 0;
+			while(sent < length) {
+				long count = file.transferTo(position + sent, length - sent, encryptedOut);
+				
+				if(count <= 0) {
+					throw new EOFException("The file ended before the chunk was sent.");
+				}
+				
+				sent += count;
+			}
+			
+			flush();
+			return;
+		}
+		
+		long sent = 0;
+		while(sent < length) {
+			long count = file.transferTo(position + sent, length - sent, rawOut);
+			
+			if(count <= 0) {
+				throw new EOFException("The file ended before the chunk was sent.");
+			}
+			
+			sent += count;
+		}
+		
+		bytesWritten.add(length);
+		metrics.bytesOut(length);
+	}
+	
+	/**
+	 * Blocks until the next {@link FrameType#FILE_CHUNK} frame arrives, and writes its data
+	 * into the file at the position with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+	 * Frames of any other type are skipped.  Returns the size of the chunk, which is zero
+	 * for the empty chunk that ends a file.
+	 * @param file
+	 * @param position
+	 * @return
+	 * @throws IOException if the bundle isn't framed, or the connection ends.
+	 */
+	public int readFileChunk(FileChannel file, long position) throws IOException {
+		int length = nextFileChunk(EMPTY_PREFIX);
+		
+		if(length <= 0) {
+			return 0;
+		}
+		
+		readFileChunkData(file, position, length);
+		return length;
+	}
+	
+	/**
+	 * Blocks until the next {@link FrameType#FILE_CHUNK} frame arrives, and fills the prefix
+	 * with the bytes sent by {@link #writeFileChunk(FileChannel, long, int, byte[])}.  Frames
+	 * of any other type are skipped.  Returns the size of the data that follows, which must
+	 * then be read with {@link #readFileChunkData(FileChannel, long, int)}.  Returns -1 for
+	 * an empty chunk, which has no prefix.
+	 * @param prefix
+	 * @return
+	 * @throws IOException if the bundle isn't framed, the chunk is too short, or the connection ends.
+	 */
+	public int nextFileChunk(byte[] prefix) throws IOException {
+		if(!framed) {
+			throw new IOException("The peer does not support framed data.");
+		}
+		
+		while(true) {
+			int length = decoder.readHeader(iStream, typeAndFlags);
+			frameRead();
+			
+			boolean compressed = (typeAndFlags[1] & Frame.FLAG_COMPRESSED) != 0;
+			
+			if(typeAndFlags[0] != FrameType.FILE_CHUNK.getCode()) {
+				if(compressed && typeAndFlags[0] == FrameType.TEXT.getCode()) {
+					//Has to be decompressed anyway, to keep the dictionary in step with the peer.
+					byte[] payload = new byte[length];
+					iStream.readFully(payload);
+					compressor().decompress(payload, decoder.getMaxPayloadSize());
+				} else {
+					decoder.skipPayload(iStream, length);
+				}
+				continue;
+			}
+			
+			if(length == 0) {
+				return -1;
+			}
+			
+			if(compressed) {
+				byte[] payload = new byte[length];
+				iStream.readFully(payload);
+				pendingChunk = compressor().decompress(payload, decoder.getMaxPayloadSize());
+				length = pendingChunk.length;
+			}
+			
+			if(length < prefix.length) {
+				throw new IOException("File chunk is too short.");
+			}
+			
+			if(pendingChunk != null) {
+				System.arraycopy(pendingChunk, 0, prefix, 0, prefix.length);
+				pendingChunkOffset = prefix.length;
+			} else {
+				iStream.readFully(prefix);
+			}
+			
+			return length - prefix.length;
+		}
+	}
+	
+	/**
+	 * Writes the data of the chunk found by {@link #nextFileChunk(byte[])} into the file at
+	 * the position.  The file must already be at least as long as the position.
+	 * @param file
+	 * @param position
+	 * @param length
+	 * @throws IOException if the connection ends.
+	 */
+	public void readFileChunkData(FileChannel file, long position, int length) throws IOException {
+		//A compressed chunk has already been read in.
+		if(pendingChunk != null) {
+			ByteBuffer data = ByteBuffer.wrap(pendingChunk, pendingChunkOffset, length);
+			pendingChunk = null;
+			
+			while(data.hasRemaining()) {
+				file.write(data, position + (data.position() - pendingChunkOffset));
+			}
+			return;
+		}
+		
+		long received = 0;
+		while(received < length) {
+			long count = file.transferFrom(rawIn, position + received, length - received);
+			
+			if(count <= 0) {
+				throw new EOFException();
+			}
+			
+			received += count;
+		}
+	}
+	
+	/**
+	 * Sends everything that is waiting to be sent.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		pendingBytes = 0;
+		unflushed = false;
+		oStream.flush();
+		flushes.add(1);
+	}
+	
+	/**
+	 * Returns the counter of bytes that have actually been written to the socket.
+	 * @return
+	 */
+	public ThroughputCounter getBytesWritten() {
+		return bytesWritten;
+	}
+	
+	/**
+	 * Returns the counter of bytes that have actually been read from the socket.
+	 * @return
+	 */
+	public ThroughputCounter getBytesRead() {
+		return bytesRead;
+	}
+	
+	/**
+	 * Returns the counter of flushes.
+	 * @return
+	 */
+	public ThroughputCounter getFlushes() {
+		return flushes;
+	}
+	
+	/**
+	 * Returns how many frames, or strings from an older peer, have been sent.  It is read
+	 * without locking, so it may be slightly behind while another thread is writing.
+	 * @return
+	 */
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+	
+	/**
+	 * Returns how many frames, or strings from an older peer, have been received, including
+	 * any that were skipped.  It may be slightly behind while another thread is reading.
+	 * @return
+	 */
+	public long getFramesRead() {
+		return framesRead;
+	}
+	
+	//Only ever called by the one thread reading the bundle.
+	private void frameRead() {
+		framesRead++;
+		metrics.frameIn();
+	}
+	
+	//Decides whether to flush now, or leave it for the flusher.
+	private void afterWrite(int written, boolean flushNow) throws IOException {
+		framesWritten++;
+		metrics.frameOut();
+		pendingBytes += written;
+		unflushed = true;
+		
+		if(flushNow || coalesceWindow <= 0 || pendingBytes >= byteBudget) {
+			flush();
+			return;
+		}
+		
+		if(!flushScheduled) {
+			flushScheduled = true;
+			FLUSHER.schedule(() -> SessionExecutor.getDefault().execute(this::flushBatch), coalesceWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	//Only one of these is outstanding per bundle, since another isn't scheduled until it runs.
+	private synchronized void flushBatch() {
+		flushScheduled = false;
+		
+		if(!unflushed) {
+			return;
+		}
+		
+		try {
+			flush();
+		} catch(IOException e) {
+			//The connection is gone.  The next write or read will find out.
+		}
+	}
+	
+	/**
+	 * Returns true if this bundle sends and receives {@link Frame}s.
+	 * @return
+	 */
+	public boolean isFramed() {
+		return framed;
 	}
 	
 	/**
@@ -71,7 +692,8 @@ public class StreamBundle {
 	}
 	
 	/**
-	 * Returns the DataOutputStream associated with this StreamBundle.
+	 * Returns the DataOutputStream associated with this StreamBundle.  It is buffered, so
+	 * anything written to it directly must be followed by {@link #flush()}.
 	 * @return {@link DataOutputStream}
 	 */
 	public DataOutputStream getOutputStream() {
@@ -79,12 +701,306 @@ public class StreamBundle {
 	}
 	
 	/**
-	 * Closes the DataInputStream and DataOutputStream associated with this StreamBundle.
-	 * IT DOES NOT close the Socket.
+	 * Closes the DataInputStream and DataOutputStream associated with this StreamBundle,
+	 * and frees the compressor, if there is one.  IT DOES NOT close the Socket.
 	 * @throws IOException
 	 */
 	public void closeStreams() throws IOException {
-		iStream.close();
-		oStream.close();
+		try {
+			iStream.close();
+			oStream.close();
+		} finally {
+			FrameCompressor c = compressor;
+			
+			if(c != null) {
+				c.end();
+			}
+		}
+	}
+	
+	//Compresses the payload if it's worth it.  Only text and file chunks are compressed,
+	//since every framed peer knows those types, and won't skip past them.
+	private Frame compress(Frame frame) {
+		if(compression == CompressionCodec.NONE || frame.getPayload().length < compressionThreshold) {
+			return frame;
+		}
+		
+		if(frame.getType() != FrameType.TEXT && frame.getType() != FrameType.FILE_CHUNK) {
+			return frame;
+		}
+		
+		byte[] compressed = compressor().compress(frame.getPayload());
+		
+		if(compressed == null) {
+			return frame;
+		}
+		
+		return new Frame(frame.getType(), frame.getFlags() | Frame.FLAG_COMPRESSED, compressed);
+	}
+	
+	private Frame decompress(Frame frame) throws IOException {
+		if(!frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		
+		//Other types use their flags for something else.
+		if(frame.getType() != FrameType.TEXT && frame.getType() != FrameType.FILE_CHUNK) {
+			return frame;
+		}
+		
+		byte[] payload = compressor().decompress(frame.getPayload(), decoder.getMaxPayloadSize());
+		return new Frame(frame.getType(), frame.getFlags() & ~Frame.FLAG_COMPRESSED, payload);
+	}
+	
+	//Made the first time it's needed, since it holds a fair bit of native memory.
+	private FrameCompressor compressor() {
+		FrameCompressor c = compressor;
+		
+		if(c == null) {
+			synchronized(compressorLock) {
+				if(compressor == null) {
+					compressor = new FrameCompressor();
+				}
+				c = compressor;
+			}
+		}
+		
+		return c;
+	}
+	
+	/**
+	 * Passes bytes straight through until a sealer is set, and then sends them as encrypted
+	 * records: the length of the sealed record as four bytes, and then the record.
+	 */
+	private static class RecordOutputStream extends FilterOutputStream {
+		
+		private RecordCipher sealer;
+		private byte[] record;
+		private byte[] single;
+		
+		public RecordOutputStream(OutputStream out) {
+			super(out);
+			record = new byte[4 + MAX_RECORD_SIZE + RecordCipher.TAG_SIZE];
+			single = new byte[1];
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(sealer == null) {
+				out.write(b);
+				return;
+			}
+			
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(sealer == null) {
+				out.write(b, off, len);
+				return;
+			}
+			
+			while(len > 0) {
+				int n = Math.min(len, MAX_RECORD_SIZE);
+				int sealed = sealer.seal(b, off, n, record, 4);
+				
+				record[0] = (byte) (sealed >>> 24);
+				record[1] = (byte) (sealed >>> 16);
+				record[2] = (byte) (sealed >>> 8);
+				record[3] = (byte) sealed;
+				out.write(record, 0, 4 + sealed);
+				
+				off += n;
+				len -= n;
+			}
+		}
+	}
+	
+	/**
+	 * Passes bytes straight through until an opener is set, and then reads them out of the
+	 * encrypted records sent by a {@link RecordOutputStream}.
+	 */
+	private static class RecordInputStream extends FilterInputStream {
+		
+		private RecordCipher opener;
+		private byte[] record;
+		private byte[] plain;
+		private int plainPosition;
+		private int plainLength;
+		
+		public RecordInputStream(InputStream in) {
+			super(in);
+			record = new byte[MAX_RECORD_SIZE + RecordCipher.TAG_SIZE];
+			plain = new byte[MAX_RECORD_SIZE];
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(opener == null) {
+				return in.read();
+			}
+			
+			if(!fill()) {
+				return -1;
+			}
+			
+			return plain[plainPosition++] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(opener == null) {
+				return in.read(b, off, len);
+			}
+			
+			if(len == 0) {
+				return 0;
+			}
+			
+			if(!fill()) {
+				return -1;
+			}
+			
+			int n = Math.min(len, plainLength - plainPosition);
+			System.arraycopy(plain, plainPosition, b, off, n);
+			plainPosition += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			if(opener == null) {
+				return in.skip(n);
+			}
+			
+			if(n <= 0 || !fill()) {
+				return 0;
+			}
+			
+			int skipped = (int) Math.min(n, plainLength - plainPosition);
+			plainPosition += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			if(opener == null) {
+				return in.available();
+			}
+			
+			return plainLength - plainPosition;
+		}
+		
+		//Reads and opens the next record if everything from the last one has been used.
+		//Returns false if the stream ended cleanly between records.
+		private boolean fill() throws IOException {
+			while(plainPosition == plainLength) {
+				int first = in.read();
+				
+				if(first < 0) {
+					return false;
+				}
+				
+				int length = (first << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+				
+				if(length < RecordCipher.TAG_SIZE || length > record.length) {
+					throw new IOException("Received an encrypted record of a bad size.");
+				}
+				
+				int read = 0;
+				while(read < length) {
+					int count = in.read(record, read, length - read);
+					
+					if(count < 0) {
+						throw new EOFException();
+					}
+					
+					read += count;
+				}
+				
+				plainLength = opener.open(record, 0, length, plain, 0);
+				plainPosition = 0;
+			}
+			
+			return true;
+		}
+		
+		private int readByte() throws IOException {
+			int b = in.read();
+			
+			if(b < 0) {
+				throw new EOFException();
+			}
+			
+			return b;
+		}
+	}
+	
+	/**
+	 * Counts the bytes that actually make it to the socket.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesWritten.add(1);
+			metrics.bytesOut(1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesWritten.add(len);
+			metrics.bytesOut(len);
+		}
+	}
+	
+	/**
+	 * Counts the bytes that actually come from the socket.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+		
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			
+			if(b >= 0) {
+				bytesRead.add(1);
+				metrics.bytesIn(1);
+			}
+			
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			
+			if(count > 0) {
+				bytesRead.add(count);
+				metrics.bytesIn(count);
+			}
+			
+			return count;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			bytesRead.add(skipped);
+			metrics.bytesIn(skipped);
+			return skipped;
+		}
 	}
 }
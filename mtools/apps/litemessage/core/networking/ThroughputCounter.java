@@ -0,0 +1,101 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.core.networking;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts something, such as bytes or flushes, and keeps track of how fast it is being
+ * counted.  The rate is measured over one second windows, and is the rate of the last
+ * full window.  Adding to it never locks, so it can be done on every write.
+ * @author Noah
+ *
+ */
+public class ThroughputCounter {
+	
+	private static final long WINDOW_MILLIS = 1000;
+	
+	private LongAdder total;
+	private volatile long windowStart;
+	private volatile long windowStartTotal;
+	private volatile double lastRate;
+	
+	public ThroughputCounter() {
+		total = new LongAdder();
+		windowStart = System.currentTimeMillis();
+		windowStartTotal = 0;
+		lastRate = 0;
+	}
+	
+	/**
+	 * Adds to the count.
+	 * @param amount
+	 */
+	public void add(long amount) {
+		total.add(amount);
+	}
+	
+	/**
+	 * Returns everything that has been counted so far.
+	 * @return
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+	
+	/**
+	 * Returns the count per second over the last full one second window.
+	 * @return
+	 */
+	public double getRatePerSecond() {
+		rollWindow();
+		return lastRate;
+	}
+	
+	private synchronized void rollWindow() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		
+		if(elapsed < WINDOW_MILLIS) {
+			return;
+		}
+		
+		long current = total.sum();
+		lastRate = (current - windowStartTotal) * 1000.0 / elapsed;
+		windowStart = now;
+		windowStartTotal = current;
+	}
+}
@@ -45,6 +45,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.io.File;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -56,9 +57,16 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.UIManager;
 import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.MessageHistory;
+import mtools.apps.litemessage.control.logic.MessageSpool;
+import mtools.apps.litemessage.control.logic.MessagingControlModule;
 import mtools.apps.litemessage.control.logic.SettingsModule;
 import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.ThreadMode;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.HeartbeatMonitor;
 import mtools.io.MConsole;
 
 public class MainGUI extends JFrame {
@@ -104,11 +112,25 @@ public class MainGUI extends JFrame {
 		}
 		
 		connectionMan.setOutgoingPortEnforcement(true);
+		connectionMan.setSinglePortMode(sMod.getSettings().singlePortSessions);
+		connectionMan.setEncryption(sMod.getSettings().encryption);
+		connectionMan.getPool().setEnabled(sMod.getSettings().connectionPooling);
+		
+		if(sMod.getSettings().virtualThreads) {
+			SessionExecutor.setDefault(new SessionExecutor(ThreadMode.VIRTUAL));
+		}
+		
+		MessageSpool.setDefault(new MessageSpool(new File(MessageSpool.DEFAULT_DIRECTORY), connectionMan, cMan));
+		MessageHistory.setDefault(new MessageHistory(new File(MessageHistory.DEFAULT_DIRECTORY)));
+		Metrics.getDefault().registerMBean();
+		HeartbeatMonitor.getDefault().setIdleTimeout(sMod.getSettings().idleTimeout * 1000L);
 		
 		buildGUI();
 		
 		ReceiveMessageHandler rmh = new ReceiveMessageHandler(this, connectionMan);
 		rmh.start();
+		
+		MessagingControlModule.preconnectAll(connectionMan, cMan, sMod.getSettings().favorites);
 	}
 	
 	/**
@@ -214,10 +236,9 @@ public class MainGUI extends JFrame {
 				}
 				
 				mGUI = new MessagingGUI(connectionMan);
-				mGUI.initiateMessaging(address, cMan);
 				
-				//If it's somebody new, there should be a new contact to list, so we'll update it.
-				updateContactList();
+				//If it's somebody new, there should be a new contact to list, so we'll update it once connected.
+				mGUI.initiateMessaging(address, cMan, MainGUI.this::updateContactList);
 			} catch(Exception ex) {
 				ex.printStackTrace();
 			}
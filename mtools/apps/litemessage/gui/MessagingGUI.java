@@ -40,31 +40,54 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.MessageHistory;
 import mtools.apps.litemessage.control.logic.MessagingControlModule;
 import mtools.apps.litemessage.core.Contact;
 import mtools.apps.litemessage.core.MessagingState;
 import mtools.apps.litemessage.core.TextDisplayObject;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
 import mtools.io.MDisplay;
+import mtools.logging.MLog;
 
 /**
  * This is the window that you be messaging people in.
+ * <p>
+ * Only a window of the conversation is shown, {@link #MAX_SHOWN} lines at most.  Older
+ * lines are dropped as new ones come in, and are paged back in from the
+ * {@link MessageHistory} when scrolling up, along with whatever was said before this chat.
  * @author Noah
  *
  */
 public class MessagingGUI extends JFrame implements TextDisplayObject {
 	
+	/**
+	 * The most lines the conversation shows at once.
+	 */
+	public static final int MAX_SHOWN = 500;
+	
+	/**
+	 * How many messages are paged in from the history at a time.
+	 */
+	public static final int PAGE_SIZE = 100;
+	
 	private Contact contact;
 	public MessagingControlModule mcm;
 	
@@ -76,6 +99,15 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 	private JTextArea composeArea;
 	private JButton sendButton;	
 	
+	//What is shown, top to bottom.  Only touched on the event thread.
+	private ArrayDeque<ShownLine> shown;
+	private MessageHistory history;
+	private String historyUID;
+	private String historyName;
+	//False once newer lines were dropped to make room for older ones.
+	private boolean following;
+	private boolean paging;
+	
 	/**
 	 * The constructor.  Constructs the Messaging GUI. 
 	 * However, the window will not be visible until we call
@@ -85,6 +117,8 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 	 */
 	public MessagingGUI(ConnectionManager cm) {
 		connectionMan = cm;
+		shown = new ArrayDeque<ShownLine>();
+		following = true;
 		
 		buildGUI();
 	}
@@ -100,8 +134,9 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 		this.setTitle("Connecting...");
 		contact = c;
 		mcm = new MessagingControlModule(null, this, null, connectionMan, cm);
-		mcm.startInitiateMessageLogicFromGUI(contact.getIPAddress().getHostAddress());
+		mcm.startInitiateMessageLogicFromGUI(contact.getIPAddress());
 		this.setTitle(mcm.getConnectedContact().getName());
+		showHistory();
 	}
 	
 	/**
@@ -111,12 +146,40 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 	 * @param cm
 	 */
 	public void initiateMessaging(String ipAddress, ContactManager cm) {
+		initiateMessaging(ipAddress, cm, null);
+	}
+	
+	/**
+	 * Same as {@link #initiateMessaging(String, ContactManager)}, but the host name is
+	 * looked up in the background so the GUI doesn't freeze on a slow resolver.
+	 * The connection is made on the event thread once the address is known, and
+	 * then onConnected is run, if it isn't null.
+	 * @param ipAddress
+	 * @param cm
+	 * @param onConnected
+	 */
+	public void initiateMessaging(String ipAddress, ContactManager cm, Runnable onConnected) {
 		this.setVisible(true);
-		this.setTitle("Connecting...");
+		this.setTitle("Looking up " + ipAddress + "...");
 		mcm = new MessagingControlModule(null, this, null, connectionMan, cm);
-		mcm.startInitiateMessageLogicFromGUI(ipAddress);
-		this.setTitle(mcm.getConnectedContact().getName());
-		contact = mcm.getConnectedContact();
+		
+		connectionMan.resolve(ipAddress).whenComplete((address, ex) -> SwingUtilities.invokeLater(() -> {
+			if(ex != null) {
+				MLog.fileLog.log("Could not establish a connection with " + ipAddress);
+				JOptionPane.showMessageDialog(null, "Could not establish connection", "Error", JOptionPane.ERROR_MESSAGE);
+				tearDown();
+				return;
+			}
+			
+			this.setTitle("Connecting...");
+			mcm.startInitiateMessageLogicFromGUI(address);
+			this.setTitle(mcm.getConnectedContact().getName());
+			contact = mcm.getConnectedContact();
+			showHistory();
+			
+			if(onConnected != null)
+				onConnected.run();
+		}));
 	}
 	
 	public void waitForMessaging(ContactManager cm) {
@@ -124,6 +187,7 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 		mcm.startReceiveMessageLogicFromGUI();
 		this.setVisible(true);
 		this.setTitle(mcm.getConnectedContact().getName());
+		showHistory();
 	}
 	
 	public void clearConnections() {
@@ -146,6 +210,7 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 		convoHistory.setLineWrap(true);
 		convoHistory.setBackground(new Color(0xf0f0f0));
 		convoScroll = new JScrollPane(convoHistory);
+		convoScroll.getVerticalScrollBar().addAdjustmentListener(new PageAction());
 		mainPanel.add(convoScroll, BorderLayout.CENTER);
 		
 		
@@ -174,9 +239,130 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 	
 	@Override
 	public void println(String s) {
-		convoHistory.append(s + "\n");
+		printMessage(s, -1);
+	}
+	
+	@Override
+	public void printMessage(String s, long index) {
+		if(!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(() -> printMessage(s, index));
+			return;
+		}
+		
+		//We're looking further back.  The history has it for when we scroll back down.
+		if(!following) {
+			return;
+		}
+		
+		ShownLine line = new ShownLine(s, index);
+		convoHistory.append(line.text);
+		shown.addLast(line);
+		
+		while(shown.size() > MAX_SHOWN) {
+			convoHistory.replaceRange("", 0, shown.removeFirst().text.length());
+		}
+		
 		convoScroll.getVerticalScrollBar().setValue(convoScroll.getVerticalScrollBar().getMaximum());
+	}
+	
+	//Once we know who we're talking with, shows the end of what was said before.
+	private void showHistory() {
+		if(!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(this::showHistory);
+			return;
+		}
 		
+		history = MessageHistory.getDefault();
+		
+		if(history == null || mcm.getConnectedContact().getUID() == null) {
+			return;
+		}
+		
+		historyUID = mcm.getConnectedContact().getUID();
+		historyName = mcm.getConnectedContact().getName();
+		pageOlder();
+		
+		JScrollBar bar = convoScroll.getVerticalScrollBar();
+		SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum()));
+	}
+	
+	//Adds the page of messages before the oldest one shown to the top.
+	private void pageOlder() {
+		long oldest = history.size(historyUID);
+		
+		for(ShownLine line : shown) {
+			if(line.index >= 0) {
+				oldest = line.index;
+				break;
+			}
+		}
+		
+		if(oldest == 0) {
+			return;
+		}
+		
+		long from = Math.max(0, oldest - PAGE_SIZE);
+		ArrayList<MessageHistory.Entry> entries = history.read(historyUID, from, (int) (oldest - from));
+		StringBuilder text = new StringBuilder();
+		
+		for(MessageHistory.Entry entry : entries) {
+			text.append(format(entry)).append('\n');
+		}
+		
+		for(int i = entries.size() - 1; i >= 0; i--) {
+			shown.addFirst(new ShownLine(format(entries.get(i)), entries.get(i).getIndex()));
+		}
+		
+		JScrollBar bar = convoScroll.getVerticalScrollBar();
+		int before = bar.getMaximum() - bar.getValue();
+		convoHistory.insert(text.toString(), 0);
+		
+		//Make room by dropping the newest lines.
+		while(shown.size() > MAX_SHOWN) {
+			int length = convoHistory.getDocument().getLength();
+			convoHistory.replaceRange("", length - shown.removeLast().text.length(), length);
+			following = false;
+		}
+		
+		//Keep what was on screen where it was, after the layout catches up.
+		SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - before));
+	}
+	
+	//Adds the page of messages after the newest one shown to the bottom.
+	private void pageNewer() {
+		long newest = -1;
+		
+		for(ShownLine line : shown) {
+			if(line.index > newest) {
+				newest = line.index;
+			}
+		}
+		
+		ArrayList<MessageHistory.Entry> entries = history.read(historyUID, newest + 1, PAGE_SIZE);
+		
+		for(MessageHistory.Entry entry : entries) {
+			ShownLine line = new ShownLine(format(entry), entry.getIndex());
+			convoHistory.append(line.text);
+			shown.addLast(line);
+		}
+		
+		JScrollBar bar = convoScroll.getVerticalScrollBar();
+		int before = bar.getValue();
+		
+		while(shown.size() > MAX_SHOWN) {
+			ShownLine line = shown.removeFirst();
+			convoHistory.replaceRange("", 0, line.text.length());
+		}
+		
+		if(entries.size() < PAGE_SIZE) {
+			following = true;
+		}
+		
+		SwingUtilities.invokeLater(() -> bar.setValue(Math.min(before, bar.getMaximum())));
+	}
+	
+	private String format(MessageHistory.Entry entry) {
+		return (entry.isSent() ? "You" : historyName) + ": " + entry.getText();
 	}
 	
 	@Override
@@ -196,13 +382,55 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 			String message = composeArea.getText();
 			//Don't want to process a blank message.
 			if(!message.matches("")) {
-				mcm.sendData(message);
-				println("You: " + message);
+				printMessage("You: " + message, mcm.sendData(message));
 				composeArea.setText("");
 			}
 		}
 	}
 	
+	//Pages the history in when scrolling to either end of what is shown.
+	//Only moving to an end counts, not the layout changing while we sit at one.
+	private class PageAction implements AdjustmentListener {
+		
+		private int lastValue = -1;
+		
+		@Override
+		public void adjustmentValueChanged(AdjustmentEvent e) {
+			JScrollBar bar = convoScroll.getVerticalScrollBar();
+			int value = bar.getValue();
+			boolean moved = value != lastValue;
+			lastValue = value;
+			
+			if(history == null || paging || !moved || e.getValueIsAdjusting()) {
+				return;
+			}
+			
+			paging = true;
+			
+			try {
+				if(value == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+					pageOlder();
+				} else if(!following && value + bar.getVisibleAmount() >= bar.getMaximum()) {
+					pageNewer();
+				}
+			} finally {
+				paging = false;
+			}
+		}
+	}
+	
+	//A line of the conversation, and its number in the history, or -1 if it isn't saved there.
+	private static class ShownLine {
+		
+		final String text;
+		final long index;
+		
+		ShownLine(String s, long i) {
+			text = s + "\n";
+			index = i;
+		}
+	}
+	
 	private class EnterKeyAction implements KeyListener {
 
 		@Override
@@ -216,8 +444,7 @@ public class MessagingGUI extends JFrame implements TextDisplayObject {
 				String message = composeArea.getText();
 				//Don't want to process a blank message.
 				if(!message.matches("")) {
-					mcm.sendData(message);
-					println("You: " + message);
+					printMessage("You: " + message, mcm.sendData(message));
 				}
 			}
 		}
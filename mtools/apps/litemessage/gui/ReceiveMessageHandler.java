@@ -38,9 +38,10 @@ package mtools.apps.litemessage.gui;
 
 import javax.swing.JOptionPane;
 
+import mtools.apps.litemessage.core.SessionExecutor;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
 
-public class ReceiveMessageHandler extends Thread {
+public class ReceiveMessageHandler implements Runnable {
 	
 	private MainGUI mainGUI;
 	private ConnectionManager connectionMan;
@@ -49,18 +50,25 @@ public class ReceiveMessageHandler extends Thread {
 		mainGUI = mg;
 		connectionMan = cm;
 	}
+	
+	/**
+	 * Starts waiting for incoming connections on the default {@link SessionExecutor}.
+	 */
+	public void start() {
+		SessionExecutor.getDefault().execute(this);
+	}
 
 	@Override
 	public void run() {
 		
-		if(!connectionMan.isLocalPortUsable(connectionMan.getControlPort())) {
+		if(!connectionMan.isControlPortAvailable()) {
 			JOptionPane.showMessageDialog(null, "The configured control port (" + connectionMan.getControlPort() + ") is not available.  You cannot be contacted until otherwise!", "Network Error", JOptionPane.ERROR_MESSAGE);
 		}
 		
 		while(true) {
 			
 			//Prevents a bunch of windows from popping up and stealing resources when the port isn't available.
-			if(!connectionMan.isLocalPortUsable(connectionMan.getControlPort())) {
+			if(!connectionMan.isControlPortAvailable()) {
 				try {
 					Thread.sleep(1000);
 				} catch (InterruptedException e) {}
@@ -78,6 +78,24 @@ public class SettingsGUI extends JFrame {
 	JLabel randomPortsLabel;
 	JCheckBox randomPortsCB;
 	
+	JLabel singlePortLabel;
+	JCheckBox singlePortCB;
+	
+	JLabel virtualThreadsLabel;
+	JCheckBox virtualThreadsCB;
+	
+	JLabel encryptionLabel;
+	JCheckBox encryptionCB;
+	
+	JLabel poolingLabel;
+	JCheckBox poolingCB;
+	
+	JLabel favoritesLabel;
+	JTextField favoritesField;
+	
+	JLabel idleTimeoutLabel;
+	JTextField idleTimeoutField;
+	
 	JButton saveButton;
 	JButton cancelButton;
 	
@@ -86,7 +104,7 @@ public class SettingsGUI extends JFrame {
 		
 		//Main window frame
 		this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-		this.setSize(245, 200);
+		this.setSize(245, 320);
 		this.setLayout(new BorderLayout(10, 10));
 		this.setResizable(true);
 		this.setTitle("LiteMessage - Settings");
@@ -102,7 +120,7 @@ public class SettingsGUI extends JFrame {
 		standardSettings.setLayout(null);
 		tabbedPane.addTab("Standard", standardSettings);
 		advancedSettings = new JPanel();
-		advancedSettings.setLayout(new GridLayout(3, 2, 10, 10));
+		advancedSettings.setLayout(new GridLayout(8, 2, 10, 10));
 		tabbedPane.addTab("Advanced", advancedSettings);
 		
 		//Standard Settings
@@ -124,6 +142,16 @@ public class SettingsGUI extends JFrame {
 		dynamicUID.setVisible(true);
 		standardSettings.add(dynamicUID);
 		
+		//Favorite contacts label and field
+		favoritesLabel = new JLabel("Favorites");
+		favoritesLabel.setBounds(10, 70, 80, 25);
+		favoritesLabel.setToolTipText("Contacts to connect to at startup, separated by commas.  Needs connection pooling. Change requires program restart.");
+		favoritesField = new JTextField(sMod.getSettings().favorites, 30);
+		favoritesField.setBounds(90, 70, 120, 25);
+		favoritesField.setToolTipText("Contacts to connect to at startup, separated by commas.  Needs connection pooling. Change requires program restart.");
+		standardSettings.add(favoritesLabel);
+		standardSettings.add(favoritesField);
+		
 		
 		//Advanced Settings
 		//Port fields and labels
@@ -157,6 +185,47 @@ public class SettingsGUI extends JFrame {
 		}
 		advancedSettings.add(randomPortsCB);
 		
+		singlePortLabel = new JLabel("Single Port Sessions");
+		singlePortLabel.setToolTipText("Keeps chat sessions on the control port instead of handing them off to a data port. Change requires program restart.");
+		singlePortLabel.setHorizontalAlignment(SwingConstants.RIGHT);
+		advancedSettings.add(singlePortLabel);
+		singlePortCB = new JCheckBox("", sMod.getSettings().singlePortSessions);
+		singlePortCB.setToolTipText("Keeps chat sessions on the control port instead of handing them off to a data port. Change requires program restart.");
+		advancedSettings.add(singlePortCB);
+		
+		virtualThreadsLabel = new JLabel("Virtual Threads");
+		virtualThreadsLabel.setToolTipText("Runs chat sessions on virtual threads instead of platform threads.  Needs Java 21 or later. Change requires program restart.");
+		virtualThreadsLabel.setHorizontalAlignment(SwingConstants.RIGHT);
+		advancedSettings.add(virtualThreadsLabel);
+		virtualThreadsCB = new JCheckBox("", sMod.getSettings().virtualThreads);
+		virtualThreadsCB.setToolTipText("Runs chat sessions on virtual threads instead of platform threads.  Needs Java 21 or later. Change requires program restart.");
+		advancedSettings.add(virtualThreadsCB);
+		
+		encryptionLabel = new JLabel("Encryption");
+		encryptionLabel.setToolTipText("Encrypts chat sessions when the other side has encryption enabled as well. Change requires program restart.");
+		encryptionLabel.setHorizontalAlignment(SwingConstants.RIGHT);
+		advancedSettings.add(encryptionLabel);
+		encryptionCB = new JCheckBox("", sMod.getSettings().encryption);
+		encryptionCB.setToolTipText("Encrypts chat sessions when the other side has encryption enabled as well. Change requires program restart.");
+		advancedSettings.add(encryptionCB);
+		
+		poolingLabel = new JLabel("Connection Pooling");
+		poolingLabel.setToolTipText("Keeps the connection of a finished chat open for the next chat with the same contact. Change requires program restart.");
+		poolingLabel.setHorizontalAlignment(SwingConstants.RIGHT);
+		advancedSettings.add(poolingLabel);
+		poolingCB = new JCheckBox("", sMod.getSettings().connectionPooling);
+		poolingCB.setToolTipText("Keeps the connection of a finished chat open for the next chat with the same contact. Change requires program restart.");
+		advancedSettings.add(poolingCB);
+		
+		idleTimeoutLabel = new JLabel("Idle Timeout");
+		idleTimeoutLabel.setHorizontalAlignment(SwingConstants.RIGHT);
+		idleTimeoutLabel.setToolTipText("Seconds without hearing from a peer that can't answer heartbeats before the chat is closed.  0 is never. Change requires program restart.");
+		advancedSettings.add(idleTimeoutLabel);
+		idleTimeoutField = new JTextField(String.valueOf(sMod.getSettings().idleTimeout), 0);
+		idleTimeoutField.setMaximumSize(new Dimension(30, 30));
+		idleTimeoutField.setToolTipText("Seconds without hearing from a peer that can't answer heartbeats before the chat is closed.  0 is never. Change requires program restart.");
+		advancedSettings.add(idleTimeoutField);
+		
 		
 		//Lower panel
 		lowerPanel = new JPanel(new GridLayout(1, 2, 10, 10));
@@ -235,6 +304,19 @@ public class SettingsGUI extends JFrame {
 				return;
 			}
 			
+			int idleTimeout = 0;
+			
+			try {
+				idleTimeout = Integer.parseInt(idleTimeoutField.getText().trim());
+				
+				if(idleTimeout < 0) {
+					throw new NumberFormatException();
+				}
+			} catch(NumberFormatException ex) {
+				JOptionPane.showMessageDialog(null, "The idle timeout must be a number of seconds, or 0 for never.", "Error", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			
 			sMod.getSettings().thisUser.setName(displayName.getText());
 			sMod.getSettings().dynamicUIDUpdates = dynamicUID.isSelected();
 			sMod.getSettings().controlPort = controlPort;
@@ -245,6 +327,12 @@ public class SettingsGUI extends JFrame {
 			}
 			
 			sMod.getSettings().randomDataPorts = randomPortsCB.isSelected();
+			sMod.getSettings().singlePortSessions = singlePortCB.isSelected();
+			sMod.getSettings().virtualThreads = virtualThreadsCB.isSelected();
+			sMod.getSettings().encryption = encryptionCB.isSelected();
+			sMod.getSettings().connectionPooling = poolingCB.isSelected();
+			sMod.getSettings().favorites = favoritesField.getText().trim();
+			sMod.getSettings().idleTimeout = idleTimeout;
 			sMod.writeSettingsToFile();
 			
 			frame.dispose();
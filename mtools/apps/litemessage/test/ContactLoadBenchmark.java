@@ -0,0 +1,110 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.core.Settings;
+
+/**
+ * Measures how long startup spends loading contacts.  A contacts file with a large
+ * number of entries is written to a temporary directory and loaded several times,
+ * and the time of each load is reported.  The first loads warm up the JIT.
+ * 
+ * java mtools.apps.litemessage.test.ContactLoadBenchmark [contacts] [runs]
+ * @author Noah
+ *
+ */
+public class ContactLoadBenchmark {
+	
+	public static final int DEFAULT_CONTACTS = 100000;
+	public static final int DEFAULT_RUNS = 5;
+	
+	public static void main(String[] args) throws IOException {
+		int numContacts = DEFAULT_CONTACTS;
+		int runs = DEFAULT_RUNS;
+		
+		if(args.length > 0) {
+			numContacts = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1) {
+			runs = Integer.parseInt(args[1]);
+		}
+		
+		File dir = Files.createTempDirectory("litemessage-contacts").toFile();
+		File contacts = new File(dir, "contacts.cfg");
+		File journal = new File(dir, "contacts.journal");
+		writeContacts(contacts, numContacts);
+		
+		System.out.println("---Contact load benchmark---");
+		System.out.println("Contacts: " + numContacts + " (" + (contacts.length() / 1024) + " KB)\n");
+		
+		Settings settings = new Settings();
+		
+		for(int i = 0; i < runs; i++) {
+			ContactManager cMan = new ContactManager(settings, contacts.getPath(), journal.getPath());
+			
+			long start = System.nanoTime();
+			cMan.loadContacts();
+			long elapsed = System.nanoTime() - start;
+			
+			if(cMan.getNumContacts() != numContacts) {
+				System.err.println("Only loaded " + cMan.getNumContacts() + " contacts");
+			}
+			
+			System.out.printf("Run %d: %8.1f ms  %10.0f contacts/s%n", i + 1, elapsed / 1e6, numContacts / (elapsed / 1e9));
+		}
+		
+		contacts.delete();
+		journal.delete();
+		dir.delete();
+	}
+	
+	//Writes contacts the same way ContactManager saves them, in alphabetical order.
+	private static void writeContacts(File file, int numContacts) throws IOException {
+		try(BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			for(int i = 0; i < numContacts; i++) {
+				out.write(String.format("user%07d,%016x,10.%d.%d.%d\n", i, i * 0x9E3779B97F4A7C15L, (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF));
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+import mtools.apps.litemessage.core.networking.CipherSuite;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.RecordCipher;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Measures how much encryption costs.  Text frames of a few sizes are sent one way over a
+ * loopback session for a fixed time, first in the clear and then with each {@link CipherSuite},
+ * and the throughput of each is reported.  Each run is warmed up first so the JIT has settled.
+ * 
+ * java mtools.apps.litemessage.test.EncryptionBenchmark [seconds per run]
+ * @author Noah
+ *
+ */
+public class EncryptionBenchmark {
+	
+	public static final int DEFAULT_SECONDS = 3;
+	public static final int[] MESSAGE_SIZES = {128, 1024, 16 * 1024};
+	
+	public static void main(String[] args) throws Exception {
+		int seconds = DEFAULT_SECONDS;
+		
+		if(args.length > 0) {
+			seconds = Integer.parseInt(args[0]);
+		}
+		
+		System.out.println("---Encryption benchmark---");
+		System.out.println("Seconds per run: " + seconds + "\n");
+		System.out.printf("%-20s %10s %14s %12s%n", "Cipher", "Size", "Messages/s", "MB/s");
+		
+		for(int size : MESSAGE_SIZES) {
+			run(null, size, seconds);
+			
+			for(CipherSuite suite : CipherSuite.values()) {
+				if(suite.isAvailable()) {
+					run(suite, size, seconds);
+				}
+			}
+		}
+		
+		System.exit(0);
+	}
+	
+	private static void run(CipherSuite suite, int size, int seconds) throws Exception {
+		ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		Socket server = listener.accept();
+		listener.close();
+		
+		StreamBundle sender = new StreamBundle(client, true);
+		StreamBundle receiver = new StreamBundle(server, true);
+		
+		if(suite != null) {
+			SecureRandom random = new SecureRandom();
+			byte[] there = new byte[32];
+			byte[] back = new byte[32];
+			random.nextBytes(there);
+			random.nextBytes(back);
+			
+			sender.startEncryption(new RecordCipher(suite, there, true), new RecordCipher(suite, back, false));
+			receiver.startEncryption(new RecordCipher(suite, back, true), new RecordCipher(suite, there, false));
+		}
+		
+		//Drain everything on another thread, so only the sending side is timed.
+		Thread drain = new Thread(() -> {
+			try {
+				while(true) {
+					receiver.readFrame();
+				}
+			} catch(IOException e) {}
+		});
+		drain.setDaemon(true);
+		drain.start();
+		
+		Frame frame = new Frame(FrameType.TEXT, 0, new byte[size]);
+		
+		//Warm up.
+		send(sender, frame, 1000);
+		
+		long count = send(sender, frame, seconds * 1000L);
+		double rate = count / (double) seconds;
+		
+		System.out.printf("%-20s %10d %14.0f %12.1f%n", suite == null ? "none" : suite.name(), size, rate, rate * size / (1024 * 1024));
+		
+		client.close();
+		server.close();
+	}
+	
+	//Sends the frame over and over for the time given, and returns how many were sent.
+	private static long send(StreamBundle bundle, Frame frame, long millis) throws IOException {
+		long count = 0;
+		long end = System.currentTimeMillis() + millis;
+		
+		while(System.currentTimeMillis() < end) {
+			for(int i = 0; i < 100; i++) {
+				bundle.writeFrame(frame);
+			}
+			count += 100;
+		}
+		
+		return count;
+	}
+}
@@ -0,0 +1,167 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.MessagingControlModule;
+import mtools.apps.litemessage.core.MessagingState;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.Settings;
+import mtools.apps.litemessage.core.TextDisplayObject;
+import mtools.apps.litemessage.core.ThreadMode;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Opens idle chats over loopback until it runs out of memory, threads, or the target count,
+ * and then reports how many it was able to hold.  Every chat is a real {@link MessagingControlModule}
+ * blocked in its receive loop.  Run it once per thread mode with the same fixed heap to compare them:
+ * 
+ * java -Xmx64m mtools.apps.litemessage.test.IdleSessionLoadTest platform
+ * java -Xmx64m mtools.apps.litemessage.test.IdleSessionLoadTest virtual 50000
+ * 
+ * Each chat uses two sockets, so the open file limit (ulimit -n) may need to be raised first.
+ * @author Noah
+ *
+ */
+public class IdleSessionLoadTest {
+	
+	public static final int DEFAULT_TARGET = 20000;
+	public static final int PORT = 15680;
+	
+	public static void main(String[] args) throws IOException {
+		ThreadMode mode = ThreadMode.PLATFORM;
+		int target = DEFAULT_TARGET;
+		
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equalsIgnoreCase("virtual")) {
+				mode = ThreadMode.VIRTUAL;
+			} else if(args[i].equalsIgnoreCase("platform")) {
+				mode = ThreadMode.PLATFORM;
+			} else {
+				target = Integer.parseInt(args[i]);
+			}
+		}
+		
+		SessionExecutor executor = new SessionExecutor(mode);
+		ContactManager cMan = new ContactManager(new Settings());
+		
+		//The far end of every chat just holds on to its socket.  One thread serves all of them.
+		ServerSocket listener = new ServerSocket(PORT, 1000, InetAddress.getLoopbackAddress());
+		ArrayList<Socket> farEnds = new ArrayList<Socket>();
+		Thread acceptor = new Thread(() -> {
+			try {
+				while(true) {
+					farEnds.add(listener.accept());
+				}
+			} catch(IOException e) {}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		System.out.println("---Idle session load test---");
+		System.out.println("Thread mode: " + executor.getThreadMode() + ", max heap: " + (Runtime.getRuntime().maxMemory() / (1024 * 1024)) + " MB, target: " + target + "\n");
+		
+		ArrayList<IdleChat> chats = new ArrayList<IdleChat>();
+		String stopReason = "reached the target";
+		long baseline = usedHeap();
+		
+		try {
+			while(chats.size() < target) {
+				Socket s = new Socket(InetAddress.getLoopbackAddress(), PORT);
+				IdleChat chat = new IdleChat(cMan, new StreamBundle(s));
+				chat.setExecutor(executor);
+				chat.begin();
+				chats.add(chat);
+				
+				if(chats.size() % 1000 == 0) {
+					System.out.println(chats.size() + " idle chats, " + (usedHeap() / (1024 * 1024)) + " MB heap used");
+				}
+			}
+		} catch(OutOfMemoryError oome) {
+			stopReason = "out of memory (" + oome.getMessage() + ")";
+		} catch(IOException e) {
+			stopReason = "socket error (" + e.getMessage() + ")";
+		}
+		
+		long used = usedHeap() - baseline;
+		
+		System.out.println("\nStopped: " + stopReason);
+		System.out.println("Thread mode: " + executor.getThreadMode());
+		System.out.println("Idle chats held: " + chats.size());
+		
+		if(chats.size() > 0) {
+			System.out.println("Heap per chat: ~" + (used / chats.size()) + " bytes");
+		}
+		
+		System.exit(0);
+	}
+	
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	/**
+	 * A chat that is already connected, and just sits in its receive loop.
+	 */
+	private static class IdleChat extends MessagingControlModule {
+		
+		public IdleChat(ContactManager cm, StreamBundle bundle) {
+			super(null, new QuietDisplay(), null, null, cm);
+			sBundle = bundle;
+			mState.setMessagingState(MessagingState.CURRENTLY_MESSAGING);
+		}
+		
+		public void begin() {
+			executor.execute(this);
+		}
+	}
+	
+	private static class QuietDisplay implements TextDisplayObject {
+		@Override
+		public void println(String s) {}
+		
+		@Override
+		public void tearDown() {}
+	}
+}
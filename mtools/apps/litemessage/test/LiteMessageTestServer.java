@@ -36,17 +36,75 @@
 
 package mtools.apps.litemessage.test;
 
+import java.io.File;
+import java.io.IOException;
+
 import mtools.apps.litemessage.console.ConsoleTextDisplay;
 import mtools.apps.litemessage.console.ConsoleTextInput;
 import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.GroupRelay;
+import mtools.apps.litemessage.control.logic.GroupSessionModule;
+import mtools.apps.litemessage.control.logic.HubAcceptor;
 import mtools.apps.litemessage.control.logic.MessagingControlModule;
 import mtools.apps.litemessage.control.logic.SettingsModule;
+import mtools.apps.litemessage.core.Metrics;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.ThreadMode;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.HeartbeatMonitor;
+import mtools.apps.litemessage.core.networking.SelectorEngine;
+import mtools.apps.litemessage.core.networking.StreamBundle;
 import mtools.io.MConsole;
 import mtools.io.MDisplay;
 
+/**
+ * A simple echo server for testing.  Run it with -nio to serve every peer from a single
+ * {@link SelectorEngine} thread instead of one blocking thread per peer.  Run it with
+ * -coalesce followed by a number of milliseconds to batch the echoes of blocking sessions.
+ * Run it with -group to relay every message to every other connected peer instead of
+ * echoing it, with the fan-out latency printed whenever somebody leaves.  Run it with -quiet
+ * to stop every message from being printed, such as when it is driven by {@link LoadGenerator}.
+ * Run it with -metrics followed by a number of seconds to append a {@link Metrics} snapshot
+ * to {@link Metrics#DEFAULT_SNAPSHOT_FILE} that often.  Run it with -ping followed by a number
+ * of seconds to ping quiet peers that often, and close them after three missed pings, and
+ * with -idle followed by a number of seconds to close peers that can't be pinged once they
+ * have been quiet that long.
+ * @author Noah
+ *
+ */
 public class LiteMessageTestServer {
 	public static void main(String[] args) throws InterruptedException {
+		boolean useSelector = false;
+		boolean group = false;
+		boolean quiet = false;
+		int coalesceWindow = StreamBundle.DEFAULT_COALESCE_WINDOW;
+		int metricsPeriod = 0;
+		int pingInterval = -1;
+		int idleTimeout = -1;
+		
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-nio")) {
+				useSelector = true;
+			} else if(args[i].equals("-group")) {
+				group = true;
+			} else if(args[i].equals("-quiet")) {
+				quiet = true;
+			} else if(args[i].equals("-coalesce") && i + 1 < args.length) {
+				coalesceWindow = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-metrics") && i + 1 < args.length) {
+				metricsPeriod = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-ping") && i + 1 < args.length) {
+				pingInterval = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-idle") && i + 1 < args.length) {
+				idleTimeout = Integer.parseInt(args[++i]);
+			}
+		}
+		
+		Metrics.getDefault().registerMBean();
+		if(metricsPeriod > 0) {
+			Metrics.getDefault().startSnapshots(new File(Metrics.DEFAULT_SNAPSHOT_FILE), metricsPeriod * 1000L);
+		}
+		
 		MDisplay display = new MDisplay("Messaging App", 5);
 		display.setDisplayReverse();
 		ConsoleTextInput console = new ConsoleTextInput();
@@ -60,6 +118,19 @@ public class LiteMessageTestServer {
 		
 		ConnectionManager connectionMan = new ConnectionManager();
 		connectionMan.setOutgoingPortEnforcement(true);
+		connectionMan.setSinglePortMode(sMod.getSettings().singlePortSessions);
+		connectionMan.setEncryption(sMod.getSettings().encryption);
+		connectionMan.getPool().setEnabled(sMod.getSettings().connectionPooling);
+		connectionMan.setWriteCoalescing(coalesceWindow, StreamBundle.DEFAULT_BYTE_BUDGET);
+		
+		if(sMod.getSettings().virtualThreads) {
+			SessionExecutor.setDefault(new SessionExecutor(ThreadMode.VIRTUAL));
+		}
+		
+		if(pingInterval >= 0) {
+			HeartbeatMonitor.getDefault().setHeartbeat(pingInterval * 1000L, pingInterval * 3000L);
+		}
+		HeartbeatMonitor.getDefault().setIdleTimeout((idleTimeout >= 0 ? idleTimeout : sMod.getSettings().idleTimeout) * 1000L);
 		
 		try {
 			connectionMan.setControlPort(sMod.getSettings().controlPort);
@@ -73,10 +144,30 @@ public class LiteMessageTestServer {
 		System.out.println("---LiteMessage Test Server---");
 		System.out.println("\nRunning...\n");
 		
+		if(useSelector) {
+			SelectorTestServerHandler handler = new SelectorTestServerHandler(cMan);
+			
+			try {
+				SelectorEngine engine = connectionMan.startSelectorEngine(handler, SelectorEngine.DEFAULT_WORKER_THREADS);
+				handler.setEngine(engine);
+				engine.join();
+			} catch(IOException e) {
+				System.err.println("Could not start the selector engine on port " + connectionMan.getControlPort() + ".");
+				e.printStackTrace();
+			}
+			
+			return;
+		}
+		
+		if(group) {
+			runGroupRelay(connectionMan, cMan, ctd, console);
+			return;
+		}
+		
 		//Main control loop
 		while(true) {
 			
-			if(!connectionMan.isLocalPortUsable(ConnectionManager.CONTROL_PORT)) {
+			if(!connectionMan.isControlPortAvailable()) {
 				try {
 					Thread.sleep(1000);
 				} catch (InterruptedException e) {}
@@ -85,7 +176,32 @@ public class LiteMessageTestServer {
 			}
 			
 			cMod = new TestServerMessagingControlModule(display, ctd, console, connectionMan, cMan);
+			cMod.setQuiet(quiet);
 			cMod.startTestServerLogic();
 		}
 	}
+	
+	//Accepts peers for as long as the program runs, and puts them all in one group.
+	private static void runGroupRelay(ConnectionManager connectionMan, ContactManager cMan, ConsoleTextDisplay ctd, ConsoleTextInput console) throws InterruptedException {
+		GroupRelay relay = new GroupRelay("the test group");
+		
+		//Members never echo an exit, so their connections can't be pooled.
+		connectionMan.getPool().setEnabled(false);
+		connectionMan.setPersistentListener(true);
+		
+		HubAcceptor acceptor = new HubAcceptor(connectionMan, () -> new GroupSessionModule(null, ctd, console, connectionMan, cMan, relay), (member) -> {
+			System.out.println(member.getConnectedContact().getName() + " joined.  " + relay.size() + " in the group.");
+		});
+		
+		acceptor.start();
+		
+		while(true) {
+			int size = relay.size();
+			Thread.sleep(1000);
+			
+			if(relay.size() < size) {
+				System.out.println(relay.size() + " in the group.  Fan-out latency (us): " + relay.getFanOutLatency().summary(1000));
+			}
+		}
+	}
 }
@@ -0,0 +1,348 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import mtools.apps.litemessage.control.logic.CommandParseModule;
+import mtools.apps.litemessage.control.logic.CommandType;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.ThreadMode;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.LatencyHistogram;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Puts load on a {@link LiteMessageTestServer}.  Many simulated peers connect through
+ * {@link ConnectionManager#initSessionNegotiation(InetAddress)} and swap the usual "name,uid"
+ * handshake, and then messages are sent, spread across all of them, at a fixed total rate.
+ * The server echoes each one back.
+ * <p>
+ * Messages are sent on a schedule, whether or not earlier ones have come back yet.  The round
+ * trip time is measured from when a message was meant to be sent, not from when it actually
+ * was, so a server that stalls shows up as the latency its peers would see, instead of
+ * just slowing the sender down.
+ * <p>
+ * Connect latency, round trip percentiles, throughput and errors are printed every second
+ * and again at the end.  Start the server with -quiet, so printing every message isn't what
+ * limits it.  Each peer uses a socket on both ends, so the open file limit (ulimit -n) may
+ * need to be raised first.
+ * <p>
+ * Peers ask for single port sessions, like the test server's default settings.  Use -handoff
+ * against a server that hands every session off to a dynamic port.
+ * 
+ * java mtools.apps.litemessage.test.LoadGenerator [-clients n] [-rate messages per second]
+ * [-seconds n] [-size bytes] [-port n] [-host address] [-handoff] [-virtual]
+ * @author Noah
+ *
+ */
+public class LoadGenerator {
+	
+	public static final int DEFAULT_CLIENTS = 100;
+	public static final int DEFAULT_RATE = 1000;
+	public static final int DEFAULT_SECONDS = 10;
+	public static final int DEFAULT_SIZE = 64;
+	
+	/**
+	 * How many peers connect at once.
+	 */
+	public static final int CONNECT_THREADS = 16;
+	
+	/**
+	 * How long to wait for the last echoes to come back once sending stops.
+	 */
+	public static final long DRAIN_TIMEOUT = 5000;
+	
+	private static final LatencyHistogram connectLatency = new LatencyHistogram();
+	private static final LatencyHistogram roundTrip = new LatencyHistogram();
+	private static final LatencyHistogram intervalRoundTrip = new LatencyHistogram();
+	private static final AtomicLong sent = new AtomicLong();
+	private static final AtomicLong received = new AtomicLong();
+	private static final AtomicLong connectErrors = new AtomicLong();
+	private static final AtomicLong sendErrors = new AtomicLong();
+	private static final AtomicLong disconnects = new AtomicLong();
+	
+	public static void main(String[] args) throws Exception {
+		int clients = DEFAULT_CLIENTS;
+		int rate = DEFAULT_RATE;
+		int seconds = DEFAULT_SECONDS;
+		int size = DEFAULT_SIZE;
+		int port = ConnectionManager.CONTROL_PORT;
+		InetAddress host = InetAddress.getLoopbackAddress();
+		boolean singlePort = true;
+		ThreadMode mode = ThreadMode.PLATFORM;
+		
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+			case "-clients":
+				clients = Integer.parseInt(args[++i]);
+				break;
+			case "-rate":
+				rate = Integer.parseInt(args[++i]);
+				break;
+			case "-seconds":
+				seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-size":
+				size = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-host":
+				host = InetAddress.getByName(args[++i]);
+				break;
+			case "-handoff":
+				singlePort = false;
+				break;
+			case "-virtual":
+				mode = ThreadMode.VIRTUAL;
+				break;
+			}
+		}
+		
+		ConnectionManager connectionMan = new ConnectionManager();
+		connectionMan.setControlPort(port);
+		connectionMan.setSinglePortMode(singlePort);
+		connectionMan.getPool().setEnabled(false);
+		SessionExecutor executor = new SessionExecutor(mode);
+		
+		System.out.println("---Load generator---");
+		System.out.println("Server: " + host.getHostAddress() + ":" + port + (singlePort ? " (single port)" : "") + ", clients: " + clients + ", rate: " + rate + "/s, " + seconds + " s, " + size + " byte messages, " + executor.getThreadMode() + " threads\n");
+		
+		ArrayList<Peer> peers = connectAll(connectionMan, host, clients);
+		
+		System.out.println("Connected " + peers.size() + " of " + clients + " (" + connectErrors.get() + " errors)");
+		System.out.println("Connect latency (us): " + connectLatency.summary(1000) + "\n");
+		
+		if(peers.isEmpty()) {
+			System.exit(1);
+		}
+		
+		for(Peer p : peers) {
+			executor.execute(p);
+		}
+		
+		int messageRate = rate;
+		int sendSeconds = seconds;
+		int messageSize = size;
+		Thread sender = new Thread(() -> send(peers, messageRate, sendSeconds, messageSize), "LoadGenerator sender");
+		sender.start();
+		
+		long start = System.nanoTime();
+		long lastSent = 0;
+		long lastReceived = 0;
+		
+		while(sender.isAlive()) {
+			sender.join(1000);
+			
+			long s = sent.get();
+			long r = received.get();
+			System.out.printf("%4ds  sent %7d/s  echoed %7d/s  errors %d  rtt (us): %s%n", (System.nanoTime() - start) / 1000000000L, s - lastSent, r - lastReceived, sendErrors.get() + disconnects.get(), intervalRoundTrip.summary(1000));
+			intervalRoundTrip.reset();
+			lastSent = s;
+			lastReceived = r;
+		}
+		
+		long sendEnd = System.nanoTime();
+		
+		//Give the last echoes a chance to come back.
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while(received.get() < sent.get() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		for(Peer p : peers) {
+			p.close(connectionMan);
+		}
+		
+		double elapsed = (sendEnd - start) / 1e9;
+		
+		System.out.println("\n---Results---");
+		System.out.println("Clients connected: " + peers.size() + " of " + clients);
+		System.out.println("Connect latency (us): " + connectLatency.summary(1000));
+		System.out.println("Round trip (us): " + roundTrip.summary(1000));
+		System.out.printf("Sent: %d (%.0f/s)  Echoed: %d (%.0f/s)  Lost: %d%n", sent.get(), sent.get() / elapsed, received.get(), received.get() / elapsed, sent.get() - received.get());
+		System.out.println("Errors: connect " + connectErrors.get() + ", send " + sendErrors.get() + ", disconnected " + disconnects.get());
+		
+		System.exit(0);
+	}
+	
+	//Connects the peers a few at a time, and returns the ones that made it.
+	private static ArrayList<Peer> connectAll(ConnectionManager connectionMan, InetAddress host, int clients) throws InterruptedException {
+		ExecutorService connectors = Executors.newFixedThreadPool(CONNECT_THREADS);
+		ArrayList<Future<Peer>> futures = new ArrayList<Future<Peer>>();
+		
+		for(int i = 0; i < clients; i++) {
+			int id = i;
+			futures.add(connectors.submit(() -> connect(connectionMan, host, id)));
+		}
+		
+		ArrayList<Peer> peers = new ArrayList<Peer>();
+		
+		for(Future<Peer> f : futures) {
+			try {
+				Peer p = f.get();
+				if(p != null) {
+					peers.add(p);
+				}
+			} catch(Exception e) {
+				connectErrors.incrementAndGet();
+			}
+		}
+		
+		connectors.shutdown();
+		connectors.awaitTermination(1, TimeUnit.SECONDS);
+		return peers;
+	}
+	
+	private static Peer connect(ConnectionManager connectionMan, InetAddress host, int id) {
+		long start = System.nanoTime();
+		
+		try {
+			StreamBundle bundle = connectionMan.initSessionNegotiation(host);
+			if(bundle == null) {
+				connectErrors.incrementAndGet();
+				return null;
+			}
+			
+			bundle.writeFrame(Frame.handshake(String.format("load%05d,%016x", id, id * 0x9E3779B97F4A7C15L)), true);
+			bundle.readFrame();
+			connectLatency.record(System.nanoTime() - start);
+			return new Peer(bundle);
+		} catch(IOException e) {
+			//Only the first is printed, since they tend to all be the same.
+			if(connectErrors.getAndIncrement() == 0) {
+				System.err.println("Could not connect: " + e);
+			}
+			return null;
+		}
+	}
+	
+	//Sends messages on a fixed schedule, to each peer in turn.
+	private static void send(ArrayList<Peer> peers, int rate, int seconds, int size) {
+		long interval = 1000000000L / rate;
+		long total = (long) rate * seconds;
+		String padding = "x".repeat(size);
+		
+		long start = System.nanoTime();
+		
+		for(long i = 0; i < total; i++) {
+			long intended = start + i * interval;
+			long wait = intended - System.nanoTime();
+			
+			if(wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			
+			Peer p = peers.get((int) (i % peers.size()));
+			if(!p.alive) {
+				sendErrors.incrementAndGet();
+				continue;
+			}
+			
+			//The intended send time travels with the message, and comes back in the echo.
+			String text = intended + "|";
+			text += padding.substring(Math.min(size, text.length()));
+			
+			try {
+				p.bundle.writeFrame(Frame.text(text), true);
+				sent.incrementAndGet();
+			} catch(IOException e) {
+				sendErrors.incrementAndGet();
+				p.alive = false;
+			}
+		}
+	}
+	
+	//A simulated peer.  Runs its receive loop on the executor.
+	private static class Peer implements Runnable {
+		
+		final StreamBundle bundle;
+		volatile boolean alive;
+		volatile boolean closing;
+		
+		Peer(StreamBundle b) {
+			bundle = b;
+			alive = true;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					Frame frame = bundle.readFrame();
+					
+					if(frame.getType() != FrameType.TEXT) {
+						continue;
+					}
+					
+					String text = frame.getText();
+					long rtt = System.nanoTime() - Long.parseLong(text.substring(0, text.indexOf('|')));
+					roundTrip.record(rtt);
+					intervalRoundTrip.record(rtt);
+					received.incrementAndGet();
+				}
+			} catch(IOException | RuntimeException e) {
+				if(!closing) {
+					disconnects.incrementAndGet();
+				}
+				alive = false;
+			}
+		}
+		
+		void close(ConnectionManager connectionMan) {
+			closing = true;
+			
+			try {
+				bundle.writeFrame(new CommandParseModule().createCommandFrame(CommandType.EXIT), true);
+			} catch(IOException e) {}
+			
+			connectionMan.closeSocket(bundle.getSocket());
+		}
+	}
+}
@@ -0,0 +1,690 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mtools.apps.litemessage.control.logic.CommandParseModule;
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.control.logic.MessagingControlModule;
+import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.Settings;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Measures the messaging hot paths, and saves the results as JSON so runs can be compared.
+ * <p>
+ * Each benchmark is run for a few warm up iterations, so the JIT has settled, and then for
+ * a few measured iterations of a fixed time.  The score is the average time per operation,
+ * with an error of the 99.9% confidence interval over the measured iterations.  The JSON
+ * is laid out like JMH's, one entry per benchmark and set of parameters.
+ * <p>
+ * Given a baseline from an earlier run, each score is compared with it, and anything slower
+ * by more than the threshold, in percent, is reported as a regression.  The exit code is 1 if
+ * there were any, so this can fail a build.
+ * 
+ * The same paths are covered by the JMH benchmarks in the benchmarks module, which should be
+ * used when the Gradle build is available (gradle :benchmarks:jmh).  This needs nothing but
+ * the compiled classes, so it can still be run where the build can't.
+ * 
+ * java mtools.apps.litemessage.test.MessagingBenchmark [-o results.json] [-baseline old.json]
+ * [-threshold percent] [-wi warmup iterations] [-i iterations] [-t milliseconds] [name filter]
+ * @author Noah
+ *
+ */
+public class MessagingBenchmark {
+	
+	public static final String DEFAULT_OUTPUT = "benchmark-results.json";
+	public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+	public static final int DEFAULT_ITERATIONS = 5;
+	public static final int DEFAULT_ITERATION_MILLIS = 1000;
+	public static final double DEFAULT_THRESHOLD = 10;
+	public static final int[] CONTACT_COUNTS = {10, 1000, 100000};
+	public static final int[] MESSAGE_SIZES = {16, 1024};
+	
+	//Two sided 99.9% Student's t, by degrees of freedom.  Past the table, the normal value is used.
+	private static final double[] T_999 = {0, 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+	private static final double Z_999 = 3.29;
+	
+	//Results are added here so the JIT can't throw the work away.
+	private static volatile long sink;
+	
+	public static void main(String[] args) throws Exception {
+		String output = DEFAULT_OUTPUT;
+		String baseline = null;
+		String filter = "";
+		double threshold = DEFAULT_THRESHOLD;
+		int warmup = DEFAULT_WARMUP_ITERATIONS;
+		int iterations = DEFAULT_ITERATIONS;
+		int millis = DEFAULT_ITERATION_MILLIS;
+		
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+			case "-o":
+				output = args[++i];
+				break;
+			case "-baseline":
+				baseline = args[++i];
+				break;
+			case "-threshold":
+				threshold = Double.parseDouble(args[++i]);
+				break;
+			case "-wi":
+				warmup = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				iterations = Integer.parseInt(args[++i]);
+				break;
+			case "-t":
+				millis = Integer.parseInt(args[++i]);
+				break;
+			default:
+				filter = args[i];
+			}
+		}
+		
+		System.out.println("---Messaging benchmark---");
+		System.out.println("Warm up: " + warmup + " x " + millis + " ms, measured: " + iterations + " x " + millis + " ms\n");
+		System.out.printf("%-36s %-18s %14s %12s%n", "Benchmark", "Params", "Score", "Error");
+		
+		ArrayList<Result> results = new ArrayList<Result>();
+		
+		for(Benchmark b : createBenchmarks()) {
+			if(!b.name.contains(filter)) {
+				continue;
+			}
+			
+			Result r = run(b, warmup, iterations, millis);
+			results.add(r);
+			System.out.printf("%-36s %-18s %14.1f %12.1f %s%n", r.name, r.paramString(), r.score, r.error, Result.UNIT);
+		}
+		
+		writeJSON(new File(output), results, warmup, iterations);
+		System.out.println("\nResults saved to " + output);
+		
+		int regressions = 0;
+		if(baseline != null) {
+			regressions = compare(results, readScores(new File(baseline)), threshold);
+		}
+		
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+	
+	private static ArrayList<Benchmark> createBenchmarks() {
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		
+		for(int size : MESSAGE_SIZES) {
+			benchmarks.add(new RoundTrip(size));
+		}
+		
+		for(int count : CONTACT_COUNTS) {
+			benchmarks.add(new AddContact(count, false));
+			benchmarks.add(new AddContact(count, true));
+			benchmarks.add(new FindContact(count));
+		}
+		
+		benchmarks.add(new ParseUserData());
+		benchmarks.add(new EvaluateText("hello there, how are you doing today?"));
+		benchmarks.add(new EvaluateText("cmd-exit"));
+		benchmarks.add(new SessionSetup(true));
+		benchmarks.add(new SessionSetup(false));
+		
+		return benchmarks;
+	}
+	
+	private static Result run(Benchmark b, int warmup, int iterations, int millis) throws Exception {
+		b.setup();
+		
+		try {
+			//Operations are timed in batches big enough that reading the clock doesn't count.
+			int batch = 1;
+			long start = System.nanoTime();
+			
+			while(batch < (1 << 20)) {
+				long t = System.nanoTime();
+				for(int i = 0; i < batch; i++) {
+					sink += b.op();
+				}
+				
+				if(System.nanoTime() - t > 10000 || System.nanoTime() - start > millis * 1000000L) {
+					break;
+				}
+				batch *= 2;
+			}
+			
+			for(int i = 0; i < warmup; i++) {
+				iterate(b, batch, millis);
+			}
+			
+			double[] scores = new double[iterations];
+			for(int i = 0; i < iterations; i++) {
+				scores[i] = iterate(b, batch, millis);
+			}
+			
+			return new Result(b.name, b.params, scores);
+		} finally {
+			b.tearDown();
+		}
+	}
+	
+	//Runs the operation for the time given, and returns the average nanoseconds it took.
+	private static double iterate(Benchmark b, int batch, int millis) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + millis * 1000000L;
+		long now;
+		
+		do {
+			for(int i = 0; i < batch; i++) {
+				sink += b.op();
+			}
+			ops += batch;
+			now = System.nanoTime();
+		} while(now < deadline);
+		
+		return (now - start) / (double) ops;
+	}
+	
+	private static void writeJSON(File file, ArrayList<Result> results, int warmup, int iterations) throws IOException {
+		try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			out.println("[");
+			
+			for(int i = 0; i < results.size(); i++) {
+				Result r = results.get(i);
+				out.println("    {");
+				out.println("        \"benchmark\" : \"" + r.name + "\",");
+				out.println("        \"mode\" : \"avgt\",");
+				out.println("        \"threads\" : 1,");
+				out.println("        \"warmupIterations\" : " + warmup + ",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"params\" : " + r.paramJSON() + ",");
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + r.score + ",");
+				out.println("            \"scoreError\" : " + r.error + ",");
+				out.println("            \"scoreUnit\" : \"" + Result.UNIT + "\",");
+				
+				StringBuilder raw = new StringBuilder();
+				for(int j = 0; j < r.scores.length; j++) {
+					raw.append(j == 0 ? "" : ", ").append(r.scores[j]);
+				}
+				out.println("            \"rawData\" : [[" + raw + "]]");
+				
+				out.println("        }");
+				out.println(i == results.size() - 1 ? "    }" : "    },");
+			}
+			
+			out.println("]");
+		}
+	}
+	
+	//Reads the scores back out of a file written by writeJSON, keyed by name and parameters.
+	private static HashMap<String, Double> readScores(File file) throws IOException {
+		HashMap<String, Double> scores = new HashMap<String, Double>();
+		String json = Files.readString(file.toPath());
+		Pattern entry = Pattern.compile("\"benchmark\" : \"([^\"]*)\".*?\"params\" : (\\{[^}]*\\}).*?\"score\" : ([-0-9.Ee]+)", Pattern.DOTALL);
+		Matcher m = entry.matcher(json);
+		
+		while(m.find()) {
+			scores.put(m.group(1) + " " + m.group(2), Double.parseDouble(m.group(3)));
+		}
+		
+		return scores;
+	}
+	
+	//Prints how each score changed from the baseline, and returns how many got slower than allowed.
+	private static int compare(ArrayList<Result> results, HashMap<String, Double> baseline, double threshold) {
+		System.out.println("\n---Compared with baseline (threshold " + threshold + "%)---");
+		int regressions = 0;
+		
+		for(Result r : results) {
+			Double old = baseline.get(r.name + " " + r.paramJSON());
+			
+			if(old == null) {
+				System.out.printf("%-36s %-18s %14s%n", r.name, r.paramString(), "new");
+				continue;
+			}
+			
+			double change = (r.score - old) / old * 100;
+			boolean regressed = change > threshold;
+			
+			if(regressed) {
+				regressions++;
+			}
+			
+			System.out.printf("%-36s %-18s %+13.1f%% %s%n", r.name, r.paramString(), change, regressed ? "REGRESSION" : "");
+		}
+		
+		System.out.println("\n" + regressions + " regression(s)");
+		return regressions;
+	}
+	
+	/**
+	 * One thing to measure.  op() is what gets timed, and should return something that
+	 * depends on the work it did.
+	 */
+	private static abstract class Benchmark {
+		
+		final String name;
+		final LinkedHashMap<String, String> params;
+		
+		Benchmark(String n) {
+			name = n;
+			params = new LinkedHashMap<String, String>();
+		}
+		
+		void setup() throws Exception {
+			
+		}
+		
+		abstract long op() throws Exception;
+		
+		void tearDown() throws Exception {
+			
+		}
+	}
+	
+	private static class Result {
+		
+		static final String UNIT = "ns/op";
+		
+		final String name;
+		final LinkedHashMap<String, String> params;
+		final double[] scores;
+		final double score;
+		final double error;
+		
+		Result(String n, LinkedHashMap<String, String> p, double[] s) {
+			name = n;
+			params = p;
+			scores = s;
+			
+			double sum = 0;
+			for(double x : s) {
+				sum += x;
+			}
+			score = sum / s.length;
+			
+			if(s.length < 2) {
+				error = Double.NaN;
+				return;
+			}
+			
+			double squares = 0;
+			for(double x : s) {
+				squares += (x - score) * (x - score);
+			}
+			
+			int df = s.length - 1;
+			double t = df < T_999.length ? T_999[df] : Z_999;
+			error = t * Math.sqrt(squares / df) / Math.sqrt(s.length);
+		}
+		
+		String paramString() {
+			StringBuilder sb = new StringBuilder();
+			for(Map.Entry<String, String> e : params.entrySet()) {
+				sb.append(sb.length() == 0 ? "" : " ").append(e.getKey()).append('=').append(e.getValue());
+			}
+			return sb.toString();
+		}
+		
+		String paramJSON() {
+			StringBuilder sb = new StringBuilder("{");
+			for(Map.Entry<String, String> e : params.entrySet()) {
+				sb.append(sb.length() == 1 ? "" : ", ").append('"').append(e.getKey()).append("\" : \"").append(e.getValue()).append('"');
+			}
+			return sb.append('}').toString();
+		}
+	}
+	
+	//A frame sent over a loopback StreamBundle and echoed back.
+	private static class RoundTrip extends Benchmark {
+		
+		private final int size;
+		private Socket client;
+		private Socket server;
+		private StreamBundle bundle;
+		private Frame frame;
+		
+		RoundTrip(int s) {
+			super("streamBundle.roundTrip");
+			size = s;
+			params.put("size", String.valueOf(s));
+		}
+		
+		@Override
+		void setup() throws Exception {
+			ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+			server = listener.accept();
+			listener.close();
+			
+			bundle = new StreamBundle(client, true);
+			StreamBundle echo = new StreamBundle(server, true);
+			frame = new Frame(FrameType.TEXT, 0, new byte[size]);
+			
+			Thread t = new Thread(() -> {
+				try {
+					while(true) {
+						echo.writeFrame(echo.readFrame(), true);
+					}
+				} catch(IOException e) {}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		@Override
+		long op() throws Exception {
+			bundle.writeFrame(frame, true);
+			return bundle.readFrame().getPayload().length;
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			client.close();
+			server.close();
+		}
+	}
+	
+	//Adding a contact to a list of a given size.  Either a new one, which is then removed
+	//again so the list stays the same size, or one that is already known, which is what
+	//happens at the start of every chat.
+	private static class AddContact extends Benchmark {
+		
+		private final int count;
+		private final boolean known;
+		private File dir;
+		private ContactManager cMan;
+		private Contact contact;
+		
+		AddContact(int c, boolean k) {
+			super(k ? "contactManager.addKnownContact" : "contactManager.addRemoveContact");
+			count = c;
+			known = k;
+			params.put("contacts", String.valueOf(c));
+		}
+		
+		@Override
+		void setup() throws Exception {
+			dir = Files.createTempDirectory("litemessage-benchmark").toFile();
+			cMan = loadContacts(dir, count);
+			contact = new Contact();
+			
+			if(known) {
+				Contact existing = cMan.getContacts().get(count / 2);
+				contact.setName(existing.getName());
+				contact.setUID(existing.getUID());
+				contact.setIPAddress(existing.getIPAddress());
+			} else {
+				contact.setName("benchmark");
+				contact.setUID("benchmark-uid");
+				contact.setIPAddress(InetAddress.getLoopbackAddress());
+			}
+		}
+		
+		@Override
+		long op() throws Exception {
+			cMan.addContact(contact);
+			
+			if(!known) {
+				cMan.removeContact(contact.getName());
+			}
+			
+			return cMan.getNumContacts();
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			cMan.close();
+			deleteAll(dir);
+		}
+	}
+	
+	private static class FindContact extends Benchmark {
+		
+		private final int count;
+		private File dir;
+		private ContactManager cMan;
+		private String[] names;
+		private int next;
+		
+		FindContact(int c) {
+			super("contactManager.getContactByName");
+			count = c;
+			params.put("contacts", String.valueOf(c));
+		}
+		
+		@Override
+		void setup() throws Exception {
+			dir = Files.createTempDirectory("litemessage-benchmark").toFile();
+			cMan = loadContacts(dir, count);
+			names = new String[Math.min(count, 1024)];
+			
+			//Names that aren't all the same case, since the lookup ignores case.
+			for(int i = 0; i < names.length; i++) {
+				names[i] = cMan.getContacts().get(i * (count / names.length)).getName().toUpperCase();
+			}
+		}
+		
+		@Override
+		long op() throws Exception {
+			next = (next + 1) % names.length;
+			return cMan.getContactByName(names[next]).getUID().length();
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			cMan.close();
+			deleteAll(dir);
+		}
+	}
+	
+	private static class ParseUserData extends Benchmark {
+		
+		private UserDataParser parser;
+		
+		ParseUserData() {
+			super("messagingControlModule.parseOtherUserData");
+		}
+		
+		@Override
+		void setup() throws Exception {
+			parser = new UserDataParser();
+		}
+		
+		@Override
+		long op() throws Exception {
+			return parser.parse("Somebody With A Long Name,3f2a9c1b7e4d5a60");
+		}
+	}
+	
+	//Lets the benchmark at the handshake parsing.
+	private static class UserDataParser extends MessagingControlModule {
+		
+		//Nothing is loaded or saved, so the contact files are never touched.
+		UserDataParser() {
+			super(null, null, null, null, new ContactManager(new Settings()));
+		}
+		
+		long parse(String data) throws IOException {
+			parseOtherUserData(data);
+			return otherUser.getUID().length();
+		}
+	}
+	
+	private static class EvaluateText extends Benchmark {
+		
+		private final String text;
+		private CommandParseModule cpm;
+		
+		EvaluateText(String t) {
+			super("commandParseModule.evaluateText");
+			text = t;
+			params.put("text", t.startsWith("cmd-") ? "command" : "chat");
+		}
+		
+		@Override
+		void setup() throws Exception {
+			cpm = new CommandParseModule();
+		}
+		
+		@Override
+		long op() throws Exception {
+			return cpm.evaluateText(text).ordinal();
+		}
+	}
+	
+	//Setting up a session with a peer through ConnectionManager, and swapping handshakes,
+	//either on the control port or handed off to a dynamic port.
+	private static class SessionSetup extends Benchmark {
+		
+		private final boolean singlePort;
+		private ConnectionManager client;
+		private ConnectionManager server;
+		private Thread acceptor;
+		private volatile boolean running;
+		
+		SessionSetup(boolean single) {
+			super("connectionManager.sessionSetup");
+			singlePort = single;
+			params.put("singlePort", String.valueOf(single));
+		}
+		
+		@Override
+		void setup() throws Exception {
+			int port;
+			try(ServerSocket free = new ServerSocket(0)) {
+				port = free.getLocalPort();
+			}
+			
+			server = new ConnectionManager();
+			server.setControlPort(port);
+			server.setSinglePortMode(singlePort);
+			server.setPersistentListener(true);
+			server.getPool().setEnabled(false);
+			
+			client = new ConnectionManager();
+			client.setControlPort(port);
+			client.setSinglePortMode(singlePort);
+			client.getPool().setEnabled(false);
+			
+			running = true;
+			acceptor = new Thread(() -> {
+				while(running) {
+					try {
+						StreamBundle b = server.waitForSessionNegotiation();
+						b.readFrame();
+						b.writeFrame(Frame.handshake("server,2"), true);
+						server.closeSocket(b.getSocket());
+					} catch(IOException e) {
+						if(running) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+			
+			while(!server.isListening()) {
+				Thread.sleep(10);
+			}
+		}
+		
+		@Override
+		long op() throws Exception {
+			StreamBundle b = client.initSessionNegotiation(InetAddress.getLoopbackAddress());
+			b.writeFrame(Frame.handshake("client,1"), true);
+			Frame handshake = b.readFrame();
+			client.closeSocket(b.getSocket());
+			return handshake.getPayload().length;
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			running = false;
+			
+			try {
+				server.closeServerSocket();
+			} catch(NullPointerException npe) {/* Only the control port was open */}
+		}
+	}
+	
+	//Writes contacts the way ContactManager saves them, and loads them.
+	private static ContactManager loadContacts(File dir, int count) throws IOException {
+		File contacts = new File(dir, "contacts.cfg");
+		
+		try(BufferedWriter out = new BufferedWriter(new FileWriter(contacts))) {
+			for(int i = 0; i < count; i++) {
+				out.write(String.format("user%07d,%016x,10.%d.%d.%d\n", i, i * 0x9E3779B97F4A7C15L, (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF));
+			}
+		}
+		
+		ContactManager cMan = new ContactManager(new Settings(), contacts.getPath(), new File(dir, "contacts.journal").getPath());
+		cMan.loadContacts();
+		return cMan;
+	}
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		
+		dir.delete();
+	}
+}
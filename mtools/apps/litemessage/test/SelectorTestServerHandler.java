@@ -0,0 +1,152 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.apps.litemessage.test;
+
+import java.io.IOException;
+
+import mtools.apps.litemessage.control.logic.CommandParseModule;
+import mtools.apps.litemessage.control.logic.CommandType;
+import mtools.apps.litemessage.control.logic.ContactManager;
+import mtools.apps.litemessage.core.Contact;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.SelectorEngine;
+import mtools.apps.litemessage.core.networking.SelectorSession;
+import mtools.apps.litemessage.core.networking.SelectorSessionListener;
+
+/**
+ * The echo relay from {@link TestServerMessagingControlModule}, but served by a
+ * {@link SelectorEngine} so that one thread can hold every connected peer.
+ * @author Noah
+ *
+ */
+public class SelectorTestServerHandler implements SelectorSessionListener {
+	
+	private ContactManager cMan;
+	private Contact thisUser;
+	private CommandParseModule cpm;
+	private SelectorEngine engine;
+	
+	public SelectorTestServerHandler(ContactManager cm) {
+		cMan = cm;
+		thisUser = cMan.getSelfContact();
+		cpm = new CommandParseModule();
+	}
+	
+	/**
+	 * Gives the handler the engine it is running on, so it can report the number of connections.
+	 * @param e
+	 */
+	public void setEngine(SelectorEngine e) {
+		engine = e;
+	}
+
+	@Override
+	public void sessionOpened(SelectorSession session) {
+		//Nothing to do until the peer tells us who they are.
+	}
+
+	@Override
+	public void frameReceived(SelectorSession session, Frame frame) {
+		Contact otherUser = (Contact) session.getAttachment();
+		
+		//The first message is always the other user's info.
+		if(otherUser == null) {
+			String message = frame.getText();
+			int comma = message.indexOf(',');
+			
+			if(comma < 0) {
+				System.err.println("Bad user info from " + session.getInetAddress().getHostAddress());
+				session.close();
+				return;
+			}
+			
+			otherUser = new Contact();
+			otherUser.setName(message.substring(0, comma));
+			otherUser.setUID(message.substring(comma + 1));
+			otherUser.setIPAddress(session.getInetAddress());
+			session.setAttachment(otherUser);
+			
+			try {
+				session.writeFrame(Frame.handshake(thisUser.getName() + "," + thisUser.getUID()));
+			} catch(IOException e) {
+				System.err.println("Had issue sending our user info.");
+				session.close();
+				return;
+			}
+			
+			//The ContactManager isn't safe to share between workers.
+			synchronized(cMan) {
+				cMan.addContact(otherUser);
+			}
+			
+			System.out.println(otherUser.getName() + " has connected.  " + getNumOfConnections() + " active connections.");
+			return;
+		}
+		
+		if(cpm.evaluateFrame(frame) == CommandType.EXIT) {
+			session.close();
+			return;
+		}
+		
+		if(frame.getType() == FrameType.TEXT) {
+			System.out.println(otherUser.getName() + " said: " + frame.getText());
+		}
+		
+		try {
+			session.writeFrame(frame);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void sessionClosed(SelectorSession session) {
+		Contact otherUser = (Contact) session.getAttachment();
+		
+		if(otherUser != null) {
+			System.out.println(otherUser.getName() + " has left or was disconnected.  " + getNumOfConnections() + " active connections.");
+		}
+	}
+	
+	private int getNumOfConnections() {
+		if(engine == null) {
+			return 0;
+		}
+		
+		return engine.getNumOfSessions();
+	}
+}
@@ -13,15 +13,28 @@ import mtools.apps.litemessage.core.MessagingState;
 import mtools.apps.litemessage.core.TextDisplayObject;
 import mtools.apps.litemessage.core.TextInputObject;
 import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
 import mtools.apps.litemessage.core.networking.StreamBundle;
 import mtools.io.MDisplay;
 
 public class TestServerMessagingControlModule extends MessagingControlModule {
+	
+	private boolean quiet;
 
 	public TestServerMessagingControlModule(MDisplay dis, TextDisplayObject tdo, TextInputObject tio, ConnectionManager conMan, ContactManager cm) {
 		super(dis, tdo, tio, conMan, cm);
 	}
 	
+	/**
+	 * Stops messages and the connection list from being printed, which would otherwise
+	 * be what limits the server under load.
+	 * @param q
+	 */
+	public void setQuiet(boolean q) {
+		quiet = q;
+	}
+	
 	public void startTestServerLogic() {
 		
 		try {
@@ -37,14 +50,11 @@ public class TestServerMessagingControlModule extends MessagingControlModule {
 		}
 		
 		try {
-			//Grab the info about the other user.
-			parseOtherUserData(sBundle.readUTFData());
-			otherUser.setIPAddress(sBundle.getSocket().getInetAddress());
-			//Send the info about ourselves
-			sBundle.writeUTFData(thisUser.getName() + "," + thisUser.getUID());
+			swapUserData(false);
 		} catch (IOException e) {
 			System.err.println("Had issue either sending our user info, or receiving their user info.");
 			e.printStackTrace();
+			clearConnections();
 			return;
 		}		
 		
@@ -53,18 +63,18 @@ public class TestServerMessagingControlModule extends MessagingControlModule {
 		
 		displayCurrentConnections();
 		
-		this.start();
+		startSession();
 	}
 	
 	@Override
 	public void run() {
-		String message;
+		Frame message;
 		CommandParseModule cpm = new CommandParseModule();
 		
 		while(true) {
 			
 			try {
-				message = sBundle.readUTFData();
+				message = sBundle.readFrame();
 			} catch(IOException e) {
 				clearConnections();
 				System.out.println(otherUser.getName() + " has left or was disconnected...");
@@ -72,17 +82,23 @@ public class TestServerMessagingControlModule extends MessagingControlModule {
 				return;
 			}
 			
-			System.out.println(otherUser.getName() + " said: " + message);
+			if(handleHeartbeat(message)) {
+				continue;
+			}
 			
-			if(cpm.evaluateText(message) == CommandType.EXIT) {
+			if(cpm.evaluateFrame(message) == CommandType.EXIT) {
 				clearConnections();
 				System.out.println(otherUser.getName() + " has left...");
 				displayCurrentConnections();
 				return;
 			}
 			
+			if(message.getType() == FrameType.TEXT && !quiet) {
+				System.out.println(otherUser.getName() + " said: " + message.getText());
+			}
+			
 			try {
-				sBundle.writeUTFData(message);
+				outbound.send(message);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -90,6 +106,10 @@ public class TestServerMessagingControlModule extends MessagingControlModule {
 	}
 	
 	private void displayCurrentConnections() {
+		if(quiet) {
+			return;
+		}
+		
 		System.out.println("\n----------------------");
 		System.out.println("  Current connections\n");
 		
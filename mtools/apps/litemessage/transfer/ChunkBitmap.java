@@ -0,0 +1,187 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.transfer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Keeps track of which chunks of a transfer have been received and verified, in a small
+ * file that sits next to the file being received.  Each chunk is marked on disk as soon as
+ * it is verified, so a transfer that is cut off can be picked back up later without sending
+ * those chunks again.
+ * @author Noah
+ *
+ */
+public class ChunkBitmap implements Closeable {
+	
+	/**
+	 * Added to the name of the file being received to get the name of its bitmap file.
+	 */
+	public static final String SIDECAR_SUFFIX = ".lmchunks";
+	
+	private static final int MAGIC = 0x4C4D4342;
+	
+	private RandomAccessFile raf;
+	private byte[] bits;
+	private int numChunks;
+	private long headerLength;
+	private boolean resumed;
+	
+	private ChunkBitmap(RandomAccessFile file, int chunks, long header, byte[] existing) {
+		raf = file;
+		numChunks = chunks;
+		headerLength = header;
+		resumed = existing != null;
+		
+		if(existing != null) {
+			bits = existing;
+		} else {
+			bits = new byte[(chunks + 7) / 8];
+		}
+	}
+	
+	/**
+	 * Opens the bitmap file, or creates it if it doesn't exist.  If it exists but belongs to
+	 * a different transfer, or a different version of the file, it is started over.
+	 * @param sidecar
+	 * @param transferId identifies the file being sent.
+	 * @param size
+	 * @param chunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static ChunkBitmap open(File sidecar, String transferId, long size, int chunkSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+		int chunks = countChunks(size, chunkSize);
+		byte[] existing = new byte[(chunks + 7) / 8];
+		
+		try {
+			if(raf.length() > 0 && raf.readInt() == MAGIC && raf.readUTF().equals(transferId)
+					&& raf.readLong() == size && raf.readInt() == chunkSize
+					&& raf.length() - raf.getFilePointer() >= existing.length) {
+				long header = raf.getFilePointer();
+				raf.readFully(existing);
+				return new ChunkBitmap(raf, chunks, header, existing);
+			}
+		} catch(IOException e) {
+			//Unreadable, so it'll be started over.
+		}
+		
+		raf.setLength(0);
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeUTF(transferId);
+		raf.writeLong(size);
+		raf.writeInt(chunkSize);
+		long header = raf.getFilePointer();
+		raf.write(new byte[(chunks + 7) / 8]);
+		
+		return new ChunkBitmap(raf, chunks, header, null);
+	}
+	
+	/**
+	 * Returns the number of chunks a file of the size is split into.
+	 * @param size
+	 * @param chunkSize
+	 * @return
+	 */
+	public static int countChunks(long size, int chunkSize) {
+		return (int) ((size + chunkSize - 1) / chunkSize);
+	}
+	
+	/**
+	 * Marks a chunk as verified, and writes it to disk.  The chunk's data should already have
+	 * been forced to disk, since nothing checks it again once it is marked.
+	 * @param chunk
+	 * @throws IOException
+	 */
+	public synchronized void set(int chunk) throws IOException {
+		bits[chunk >> 3] |= 1 << (chunk & 7);
+		raf.seek(headerLength + (chunk >> 3));
+		raf.write(bits[chunk >> 3]);
+	}
+	
+	public synchronized boolean get(int chunk) {
+		return (bits[chunk >> 3] & (1 << (chunk & 7))) != 0;
+	}
+	
+	/**
+	 * Returns a copy of the bits.  Chunk n is bit (n % 8) of byte (n / 8).
+	 * @return
+	 */
+	public synchronized byte[] toByteArray() {
+		return bits.clone();
+	}
+	
+	/**
+	 * Returns the number of chunks that have been verified.
+	 * @return
+	 */
+	public synchronized int getNumVerified() {
+		int count = 0;
+		
+		for(byte b : bits) {
+			count += Integer.bitCount(b & 0xFF);
+		}
+		
+		return count;
+	}
+	
+	public int getNumChunks() {
+		return numChunks;
+	}
+	
+	public boolean isComplete() {
+		return getNumVerified() == numChunks;
+	}
+	
+	/**
+	 * Returns true if this picked up where an earlier transfer left off.
+	 * @return
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
@@ -0,0 +1,564 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package mtools.apps.litemessage.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+import mtools.apps.litemessage.core.EncryptionModule;
+import mtools.apps.litemessage.core.SessionExecutor;
+import mtools.apps.litemessage.core.networking.ConnectionManager;
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameDecoder;
+import mtools.apps.litemessage.core.networking.FrameType;
+import mtools.apps.litemessage.core.networking.StreamBundle;
+
+/**
+ * Sends and receives a file as numbered, fixed size chunks that can be picked back up if
+ * the transfer is cut off.  Each chunk carries a CRC32C of its data, and the receiver marks
+ * every chunk it has verified in a {@link ChunkBitmap} next to the file.
+ * 
+ * The sender offers the file over the session with a {@link FrameType#TRANSFER_OFFER} frame.
+ * The receiver answers with a {@link FrameType#TRANSFER_STATUS} frame holding the chunks it
+ * already has, and, if more than one connection was asked for, the port the extra connections
+ * should be made to through the {@link ConnectionManager}.  The missing chunks are then spread
+ * over the connections, each of which ends its run with an empty chunk.  The receiver replies
+ * with another status, and any chunks that failed their checksum are sent again, up to
+ * {@link #MAX_ROUNDS} times.
+ * 
+ * If the session is encrypted, each extra connection runs its own key exchange through an
+ * {@link EncryptionModule} before any chunks go over it.
+ * 
+ * Nothing else should be reading from the session while a transfer is running.
+ * @author Noah
+ *
+ */
+public class ChunkedTransfer {
+	
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_STREAMS = 1;
+	public static final int MAX_STREAMS = 16;
+	public static final int MAX_ROUNDS = 3;
+	
+	/**
+	 * Added to the name of a file while it is being received.
+	 */
+	public static final String PART_SUFFIX = ".part";
+	
+	//Each chunk starts with its number and its checksum.
+	private static final int CHUNK_PREFIX_SIZE = 8;
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+	
+	private StreamBundle sBundle;
+	private ConnectionManager connectionMan;
+	private SessionExecutor executor;
+	private int chunkSize;
+	private int streams;
+	
+	/**
+	 * @param bundle the session the transfer is negotiated over.
+	 * @param conMan used to make the extra connections.
+	 */
+	public ChunkedTransfer(StreamBundle bundle, ConnectionManager conMan) {
+		sBundle = bundle;
+		connectionMan = conMan;
+		executor = SessionExecutor.getDefault();
+		chunkSize = DEFAULT_CHUNK_SIZE;
+		streams = DEFAULT_STREAMS;
+	}
+	
+	/**
+	 * Sets the size of the chunks a sent file is split into.
+	 * @param size
+	 */
+	public void setChunkSize(int size) {
+		if(size <= 0 || size > FrameDecoder.DEFAULT_MAX_PAYLOAD_SIZE - CHUNK_PREFIX_SIZE) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + (FrameDecoder.DEFAULT_MAX_PAYLOAD_SIZE - CHUNK_PREFIX_SIZE) + " bytes.");
+		}
+		
+		chunkSize = size;
+	}
+	
+	/**
+	 * Sets how many connections a sent file is spread over.  With more than one, extra
+	 * connections are made just for the transfer, which helps fill links with a lot of latency.
+	 * @param count
+	 */
+	public void setStreams(int count) {
+		streams = Math.max(1, Math.min(count, MAX_STREAMS));
+	}
+	
+	/**
+	 * Changes the executor the extra connections are run on.
+	 * @param e
+	 */
+	public void setExecutor(SessionExecutor e) {
+		executor = e;
+	}
+	
+	/**
+	 * Sends a file.  If the peer already has some of it from an earlier try, only the rest is sent.
+	 * @param file
+	 * @param listener told about progress after every chunk.  Can be null.
+	 * @throws IOException if the transfer fails, or still isn't complete after {@link #MAX_ROUNDS} tries.
+	 */
+	public void sendFile(File file, TransferProgressListener listener) throws IOException {
+		ArrayList<StreamBundle> bundles = new ArrayList<StreamBundle>();
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			int numChunks = ChunkBitmap.countChunks(size, chunkSize);
+			
+			//Stays the same as long as the file doesn't change, so a later try can resume.
+			String transferId = UUID.nameUUIDFromBytes((file.getAbsolutePath() + "," + size + "," + file.lastModified()).getBytes(StandardCharsets.UTF_8)).toString();
+			String offer = transferId + "," + size + "," + chunkSize + "," + streams + "," + file.getName();
+			sBundle.writeFrame(new Frame(FrameType.TRANSFER_OFFER, 0, offer.getBytes(StandardCharsets.UTF_8)), true);
+			
+			ByteBuffer status = readStatus();
+			int port = status.getInt();
+			int acceptedStreams = status.getInt();
+			byte[] bits = remaining(status);
+			
+			if(port == 0) {
+				bundles.add(sBundle);
+			} else {
+				for(int i = 0; i < acceptedStreams; i++) {
+					StreamBundle stream = connectionMan.connectTransferStream(sBundle.getSocket().getInetAddress(), port);
+					bundles.add(stream);
+					matchEncryption(stream);
+				}
+			}
+			
+			for(int round = 0; round < MAX_ROUNDS; round++) {
+				int[] missing = missingChunks(bits, numChunks);
+				
+				if(missing.length == 0) {
+					return;
+				}
+				
+				sendRound(channel, size, missing, bundles, listener);
+				
+				status = readStatus();
+				status.getInt();
+				status.getInt();
+				bits = remaining(status);
+			}
+			
+			if(missingChunks(bits, numChunks).length > 0) {
+				throw new IOException("Could not finish sending " + file.getName() + " after " + MAX_ROUNDS + " tries.");
+			}
+		} finally {
+			closeExtraStreams(bundles);
+		}
+	}
+	
+	/**
+	 * Waits for a file offered with {@link #sendFile(File, TransferProgressListener)}, and
+	 * writes it into the directory under the name the sender gave it.  While it is being
+	 * received, the data is kept in a {@link #PART_SUFFIX} file alongside a {@link ChunkBitmap}.
+	 * If those are left over from an earlier try of the same file, the transfer picks up where
+	 * it left off.  Once every chunk is verified, the part file is renamed into place.
+	 * @param directory
+	 * @param listener told about progress after every chunk.  Can be null.
+	 * @return the file that was written.
+	 * @throws IOException if the transfer fails.  Whatever was verified is kept for the next try.
+	 */
+	public File receiveFile(File directory, TransferProgressListener listener) throws IOException {
+		Frame offerFrame;
+		
+		//Wait for the offer.
+		while(true) {
+			offerFrame = sBundle.readFrame();
+			
+			if(offerFrame.getType() == FrameType.TRANSFER_OFFER) {
+				break;
+			}
+		}
+		
+		String[] offer = offerFrame.getText().split(",", 5);
+		String transferId;
+		long size;
+		int offeredChunkSize;
+		int offeredStreams;
+		
+		try {
+			transferId = offer[0];
+			size = Long.parseLong(offer[1]);
+			offeredChunkSize = Integer.parseInt(offer[2]);
+			offeredStreams = Math.max(1, Math.min(Integer.parseInt(offer[3]), MAX_STREAMS));
+		} catch(Exception e) {
+			throw new IOException("Bad transfer offer received: " + offerFrame.getText());
+		}
+		
+		if(offer.length < 5 || size < 0 || offeredChunkSize <= 0 || offeredChunkSize > FrameDecoder.DEFAULT_MAX_PAYLOAD_SIZE - CHUNK_PREFIX_SIZE) {
+			throw new IOException("Bad transfer offer received: " + offerFrame.getText());
+		}
+		
+		//Only keep the name, so the sender can't pick where the file goes.
+		String name = new File(offer[4]).getName();
+		File target = new File(directory, name);
+		File part = new File(directory, name + PART_SUFFIX);
+		File sidecar = new File(directory, name + ChunkBitmap.SIDECAR_SUFFIX);
+		ArrayList<StreamBundle> bundles = new ArrayList<StreamBundle>();
+		ServerSocket transferListener = null;
+		
+		try(ChunkBitmap bitmap = ChunkBitmap.open(sidecar, transferId, size, offeredChunkSize);
+				FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			
+			if(!bitmap.isResumed()) {
+				channel.truncate(0);
+			}
+			
+			//Chunks land out of order, and a channel can't transfer in past its end, so the
+			//file is given its full size up front.
+			if(size > 0 && channel.size() < size) {
+				channel.write(ByteBuffer.allocate(1), size - 1);
+			}
+			
+			int port = 0;
+			if(offeredStreams > 1 && !bitmap.isComplete()) {
+				transferListener = connectionMan.openTransferListener();
+				port = transferListener.getLocalPort();
+			}
+			
+			writeStatus(port, offeredStreams, bitmap);
+			
+			if(transferListener == null) {
+				bundles.add(sBundle);
+			} else {
+				for(int i = 0; i < offeredStreams; i++) {
+					StreamBundle stream = connectionMan.acceptTransferStream(transferListener, sBundle.getSocket().getInetAddress());
+					bundles.add(stream);
+					matchEncryption(stream);
+				}
+				
+				transferListener.close();
+			}
+			
+			AtomicLong received = new AtomicLong(verifiedBytes(bitmap, size, offeredChunkSize));
+			
+			for(int round = 0; round < MAX_ROUNDS && !bitmap.isComplete(); round++) {
+				receiveRound(channel, size, offeredChunkSize, bitmap, bundles, received, listener);
+				writeStatus(0, 0, bitmap);
+			}
+			
+			if(!bitmap.isComplete()) {
+				throw new IOException("Could not finish receiving " + name + " after " + MAX_ROUNDS + " tries.");
+			}
+			
+			channel.force(true);
+		} finally {
+			closeExtraStreams(bundles);
+			
+			if(transferListener != null) {
+				transferListener.close();
+			}
+		}
+		
+		try {
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		sidecar.delete();
+		
+		return target;
+	}
+	
+	//Sends every missing chunk, spread over the connections, and ends each connection's run with an empty chunk.
+	private void sendRound(FileChannel channel, long size, int[] missing, ArrayList<StreamBundle> bundles, TransferProgressListener listener) throws IOException {
+		AtomicInteger next = new AtomicInteger();
+		AtomicLong sent = new AtomicLong(verifiedBytes(size, missing));
+		
+		runOnEach(bundles, (bundle) -> {
+			byte[] prefix = new byte[CHUNK_PREFIX_SIZE];
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+			CRC32C crc = new CRC32C();
+			
+			while(true) {
+				int i = next.getAndIncrement();
+				
+				if(i >= missing.length) {
+					break;
+				}
+				
+				int chunk = missing[i];
+				long position = (long) chunk * chunkSize;
+				int length = chunkLength(chunk, size, chunkSize);
+				
+				ByteBuffer.wrap(prefix).putInt(chunk).putInt(checksum(channel, position, length, buffer, crc));
+				bundle.writeFileChunk(channel, position, length, prefix);
+				
+				long total = sent.addAndGet(length);
+				if(listener != null) {
+					listener.progress(total, size);
+				}
+			}
+			
+			bundle.writeFrame(new Frame(FrameType.FILE_CHUNK, 0, new byte[0]), true);
+		});
+	}
+	
+	//Receives chunks on every connection until each one sends an empty chunk.
+	private void receiveRound(FileChannel channel, long size, int offeredChunkSize, ChunkBitmap bitmap, ArrayList<StreamBundle> bundles, AtomicLong received, TransferProgressListener listener) throws IOException {
+		int numChunks = bitmap.getNumChunks();
+		
+		runOnEach(bundles, (bundle) -> {
+			byte[] prefix = new byte[CHUNK_PREFIX_SIZE];
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+			CRC32C crc = new CRC32C();
+			
+			while(true) {
+				int length = bundle.nextFileChunk(prefix);
+				
+				if(length < 0) {
+					break;
+				}
+				
+				ByteBuffer header = ByteBuffer.wrap(prefix);
+				int chunk = header.getInt();
+				int expected = header.getInt();
+				
+				if(chunk < 0 || chunk >= numChunks || length != chunkLength(chunk, size, offeredChunkSize)) {
+					throw new IOException("Received a chunk that doesn't belong to the transfer.");
+				}
+				
+				long position = (long) chunk * offeredChunkSize;
+				bundle.readFileChunkData(channel, position, length);
+				
+				//Check what actually made it into the file.  A bad chunk is left unmarked,
+				//and will be asked for again.
+				if(checksum(channel, position, length, buffer, crc) != expected || bitmap.get(chunk)) {
+					continue;
+				}
+				
+				//The data has to be on disk before the bitmap says it is, or a power cut could
+				//leave a chunk marked that never made it, and it would never be asked for again.
+				channel.force(false);
+				bitmap.set(chunk);
+				
+				long total = received.addAndGet(length);
+				if(listener != null) {
+					listener.progress(total, size);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs the work once for each bundle at the same time, and waits for all of them.  The
+	 * first bundle is run on the calling thread.
+	 */
+	private void runOnEach(ArrayList<StreamBundle> bundles, StreamWork work) throws IOException {
+		CountDownLatch done = new CountDownLatch(bundles.size() - 1);
+		AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		
+		for(int i = 1; i < bundles.size(); i++) {
+			StreamBundle bundle = bundles.get(i);
+			
+			executor.execute(() -> {
+				try {
+					work.run(bundle);
+				} catch(IOException e) {
+					failure.compareAndSet(null, e);
+					closeStream(bundle);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		
+		try {
+			work.run(bundles.get(0));
+		} catch(IOException e) {
+			failure.compareAndSet(null, e);
+		}
+		
+		try {
+			done.await();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting on the transfer.");
+		}
+		
+		if(failure.get() != null) {
+			throw failure.get();
+		}
+	}
+	
+	private ByteBuffer readStatus() throws IOException {
+		while(true) {
+			Frame frame = sBundle.readFrame();
+			
+			if(frame.getType() == FrameType.TRANSFER_STATUS) {
+				return ByteBuffer.wrap(frame.getPayload());
+			}
+		}
+	}
+	
+	private void writeStatus(int port, int acceptedStreams, ChunkBitmap bitmap) throws IOException {
+		byte[] bits = bitmap.toByteArray();
+		ByteBuffer payload = ByteBuffer.allocate(8 + bits.length);
+		payload.putInt(port).putInt(acceptedStreams).put(bits);
+		sBundle.writeFrame(new Frame(FrameType.TRANSFER_STATUS, 0, payload.array()), true);
+	}
+	
+	//An extra connection gets its own keys when the session is encrypted, so the file
+	//doesn't go out in the clear next to it.  Both sides do this as each one is made.
+	private void matchEncryption(StreamBundle stream) throws IOException {
+		if(!sBundle.isEncrypted()) {
+			return;
+		}
+		
+		try {
+			new EncryptionModule().negotiate(stream);
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Could not encrypt a transfer connection.", e);
+		}
+	}
+	
+	private void closeExtraStreams(ArrayList<StreamBundle> bundles) {
+		for(StreamBundle bundle : bundles) {
+			if(bundle != sBundle) {
+				closeStream(bundle);
+			}
+		}
+	}
+	
+	private static void closeStream(StreamBundle bundle) {
+		try {
+			bundle.closeStreams();
+			bundle.getSocket().close();
+		} catch(IOException e) {
+			
+		}
+	}
+	
+	//Reads the region back from the file to checksum it, without pulling it onto the heap.
+	private static int checksum(FileChannel channel, long position, int length, ByteBuffer buffer, CRC32C crc) throws IOException {
+		crc.reset();
+		long done = 0;
+		
+		while(done < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - done));
+			
+			int read = channel.read(buffer, position + done);
+			if(read < 0) {
+				throw new IOException("The file ended before the chunk did.");
+			}
+			
+			buffer.flip();
+			crc.update(buffer);
+			done += read;
+		}
+		
+		return (int) crc.getValue();
+	}
+	
+	private static int[] missingChunks(byte[] bits, int numChunks) {
+		int count = 0;
+		int[] missing = new int[numChunks];
+		
+		for(int i = 0; i < numChunks; i++) {
+			if((i >> 3) >= bits.length || (bits[i >> 3] & (1 << (i & 7))) == 0) {
+				missing[count++] = i;
+			}
+		}
+		
+		int[] trimmed = new int[count];
+		System.arraycopy(missing, 0, trimmed, 0, count);
+		return trimmed;
+	}
+	
+	private static int chunkLength(int chunk, long size, int chunkSize) {
+		return (int) Math.min(chunkSize, size - (long) chunk * chunkSize);
+	}
+	
+	//The number of bytes in every chunk that isn't missing.
+	private long verifiedBytes(long size, int[] missing) {
+		long missingBytes = 0;
+		
+		for(int chunk : missing) {
+			missingBytes += chunkLength(chunk, size, chunkSize);
+		}
+		
+		return size - missingBytes;
+	}
+	
+	private static long verifiedBytes(ChunkBitmap bitmap, long size, int chunkSize) {
+		long total = 0;
+		
+		for(int i = 0; i < bitmap.getNumChunks(); i++) {
+			if(bitmap.get(i)) {
+				total += chunkLength(i, size, chunkSize);
+			}
+		}
+		
+		return total;
+	}
+	
+	private static byte[] remaining(ByteBuffer buffer) {
+		byte[] rest = new byte[buffer.remaining()];
+		buffer.get(rest);
+		return rest;
+	}
+	
+	/**
+	 * What each connection does during a round.
+	 */
+	private interface StreamWork {
+		public void run(StreamBundle bundle) throws IOException;
+	}
+}
@@ -33,18 +33,34 @@
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
  * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package mtools.apps.litemessage.transfer;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
+import mtools.apps.litemessage.core.networking.Frame;
+import mtools.apps.litemessage.core.networking.FrameType;
 import mtools.apps.litemessage.core.networking.StreamBundle;
 
+/**
+ * Sends and receives files over a framed {@link StreamBundle}.  A file starts with a
+ * {@link FrameType#FILE_INFO} frame holding its size and name, followed by a run of
+ * {@link FrameType#FILE_CHUNK} frames, and ends with an empty chunk.  Chunks are streamed
+ * between the file and the socket with {@link FileChannel}s, so files of any size can be
+ * sent without ever being loaded into memory.  If the bundle is compressing, chunks are
+ * read into memory instead so they can be compressed.
+ * @author Noah
+ *
+ */
 public class FileTransferer {
 	
+	public static final int CHUNK_SIZE = 1024 * 1024;
+	
 	StreamBundle sBundle;
 	
 	public FileTransferer(StreamBundle bundle) {
@@ -57,41 +73,141 @@ public class FileTransferer {
 	 */
 	public void sendFile(File file) {
 		try {
-			FileReader fReader = new FileReader(file);
-			BufferedReader bReader = new BufferedReader(fReader);
+			sendFile(file, null);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends a file to the other client.  The size is taken from the file system before
+	 * anything is sent.
+	 * @param file
+	 * @param listener told about progress after every chunk.  Can be null.
+	 * @throws IOException
+	 */
+	public void sendFile(File file, TransferProgressListener listener) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
 			
-			//File size in bytes
-			long fileSize = 0;
+			sBundle.writeFrame(new Frame(FrameType.FILE_INFO, 0, (size + "," + file.getName()).getBytes(StandardCharsets.UTF_8)));
 			
-			//Calculate the file size
-			while(true) {
-				if(fReader.read() != -1)
-					fileSize++;
-				else
-					break;
+			long sent = 0;
+			while(sent < size) {
+				int length = (int) Math.min(CHUNK_SIZE, size - sent);
+				
+				if(sBundle.isCompressing()) {
+					ByteBuffer chunk = ByteBuffer.allocate(length);
+					while(chunk.hasRemaining()) {
+						if(channel.read(chunk, sent + chunk.position()) < 0) {
+							throw new IOException(file.getName() + " ended early.");
+						}
+					}
+					sBundle.writeFrame(new Frame(FrameType.FILE_CHUNK, 0, chunk.array()));
+				} else {
+					sBundle.writeFileChunk(channel, sent, length);
+				}
+				
+				sent += length;
+				
+				if(listener != null) {
+					listener.progress(sent, size);
+				}
 			}
 			
-			fReader.reset();
+			//An empty chunk marks the end of the file.
+			sBundle.writeFrame(new Frame(FrameType.FILE_CHUNK, 0, new byte[0]), true);
+		}
+	}
+	
+	/**
+	 * Receives a file sent with {@link #sendFile(File, TransferProgressListener)}, and writes
+	 * it straight to disk in the directory, under the name the sender gave it.  Returns the
+	 * file that was written.
+	 * @param directory
+	 * @param listener told about progress after every chunk.  Can be null.
+	 * @return
+	 * @throws IOException if the connection ends, or the file is not the size the sender said it was.
+	 */
+	public File receiveFile(File directory, TransferProgressListener listener) throws IOException {
+		Frame info;
+		
+		//Wait for the info about the file.
+		while(true) {
+			info = sBundle.readFrame();
 			
-			//Send the size of the file
-			sBundle.writeUTFData(String.valueOf(fileSize));
+			if(info.getType() == FrameType.FILE_INFO) {
+				break;
+			}
+		}
+		
+		String text = info.getText();
+		int comma = text.indexOf(',');
+		long size;
+		
+		try {
+			size = Long.parseLong(text.substring(0, comma));
+		} catch(Exception e) {
+			throw new IOException("Bad file info received: " + text);
+		}
+		
+		//Only keep the name, so the sender can't pick where the file goes.
+		File file = new File(directory, new File(text.substring(comma + 1)).getName());
+		
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long received = 0;
 			
 			while(true) {
-				int data = fReader.read();
+				int length = sBundle.readFileChunk(channel, received);
 				
-				if(data == -1) {
+				if(length == 0) {
 					break;
 				}
 				
-				sBundle.getOutputStream().writeByte(data);
+				received += length;
+				
+				if(received > size) {
+					throw new IOException("Received more of " + file.getName() + " than the sender said it would send.");
+				}
+				
+				if(listener != null) {
+					listener.progress(received, size);
+				}
 			}
 			
-		} catch (Exception e) {
-			e.printStackTrace();
+			if(received != size) {
+				throw new IOException("Only received " + received + " of " + size + " bytes of " + file.getName() + ".");
+			}
 		}
+		
+		return file;
 	}
 	
-	public void receiveFile() {
+	/**
+	 * Receives a file sent with {@link #sendFile(File)}, and writes it to the stream.
+	 * Frames that aren't file chunks are ignored.  Returns the number of bytes received.
+	 * This holds each chunk in memory, so {@link #receiveFile(File, TransferProgressListener)}
+	 * should be preferred for anything large.
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public long receiveFile(OutputStream out) throws IOException {
+		long received = 0;
 		
+		while(true) {
+			Frame frame = sBundle.readFrame();
+			
+			if(frame.getType() != FrameType.FILE_CHUNK) {
+				continue;
+			}
+			
+			if(frame.getPayload().length == 0) {
+				return received;
+			}
+			
+			out.write(frame.getPayload());
+			received += frame.getPayload().length;
+		}
 	}
 }